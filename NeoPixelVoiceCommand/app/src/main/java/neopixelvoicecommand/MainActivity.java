@@ -5,15 +5,18 @@ import android.annotation.TargetApi;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.speech.RecognizerIntent;
 import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
@@ -30,37 +33,191 @@ import android.support.v7.widget.Toolbar;
 import android.view.Menu;
 import android.view.MenuItem;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 
+import neopixelvoicecommand.ble.BleConnection;
 import neopixelvoicecommand.ble.BleDevicesScanner;
 import neopixelvoicecommand.ble.BleManager;
 import neopixelvoicecommand.ble.BleUtils;
+import neopixelvoicecommand.ble.ChunkList;
+import neopixelvoicecommand.ble.ConnectionPriorityPolicy;
+import neopixelvoicecommand.ble.OfflineCommandBuffer;
+import neopixelvoicecommand.ble.PacketEncoder;
+import neopixelvoicecommand.ble.PipelineMetrics;
+import neopixelvoicecommand.ble.PixelFrameEncoder;
+import neopixelvoicecommand.ble.PixelStreamEncoder;
+import neopixelvoicecommand.ble.ReliableSender;
+import neopixelvoicecommand.ble.UartEvent;
+import neopixelvoicecommand.ble.UartRxPipeline;
+import neopixelvoicecommand.effects.ColorEffect;
+import neopixelvoicecommand.effects.Effect;
+import neopixelvoicecommand.effects.FadeEffect;
+import neopixelvoicecommand.effects.FireEffect;
+import neopixelvoicecommand.effects.FrameScheduler;
+import neopixelvoicecommand.effects.PixelColors;
+import neopixelvoicecommand.effects.RainbowEffect;
+import neopixelvoicecommand.effects.TimeScaleEffect;
+import neopixelvoicecommand.effects.ZoneEffect;
+import neopixelvoicecommand.scenes.Scene;
+import neopixelvoicecommand.scenes.SceneStore;
+import neopixelvoicecommand.voice.ColorVocabulary;
+import neopixelvoicecommand.voice.CommandGrammar;
+import neopixelvoicecommand.voice.ContinuousVoiceRecognizer;
+import neopixelvoicecommand.voice.VoiceCommand;
+import neopixelvoicecommand.voice.VoiceMatcher;
 
 public class MainActivity extends AppCompatActivity implements BleManager.BleManagerListener, BleUtils.ResetBluetoothAdapterListener, NavigationView.OnNavigationItemSelectedListener {
 
     //Service Constant
     private static final String BLUEFRUIT_BORARD_NAME = "Adafruit Bluefruit LE";
     private static final String UUID_TX = "6e400002-b5a3-f393-e0a9-e50e24dcca9e";
+    private static final String UUID_RX = "6e400003-b5a3-f393-e0a9-e50e24dcca9e";
     private static final String UUID_SERVICE = "6e400001-b5a3-f393-e0a9-e50e24dcca9e";
+    private static final UUID kUartRxUuid = UUID.fromString(UUID_RX);          // compared on every notification without allocating
     private static final String TAG = MainActivity.class.getSimpleName();
 
     private static final int VOICE_RECOGNITION_REQUEST_CODE = 1001;
-    private static final int kTxMaxCharacters = 20;
+    private static final int kMaxVoiceResults = 5;
+    private static final int kPixelsCount = 90;                     // NUMPIXELS in the neopixel_picker sketch
+    private static final int kEffectFps = 30;
+    private static final int kMaxPendingEffectWrites = 8;           // effect frames are dropped while there are more writes than this waiting to be sent
+    private static final long kDefaultFadeDuration = 2000;         // milliseconds
+    private static final long kRainbowCycleDuration = 2560;        // same as rainbow(10) in the neopixel_picker sketch
+    private static final float kSlowSpeedScale = 0.5f;
+    private static final float kFastSpeedScale = 2f;
+    private static final long kFastReconnectTimeout = 5000;        // fallback to scanning if the last device is not ready after this time (in milliseconds)
+    private static final int kOfflineTargetStrip = -1;             // offline commands for the whole strip. Zones use their start led as target
+    private static final String kPrefReliableMode = "pref_reliablemode";     // commands acknowledged by the device (see setReliableModeEnabled)
 
     //Bluetooth
     private BluetoothGattService mUartService;
     private BleDevicesScanner mScanner;
     private BleManager mBleManager;
+    private final PacketEncoder mPacketEncoder = new PacketEncoder();
+    private final PixelFrameEncoder mPixelFrameEncoder = new PixelFrameEncoder();
+    private final PixelStreamEncoder mPixelStreamEncoder = new PixelStreamEncoder(mPixelFrameEncoder);
+
+    // Reliable mode: commands are acknowledged by the device and retransmitted if lost. Needs a firmware that implements ReliableReceiver
+    private volatile boolean mIsReliableModeEnabled;
+    private final ReliableSender mReliableSender = new ReliableSender(new ReliableSender.Link() {
+        @Override
+        public void send(byte[] frame, int offset, int length) {
+            sendData(frame, offset, length);
+        }
+    });
+
+    // Offline: the last state commanded for the strip and for each zone while disconnected. Replayed when the device is ready again
+    private final OfflineCommandBuffer mOfflineCommands = new OfflineCommandBuffer();
+    private final PixelFrameEncoder.PacketSink mOfflinePacketSink = new PixelFrameEncoder.PacketSink() {
+        @Override
+        public void onPacket(byte[] buffer, int offset, int length) {
+            mOfflineCommands.append(buffer, offset, length);
+        }
+    };
+    private final OfflineCommandBuffer.Sink mOfflineReplaySink = new OfflineCommandBuffer.Sink() {
+        @Override
+        public boolean onCommand(int target, byte[] data, int offset, int length) {
+            if (isOffline()) {
+                return false;                       // disconnected again during the replay
+            }
+            if (mIsReliableModeEnabled && length <= ReliableSender.kMaxPacketLength) {
+                if (!mReliableSender.send(data, offset, length, SystemClock.uptimeMillis())) {
+                    return false;
+                }
+                scheduleReliableTimer(mReliableSender.getNextTimeout());
+            } else {
+                sendData(data, offset, length);
+            }
+            return true;
+        }
+    };
+
+    // Uart rx: data sent by the device
+    private final UartRxPipeline mUartRxPipeline = new UartRxPipeline();
+    private final UartRxPipeline.Listener mUartRxListener = new UartRxPipeline.Listener() {
+        @Override
+        public void onUartEvent(UartEvent event) {
+            switch (event.type) {
+                case UartEvent.TYPE_ACK:
+                case UartEvent.TYPE_NACK:
+                    if (mIsReliableModeEnabled && mReliableSender.onControlFrame(event.data, 0, event.length, event.time)) {
+                        scheduleReliableTimer(mReliableSender.getNextTimeout());
+                    }
+                    break;
+                case UartEvent.TYPE_SENSOR:
+                case UartEvent.TYPE_STATE:
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "Uart rx: " + event);
+                    }
+                    break;
+            }
+        }
+    };
+
+    // Voice
+    private final ColorVocabulary mColorVocabulary = new ColorVocabulary();
+    private final VoiceMatcher mVoiceMatcher = new VoiceMatcher(mColorVocabulary);
+    private final CommandGrammar mCommandGrammar = new CommandGrammar(mColorVocabulary);
+    private final VoiceCommand mVoiceCommand = new VoiceCommand();
+    private ContinuousVoiceRecognizer mVoiceRecognizer;
+    private boolean mIsContinuousVoiceEnabled;
+
+    // Strip
+    private final int[] mStripPixels = new int[kPixelsCount];      // last image sent to the strip. Unknown while the device runs its own effects
+    private int mBaseColor = 0xFFFFFF;                              // last color commanded, before applying the brightness
+    private final HashMap<String, int[]> mZones = new HashMap<String, int[]>();    // name -> {start, length}
+
+    // Scenes
+    private SceneStore mSceneStore;
+
+    // Effects
+    private FrameScheduler mFrameScheduler;
+    private final FrameScheduler.FrameSink mEffectFrameSink = new FrameScheduler.FrameSink() {
+        @Override
+        public boolean isReady() {
+            return mUartService != null && mBleManager.getPendingWritesCount() <= kMaxPendingEffectWrites;
+        }
+
+        @Override
+        public void onFrame(int[] pixels, int count) {
+            System.arraycopy(pixels, 0, mStripPixels, 0, count);
+            sendPixelFrameToDevice(pixels, count);
+        }
+    };
+    private final PixelFrameEncoder.PacketSink mUartPacketSink = new PixelFrameEncoder.PacketSink() {
+        @Override
+        public void onPacket(byte[] buffer, int offset, int length) {
+            sendData(buffer, offset, length);
+        }
+    };
 
     //UI
     private static final int PERMISSION_REQUEST_FINE_LOCATION = 1;
+    private static final int PERMISSION_REQUEST_RECORD_AUDIO = 2;
     private boolean mIsScanPaused = true;
     private AlertDialog mConnectingDialog;
 
+    // Fast reconnect
+    private final Handler mHandler = new Handler();
+    private boolean mIsFastReconnecting;            // only accessed from the main thread
+    private long mResumeTime;                       // SystemClock.elapsedRealtime() of the last onResume. 0 when the device is ready
+    private final Runnable mFastReconnectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Fast reconnect timeout");
+            fallbackToScanning();
+        }
+    };
+    private final Runnable mReliableTimerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduleReliableTimer(mReliableSender.onTimer(SystemClock.uptimeMillis()));
+        }
+    };
+
     @Override
     protected void onDestroy() {
         Log.d(TAG, "OnDestroy called");
@@ -72,6 +229,8 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
         if (mConnectingDialog != null) {
             mConnectingDialog.cancel();
         }
+        mHandler.removeCallbacks(mReliableTimerRunnable);
+        mUartRxPipeline.stop();
 
         super.onDestroy();
     }
@@ -90,6 +249,13 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
                 speak();
             }
         });
+        fab.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                setContinuousVoiceEnabled(!mIsContinuousVoiceEnabled);
+                return true;
+            }
+        });
 
         DrawerLayout drawer = (DrawerLayout) findViewById(R.id.drawer_layout);
         ActionBarDrawerToggle toggle = new ActionBarDrawerToggle(
@@ -101,6 +267,11 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
         navigationView.setNavigationItemSelectedListener(this);
 
         mBleManager = BleManager.getInstance(this);
+        setReliableModeEnabled(PreferenceManager.getDefaultSharedPreferences(this).getBoolean(kPrefReliableMode, false));
+        mFrameScheduler = new FrameScheduler(getMainLooper(), kPixelsCount, mEffectFrameSink);
+        mUartRxPipeline.addListener(mUartRxListener);
+        mUartRxPipeline.start();
+        loadScenes();
         // Request Bluetooth scanning persmissions
         requestLocationPermissionIfNeeded();
     }
@@ -149,6 +320,13 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
                 }
                 break;
             }
+            case PERMISSION_REQUEST_RECORD_AUDIO: {
+                if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                    Log.d(TAG, "Record audio permission granted");
+                    setContinuousVoiceEnabled(true);
+                }
+                break;
+            }
             default:
                 break;
         }
@@ -164,11 +342,44 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
         mBleManager.setBleListener(this);
 
         // Autostart scan
+        mResumeTime = SystemClock.elapsedRealtime();
         autostartScan();
+
+        // Continuous voice recognition only while the app is in the foreground
+        if (mIsContinuousVoiceEnabled) {
+            mVoiceRecognizer.start();
+        }
     }
 
     @Override
     public void onPause() {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            for (BleConnection connection : mBleManager.getConnections()) {
+                Log.d(TAG, "Send pipeline of " + connection.getAddress() + ":\n" + mBleManager.getMetrics(connection.getAddress()).snapshot());
+            }
+
+            final BleConnection connection = mBleManager.getPrimaryConnection();
+            if (connection != null) {
+                final ConnectionPriorityPolicy policy = connection.getPriorityPolicy();
+                final StringBuilder builder = new StringBuilder("Connection priority: " + policy.getTransitionsCount() + " transitions");
+                for (int priority : new int[]{BluetoothGatt.CONNECTION_PRIORITY_HIGH, BluetoothGatt.CONNECTION_PRIORITY_BALANCED, BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER}) {
+                    builder.append("\n").append(policy.getStats(priority));
+                }
+                Log.d(TAG, builder.toString());
+            }
+        }
+        stopEffect();
+        if (mVoiceRecognizer != null) {
+            mVoiceRecognizer.stop();
+        }
+
+        // Stop waiting for the fast reconnect. It will be checked again on resume
+        if (mIsFastReconnecting) {
+            mIsFastReconnecting = false;
+            mHandler.removeCallbacks(mFastReconnectTimeoutRunnable);
+            showConnectionStatus(false);
+        }
+
         // Stop scanning
         if (mScanner != null && mScanner.isScanning()) {
             mIsScanPaused = true;
@@ -180,12 +391,65 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
 
     private void autostartScan() {
         if (BleUtils.getBleStatus(this) == BleUtils.STATUS_BLE_ENABLED) {
+            // Still connected: nothing to do
+            if (mBleManager.isConnected() && mUartService != null) {
+                onReadyToSend();
+                return;
+            }
+
+            // Connect directly to the last device. Only scan if there is no known device or the connection fails
+            if (mBleManager.reconnectToLastDevice()) {
+                mIsFastReconnecting = true;
+                mHandler.removeCallbacks(mFastReconnectTimeoutRunnable);
+                mHandler.postDelayed(mFastReconnectTimeoutRunnable, kFastReconnectTimeout);
+                showConnectionStatus(true);
+                return;
+            }
+
             // If was connected, disconnect
             mBleManager.disconnect();
             startScan();
         }
     }
 
+    private void fallbackToScanning() {
+        if (!mIsFastReconnecting) {
+            return;
+        }
+
+        mIsFastReconnecting = false;
+        mHandler.removeCallbacks(mFastReconnectTimeoutRunnable);
+        showConnectionStatus(false);
+        mBleManager.close();
+        startScan();
+    }
+
+    private void onReadyToSend() {
+        if (mResumeTime > 0) {
+            Log.d(TAG, "Ready to send " + (SystemClock.elapsedRealtime() - mResumeTime) + "ms after resume (" + (mIsFastReconnecting ? "fast reconnect" : "scan") + ")");
+            mResumeTime = 0;
+        }
+        mIsFastReconnecting = false;
+        mHandler.removeCallbacks(mFastReconnectTimeoutRunnable);
+
+        // The chunks depend on the write payload negotiated for this connection
+        mSceneStore.precompile(mBleManager.getMaxWritePayload());
+
+        // The retries and drops of the reliable mode are measured with the other metrics of the device
+        mReliableSender.setMetrics(mBleManager.getMetrics());
+
+        // Commands issued while disconnected. Kept until there is a uart service to send them to
+        if (!mOfflineCommands.isEmpty() && !isOffline()) {
+            final int count = mOfflineCommands.replay(mOfflineReplaySink);
+            Log.d(TAG, "Replayed " + count + " offline commands. Pending: " + mOfflineCommands.size() + " replaced: " + mOfflineCommands.getReplacedCount() + " dropped: " + mOfflineCommands.getDroppedCount());
+        }
+    }
+
+    // Commands are buffered (see mOfflineCommands) while there is no uart service to send them to
+    private boolean isOffline() {
+        return mUartService == null || !mBleManager.isConnected();
+    }
+
     @Override
     public void onBackPressed() {
         DrawerLayout drawer = (DrawerLayout) findViewById(R.id.drawer_layout);
@@ -200,6 +464,7 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.action_reliablemode).setChecked(mIsReliableModeEnabled);
         return true;
     }
 
@@ -213,6 +478,12 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_settings) {
             return true;
+        } else if (id == R.id.action_reliablemode) {
+            final boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            PreferenceManager.getDefaultSharedPreferences(this).edit().putBoolean(kPrefReliableMode, enabled).apply();
+            setReliableModeEnabled(enabled);
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -255,16 +526,39 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
     @Override
     public void onDisconnected() {
         Log.d(TAG, "MainActivity onDisconnected");
+        mUartService = null;                        // commands are buffered until the services are discovered again (see ReconnectSupervisor)
+        mReliableSender.reset();
+        mHandler.removeCallbacks(mReliableTimerRunnable);
+
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                fallbackToScanning();
+            }
+        });
     }
 
     @Override
     public void onServicesDiscovered() {
         Log.d(TAG, "onServicesDiscovered");
         mUartService = mBleManager.getGattService(UUID_SERVICE);
+        mReliableSender.reset();                    // the device starts a new session
+        mUartRxPipeline.reset();                    // discard any partial frame of the previous connection
+        mBleManager.enableNotification(mUartService, UUID_RX, true);
 
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                if (mUartService == null && mIsFastReconnecting) {
+                    // The last device is not a uart board anymore. Find one again
+                    Log.w(TAG, "Uart service not found on the last device");
+                    mBleManager.forgetLastDevice();
+                    fallbackToScanning();
+                    return;
+                }
+
+                onReadyToSend();
+                mPixelStreamEncoder.reset();            // the device may have lost the last frame
                 showConnectionStatus(false);
                 Snackbar.make(findViewById(R.id.fab),
                             String.format("Connected to %s", mBleManager.getDeviceName()),
@@ -277,6 +571,13 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
 
     @Override
     public void onDataAvailable(BluetoothGattCharacteristic characteristic) {
+        // Called on a binder thread. The pipeline copies the value and parses it on its own thread
+        if (kUartRxUuid.equals(characteristic.getUuid())) {
+            final byte[] value = characteristic.getValue();
+            if (value != null && !mUartRxPipeline.onNotification(value, 0, value.length)) {
+                Log.w(TAG, "Uart rx buffer full. Data discarded");
+            }
+        }
     }
 
     @Override
@@ -288,6 +589,11 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
 
     }
 
+    @Override
+    public void onMtuChanged(int mtu) {
+        Log.d(TAG, "onMtuChanged: " + mtu);
+    }
+
     // region ResetBluetoothAdapterListener
     @Override
     public void resetBluetoothCompleted() {
@@ -315,7 +621,9 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
         if (BleUtils.getBleStatus(this) != BleUtils.STATUS_BLE_ENABLED) {
             Log.w(TAG, "startScan: BluetoothAdapter not initialized or unspecified address.");
         } else {
-            mScanner = new BleDevicesScanner(bluetoothAdapter, new BluetoothAdapter.LeScanCallback() {
+            // Let the controller filter by the uart service, so the app is only woken up for candidate boards
+            final UUID[] serviceUuids = {UUID.fromString(UUID_SERVICE)};
+            mScanner = new BleDevicesScanner(bluetoothAdapter, serviceUuids, BleDevicesScanner.SCAN_MODE_LOW_LATENCY, new BluetoothAdapter.LeScanCallback() {
                 @Override
                 public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
                     final String deviceName = device.getName();
@@ -394,12 +702,14 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
     }
 
     protected void sendData(byte[] data) {
+        sendData(data, 0, data.length);
+    }
+
+    protected void sendData(byte[] data, int offset, int length) {
         if (mUartService != null) {
-            // Split the value into chunks (UART service has a maximum number of characters that can be written )
-            for (int i = 0; i < data.length; i += kTxMaxCharacters) {
-                final byte[] chunk = Arrays.copyOfRange(data, i, Math.min(i + kTxMaxCharacters, data.length));
-                mBleManager.writeService(mUartService, UUID_TX, chunk);
-            }
+            // Split the value into chunks (UART service has a maximum number of characters that can be written, given by the negotiated mtu)
+            // Chunks are copied by the executor, so data can be reused after this call
+            mBleManager.writeServiceSplit(mUartService, UUID_TX, data, offset, length);
         } else {
             Log.w(TAG, "Uart Service not discovered. Unable to send data");
         }
@@ -407,92 +717,340 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
 
     // Send data to UART and add a byte with a custom CRC
     protected void sendDataWithCRC(byte[] data) {
+        mPacketEncoder.data(data, 0, data.length);
+        sendPacket(mPacketEncoder);
+    }
 
-        // Calculate checksum
-        byte checksum = 0;
-        for (byte aData : data) {
-            checksum += aData;
+    // Send an already encoded packet (data + crc)
+    private void sendPacket(PacketEncoder packet) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Send to UART: " + BleUtils.bytesToHexWithSpaces(packet.getBuffer(), 0, packet.getLength()));
         }
-        checksum = (byte) (~checksum);       // Invert
 
-        // Add crc to data
-        byte dataCrc[] = new byte[data.length + 1];
-        System.arraycopy(data, 0, dataCrc, 0, data.length);
-        dataCrc[data.length] = checksum;
+        final byte command = packet.getCommand();
+        if (isOffline() && isStripStateCommand(command)) {
+            // The new strip state supersedes any zone state buffered before it
+            mOfflineCommands.clear();
+            mOfflineCommands.put(kOfflineTargetStrip, packet.getBuffer(), 0, packet.getLength());
+        } else if (mIsReliableModeEnabled && mUartService != null && packet.getLength() <= ReliableSender.kMaxPacketLength) {
+            // Acknowledged and retransmitted if lost. Not coalesced: every packet is delivered
+            if (!mReliableSender.send(packet.getBuffer(), 0, packet.getLength(), SystemClock.uptimeMillis())) {
+                Log.w(TAG, "Reliable backlog full. Packet discarded");
+            }
+            scheduleReliableTimer(mReliableSender.getNextTimeout());
+        } else if (mUartService != null && PacketEncoder.isStateCommand(command) && packet.getLength() <= mBleManager.getMaxWritePayload()) {
+            // Replace any pending packet with the same command that has not been sent yet
+            mBleManager.writeServiceCoalesced(mUartService, UUID_TX, command, packet.getBuffer(), 0, packet.getLength());
+        } else {
+            sendData(packet.getBuffer(), 0, packet.getLength());
+        }
+    }
+
+    // Commands that set the mode of the whole strip: only the last one matters
+    private static boolean isStripStateCommand(byte command) {
+        return command == PacketEncoder.kCommandColor || command == PacketEncoder.kCommandRainbow || command == PacketEncoder.kCommandFire;
+    }
+
+    // Commands (not pixel streams or scenes: they are too long for a reliable frame and the next frame or scene replaces them anyway) are sent with ReliableSender.
+    // The device has to acknowledge them over the uart rx characteristic (see UartRxPipeline)
+    public void setReliableModeEnabled(boolean enabled) {
+        if (enabled == mIsReliableModeEnabled) {
+            return;
+        }
+
+        mIsReliableModeEnabled = enabled;
+        mReliableSender.reset();
+        mHandler.removeCallbacks(mReliableTimerRunnable);
+    }
 
-        // Send it
-        Log.d(TAG, "Send to UART: " + BleUtils.bytesToHexWithSpaces(dataCrc));
-        sendData(dataCrc);
+    public boolean isReliableModeEnabled() {
+        return mIsReliableModeEnabled;
+    }
+
+    // Thread safe: acks are received on a binder thread
+    private void scheduleReliableTimer(long time) {
+        mHandler.removeCallbacks(mReliableTimerRunnable);
+        if (time >= 0) {
+            mHandler.postAtTime(mReliableTimerRunnable, time);
+        }
     }
     // endregion
 
     public void sendRainbowColorToDevice() {
-        ByteBuffer buffer = ByteBuffer.allocate(2).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-        buffer.put("!R".getBytes());
-        sendDataWithCRC(buffer.array());
+        sendPacket(mPacketEncoder.rainbow());
     }
 
     public void sendFireEffectToDevice() {
-        ByteBuffer buffer = ByteBuffer.allocate(2).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-        buffer.put("!F".getBytes());
-        sendDataWithCRC(buffer.array());
+        sendPacket(mPacketEncoder.fire());
     }
 
     public void sendColorToDevice(int color) {
         // Send selected color !Crgb
-        byte r = (byte) ((color >> 16) & 0xFF);
-        byte g = (byte) ((color >> 8) & 0xFF);
-        byte b = (byte) ((color >> 0) & 0xFF);
-
-        ByteBuffer buffer = ByteBuffer.allocate(2 + 3 * 1).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-
-        // prefix
-        String prefix = "!C";
-        buffer.put(prefix.getBytes());
-
-        // values
-        buffer.put(r);
-        buffer.put(g);
-        buffer.put(b);
-
-        byte[] result = buffer.array();
-        sendDataWithCRC(result);
-    }
-
-    /* The following colors are supported:
-     * 'red', 'blue', 'green', 'black', 'white', 'gray', 'cyan', 'magenta',
-     * 'yellow', 'lightgray', 'darkgray', 'grey', 'lightgrey', 'darkgrey',
-     * 'aqua', 'fuchsia', 'lime', 'maroon', 'navy', 'olive', 'purple',
-     * 'silver', 'teal'.
-     */
-    private void changeColor(String color) {
-        try {
-
-            /*
-             * Rainbow is a all the colors with some
-             * animation. See neopixel_picker project for
-             * details on how it works.
-             */
-            if ("rainbow".equalsIgnoreCase(color)) {
-                sendRainbowColorToDevice();
-            } else if ("fire".equalsIgnoreCase(color)) {
-                sendFireEffectToDevice();
-            } else {
-                int rgb = Color.parseColor(color);
-                Integer rgbInt = new Integer(rgb);
-                String hex = BleUtils.bytesToHexWithSpaces(new byte[]{rgbInt.byteValue()});
-                Log.d(TAG, String.format("Send to device: %s", hex));
-                sendColorToDevice(rgb);
+        sendPacket(mPacketEncoder.color(color));
+    }
+
+    // Sends the leds [start, start + count) of a strip image (one 0xRRGGBB int per led) as a sequence of !P packets
+    public void sendPixelsToDevice(int[] pixels, int start, int count) {
+        if (isOffline()) {
+            // Latest state of these leds, replayed on reconnection
+            mOfflineCommands.begin(start);
+            mPixelFrameEncoder.encode(pixels, start, count, mOfflinePacketSink);
+            return;
+        }
+
+        final int packetsCount = mPixelFrameEncoder.encode(pixels, start, count, mUartPacketSink);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Send pixels: " + count + " in " + packetsCount + " packets");
+        }
+    }
+
+    // Sends the next frame of an animation (strip image pixels [0, count)). Only the changes since the previous frame are sent
+    public void sendPixelFrameToDevice(int[] pixels, int count) {
+        if (mUartService == null) {
+            Log.w(TAG, "Uart Service not discovered. Unable to send pixels");
+            return;
+        }
+
+        final int packetsCount = mPixelStreamEncoder.encode(pixels, count, mUartPacketSink);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Send pixel frame: " + packetsCount + " packets. Compression: " + mPixelStreamEncoder.getCompressionRatio());
+        }
+    }
+
+    // Renders the effect on the phone and streams it to the device
+    public void startEffect(Effect effect) {
+        mFrameScheduler.start(effect, kEffectFps);
+        mBleManager.setStreamingActive(true);
+    }
+
+    public void stopEffect() {
+        mFrameScheduler.stop();
+        mBleManager.setStreamingActive(false);
+    }
+
+    // region Zones
+    // Names a part of the strip, so it can be addressed by voice ("stairs blue")
+    public void addZone(String name, int start, int length) {
+        mZones.put(name, new int[]{start, length});
+        mCommandGrammar.addZone(name);
+    }
+
+    public void removeZone(String name) {
+        mZones.remove(name);
+        mCommandGrammar.removeZone(name);
+    }
+    // endregion
+
+    // region Scenes
+    private void loadScenes() {
+        mSceneStore = new SceneStore(this);
+        if (mSceneStore.isEmpty()) {
+            // Examples, until the user defines their own
+            mSceneStore.put(new Scene.Builder("movie").color(0x201000).build());
+            mSceneStore.put(new Scene.Builder("night").color(0x100000).build());
+            mSceneStore.put(new Scene.Builder("party").rainbow().build());
+        }
+
+        for (String name : mSceneStore.getNames()) {
+            mCommandGrammar.addScene(name);
+        }
+    }
+
+    // Defines or replaces a scene, so it can be activated by voice
+    public void saveScene(Scene scene) {
+        mSceneStore.put(scene);
+        mCommandGrammar.addScene(scene.getName());
+    }
+
+    public void removeScene(String name) {
+        mSceneStore.remove(name);
+        mCommandGrammar.removeScene(name);
+    }
+
+    // Sends the precomputed chunks of the scene as a single queued action
+    public boolean activateScene(String name) {
+        if (isOffline()) {
+            final ChunkList chunks = mSceneStore.getChunks(name, BleConnection.kDefaultMaxWritePayload);
+            if (chunks == null) {
+                Log.w(TAG, "Unknown scene: " + name);
+                return false;
             }
-        } catch (IllegalArgumentException iae) {
-            Log.d(TAG, iae.getLocalizedMessage());
-            Snackbar.make(findViewById(R.id.fab),
-                            iae.getLocalizedMessage(),
-                            Snackbar.LENGTH_LONG)
-                    .setAction("Action", null).show();
+            mOfflineCommands.clear();
+            mOfflineCommands.put(kOfflineTargetStrip, chunks);
+            return true;
+        }
+
+        final long startTime = System.nanoTime();
+        final ChunkList chunks = mSceneStore.getChunks(name, mBleManager.getMaxWritePayload());
+        if (chunks == null) {
+            Log.w(TAG, "Unknown scene: " + name);
+            return false;
+        }
+        mBleManager.writeServiceChunks(mUartService, UUID_TX, chunks);
+        mPixelStreamEncoder.reset();            // the scene may have changed any pixel
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Scene " + name + " (" + chunks.getChunksCount() + " chunks) queued in " + (System.nanoTime() - startTime) / 1000 + "us. Cache hits: " + mSceneStore.getHitsCount() + " misses: " + mSceneStore.getMissesCount());
+        }
+        return true;
+    }
+    // endregion
+
+    // region Commands
+    private boolean changeColor(VoiceMatcher.Match match) {
+        if (match == null) {
+            stopEffect();
+            return false;
+        }
+        mVoiceCommand.set(match);
+        return changeColor(mVoiceCommand);
+    }
+
+    // Supported commands: colors (the css/x11 names and the names added to mColorVocabulary) with brightness, rainbow and fire effects with speed,
+    // fades to a color, and brightness of the last color. All of them can be limited to a zone. And the scenes in mSceneStore
+    private boolean changeColor(VoiceCommand command) {
+        stopEffect();           // the new command replaces any effect rendered by the phone
+
+        if (command == null || command.type == VoiceCommand.TYPE_NONE) {
+            return false;
+        }
+
+        final int[] zone = command.zone != null ? mZones.get(command.zone) : null;
+        switch (command.type) {
+            case VoiceCommand.TYPE_EFFECT:
+                if (command.speed == VoiceCommand.SPEED_NORMAL && zone == null) {
+                    /*
+                     * Rainbow is a all the colors with some
+                     * animation. See neopixel_picker project for
+                     * details on how it works.
+                     */
+                    if (VoiceMatcher.kEffectRainbow.equals(command.effect)) {
+                        sendRainbowColorToDevice();
+                    } else if (VoiceMatcher.kEffectFire.equals(command.effect)) {
+                        sendFireEffectToDevice();
+                    }
+                } else {
+                    // The device effects have no speed and can't be limited to a zone: render them on the phone
+                    startEffect(inZone(createEffect(command.effect, command.speed), zone));
+                }
+                break;
+
+            case VoiceCommand.TYPE_FADE: {
+                final long duration = command.duration != VoiceCommand.kNotSet ? command.duration : kDefaultFadeDuration;
+                final int color = applyBrightness(command.color, command.brightness);
+                startEffect(inZone(new FadeEffect(new ColorEffect(mBaseColor), new ColorEffect(color), duration), zone));
+                mBaseColor = command.color;
+                break;
+            }
+
+            case VoiceCommand.TYPE_BRIGHTNESS:
+                setColor(applyBrightness(mBaseColor, command.brightness), zone);
+                break;
+
+            case VoiceCommand.TYPE_SCENE:
+                return activateScene(command.scene);
+
+            default:
+                mBaseColor = command.color;
+                setColor(applyBrightness(command.color, command.brightness), zone);
+                break;
+        }
+        return true;
+    }
+
+    private void setColor(int color, int[] zone) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format("Send to device: %06X", color));
+        }
+
+        if (zone == null) {
+            sendColorToDevice(color);
+            fillStripPixels(color, 0, kPixelsCount);
+        } else {
+            fillStripPixels(color, zone[0], zone[1]);
+            sendPixelsToDevice(mStripPixels, zone[0], Math.min(zone[1], kPixelsCount - zone[0]));
+        }
+        mPixelStreamEncoder.reset();            // the next effect frame can't be a delta of the last one
+    }
+
+    private void fillStripPixels(int color, int start, int length) {
+        for (int i = start; i < Math.min(start + length, kPixelsCount); i++) {
+            mStripPixels[i] = color;
+        }
+    }
+
+    private static int applyBrightness(int color, int brightness) {
+        return brightness != VoiceCommand.kNotSet ? PixelColors.scale(color, brightness * 255 / 100) : color;
+    }
+
+    private static Effect createEffect(String name, int speed) {
+        final float scale = speed == VoiceCommand.SPEED_SLOW ? kSlowSpeedScale : (speed == VoiceCommand.SPEED_FAST ? kFastSpeedScale : 1f);
+        if (VoiceMatcher.kEffectFire.equals(name)) {
+            return new TimeScaleEffect(new FireEffect(), scale);
+        } else {
+            return new RainbowEffect((long) (kRainbowCycleDuration / scale));
         }
     }
 
+    private Effect inZone(Effect effect, int[] zone) {
+        return zone != null ? new ZoneEffect(effect, zone[0], zone[1], mStripPixels) : effect;
+    }
+    // endregion
+
+    // region Continuous voice
+    // Listens without the system dialog and acts on partial results. Toggled with a long press on the voice button
+    private void setContinuousVoiceEnabled(boolean enabled) {
+        if (enabled) {
+            if (!ContinuousVoiceRecognizer.isAvailable(this)) {
+                Snackbar.make(findViewById(R.id.fab), "Speech recognition not available", Snackbar.LENGTH_LONG)
+                        .setAction("Action", null).show();
+                return;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && checkSelfPermission(Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+                requestPermissions(new String[]{Manifest.permission.RECORD_AUDIO}, PERMISSION_REQUEST_RECORD_AUDIO);
+                return;
+            }
+
+            if (mVoiceRecognizer == null) {
+                mVoiceRecognizer = new ContinuousVoiceRecognizer(this, mCommandGrammar, mVoiceMatcher, mVoiceRecognizerListener);
+            }
+            mVoiceRecognizer.start();
+        } else if (mVoiceRecognizer != null) {
+            mVoiceRecognizer.stop();
+        }
+
+        mIsContinuousVoiceEnabled = enabled;
+        Snackbar.make(findViewById(R.id.fab), enabled ? "Continuous listening on" : "Continuous listening off", Snackbar.LENGTH_SHORT)
+                .setAction("Action", null).show();
+    }
+
+    private final ContinuousVoiceRecognizer.Listener mVoiceRecognizerListener = new ContinuousVoiceRecognizer.Listener() {
+        @Override
+        public void onVoiceCommand(VoiceCommand command, boolean isPartial) {
+            final PipelineMetrics metrics = mBleManager.getMetrics();
+            final long commandStartTime = metrics.beginCommand();
+            changeColor(command);
+            metrics.endCommand(commandStartTime);
+
+            final long speechOnsetTime = mVoiceRecognizer.getSpeechOnsetTime();
+            if (speechOnsetTime > 0) {
+                Log.d(TAG, "Speech onset to ble write: " + (SystemClock.elapsedRealtime() - speechOnsetTime) + "ms" + (isPartial ? " (partial result)" : ""));
+            }
+        }
+
+        @Override
+        public void onVoiceNoMatch(List<String> results) {
+            Log.d(TAG, "Unknown color: " + results);
+        }
+
+        @Override
+        public void onVoiceStopped(int error) {
+            mIsContinuousVoiceEnabled = false;
+            Snackbar.make(findViewById(R.id.fab), "Continuous listening stopped (error " + error + ")", Snackbar.LENGTH_LONG)
+                    .setAction("Action", null).show();
+        }
+    };
+    // endregion
+
     public void speak() {
         Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
         intent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE,
@@ -500,7 +1058,7 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
         intent.putExtra(RecognizerIntent.EXTRA_PROMPT, "NeoPixelVoiceCommand");
         intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL,
                 RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
-        intent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, 1);
+        intent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, kMaxVoiceResults);      // alternatives are used to recover from mis-hearings
 
         startActivityForResult(intent, VOICE_RECOGNITION_REQUEST_CODE);
     }
@@ -509,13 +1067,35 @@ public class MainActivity extends AppCompatActivity implements BleManager.BleMan
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == VOICE_RECOGNITION_REQUEST_CODE) {
             if (resultCode == RESULT_OK) {
+                // End to end latency: from the voice result to the last write of the command completed (see PipelineMetrics)
+                final PipelineMetrics metrics = mBleManager.getMetrics();
+                final long commandStartTime = metrics.beginCommand();
                 List<String> list = data.getStringArrayListExtra(RecognizerIntent.EXTRA_RESULTS);
-                String color = list.get(0);
-                changeColor(color);
-                Snackbar.make(findViewById(R.id.fab),
-                            String.format("Color: %s", color),
-                            Snackbar.LENGTH_LONG)
-                        .setAction("Action", null).show();
+                float[] confidences = data.getFloatArrayExtra(RecognizerIntent.EXTRA_CONFIDENCE_SCORES);
+
+                // Commands that match the grammar first. Otherwise the color or effect that sounds closest
+                final long matchStartTime = System.nanoTime();
+                final int parsedIndex = mCommandGrammar.parse(list, mVoiceCommand);
+                final VoiceMatcher.Match match = parsedIndex < 0 ? mVoiceMatcher.match(list, confidences) : null;
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Voice results: " + list + " command: " + (parsedIndex >= 0 ? mVoiceCommand : match) + " in " + (System.nanoTime() - matchStartTime) / 1000 + "us");
+                }
+
+                final String said = list != null && !list.isEmpty() ? list.get(0) : "";
+                final boolean isChanged = parsedIndex >= 0 ? changeColor(mVoiceCommand) : changeColor(match);
+                metrics.endCommand(commandStartTime);
+                if (isChanged) {
+                    Snackbar.make(findViewById(R.id.fab),
+                                String.format("Command: %s", parsedIndex >= 0 ? list.get(parsedIndex) : match.name),
+                                Snackbar.LENGTH_LONG)
+                            .setAction("Action", null).show();
+                } else {
+                    Log.d(TAG, "Unknown color: " + said);
+                    Snackbar.make(findViewById(R.id.fab),
+                                String.format("Unknown color: %s", said),
+                                Snackbar.LENGTH_LONG)
+                            .setAction("Action", null).show();
+                }
             }
 
         } else if(resultCode == RecognizerIntent.RESULT_AUDIO_ERROR){
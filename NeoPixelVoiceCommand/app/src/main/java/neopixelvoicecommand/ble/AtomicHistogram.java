@@ -0,0 +1,146 @@
+package neopixelvoicecommand.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Histogram of positive longs (i.e. latencies in nanoseconds) with log-linear buckets, like HdrHistogram: each power of two is split in kSubBucketCount / 2
+// linear sub-buckets, so any value is counted with a relative error under 1 / kSubBucketHalfCount (~3%) and the whole long range fits in ~1900 counters.
+// Recording is lock free and doesn't allocate: a bucket index computation and a few atomic increments, from any number of threads.
+// Snapshots copy the counters without stopping the recorders, so a snapshot may include part of the values recorded while it was taken
+public class AtomicHistogram {
+    // Constants
+    private static final int kSubBucketBits = 6;
+    private static final int kSubBucketCount = 1 << kSubBucketBits;             // values below it have their own bucket
+    private static final int kSubBucketHalfCount = kSubBucketCount / 2;
+    private static final int kBucketsCount = (63 - kSubBucketBits + 1) * kSubBucketHalfCount + kSubBucketCount;
+
+    // Data
+    private final AtomicLongArray mCounts = new AtomicLongArray(kBucketsCount);
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    // region Record
+    // Negative values are counted as 0
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(getBucketIndex(value));
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    // Values below kSubBucketCount map to themselves. Then each power of two [2^n, 2^(n+1)) has kSubBucketHalfCount buckets of 2^(n - kSubBucketBits + 1)
+    static int getBucketIndex(long value) {
+        if (value < kSubBucketCount) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - (kSubBucketBits - 1);
+        return shift * kSubBucketHalfCount + (int) (value >>> shift);
+    }
+
+    // Smallest value counted in the bucket
+    static long getBucketLowValue(int index) {
+        if (index < kSubBucketCount) {
+            return index;
+        }
+        final int shift = index / kSubBucketHalfCount - 1;
+        return (long) (index - shift * kSubBucketHalfCount) << shift;
+    }
+
+    // Largest value counted in the bucket
+    static long getBucketHighValue(int index) {
+        if (index < kSubBucketCount) {
+            return index;
+        }
+        final int shift = index / kSubBucketHalfCount - 1;
+        return getBucketLowValue(index) + (1L << shift) - 1;
+    }
+    // endregion
+
+    // region Snapshots
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    // Snapshot of the values recorded since the last reset, and reset. Each counter is taken and cleared atomically, so no value is lost between intervals
+    public Snapshot snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    private Snapshot snapshot(boolean reset) {
+        final long[] counts = new long[kBucketsCount];
+        long totalCount = 0;
+        for (int i = 0; i < kBucketsCount; i++) {
+            final long count = reset ? mCounts.getAndSet(i, 0) : mCounts.get(i);
+            counts[i] = count;
+            totalCount += count;
+        }
+        final long sum = reset ? mSum.getAndSet(0) : mSum.get();
+        final long max = reset ? mMax.getAndSet(0) : mMax.get();
+        return new Snapshot(counts, totalCount, sum, max);
+    }
+
+    // Immutable copy of the counters
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mTotalCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long totalCount, long sum, long max) {
+            mCounts = counts;
+            mTotalCount = totalCount;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mTotalCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mTotalCount > 0 ? (double) mSum / mTotalCount : 0;
+        }
+
+        /**
+         * @param percentile 0..100
+         * @return highest value of the bucket that contains the percentile (capped to the max recorded), or 0 if the snapshot is empty
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mTotalCount == 0) {
+                return 0;
+            }
+
+            final long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * mTotalCount));
+            long count = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                count += mCounts[i];
+                if (count >= rank) {
+                    return Math.min(getBucketHighValue(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        // Summary for the logs. scale divides the values (i.e. 1000 to show nanoseconds as microseconds)
+        public String toString(long scale) {
+            return "count " + mTotalCount + " mean " + Math.round(getMean() / scale) + " p50 " + getValueAtPercentile(50) / scale + " p90 " + getValueAtPercentile(90) / scale
+                    + " p99 " + getValueAtPercentile(99) / scale + " max " + mMax / scale;
+        }
+
+        @Override
+        public String toString() {
+            return toString(1);
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,185 @@
+package neopixelvoicecommand.ble;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+// Advertisement data parsed from a raw scan record (a list of [length][type][data] structures)
+public class BleAdvertisement {
+    // AD types
+    private static final int kTypeIncompleteServiceUuids16 = 0x02;
+    private static final int kTypeCompleteServiceUuids16 = 0x03;
+    private static final int kTypeIncompleteServiceUuids128 = 0x06;
+    private static final int kTypeCompleteServiceUuids128 = 0x07;
+    private static final int kTypeShortLocalName = 0x08;
+    private static final int kTypeCompleteLocalName = 0x09;
+    private static final int kTypeTxPowerLevel = 0x0A;
+    private static final int kTypeManufacturerData = 0xFF;
+
+    private static final long kBluetoothBaseUuidLsb = 0x800000805F9B34FBL;
+    private static final long kBluetoothBaseUuidMsb = 0x0000000000001000L;
+
+    public static final int kTxPowerUnknown = Integer.MIN_VALUE;
+
+    private static final Charset kUtf8 = Charset.forName("UTF-8");
+
+    // Data
+    private String mLocalName;
+    private List<UUID> mServiceUuids = Collections.emptyList();
+    private int mTxPowerLevel = kTxPowerUnknown;
+    private int mManufacturerId = -1;
+
+    private BleAdvertisement() {
+    }
+
+    public String getLocalName() {
+        return mLocalName;
+    }
+
+    public List<UUID> getServiceUuids() {
+        return mServiceUuids;
+    }
+
+    public boolean hasServiceUuid(UUID uuid) {
+        return mServiceUuids.contains(uuid);
+    }
+
+    public boolean hasAnyServiceUuid(UUID[] uuids) {
+        for (UUID uuid : uuids) {
+            if (mServiceUuids.contains(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getTxPowerLevel() {
+        return mTxPowerLevel;
+    }
+
+    // Bluetooth SIG company identifier from the manufacturer specific data. -1 if not present
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    public static BleAdvertisement parse(byte[] scanRecord) {
+        final BleAdvertisement advertisement = new BleAdvertisement();
+        if (scanRecord == null) {
+            return advertisement;
+        }
+
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            final int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;          // padding or malformed structure
+            }
+
+            final int type = scanRecord[offset + 1] & 0xFF;
+            final int dataOffset = offset + 2;
+            final int dataLength = length - 1;
+            switch (type) {
+                case kTypeIncompleteServiceUuids16:
+                case kTypeCompleteServiceUuids16:
+                    for (int i = dataOffset; i + 2 <= dataOffset + dataLength; i += 2) {
+                        final int shortUuid = (scanRecord[i] & 0xFF) | ((scanRecord[i + 1] & 0xFF) << 8);
+                        advertisement.addServiceUuid(new UUID(kBluetoothBaseUuidMsb | ((long) shortUuid << 32), kBluetoothBaseUuidLsb));
+                    }
+                    break;
+
+                case kTypeIncompleteServiceUuids128:
+                case kTypeCompleteServiceUuids128:
+                    for (int i = dataOffset; i + 16 <= dataOffset + dataLength; i += 16) {
+                        advertisement.addServiceUuid(new UUID(getLongLittleEndian(scanRecord, i + 8), getLongLittleEndian(scanRecord, i)));
+                    }
+                    break;
+
+                case kTypeShortLocalName:
+                case kTypeCompleteLocalName:
+                    if (advertisement.mLocalName == null || type == kTypeCompleteLocalName) {
+                        advertisement.mLocalName = new String(scanRecord, dataOffset, dataLength, kUtf8);
+                    }
+                    break;
+
+                case kTypeTxPowerLevel:
+                    if (dataLength >= 1) {
+                        advertisement.mTxPowerLevel = scanRecord[dataOffset];
+                    }
+                    break;
+
+                case kTypeManufacturerData:
+                    if (dataLength >= 2) {
+                        advertisement.mManufacturerId = (scanRecord[dataOffset] & 0xFF) | ((scanRecord[dataOffset + 1] & 0xFF) << 8);
+                    }
+                    break;
+            }
+
+            offset += length + 1;
+        }
+
+        return advertisement;
+    }
+
+    // Same as parse(scanRecord).hasAnyServiceUuid(uuids), without allocating anything: scanners check it for every advertisement received
+    public static boolean hasAnyServiceUuid(byte[] scanRecord, UUID[] uuids) {
+        if (scanRecord == null) {
+            return false;
+        }
+
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            final int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;          // padding or malformed structure
+            }
+
+            final int type = scanRecord[offset + 1] & 0xFF;
+            final int dataOffset = offset + 2;
+            final int dataEnd = dataOffset + length - 1;
+            if (type == kTypeIncompleteServiceUuids16 || type == kTypeCompleteServiceUuids16) {
+                for (int i = dataOffset; i + 2 <= dataEnd; i += 2) {
+                    final long msb = kBluetoothBaseUuidMsb | ((long) ((scanRecord[i] & 0xFF) | ((scanRecord[i + 1] & 0xFF) << 8)) << 32);
+                    if (containsUuid(uuids, msb, kBluetoothBaseUuidLsb)) {
+                        return true;
+                    }
+                }
+            } else if (type == kTypeIncompleteServiceUuids128 || type == kTypeCompleteServiceUuids128) {
+                for (int i = dataOffset; i + 16 <= dataEnd; i += 16) {
+                    if (containsUuid(uuids, getLongLittleEndian(scanRecord, i + 8), getLongLittleEndian(scanRecord, i))) {
+                        return true;
+                    }
+                }
+            }
+
+            offset += length + 1;
+        }
+        return false;
+    }
+
+    private static boolean containsUuid(UUID[] uuids, long msb, long lsb) {
+        for (UUID uuid : uuids) {
+            if (uuid.getMostSignificantBits() == msb && uuid.getLeastSignificantBits() == lsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Same as BleUtils.getUuidFromByteArraLittleEndian, without copying the uuid out of the record (and without Android dependencies)
+    private static long getLongLittleEndian(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private void addServiceUuid(UUID uuid) {
+        if (mServiceUuids.isEmpty()) {
+            mServiceUuids = new ArrayList<UUID>();
+        }
+        mServiceUuids.add(uuid);
+    }
+}
@@ -0,0 +1,440 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Connection to a single peripheral. Each connection has its own gatt executor, so operations on different devices are executed in parallel
+public class BleConnection implements BleGattExecutor.BleExecutorListener {
+    // Log
+    private final static String TAG = BleConnection.class.getSimpleName();
+
+    // Constants
+    public static final int kDefaultMtu = 23;                   // ATT default MTU
+    private static final int kPreferredMtu = 247;               // fits in a single link layer packet when data length extension is available
+    private static final int kAttWriteHeaderLength = 3;         // opcode + attribute handle
+    public static final int kDefaultMaxWritePayload = kDefaultMtu - kAttWriteHeaderLength;
+
+    // Data
+    private final BluetoothDevice mDevice;
+    private final String mAddress;
+    private final BleGattExecutor mExecutor = BleGattExecutor.createExecutor(this);
+    private final ConnectionPriorityPolicy mPriorityPolicy = new ConnectionPriorityPolicy(this);
+    private final Listener mListener;
+    private final BleDiscoveryCache mDiscoveryCache;
+    private volatile BluetoothGatt mGatt;
+    private volatile int mConnectionState = BleManager.STATE_DISCONNECTED;
+    private volatile int mMtu = kDefaultMtu;
+
+    // Metrics
+    private final AtomicLong mWritesQueued = new AtomicLong();
+    private final AtomicLong mBytesQueued = new AtomicLong();
+    private volatile int mConnectionsCount;
+    private volatile long mConnectedSince;          // SystemClock.elapsedRealtime() of the last connection. 0 if not connected
+    private volatile boolean mIsFirstWritePending;
+    private volatile boolean mIsUsingCachedServices;
+    private volatile BluetoothGattDescriptor mDiscoveryProbe;      // read to validate the services of a recycled gatt. null if not validating
+    private volatile long mConnectToFirstWriteTime = -1;
+
+    // Stall recovery: the gatt is disconnected and connected again when the executor stops receiving callbacks
+    private volatile boolean mIsStallReconnectPending;
+    private volatile long mStallTime;               // SystemClock.elapsedRealtime() when the stall was detected. 0 if not recovering
+    private volatile int mStallReconnectsCount;
+    private volatile long mLastStallRecoveryTime = -1;
+
+    BleConnection(BluetoothDevice device, BleDiscoveryCache discoveryCache, Listener listener) {
+        mDevice = device;
+        mAddress = device.getAddress();
+        mDiscoveryCache = discoveryCache;
+        mListener = listener;
+    }
+
+    // region Getters
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public String getDeviceName() {
+        final String name = mDevice.getName();
+        return name != null ? name : "<Unknown>";
+    }
+
+    public int getState() {
+        return mConnectionState;
+    }
+
+    public boolean isConnected() {
+        return mConnectionState == BleManager.STATE_CONNECTED;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    // Maximum number of bytes that can be sent in a single characteristic write with the negotiated mtu
+    public int getMaxWritePayload() {
+        return mMtu - kAttWriteHeaderLength;
+    }
+
+    BluetoothGatt getGatt() {
+        return mGatt;
+    }
+
+    BleGattExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    public ConnectionPriorityPolicy getPriorityPolicy() {
+        return mPriorityPolicy;
+    }
+
+    public BluetoothGattService getGattService(String uuid) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt != null) {
+            final UUID serviceUuid = UUID.fromString(uuid);
+            return gatt.getService(serviceUuid);
+        } else {
+            return null;
+        }
+    }
+    // endregion
+
+    // region Metrics
+    public long getWritesQueued() {
+        return mWritesQueued.get();
+    }
+
+    public long getBytesQueued() {
+        return mBytesQueued.get();
+    }
+
+    public int getConnectionsCount() {
+        return mConnectionsCount;
+    }
+
+    // Writes queued that have not been sent yet
+    public int getPendingWritesCount() {
+        return mExecutor.getPendingActionsCount();
+    }
+
+    // Time connected in milliseconds. 0 if not connected
+    public long getConnectedTime() {
+        final long connectedSince = mConnectedSince;
+        return connectedSince > 0 ? SystemClock.elapsedRealtime() - connectedSince : 0;
+    }
+
+    // Time in milliseconds from the last connection to the first write queued on it. -1 if nothing has been written yet
+    public long getConnectToFirstWriteTime() {
+        return mConnectToFirstWriteTime;
+    }
+
+    // true if the services of the current connection are the validated services of a recycled gatt instead of a full discovery
+    public boolean isUsingCachedServices() {
+        return mIsUsingCachedServices;
+    }
+
+    // Gatt operations that didn't receive their callback in time (see BleGattExecutor.setActionTimeout)
+    public long getTimeoutsCount() {
+        return mExecutor.getTimeoutsCount();
+    }
+
+    public long getStallReconnectsCount() {
+        return mStallReconnectsCount;
+    }
+
+    // Time in milliseconds from the detection of the last stall to the reconnection. -1 if there hasn't been any
+    public long getLastStallRecoveryTime() {
+        return mLastStallRecoveryTime;
+    }
+    // endregion
+
+    // true from the stall detection until the reconnection has been started (see onExecutorStalled)
+    boolean isStallReconnectPending() {
+        return mIsStallReconnectPending;
+    }
+
+    // region Connection
+    boolean connect(Context context, boolean autoConnect) {
+        mConnectionState = BleManager.STATE_CONNECTING;
+        mGatt = mDevice.connectGatt(context, autoConnect, mExecutor);
+        return mGatt != null;
+    }
+
+    // Reconnects using the existing BluetoothGatt
+    boolean reconnect() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt != null && gatt.connect()) {
+            mConnectionState = BleManager.STATE_CONNECTING;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    void disconnect() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    void close() {
+        final BluetoothGatt gatt = mGatt;
+        mGatt = null;
+        mIsStallReconnectPending = false;
+        mStallTime = 0;
+        if (gatt != null) {
+            gatt.close();
+        }
+        mExecutor.clear();
+        mPriorityPolicy.onDisconnected();
+        mConnectionState = BleManager.STATE_DISCONNECTED;
+        mConnectedSince = 0;
+    }
+    // endregion
+
+    // region Write
+    void write(BluetoothGattService service, String uuid, byte[] value) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            Log.w(TAG, "write: not connected to " + mAddress);
+            return;
+        }
+
+        onWriteQueued(value.length);
+        mExecutor.write(service, uuid, value);
+        mExecutor.execute(gatt);
+    }
+
+    void writeWithoutResponse(BluetoothGattService service, String uuid, byte[] value, int offset, int length, int coalescingKey) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            Log.w(TAG, "writeWithoutResponse: not connected to " + mAddress);
+            return;
+        }
+
+        onWriteQueued(length);
+        mExecutor.writeWithoutResponse(service, uuid, value, offset, length, coalescingKey);
+        mExecutor.execute(gatt);
+    }
+
+    void writeChunks(BluetoothGattService service, String uuid, ChunkList chunks) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            Log.w(TAG, "writeChunks: not connected to " + mAddress);
+            return;
+        }
+
+        onWriteQueued(chunks.getLength());
+        mExecutor.writeChunks(service, uuid, chunks);
+        mExecutor.execute(gatt);
+    }
+
+    void enableNotification(BluetoothGattService service, String uuid, boolean enable) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null) {
+            Log.w(TAG, "enableNotification: not connected to " + mAddress);
+            return;
+        }
+
+        mExecutor.enableNotification(service, uuid, enable);
+        mExecutor.execute(gatt);
+    }
+
+    private void onWriteQueued(int length) {
+        mWritesQueued.incrementAndGet();
+        mBytesQueued.addAndGet(length);
+        mPriorityPolicy.onActivity();
+
+        if (mIsFirstWritePending) {
+            mIsFirstWritePending = false;
+            final long connectedSince = mConnectedSince;
+            if (connectedSince > 0) {
+                mConnectToFirstWriteTime = SystemClock.elapsedRealtime() - connectedSince;
+                Log.d(TAG, "Connect to first write: " + mConnectToFirstWriteTime + "ms (" + (mIsUsingCachedServices ? "cached services" : "full discovery") + ")");
+            }
+        }
+    }
+    // endregion
+
+    // region Discovery
+    private void discoverServices(BluetoothGatt gatt) {
+        // A recycled BluetoothGatt keeps the services of its previous discovery. If they are complete, ask the peripheral if they are still valid
+        mIsUsingCachedServices = false;
+        mDiscoveryProbe = null;
+        if (mDiscoveryCache != null && mDiscoveryCache.isValid(mAddress, gatt.getServices())) {
+            final BluetoothGattDescriptor probe = BleDiscoveryCache.findProbeDescriptor(gatt.getServices());
+            if (probe != null) {
+                // Queued like any other action, so the watchdog gives up on the read if the peripheral doesn't answer. A failed read is also reported to onDescriptorRead
+                Log.d(TAG, "Validating cached services for " + mAddress);
+                mDiscoveryProbe = probe;
+                mExecutor.readDescriptor(probe);
+                mExecutor.execute(gatt);
+                return;         // continues on onDescriptorRead
+            }
+        }
+
+        gatt.discoverServices();
+    }
+
+    // The probe read has finished: use the cached services or do a full discovery
+    private void onDiscoveryProbeRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        mDiscoveryProbe = null;
+        if (status == BluetoothGatt.GATT_SUCCESS && BleDiscoveryCache.isProbeValueValid(descriptor.getValue())) {
+            Log.d(TAG, "Using cached services for " + mAddress);
+            mIsUsingCachedServices = true;
+            mListener.onServicesDiscovered(this, BluetoothGatt.GATT_SUCCESS);
+        } else {
+            Log.d(TAG, "Cached services are not valid for " + mAddress + " (status: " + status + "). Discovering services");
+            mDiscoveryCache.invalidate(mAddress);
+            gatt.discoverServices();
+        }
+    }
+
+    // Forces a full discovery on the next connection
+    public void invalidateCachedServices() {
+        if (mDiscoveryCache != null) {
+            mDiscoveryCache.invalidate(mAddress);
+        }
+    }
+    // endregion
+
+    // region BleExecutorListener
+    @Override
+    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            mConnectionState = BleManager.STATE_CONNECTED;
+            mMtu = kDefaultMtu;
+            mConnectionsCount++;
+            mConnectedSince = SystemClock.elapsedRealtime();
+            mIsFirstWritePending = true;
+            final long stallTime = mStallTime;
+            if (stallTime > 0) {
+                mStallTime = 0;
+                mLastStallRecoveryTime = mConnectedSince - stallTime;
+                Log.d(TAG, "Reconnected " + mLastStallRecoveryTime + "ms after a stall");
+            }
+            mPriorityPolicy.onConnected();
+            mListener.onConnectionStateChange(this, status, newState);
+
+            // Negotiate a bigger mtu before discovering services. Discovery continues on onMtuChanged
+            if (!gatt.requestMtu(kPreferredMtu)) {
+                Log.d(TAG, "requestMtu failed. Using default mtu");
+                // Attempts to discover services after successful connection.
+                discoverServices(gatt);
+            }
+
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            mConnectionState = BleManager.STATE_DISCONNECTED;
+            mMtu = kDefaultMtu;
+            mConnectedSince = 0;
+            mDiscoveryProbe = null;
+            mPriorityPolicy.onDisconnected();
+            mListener.onConnectionStateChange(this, status, newState);
+
+            if (mIsStallReconnectPending) {
+                mIsStallReconnectPending = false;
+                if (!reconnect()) {
+                    Log.w(TAG, "Reconnection after a stall failed");
+                    mStallTime = 0;
+                }
+            }
+
+        } else if (newState == BluetoothProfile.STATE_CONNECTING) {
+            mConnectionState = BleManager.STATE_CONNECTING;
+            mListener.onConnectionStateChange(this, status, newState);
+        }
+    }
+
+    // The gatt has stopped answering. A new connection resets the stack state for this device. The executor is cleared on the disconnection
+    @Override
+    public void onExecutorStalled(BluetoothGatt gatt) {
+        if (mIsStallReconnectPending || gatt != mGatt || !isConnected()) {
+            return;
+        }
+        Log.w(TAG, "Gatt stalled. Reconnecting");
+        mIsStallReconnectPending = true;
+        mStallTime = SystemClock.elapsedRealtime();
+        mStallReconnectsCount++;
+        gatt.disconnect();
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mMtu = mtu;
+        } else {
+            Log.d(TAG, "onMtuChanged status: " + status);
+        }
+        mListener.onMtuChanged(this, mMtu);
+
+        // Attempts to discover services after the mtu negotiation
+        discoverServices(gatt);
+    }
+
+    @Override
+    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        if (mDiscoveryCache != null) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mDiscoveryCache.put(mAddress, gatt.getServices());
+            } else {
+                mDiscoveryCache.invalidate(mAddress);
+            }
+        }
+        mListener.onServicesDiscovered(this, status);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        mListener.onCharacteristicRead(this, characteristic, status);
+    }
+
+    @Override
+    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        mListener.onCharacteristicChanged(this, characteristic);
+    }
+
+    @Override
+    public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        if (descriptor == mDiscoveryProbe) {
+            onDiscoveryProbeRead(gatt, descriptor, status);
+            return;
+        }
+        mListener.onDescriptorRead(this, descriptor, status);
+    }
+
+    @Override
+    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        mListener.onReadRemoteRssi(this, rssi, status);
+    }
+    // endregion
+
+    interface Listener {
+        void onConnectionStateChange(BleConnection connection, int status, int newState);
+
+        void onMtuChanged(BleConnection connection, int mtu);
+
+        void onServicesDiscovered(BleConnection connection, int status);
+
+        void onCharacteristicRead(BleConnection connection, BluetoothGattCharacteristic characteristic, int status);
+
+        void onCharacteristicChanged(BleConnection connection, BluetoothGattCharacteristic characteristic);
+
+        void onDescriptorRead(BleConnection connection, BluetoothGattDescriptor descriptor, int status);
+
+        void onReadRemoteRssi(BleConnection connection, int rssi, int status);
+    }
+}
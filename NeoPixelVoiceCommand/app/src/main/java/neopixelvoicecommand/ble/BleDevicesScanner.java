@@ -3,45 +3,97 @@ package neopixelvoicecommand.ble;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BleDevicesScanner {
     private static final String TAG = BleDevicesScanner.class.getSimpleName();
     private static final long kScanPeriod = 20 * 1000; // scan period in milliseconds
+    private static final int kRssiChangeThreshold = 10;  // minimum rssi change (in dBm) to notify a device again
+    private static final long kBatchReportDelay = 1000; // report delay (in milliseconds) for SCAN_MODE_BATCH
+
+    // Scan modes
+    public static final int SCAN_MODE_LEGACY = 0;           // BluetoothAdapter.startLeScan. Service filters are applied by the app
+    public static final int SCAN_MODE_LOW_LATENCY = 1;      // BluetoothLeScanner. Service filters are applied by the controller
+    public static final int SCAN_MODE_BALANCED = 2;
+    public static final int SCAN_MODE_BATCH = 3;            // results are delivered in batches every kBatchReportDelay
 
     // Data
     private final BluetoothAdapter mBluetoothAdapter;
     private volatile boolean mIsScanning = false;
     private Handler mHandler;
     private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
-    private final LeScansPoster mLeScansPoster;
+    private final BluetoothAdapter.LeScanCallback mListener;
+    private final int mScanMode;
+    private final UUID[] mServiceUuids;
+    private final ScanBackend mBackend;
 
-    //
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
+    // Device table: scan results are deduplicated here (on the scan thread) and only new devices or significant rssi changes are posted to the main thread
+    private final ConcurrentHashMap<String, ScannedDevice> mDevices = new ConcurrentHashMap<String, ScannedDevice>();
+    private final ConcurrentLinkedQueue<ScannedDevice> mPendingNotifications = new ConcurrentLinkedQueue<ScannedDevice>();
+    private final AtomicBoolean mIsNotificationPosted = new AtomicBoolean();
 
-                @Override
-                public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
-                    synchronized (mLeScansPoster) {
-                        mLeScansPoster.set(device, rssi, scanRecord);
-                        mMainThreadHandler.post(mLeScansPoster);
-                    }
-                }
-            };
+    // Stats
+    private final AtomicLong mScanCallbacks = new AtomicLong();             // callbacks received from the backend (a batch counts as one)
+    private final AtomicLong mAdvertisementsReceived = new AtomicLong();
+    private final AtomicLong mAdvertisementsNotified = new AtomicLong();
+    private volatile long mScanStartTime;                                   // SystemClock.elapsedRealtime() of the last start
+    private volatile long mTimeToFirstResult = -1;
+
+    private final Runnable mNotificationsPoster = new Runnable() {
+        @Override
+        public void run() {
+            mIsNotificationPosted.set(false);
+
+            ScannedDevice scannedDevice;
+            while ((scannedDevice = mPendingNotifications.poll()) != null) {
+                scannedDevice.mIsNotificationPending = false;
+                mAdvertisementsNotified.incrementAndGet();
+                mListener.onLeScan(scannedDevice.getDevice(), scannedDevice.getRssi(), scannedDevice.getScanRecord());
+            }
+        }
+    };
 
     public BleDevicesScanner(BluetoothAdapter adapter, BluetoothAdapter.LeScanCallback callback) {
+        this(adapter, null, SCAN_MODE_LEGACY, callback);
+    }
+
+    /**
+     * @param serviceUuids only devices that advertise any of these services are reported. null to report all the devices
+     * @param scanMode     one of the SCAN_MODE constants
+     */
+    public BleDevicesScanner(BluetoothAdapter adapter, UUID[] serviceUuids, int scanMode, BluetoothAdapter.LeScanCallback callback) {
         mBluetoothAdapter = adapter;
-        mLeScansPoster = new LeScansPoster(callback);
+        mServiceUuids = serviceUuids;
+        mListener = callback;
+
+        // BluetoothLeScanner is not available if bluetooth is off. Fallback to the legacy api
+        final BluetoothLeScanner leScanner = scanMode != SCAN_MODE_LEGACY ? adapter.getBluetoothLeScanner() : null;
+        if (leScanner != null) {
+            mScanMode = scanMode;
+            mBackend = new LeScannerBackend(leScanner);
+        } else {
+            mScanMode = SCAN_MODE_LEGACY;
+            mBackend = new LegacyScanBackend();
+        }
 
         mHandler = new Handler();
     }
@@ -61,9 +113,13 @@ public class BleDevicesScanner {
             }, kScanPeriod);
         }
 
+        // Forget the devices found by the previous scan: the ones still around are notified again (i.e. a board that could not be connected before)
+        clearDevices();
+        resetStats();
         mIsScanning = true;
+        mScanStartTime = SystemClock.elapsedRealtime();
         Log.d(TAG, "start scanning");
-        mBluetoothAdapter.startLeScan(mLeScanCallback);
+        mBackend.start();
 
     }
 
@@ -71,35 +127,259 @@ public class BleDevicesScanner {
         if (mIsScanning) {
             mHandler.removeCallbacksAndMessages(null);      // cancel pending calls to stop
             mIsScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            Log.d(TAG, "stop scanning");
+            mBackend.stop();
+            Log.d(TAG, "stop scanning. mode: " + mScanMode + " time to first result: " + mTimeToFirstResult + "ms callbacks: " + mScanCallbacks.get()
+                    + " advertisements: " + mAdvertisementsReceived.get() + " notified: " + mAdvertisementsNotified.get());
         }
     }
 
+    public int getScanMode() {
+        return mScanMode;
+    }
+
     public boolean isScanning() {
         return mIsScanning;
     }
 
-    private static class LeScansPoster implements Runnable {
-        private final BluetoothAdapter.LeScanCallback leScanCallback;
+    // region Device table
+    public List<ScannedDevice> getDevices() {
+        return new ArrayList<ScannedDevice>(mDevices.values());
+    }
+
+    public ScannedDevice getDevice(String address) {
+        return mDevices.get(address);
+    }
+
+    // Forgets the devices found, so they will be notified again when found
+    public void clearDevices() {
+        mDevices.clear();
+    }
+
+    // Time (in milliseconds) from the start of the current scan to its first matching result. -1 if nothing has been found yet
+    public long getTimeToFirstResult() {
+        return mTimeToFirstResult;
+    }
+
+    // The stats are per scan, including the automatic restarts every kScanPeriod. stop() logs the ones of the scan that ends
+    private void resetStats() {
+        mTimeToFirstResult = -1;
+        mScanCallbacks.set(0);
+        mAdvertisementsReceived.set(0);
+        mAdvertisementsNotified.set(0);
+    }
+
+    public long getScanCallbacksCount() {
+        return mScanCallbacks.get();
+    }
+
+    public long getAdvertisementsReceivedCount() {
+        return mAdvertisementsReceived.get();
+    }
+
+    public long getAdvertisementsNotifiedCount() {
+        return mAdvertisementsNotified.get();
+    }
+
+    private void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        mAdvertisementsReceived.incrementAndGet();
+
+        final String address = device.getAddress();
+        ScannedDevice scannedDevice = mDevices.get(address);
+        if (scannedDevice == null) {
+            // The legacy backend reports every device. Keep the ones that don't match the filters out of the table (without parsing them: most don't match)
+            if (mBackend.filtersInApp() && !BleAdvertisement.hasAnyServiceUuid(scanRecord, mServiceUuids)) {
+                return;
+            }
+
+            if (mTimeToFirstResult < 0) {
+                mTimeToFirstResult = SystemClock.elapsedRealtime() - mScanStartTime;
+            }
+
+            final ScannedDevice newDevice = new ScannedDevice(device);
+            scannedDevice = mDevices.putIfAbsent(address, newDevice);
+            if (scannedDevice == null) {
+                scannedDevice = newDevice;
+            }
+        }
+
+        boolean notify;
+        synchronized (scannedDevice) {
+            // Only parse the advertisement if it has changed
+            if (!Arrays.equals(scannedDevice.mScanRecord, scanRecord)) {
+                scannedDevice.mScanRecord = scanRecord;
+                scannedDevice.mAdvertisement = BleAdvertisement.parse(scanRecord);
+            }
+            scannedDevice.mRssi = rssi;
+            scannedDevice.mLastSeen = SystemClock.elapsedRealtime();
+
+            // New devices are always notified, because mNotifiedRssi is initialized far from any valid rssi
+            notify = Math.abs(rssi - scannedDevice.mNotifiedRssi) >= kRssiChangeThreshold;
+            if (notify) {
+                scannedDevice.mNotifiedRssi = rssi;
+                if (scannedDevice.mIsNotificationPending) {
+                    notify = false;         // already waiting to be delivered. It will use the latest values
+                } else {
+                    scannedDevice.mIsNotificationPending = true;
+                }
+            }
+        }
+
+        if (notify) {
+            mPendingNotifications.add(scannedDevice);
+            if (mIsNotificationPosted.compareAndSet(false, true)) {
+                mMainThreadHandler.post(mNotificationsPoster);
+            }
+        }
+    }
+    // endregion
+
+    // region Backends
+    private interface ScanBackend {
+        void start();
+
+        void stop();
+
+        // true if the backend doesn't support filtering by service and the results should be filtered by the app
+        boolean filtersInApp();
+    }
+
+    // Deprecated BluetoothAdapter.startLeScan api
+    private class LegacyScanBackend implements ScanBackend {
+        private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+                new BluetoothAdapter.LeScanCallback() {
 
-        private BluetoothDevice device;
-        private int rssi;
-        private byte[] scanRecord;
+                    @Override
+                    public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
+                        mScanCallbacks.incrementAndGet();
+                        onScanResult(device, rssi, scanRecord);
+                    }
+                };
 
-        private LeScansPoster(BluetoothAdapter.LeScanCallback leScanCallback) {
-            this.leScanCallback = leScanCallback;
+        @Override
+        public void start() {
+            mBluetoothAdapter.startLeScan(mLeScanCallback);
         }
 
-        public void set(BluetoothDevice device, int rssi, byte[] scanRecord) {
-            this.device = device;
-            this.rssi = rssi;
-            this.scanRecord = scanRecord;
+        @Override
+        public void stop() {
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
         }
 
         @Override
-        public void run() {
-            leScanCallback.onLeScan(device, rssi, scanRecord);
+        public boolean filtersInApp() {
+            return mServiceUuids != null;
+        }
+    }
+
+    // BluetoothLeScanner api: filters are applied by the controller, so the app is only woken up for matching devices
+    private class LeScannerBackend implements ScanBackend {
+        private final BluetoothLeScanner mLeScanner;
+        private final List<ScanFilter> mFilters = new ArrayList<ScanFilter>();
+        private final ScanSettings mSettings;
+
+        private final ScanCallback mScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                mScanCallbacks.incrementAndGet();
+                onLeScanResult(result);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                mScanCallbacks.incrementAndGet();
+                for (ScanResult result : results) {
+                    onLeScanResult(result);
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                Log.w(TAG, "onScanFailed: " + errorCode);
+            }
+        };
+
+        LeScannerBackend(BluetoothLeScanner leScanner) {
+            mLeScanner = leScanner;
+
+            if (mServiceUuids != null) {
+                for (UUID serviceUuid : mServiceUuids) {
+                    mFilters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(serviceUuid)).build());
+                }
+            }
+
+            final ScanSettings.Builder settingsBuilder = new ScanSettings.Builder();
+            switch (mScanMode) {
+                case SCAN_MODE_BALANCED:
+                    settingsBuilder.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+                    break;
+                case SCAN_MODE_BATCH:
+                    settingsBuilder.setScanMode(ScanSettings.SCAN_MODE_BALANCED).setReportDelay(kBatchReportDelay);
+                    break;
+                default:
+                    settingsBuilder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+                    break;
+            }
+            mSettings = settingsBuilder.build();
+        }
+
+        private void onLeScanResult(ScanResult result) {
+            final ScanRecord scanRecord = result.getScanRecord();
+            onScanResult(result.getDevice(), result.getRssi(), scanRecord != null ? scanRecord.getBytes() : null);
+        }
+
+        @Override
+        public void start() {
+            mLeScanner.startScan(mFilters, mSettings, mScanCallback);
+        }
+
+        @Override
+        public void stop() {
+            if (mScanMode == SCAN_MODE_BATCH) {
+                mLeScanner.flushPendingScanResults(mScanCallback);
+            }
+            mLeScanner.stopScan(mScanCallback);
+        }
+
+        @Override
+        public boolean filtersInApp() {
+            return false;
+        }
+    }
+    // endregion
+
+    // Last known data of a device found while scanning
+    public static class ScannedDevice {
+        private final BluetoothDevice mDevice;
+        private volatile int mRssi;
+        private volatile byte[] mScanRecord;
+        private volatile BleAdvertisement mAdvertisement;
+        private volatile long mLastSeen;                // SystemClock.elapsedRealtime()
+
+        private int mNotifiedRssi = Integer.MIN_VALUE / 2;
+        private volatile boolean mIsNotificationPending;
+
+        private ScannedDevice(BluetoothDevice device) {
+            mDevice = device;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public byte[] getScanRecord() {
+            return mScanRecord;
+        }
+
+        public BleAdvertisement getAdvertisement() {
+            return mAdvertisement;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,104 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Reuse of the services of a recycled gatt.
+// When a BluetoothGatt is reused for a reconnection it still has the services of its previous discovery (a new BluetoothGatt always does a full discovery, so
+// nothing is persisted). The local services are only a candidate: the layout is recorded after each successful discovery to know that they are complete, and the
+// peripheral is asked before using them by reading a probe descriptor by its cached handle (see findProbeDescriptor). If the read fails or doesn't return what
+// a client characteristic configuration descriptor holds, the handles have moved and a full discovery is done
+public class BleDiscoveryCache {
+    // Constants
+    private static final UUID kClientCharacteristicConfigUuid = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final UUID kGenericAttributeServiceUuid = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+
+    // Data
+    private final ConcurrentHashMap<String, String> mLayouts = new ConcurrentHashMap<String, String>();     // layout signature by device address
+
+    // Returns true if the services are the ones of the last successful discovery for the device. They still have to be validated with the probe
+    public boolean isValid(String address, List<BluetoothGattService> services) {
+        if (services == null || services.isEmpty()) {
+            return false;
+        }
+
+        final String layout = mLayouts.get(address.toUpperCase());
+        return layout != null && layout.equals(createLayoutSignature(services));
+    }
+
+    public boolean contains(String address) {
+        return mLayouts.containsKey(address.toUpperCase());
+    }
+
+    void put(String address, List<BluetoothGattService> services) {
+        if (services == null || services.isEmpty()) {
+            invalidate(address);
+            return;
+        }
+
+        mLayouts.put(address.toUpperCase(), createLayoutSignature(services));
+    }
+
+    // Call it when the services of the device have changed (i.e. firmware update). The next connection will do a full discovery
+    public void invalidate(String address) {
+        mLayouts.remove(address.toUpperCase());
+    }
+
+    public void invalidateAll() {
+        mLayouts.clear();
+    }
+
+    // region Probe
+    // Client characteristic configuration descriptor with the highest handle outside the generic attribute service: services added or resized before it move it,
+    // and it is readable on any peripheral. null if there is none (the services can't be validated)
+    static BluetoothGattDescriptor findProbeDescriptor(List<BluetoothGattService> services) {
+        BluetoothGattDescriptor probe = null;
+        int probeHandle = -1;
+        for (BluetoothGattService service : services) {
+            if (kGenericAttributeServiceUuid.equals(service.getUuid())) {
+                continue;
+            }
+            final List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            if (characteristics == null) {
+                continue;
+            }
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(kClientCharacteristicConfigUuid);
+                // The descriptor handle is not public, but it follows the characteristic handle
+                if (descriptor != null && characteristic.getInstanceId() > probeHandle) {
+                    probe = descriptor;
+                    probeHandle = characteristic.getInstanceId();
+                }
+            }
+        }
+        return probe;
+    }
+
+    // A client characteristic configuration value is two bytes, little endian, with only the notification and indication bits
+    static boolean isProbeValueValid(byte[] value) {
+        return value != null && value.length == 2 && (value[0] & ~0x03) == 0 && value[1] == 0;
+    }
+    // endregion
+
+    // service uuid@handle[characteristic uuid@handle:properties,...];...
+    private static String createLayoutSignature(List<BluetoothGattService> services) {
+        final StringBuilder builder = new StringBuilder();
+        for (BluetoothGattService service : services) {
+            builder.append(service.getUuid()).append('@').append(service.getInstanceId()).append('[');
+            final List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+            if (characteristics != null) {
+                for (BluetoothGattCharacteristic characteristic : characteristics) {
+                    builder.append(characteristic.getUuid()).append('@').append(characteristic.getInstanceId())
+                            .append(':').append(characteristic.getProperties()).append(',');
+                }
+            }
+            builder.append("];");
+        }
+        return builder.toString();
+    }
+}
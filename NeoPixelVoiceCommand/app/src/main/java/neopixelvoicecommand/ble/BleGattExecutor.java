@@ -8,10 +8,20 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.LinkedList;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 // Encapsulate a list of actions to execute. Actions should be queued and executed sequentially to avoid problems
 public class BleGattExecutor extends BluetoothGattCallback {
@@ -20,6 +30,19 @@ public class BleGattExecutor extends BluetoothGattCallback {
 
     // Constants
     private static String CHARACTERISTIC_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+    private static final int kDefaultMaxWritesInFlight = 4;
+    private static final long kBusyRetryDelay = 10;         // retry delay (in milliseconds) when the stack rejects a write because it is busy
+    private static final int kMaxPooledWriteActions = 32;
+    public static final int kNoCoalescing = -1;
+    public static final long kDefaultActionTimeout = 2000;  // milliseconds without a callback for the action or the writes in flight
+    private static final int kMaxActionRetries = 1;          // retries of an acknowledged action that timed out, before it is failed
+    private static final int kMaxConsecutiveTimeouts = 3;    // then the executor is stalled (see onStalled)
+
+    // Results of CoalescedWriteAction.offer
+    private static final int OFFER_QUEUED = 0;
+    private static final int OFFER_SUPERSEDED = 1;
+    private static final int OFFER_SEALED = 2;
+    private static final Object kSealed = new Object();
 
     public interface ServiceAction {
         ServiceAction NULL = new ServiceAction() {
@@ -39,12 +62,199 @@ public class BleGattExecutor extends BluetoothGattCallback {
         public boolean execute(BluetoothGatt bluetoothGatt);
     }
 
-    private final LinkedList<BleGattExecutor.ServiceAction> mQueue = new LinkedList<ServiceAction>();        // list of actions to execute
-    private volatile ServiceAction mCurrentAction;
+    /**
+     * Write without response. It does not block the queue while waiting for onCharacteristicWrite, so several of them can be in flight.
+     * execute returns true if the write was handed to the stack (or skipped) and false if the stack is busy and the write should be retried later.
+     */
+    private interface PipelinedAction extends ServiceAction {
+    }
+
+    // Acknowledged action that is told when it can't be completed: the stack rejected it, or the watchdog gave up on it after its retries
+    private interface FailableAction extends ServiceAction {
+        void onFailed(BluetoothGatt gatt);
+    }
+
+    // Pipelined action that needs several writes. It stays at the head of the queue, and is executed once per write slot until it is completed
+    private interface ChunkedAction extends PipelinedAction {
+        boolean isCompleted();
+    }
+
+    // Queue. Actions can be added from any thread. Only the thread that owns the drain loop (see execute) removes and executes them
+    private final ConcurrentLinkedQueue<BleGattExecutor.ServiceAction> mQueue = new ConcurrentLinkedQueue<ServiceAction>();        // list of actions to execute
+    private final AtomicInteger mDrainRequests = new AtomicInteger();
+    private final AtomicInteger mPendingActionsCount = new AtomicInteger();      // approximated size of mQueue (ConcurrentLinkedQueue.size() is not constant time)
+    private volatile ServiceAction mCurrentAction;          // acknowledged action waiting for its callback. Only accessed by the drain loop (and clear)
+    private volatile ServiceAction mRetryAction;            // acknowledged action given up by the watchdog, executed again before the queue
+
+    // Writes and actions waiting for a callback
+    private final GattOperationTracker mTracker = new GattOperationTracker();
+
+    // Watchdog: a single runnable checks the deadline of the action or writes in flight, and is only reposted when the deadline moves.
+    // It doesn't touch the operations in flight: it asks the drain loop to give up on them (see onTimeout), so retries are executed in order with the rest of the queue
+    private volatile long mActionTimeout = kDefaultActionTimeout;
+    private volatile long mLastProgressTime;                // SystemClock.uptimeMillis() of the last action started or completed
+    private volatile BluetoothGatt mWatchdogGatt;
+    private final AtomicBoolean mIsWatchdogScheduled = new AtomicBoolean();
+    private final AtomicBoolean mIsTimeoutPending = new AtomicBoolean();
+    private int mCurrentActionRetries;                      // only accessed by the drain loop
+    private volatile int mConsecutiveTimeouts;
+    private volatile long mStallStartTime;                  // last progress before a timeout. 0 if not recovering
+    private final Runnable mWatchdogRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkDeadline();
+        }
+    };
+    private final Runnable mStalledRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final BluetoothGatt gatt = mWatchdogGatt;
+            if (gatt != null) {
+                onStalled(gatt);
+            }
+        }
+    };
+
+    // Watchdog metrics
+    private final AtomicLong mTimeoutsCount = new AtomicLong();
+    private final AtomicLong mRetriesCount = new AtomicLong();
+    private final AtomicLong mFailedActionsCount = new AtomicLong();
+    private final AtomicLong mLostWritesCount = new AtomicLong();
+    private final AtomicLong mStallsCount = new AtomicLong();
+    private final AtomicLong mRecoveriesCount = new AtomicLong();
+    private final AtomicLong mRecoveryTimeTotal = new AtomicLong();
+    private volatile long mMaxRecoveryTime;
+
+    // Pipelined writes
+    private volatile int mMaxWritesInFlight = kDefaultMaxWritesInFlight;
+    private final AtomicReferenceArray<WriteWithoutResponseAction> mWriteActionPool = new AtomicReferenceArray<WriteWithoutResponseAction>(kMaxPooledWriteActions);
+
+    // Send pipeline metrics (see PipelineMetrics). null if not measured
+    private volatile PipelineMetrics mMetrics;
+
+    // Coalescing: queue entries for pending state writes indexed by their coalescing key.
+    // An ordered action seals the entries queued before it (see addOrderedAction), and moves the epoch forward so the entries created while it was being queued
+    // are not used by the writes that come after it
+    private volatile boolean mIsCoalescingEnabled = true;
+    private final ConcurrentHashMap<Integer, CoalescedWriteAction> mPendingStateWrites = new ConcurrentHashMap<Integer, CoalescedWriteAction>();
+    private final AtomicLong mOrderedEpoch = new AtomicLong();
+
+    // Busy retry
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile BluetoothGatt mRetryGatt;
+    private final Runnable mBusyRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final BluetoothGatt gatt = mRetryGatt;
+            if (gatt != null) {
+                execute(gatt);
+            }
+        }
+    };
+
+    public void setMaxWritesInFlight(int maxWritesInFlight) {
+        mMaxWritesInFlight = Math.min(GattOperationTracker.kMaxWritesInFlight, Math.max(1, maxWritesInFlight));
+    }
+
+    public int getMaxWritesInFlight() {
+        return mMaxWritesInFlight;
+    }
+
+    public void setCoalescingEnabled(boolean enabled) {
+        mIsCoalescingEnabled = enabled;
+        if (!enabled) {
+            sealPendingStateWrites();
+        }
+    }
+
+    // Number of actions waiting to be executed. Use it to detect that the link is behind
+    public int getPendingActionsCount() {
+        return Math.max(0, mPendingActionsCount.get());
+    }
+
+    public boolean isCoalescingEnabled() {
+        return mIsCoalescingEnabled;
+    }
+
+    // Milliseconds to wait for the callback of an action (or of the oldest write in flight) before retrying or failing it
+    public void setActionTimeout(long timeout) {
+        mActionTimeout = Math.max(1, timeout);
+    }
+
+    public long getActionTimeout() {
+        return mActionTimeout;
+    }
+
+    // region Watchdog metrics
+    // Actions or writes in flight whose callback didn't arrive in time
+    public long getTimeoutsCount() {
+        return mTimeoutsCount.get();
+    }
+
+    // Acknowledged actions executed again after a timeout
+    public long getRetriesCount() {
+        return mRetriesCount.get();
+    }
+
+    // Acknowledged actions dropped after kMaxActionRetries
+    public long getFailedActionsCount() {
+        return mFailedActionsCount.get();
+    }
+
+    // Writes without response dropped after a timeout (their value is not kept, and the peripheral may have received them)
+    public long getLostWritesCount() {
+        return mLostWritesCount.get();
+    }
+
+    // Times that kMaxConsecutiveTimeouts have been reached (see onStalled)
+    public long getStallsCount() {
+        return mStallsCount.get();
+    }
+
+    // Timeouts followed by a callback: the time from the last progress before the timeout to the first callback after it
+    public long getRecoveriesCount() {
+        return mRecoveriesCount.get();
+    }
+
+    public long getAverageRecoveryTime() {
+        final long count = mRecoveriesCount.get();
+        return count > 0 ? mRecoveryTimeTotal.get() / count : 0;
+    }
+
+    public long getMaxRecoveryTime() {
+        return mMaxRecoveryTime;
+    }
+
+    // Callbacks that arrived after the watchdog had given up on their write or action. They are ignored
+    public long getLateCallbacksCount() {
+        return mTracker.getLateCallbacksCount();
+    }
+    // endregion
+
+    // Pipelined writes completed (onCharacteristicWrite received)
+    public long getWritesCompletedCount() {
+        return mTracker.getWritesCompletedCount();
+    }
+
+    // Bytes of the pipelined writes completed
+    public long getBytesCompletedCount() {
+        return mTracker.getBytesCompletedCount();
+    }
+
+    // Sum of the time from writeCharacteristic to onCharacteristicWrite of the completed pipelined writes
+    public long getWriteRoundTripNanos() {
+        return mTracker.getWriteRoundTripNanos();
+    }
+
+    // Records the queue wait, round trip and bytes of the pipelined writes, and the watchdog timeouts, retries and drops
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+        mTracker.setMetrics(metrics);
+    }
 
     protected void read(BluetoothGattService gattService, String characteristicUUID, String descriptorUUID) {
         ServiceAction action = serviceReadAction(gattService, characteristicUUID, descriptorUUID);
-        mQueue.add(action);
+        addOrderedAction(action);
     }
 
     private BleGattExecutor.ServiceAction serviceReadAction(final BluetoothGattService gattService, final String characteristicUuidString, final String descriptorUuidString) {
@@ -83,9 +293,29 @@ public class BleGattExecutor extends BluetoothGattCallback {
         };
     }
 
+    // Reads a descriptor that has already been found. onDescriptorRead is called with the result, or onDescriptorReadFailed if there won't be a result
+    protected void readDescriptor(final BluetoothGattDescriptor descriptor) {
+        addOrderedAction(new FailableAction() {
+            @Override
+            public boolean execute(BluetoothGatt bluetoothGatt) {
+                if (bluetoothGatt.readDescriptor(descriptor)) {
+                    return false;
+                }
+                Log.w(TAG, "readDescriptor: read not started");
+                onFailed(bluetoothGatt);
+                return true;
+            }
+
+            @Override
+            public void onFailed(BluetoothGatt gatt) {
+                onDescriptorReadFailed(gatt, descriptor);
+            }
+        });
+    }
+
     protected void enableNotification(BluetoothGattService gattService, String characteristicUUID, boolean enable) {
         ServiceAction action = serviceNotifyAction(gattService, characteristicUUID, enable);
-        mQueue.add(action);
+        addOrderedAction(action);
     }
 
     private BleGattExecutor.ServiceAction serviceNotifyAction(final BluetoothGattService gattService, final String characteristicUuidString, final boolean enable) {
@@ -123,7 +353,7 @@ public class BleGattExecutor extends BluetoothGattCallback {
 
     protected void enableIndication(BluetoothGattService gattService, String characteristicUUID, boolean enable) {
         ServiceAction action = serviceIndicateAction(gattService, characteristicUUID, enable);
-        mQueue.add(action);
+        addOrderedAction(action);
     }
 
     private BleGattExecutor.ServiceAction serviceIndicateAction(final BluetoothGattService gattService, final String characteristicUuidString, final boolean enable) {
@@ -160,7 +390,7 @@ public class BleGattExecutor extends BluetoothGattCallback {
 
     protected void write(BluetoothGattService gattService, String uuid, byte[] value) {
         ServiceAction action = serviceWriteAction(gattService, uuid, value);
-        mQueue.add(action);
+        addOrderedAction(action);
     }
 
 
@@ -172,6 +402,7 @@ public class BleGattExecutor extends BluetoothGattCallback {
                 final BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(characteristicUuid);
                 if (characteristic != null) {
                     characteristic.setValue(value);
+                    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
                     bluetoothGatt.writeCharacteristic(characteristic);
                     return false;
                 } else {
@@ -182,52 +413,577 @@ public class BleGattExecutor extends BluetoothGattCallback {
         };
     }
 
+    protected void writeWithoutResponse(BluetoothGattService gattService, String uuid, byte[] value, int offset, int length) {
+        writeWithoutResponse(gattService, uuid, value, offset, length, kNoCoalescing);
+    }
+
+    /**
+     * Queues a write without response.
+     *
+     * @param coalescingKey identifies idempotent "set state" writes. If a write with the same key is still pending, its value is replaced instead of queueing a new write.
+     *                      Use kNoCoalescing for writes that should keep fifo semantics
+     */
+    protected void writeWithoutResponse(BluetoothGattService gattService, String uuid, byte[] value, int offset, int length, int coalescingKey) {
+        final WriteWithoutResponseAction action = obtainWriteAction();
+        action.set(gattService, uuid, value, offset, length);
+        action.mQueuedTime = getQueuedTime();
+
+        if (mIsCoalescingEnabled && coalescingKey != kNoCoalescing) {
+            addCoalescedAction(coalescingKey, action);
+        } else {
+            addOrderedAction(action);
+        }
+    }
+
+    private void addCoalescedAction(int coalescingKey, WriteWithoutResponseAction action) {
+        while (true) {
+            final long epoch = mOrderedEpoch.get();
+            CoalescedWriteAction entry = mPendingStateWrites.get(coalescingKey);
+            if (entry != null && entry.mEpoch != epoch) {
+                // Created before the last ordered action. Writing to it could send this write before the ordered action
+                if (mPendingStateWrites.remove(coalescingKey, entry)) {
+                    entry.seal();
+                }
+                continue;
+            }
+            if (entry == null) {
+                final CoalescedWriteAction newEntry = new CoalescedWriteAction(epoch);
+                entry = mPendingStateWrites.putIfAbsent(coalescingKey, newEntry);
+                if (entry != null) {
+                    continue;           // created by another thread. Check its epoch
+                }
+                entry = newEntry;
+            }
+
+            final int result = entry.offer(action);
+            if (result == OFFER_QUEUED) {
+                mPendingActionsCount.incrementAndGet();
+                mQueue.add(entry);
+                return;
+            } else if (result == OFFER_SUPERSEDED) {
+                return;                 // only the last state matters
+            }
+            // OFFER_SEALED: an ordered action has been queued after the entry. Use a new one
+        }
+    }
+
+    // Queues precomputed chunks as a single action. The chunks are not copied
+    protected void writeChunks(BluetoothGattService gattService, String uuid, ChunkList chunks) {
+        if (chunks.getChunksCount() > 0) {
+            addOrderedAction(new ChunkListWriteAction(gattService, uuid, chunks));
+        }
+    }
+
+    private long getQueuedTime() {
+        final PipelineMetrics metrics = mMetrics;
+        return metrics != null ? metrics.onWriteQueued() : 0;
+    }
+
+    // Ordered actions can't be reordered with pending state writes, so the next state writes will be queued after them
+    private void addOrderedAction(ServiceAction action) {
+        mPendingActionsCount.incrementAndGet();
+        mQueue.add(action);
+        sealPendingStateWrites();
+    }
+
+    // The pending state writes can't be replaced anymore: a producer that still has one of the entries gets OFFER_SEALED and queues a new entry
+    private void sealPendingStateWrites() {
+        mOrderedEpoch.incrementAndGet();
+        for (Map.Entry<Integer, CoalescedWriteAction> pendingStateWrite : mPendingStateWrites.entrySet()) {
+            final CoalescedWriteAction entry = pendingStateWrite.getValue();
+            // Only the thread that removes the entry seals it
+            if (mPendingStateWrites.remove(pendingStateWrite.getKey(), entry)) {
+                entry.seal();
+            }
+        }
+    }
+
+    // region Write action pool (lock free: any thread can take actions, the drain loop returns them)
+    private WriteWithoutResponseAction obtainWriteAction() {
+        for (int i = 0; i < kMaxPooledWriteActions; i++) {
+            if (mWriteActionPool.get(i) != null) {
+                final WriteWithoutResponseAction action = mWriteActionPool.getAndSet(i, null);
+                if (action != null) {
+                    return action;
+                }
+            }
+        }
+        return new WriteWithoutResponseAction();
+    }
+
+    private void recycleWriteAction(WriteWithoutResponseAction action) {
+        action.reset();
+        for (int i = 0; i < kMaxPooledWriteActions; i++) {
+            if (mWriteActionPool.get(i) == null && mWriteActionPool.compareAndSet(i, null, action)) {
+                return;
+            }
+        }
+    }
+    // endregion
+
+    // Pooled write without response. Its value is copied from the caller buffer so the caller can reuse it
+    private class WriteWithoutResponseAction implements PipelinedAction {
+        private BluetoothGattService mGattService;
+        private String mUuidString;
+        private UUID mUuid;
+        private byte[] mValue;
+        long mQueuedTime;
+
+        void set(BluetoothGattService gattService, String uuid, byte[] value, int offset, int length) {
+            mGattService = gattService;
+            if (!uuid.equals(mUuidString)) {
+                mUuidString = uuid;
+                mUuid = UUID.fromString(uuid);
+            }
+            if (mValue == null || mValue.length != length) {
+                mValue = new byte[length];          // characteristic.setValue needs an array of the exact length
+            }
+            System.arraycopy(value, offset, mValue, 0, length);
+        }
+
+        @Override
+        public boolean execute(BluetoothGatt bluetoothGatt) {
+            final BluetoothGattCharacteristic characteristic = mGattService.getCharacteristic(mUuid);
+            if (characteristic != null) {
+                characteristic.setValue(mValue);
+                if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                } else {
+                    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                }
+
+                // Count it before writing: the callback can arrive on a binder thread before writeCharacteristic returns
+                final long index = onWriteStarted(bluetoothGatt, mQueuedTime, mValue.length);
+                if (bluetoothGatt.writeCharacteristic(characteristic)) {
+                    onWriteAccepted(mQueuedTime);
+                    return true;
+                } else {
+                    // The stack only accepts a limited number of outstanding operations. Backpressure: retry later
+                    mTracker.cancel(index);
+                    return false;
+                }
+            } else {
+                Log.w(TAG, "write: characteristic not found: " + mUuidString);
+                return true;
+            }
+        }
+
+        void reset() {
+            mGattService = null;
+        }
+    }
+
+    // Writes the chunks of a ChunkList, one per execution
+    private class ChunkListWriteAction implements ChunkedAction {
+        private final BluetoothGattService mGattService;
+        private final UUID mUuid;
+        private final ChunkList mChunks;
+        private final long mQueuedTime;
+        private int mNextChunk;
+
+        ChunkListWriteAction(BluetoothGattService gattService, String uuid, ChunkList chunks) {
+            mGattService = gattService;
+            mUuid = UUID.fromString(uuid);
+            mChunks = chunks;
+            mQueuedTime = getQueuedTime();
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return mNextChunk >= mChunks.getChunksCount();
+        }
+
+        @Override
+        public boolean execute(BluetoothGatt bluetoothGatt) {
+            final BluetoothGattCharacteristic characteristic = mGattService.getCharacteristic(mUuid);
+            if (characteristic == null) {
+                Log.w(TAG, "write: characteristic not found: " + mUuid);
+                mNextChunk = mChunks.getChunksCount();
+                return true;
+            }
+
+            final byte[] chunk = mChunks.getChunk(mNextChunk);
+            characteristic.setValue(chunk);
+            if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            } else {
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            }
+
+            final long index = onWriteStarted(bluetoothGatt, mQueuedTime, chunk.length);
+            if (bluetoothGatt.writeCharacteristic(characteristic)) {
+                onWriteAccepted(mQueuedTime);
+                mNextChunk++;
+                return true;
+            } else {
+                mTracker.cancel(index);
+                return false;
+            }
+        }
+    }
+
+    // Queue entry shared by the state writes with the same coalescing key. When executed it sends the last value offered.
+    // Once sealed, new writes are refused (the value offered before is still sent). Only the thread that removes it from mPendingStateWrites seals it
+    private class CoalescedWriteAction implements PipelinedAction {
+        // null (nothing pending), the pending WriteWithoutResponseAction, or kSealed (the pending write, if any, has been moved to mSealedWrite)
+        private final AtomicReference<Object> mState = new AtomicReference<Object>();
+        private WriteWithoutResponseAction mSealedWrite;        // published by the cas to kSealed. Then only used by the drain loop
+        final long mEpoch;                                      // mOrderedEpoch when it was created
+
+        CoalescedWriteAction(long epoch) {
+            mEpoch = epoch;
+        }
+
+        // Returns OFFER_QUEUED if the entry needs to be queued, OFFER_SUPERSEDED if it was already queued and the new write has replaced a pending one,
+        // or OFFER_SEALED if the write has not been taken
+        int offer(WriteWithoutResponseAction write) {
+            while (true) {
+                final Object state = mState.get();
+                if (state == kSealed) {
+                    return OFFER_SEALED;
+                }
+                if (mState.compareAndSet(state, write)) {
+                    if (state != null) {
+                        recycleWriteAction((WriteWithoutResponseAction) state);
+                        return OFFER_SUPERSEDED;
+                    } else {
+                        return OFFER_QUEUED;
+                    }
+                }
+            }
+        }
+
+        void seal() {
+            while (true) {
+                final Object state = mState.get();
+                mSealedWrite = (WriteWithoutResponseAction) state;
+                if (mState.compareAndSet(state, kSealed)) {
+                    return;
+                }
+            }
+        }
+
+        private WriteWithoutResponseAction take() {
+            while (true) {
+                final Object state = mState.get();
+                if (state == kSealed) {
+                    final WriteWithoutResponseAction write = mSealedWrite;
+                    mSealedWrite = null;
+                    return write;
+                }
+                if (mState.compareAndSet(state, null)) {
+                    return (WriteWithoutResponseAction) state;
+                }
+            }
+        }
+
+        @Override
+        public boolean execute(BluetoothGatt bluetoothGatt) {
+            final WriteWithoutResponseAction write = take();
+            if (write == null) {
+                return true;            // already sent by a previous queue entry
+            }
+
+            if (write.execute(bluetoothGatt)) {
+                recycleWriteAction(write);
+                return true;
+            } else {
+                // Stack busy. Put it back to retry, unless a newer value has been offered in the meantime
+                if (mState.get() == kSealed) {
+                    mSealedWrite = write;
+                } else if (!mState.compareAndSet(null, write)) {
+                    recycleWriteAction(write);
+                }
+                return false;
+            }
+        }
+    }
+
     protected void clear() {
-        mCurrentAction = null;
         mQueue.clear();
+        mPendingActionsCount.set(0);
+        mPendingStateWrites.clear();
+        mCurrentAction = null;
+        mRetryAction = null;
+        mTracker.reset();           // the operations in flight will not complete
+        mHandler.removeCallbacks(mBusyRetryRunnable);
+        mHandler.removeCallbacks(mWatchdogRunnable);
+        mHandler.removeCallbacks(mStalledRunnable);
+        mIsWatchdogScheduled.set(false);
+        mIsTimeoutPending.set(false);
+        mWatchdogGatt = null;
+        mConsecutiveTimeouts = 0;
+        mStallStartTime = 0;
     }
 
+    /**
+     * Executes queued actions. It can be called from any thread: the first caller becomes the owner of the drain loop,
+     * and calls made while it is draining just ask it to run another pass, so actions are always executed by a single thread in fifo order
+     */
     protected void execute(BluetoothGatt gatt) {
-        if (mCurrentAction == null) {
-            while (!mQueue.isEmpty()) {
-                final BleGattExecutor.ServiceAction action = mQueue.pop();
-                mCurrentAction = action;
-                if (!action.execute(gatt))
+        if (mDrainRequests.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            drain(gatt);
+            missed = mDrainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drain(BluetoothGatt gatt) {
+        if (mIsTimeoutPending.getAndSet(false)) {
+            onTimeout(gatt);
+        }
+        if (mTracker.isActionInFlight()) {
+            return;             // waiting for the callback of the current action
+        }
+        mCurrentAction = null;
+
+        // Action given up by the watchdog: it goes before the rest of the queue
+        final ServiceAction retryAction = mRetryAction;
+        if (retryAction != null) {
+            if (mTracker.getWritesInFlight() > 0) {
+                return;
+            }
+            mRetryAction = null;
+            if (!startAction(gatt, retryAction)) {
+                return;
+            }
+        }
+
+        BleGattExecutor.ServiceAction action;
+        while ((action = mQueue.peek()) != null) {
+            if (action instanceof PipelinedAction) {
+                if (mTracker.getWritesInFlight() >= mMaxWritesInFlight) {
+                    break;          // wait for onCharacteristicWrite to release a slot
+                }
+
+                if (!action.execute(gatt)) {
+                    // Stack busy. If nothing is in flight no callback will wake us up, so schedule a retry
+                    if (mTracker.getWritesInFlight() == 0) {
+                        mRetryGatt = gatt;
+                        mHandler.removeCallbacks(mBusyRetryRunnable);
+                        mHandler.postDelayed(mBusyRetryRunnable, kBusyRetryDelay);
+                    }
+                    break;
+                }
+                if (action instanceof ChunkedAction && !((ChunkedAction) action).isCompleted()) {
+                    continue;       // next chunk when there is a free write slot
+                }
+                mQueue.poll();
+                mPendingActionsCount.decrementAndGet();
+                if (action instanceof WriteWithoutResponseAction) {
+                    recycleWriteAction((WriteWithoutResponseAction) action);
+                }
+            } else {
+                if (mTracker.getWritesInFlight() > 0) {
+                    break;          // acknowledged actions wait until the pipelined writes have been drained
+                }
+
+                mQueue.poll();
+                mPendingActionsCount.decrementAndGet();
+                mCurrentActionRetries = 0;
+                if (!startAction(gatt, action)) {
                     break;
-                mCurrentAction = null;
+                }
             }
         }
     }
 
+    // Returns false if the action is waiting for its callback
+    private boolean startAction(BluetoothGatt gatt, ServiceAction action) {
+        mCurrentAction = action;
+        final long index = mTracker.onActionStarted();     // before executing it: the callback can arrive before execute returns
+        if (!action.execute(gatt)) {
+            startWatchdog(gatt);
+            return false;
+        }
+        mTracker.cancel(index);
+        mCurrentAction = null;
+        return true;
+    }
+
+    // Called by the drain loop before writeCharacteristic. Returns the index of the write in the tracker
+    private long onWriteStarted(BluetoothGatt gatt, long queuedTime, int length) {
+        final long index = mTracker.onWriteStarted(queuedTime, length);
+        if (mTracker.getWritesInFlight() == 1) {
+            startWatchdog(gatt);
+        }
+        return index;
+    }
+
+    // The write has left the queue (a rejected write stays, so its wait is only recorded once)
+    private void onWriteAccepted(long queuedTime) {
+        final PipelineMetrics metrics = mMetrics;
+        if (metrics != null && queuedTime != 0) {
+            metrics.onWriteStarted(queuedTime, System.nanoTime());
+        }
+    }
+
+    // Callback of a write or an acknowledged action. The callbacks of the operations given up by the watchdog only count as progress
+    private void onOperationCallback(BluetoothGatt gatt) {
+        onProgress();
+        if (mTracker.onCallback() == GattOperationTracker.RESULT_LATE) {
+            Log.d(TAG, "Late callback ignored");
+        }
+        execute(gatt);
+    }
+
+    // region Watchdog
+    private void startWatchdog(BluetoothGatt gatt) {
+        mWatchdogGatt = gatt;
+        mLastProgressTime = SystemClock.uptimeMillis();
+        scheduleWatchdog(mActionTimeout);
+    }
+
+    private void scheduleWatchdog(long delay) {
+        if (mIsWatchdogScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mWatchdogRunnable, delay);
+        }
+    }
+
+    // A callback has arrived: the deadline moves, and the executor has recovered if it had timed out
+    private void onProgress() {
+        final long now = SystemClock.uptimeMillis();
+        mLastProgressTime = now;
+        mConsecutiveTimeouts = 0;
+        final long stallStartTime = mStallStartTime;
+        if (stallStartTime > 0) {
+            mStallStartTime = 0;
+            final long recoveryTime = now - stallStartTime;
+            mRecoveriesCount.incrementAndGet();
+            mRecoveryTimeTotal.addAndGet(recoveryTime);
+            if (recoveryTime > mMaxRecoveryTime) {
+                mMaxRecoveryTime = recoveryTime;
+            }
+            Log.d(TAG, "Recovered after " + recoveryTime + "ms");
+        }
+    }
+
+    // Returns the milliseconds left to the deadline of the operations in flight. 0 or less if it has passed
+    private long getTimeToDeadline() {
+        return mLastProgressTime + mActionTimeout - SystemClock.uptimeMillis();
+    }
+
+    // Runs on the main thread. Only checks the deadline: the drain loop gives up on the operations in flight
+    private void checkDeadline() {
+        mIsWatchdogScheduled.set(false);
+        final BluetoothGatt gatt = mWatchdogGatt;
+        if (gatt == null || mTracker.isIdle()) {
+            return;         // nothing is waiting for a callback. The next action restarts the watchdog
+        }
+
+        final long timeToDeadline = getTimeToDeadline();
+        if (timeToDeadline > 0) {
+            scheduleWatchdog(timeToDeadline);
+            return;
+        }
+
+        mIsTimeoutPending.set(true);
+        execute(gatt);
+    }
+
+    // Called by the drain loop when the watchdog has found the deadline passed
+    private void onTimeout(BluetoothGatt gatt) {
+        if (mTracker.isIdle()) {
+            return;
+        }
+        final long timeToDeadline = getTimeToDeadline();
+        if (timeToDeadline > 0) {
+            scheduleWatchdog(timeToDeadline);           // a callback has arrived since the watchdog checked
+            return;
+        }
+
+        mTimeoutsCount.incrementAndGet();
+        final PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onTimeout();
+        }
+        if (mStallStartTime == 0) {
+            mStallStartTime = mLastProgressTime;
+        }
+        mConsecutiveTimeouts++;
+        if (mConsecutiveTimeouts >= kMaxConsecutiveTimeouts) {
+            Log.w(TAG, "Stalled: " + mConsecutiveTimeouts + " consecutive timeouts");
+            mStallsCount.incrementAndGet();
+            mConsecutiveTimeouts = 0;
+            mHandler.post(mStalledRunnable);
+            return;
+        }
+
+        // New generation: the callbacks of what was in flight will be ignored if they arrive
+        final long state = mTracker.giveUp();
+        final int writesCount = GattOperationTracker.getWritesCount(state);
+        if (writesCount > 0) {
+            // Writes without response can't be retried: their actions have been recycled. Their slots are free, so the queue keeps moving
+            Log.w(TAG, "Timeout: " + writesCount + " writes in flight without callback");
+            mLostWritesCount.addAndGet(writesCount);
+            if (metrics != null) {
+                metrics.onDrop(writesCount);
+            }
+        } else if (GattOperationTracker.isActionInFlight(state)) {
+            final ServiceAction currentAction = mCurrentAction;
+            mCurrentAction = null;
+            if (currentAction != null && mCurrentActionRetries < kMaxActionRetries) {
+                mCurrentActionRetries++;
+                mRetriesCount.incrementAndGet();
+                if (metrics != null) {
+                    metrics.onRetry();
+                }
+                Log.w(TAG, "Timeout: retrying action");
+                mRetryAction = currentAction;
+            } else {
+                Log.w(TAG, "Timeout: action failed after " + mCurrentActionRetries + " retries");
+                mFailedActionsCount.incrementAndGet();
+                if (metrics != null) {
+                    metrics.onDrop();
+                }
+                if (currentAction instanceof FailableAction) {
+                    ((FailableAction) currentAction).onFailed(gatt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called on the main thread after kMaxConsecutiveTimeouts without any callback. Retrying doesn't help anymore: the gatt connection should be reestablished.
+     * The queue is not cleared here: the disconnection clears it
+     */
+    protected void onStalled(BluetoothGatt gatt) {
+    }
+    // endregion
+
+    // Called by the drain loop when a read queued with readDescriptor won't have a callback
+    protected void onDescriptorReadFailed(BluetoothGatt gatt, BluetoothGattDescriptor descriptor) {
+    }
+
     @Override
     public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorRead(gatt, descriptor, status);
 
-        mCurrentAction = null;
-        execute(gatt);
+        onOperationCallback(gatt);
     }
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorWrite(gatt, descriptor, status);
 
-        mCurrentAction = null;
-        execute(gatt);
+        onOperationCallback(gatt);
     }
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
 
-        mCurrentAction = null;
-        execute(gatt);
+        onOperationCallback(gatt);
     }
 
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
         if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-            mQueue.clear();
-            mCurrentAction = null;
+            clear();
         }
     }
 
@@ -235,8 +991,7 @@ public class BleGattExecutor extends BluetoothGattCallback {
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicRead(gatt, characteristic, status);
 
-        mCurrentAction = null;
-        execute(gatt);
+        onOperationCallback(gatt);
     }
 
     @Override
@@ -284,6 +1039,22 @@ public class BleGattExecutor extends BluetoothGattCallback {
                 listener.onReadRemoteRssi(gatt, rssi, status);
             }
 
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                super.onMtuChanged(gatt, mtu, status);
+                listener.onMtuChanged(gatt, mtu, status);
+            }
+
+            @Override
+            protected void onStalled(BluetoothGatt gatt) {
+                listener.onExecutorStalled(gatt);
+            }
+
+            @Override
+            protected void onDescriptorReadFailed(BluetoothGatt gatt, BluetoothGattDescriptor descriptor) {
+                listener.onDescriptorRead(gatt, descriptor, BluetoothGatt.GATT_FAILURE);
+            }
+
         };
     }
 
@@ -301,5 +1072,8 @@ public class BleGattExecutor extends BluetoothGattCallback {
 
         void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status);
 
+        void onMtuChanged(BluetoothGatt gatt, int mtu, int status);
+
+        void onExecutorStalled(BluetoothGatt gatt);
     }
 }
@@ -14,11 +14,12 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class BleManager implements BleGattExecutor.BleExecutorListener {
+// Manages a pool of connections keyed by device address. The primary connection (the last one created with connect) is the one used by the single device methods
+public class BleManager implements BleConnection.Listener {
     // Log
     private final static String TAG = BleManager.class.getSimpleName();
 
@@ -27,20 +28,41 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
     public static final int STATE_CONNECTING = 1;
     public static final int STATE_CONNECTED = 2;
 
+    // Preferences
+    private static final String kPrefLastDeviceAddress = "pref_lastdeviceaddress";
+
     // Singleton
     private static BleManager mInstance = null;
 
     // Data
-    private final BleGattExecutor mExecutor = BleGattExecutor.createExecutor(this);
     private BluetoothAdapter mAdapter;
-    private BluetoothGatt mGatt;
     private Context mContext;
+    private final SharedPreferences mPreferences;           // last device
+
+    private final ConcurrentHashMap<String, BleConnection> mConnections = new ConcurrentHashMap<String, BleConnection>();
+    private volatile BleConnection mPrimaryConnection;
+    private final BleDiscoveryCache mDiscoveryCache;
+
+    // Executor settings applied to every connection
+    private int mMaxWritesInFlight = -1;
+    private boolean mIsCoalescingEnabled = true;
+    private long mActionTimeout = BleGattExecutor.kDefaultActionTimeout;
+
+    // Connection priority settings applied to every connection
+    private boolean mIsPriorityPolicyEnabled = true;
+    private long mPriorityIdleTimeout = ConnectionPriorityPolicy.kDefaultIdleTimeout;
+    private long mPriorityLowPowerTimeout = ConnectionPriorityPolicy.kDefaultLowPowerTimeout;
+    private boolean mIsStreamingActive;
 
-    private BluetoothDevice mDevice;
-    private String mDeviceAddress;
-    private int mConnectionState = STATE_DISCONNECTED;
+    // Send pipeline metrics of each device, by address. They outlive the connections, so the reconnections to a device add to the same metrics
+    private final ConcurrentHashMap<String, PipelineMetrics> mMetrics = new ConcurrentHashMap<String, PipelineMetrics>();
+    private final PipelineMetrics mNoDeviceMetrics = new PipelineMetrics();        // returned by getMetrics while there is no primary connection
+
+    // Automatic reconnection of the primary connection
+    private final ReconnectSupervisor mReconnectSupervisor = new ReconnectSupervisor(this);
 
     private BleManagerListener mBleListener;
+    private BleConnectionListener mConnectionListener;
 
     public static BleManager getInstance(Context context) {
         if(mInstance == null)
@@ -50,28 +72,88 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
         return mInstance;
     }
 
+    public boolean isConnected() {
+        final BleConnection connection = mPrimaryConnection;
+        return connection != null && connection.isConnected();
+    }
+
     public boolean canConnectToDevice() {
-        return (mConnectionState == STATE_DISCONNECTED);
+        final BleConnection connection = mPrimaryConnection;
+        return connection == null || connection.getState() == STATE_DISCONNECTED;
     }
 
     public String getDeviceName() {
-        if (mDevice != null) {
-            return mDevice.getName();
+        final BleConnection connection = mPrimaryConnection;
+        if (connection != null) {
+            return connection.getDeviceName();
         }
         return "<Unknown>";
     }
 
+    public int getMtu() {
+        final BleConnection connection = mPrimaryConnection;
+        return connection != null ? connection.getMtu() : BleConnection.kDefaultMtu;
+    }
+
+    // Maximum number of bytes that can be sent in a single characteristic write with the negotiated mtu
+    public int getMaxWritePayload() {
+        final BleConnection connection = mPrimaryConnection;
+        return connection != null ? connection.getMaxWritePayload() : BleConnection.kDefaultMaxWritePayload;
+    }
+
+    // Writes queued on the primary connection that have not been sent yet
+    public int getPendingWritesCount() {
+        final BleConnection connection = mPrimaryConnection;
+        return connection != null ? connection.getPendingWritesCount() : 0;
+    }
+
     public void setBleListener(BleManagerListener listener) {
         mBleListener = listener;
 
     }
 
+    // Send pipeline metrics of the primary device. Commands are measured on them, as they are sent to the primary device
+    public PipelineMetrics getMetrics() {
+        final BleConnection connection = mPrimaryConnection;
+        return connection != null ? getOrCreateMetrics(connection.getAddress()) : mNoDeviceMetrics;
+    }
+
+    // Send pipeline metrics of a device. null if there hasn't been any connection to it
+    public PipelineMetrics getMetrics(String address) {
+        return mMetrics.get(address.toUpperCase());
+    }
+
+    private PipelineMetrics getOrCreateMetrics(String address) {
+        final String key = address.toUpperCase();
+        final PipelineMetrics metrics = mMetrics.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+        final PipelineMetrics newMetrics = new PipelineMetrics();
+        final PipelineMetrics existingMetrics = mMetrics.putIfAbsent(key, newMetrics);
+        return existingMetrics != null ? existingMetrics : newMetrics;
+    }
+
+    public ReconnectSupervisor getReconnectSupervisor() {
+        return mReconnectSupervisor;
+    }
+
+    // Listener for the state of all the connections in the pool (BleManagerListener only receives the primary connection events)
+    public void setConnectionListener(BleConnectionListener listener) {
+        mConnectionListener = listener;
+    }
+
     public BleManager(Context context) {
+        this(context.getApplicationContext(), BleUtils.getBluetoothAdapter(context.getApplicationContext()), PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext()));
+    }
+
+    // Package private for the tests, that use a mocked adapter and preferences
+    BleManager(Context context, BluetoothAdapter adapter, SharedPreferences preferences) {
         // Init Adapter
-        mContext = context.getApplicationContext();
-        if (mAdapter == null) {
-            mAdapter = BleUtils.getBluetoothAdapter(mContext);
-        }
+        mContext = context;
+        mPreferences = preferences;
+        mDiscoveryCache = new BleDiscoveryCache();
+        mAdapter = adapter;
 
         if (mAdapter == null || !mAdapter.isEnabled()) {
             Log.e(TAG, "Unable to obtain a BluetoothAdapter.");
@@ -79,7 +161,7 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. The connection becomes the primary connection.
      *
      * @param address The device address of the destination device.
      * @return Return true if the connection is initiated successfully. The connection result is reported asynchronously through the {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)} callback.
@@ -94,12 +176,12 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         final boolean reuseExistingConnection = sharedPreferences.getBoolean("pref_recycleconnection", false);
 
+        final BleConnection primaryConnection = mPrimaryConnection;
         if (reuseExistingConnection) {
             // Previously connected device.  Try to reconnect.
-            if (mDeviceAddress != null && address.equalsIgnoreCase(mDeviceAddress) && mGatt != null) {
+            if (primaryConnection != null && address.equalsIgnoreCase(primaryConnection.getAddress()) && primaryConnection.getGatt() != null) {
                 Log.d(TAG, "Trying to use an existing BluetoothGatt for connection.");
-                if (mGatt.connect()) {
-                    mConnectionState = STATE_CONNECTING;
+                if (primaryConnection.reconnect()) {
                     if (mBleListener != null)
                         mBleListener.onConnecting();
                     return true;
@@ -115,28 +197,154 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
             }
         }
 
-        mDevice = mAdapter.getRemoteDevice(address);
-        if (mDevice == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
+        final BleConnection connection = openConnection(address, sharedPreferences.getBoolean("pref_gattautoconnect", false), true);
+        if (connection == null) {
             return false;
         }
 
-        Log.d(TAG, "Trying to create a new connection.");
-        mDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
         if (mBleListener != null) {
             mBleListener.onConnecting();
         }
 
-        final boolean gattAutoconnect = sharedPreferences.getBoolean("pref_gattautoconnect", false);
-        mGatt = mDevice.connectGatt(mContext, gattAutoconnect, mExecutor);
+        return true;
+    }
+
+    /**
+     * Connects to an additional device without changing the primary connection. Use it to drive several devices at the same time.
+     *
+     * @return true if the connection is initiated successfully or the device is already connected
+     */
+    public boolean connectAdditionalDevice(Context context, String address) {
+        if (mAdapter == null || address == null) {
+            Log.w(TAG, "connectAdditionalDevice: BluetoothAdapter not initialized or unspecified address.");
+            return false;
+        }
+
+        final BleConnection existingConnection = mConnections.get(address.toUpperCase());
+        if (existingConnection != null && existingConnection.getState() != STATE_DISCONNECTED) {
+            return true;
+        }
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return openConnection(address, sharedPreferences.getBoolean("pref_gattautoconnect", false), false) != null;
+    }
 
+    public BleDiscoveryCache getDiscoveryCache() {
+        return mDiscoveryCache;
+    }
+
+    // Hook to call when the services of a device have changed. The next connection to the device will do a full discovery
+    public void invalidateDiscoveryCache(String address) {
+        mDiscoveryCache.invalidate(address);
+    }
+
+    // region Fast reconnect
+    // Address of the last primary device that completed service discovery. null if there is none
+    public String getLastDeviceAddress() {
+        return mPreferences.getString(kPrefLastDeviceAddress, null);
+    }
+
+    public void forgetLastDevice() {
+        mPreferences.edit().remove(kPrefLastDeviceAddress).apply();
+    }
+
+    private void saveLastDeviceAddress(String address) {
+        if (!address.equals(mPreferences.getString(kPrefLastDeviceAddress, null))) {
+            mPreferences.edit().putString(kPrefLastDeviceAddress, address).apply();
+        }
+    }
+
+    /**
+     * Connects to the last known device without scanning. The existing BluetoothGatt is reused if there is one for the device, otherwise a direct connection is created.
+     *
+     * @return true if the device is already connected or the connection is initiated successfully. false if there is no known device or the connection could not be initiated (the caller should fallback to scanning)
+     */
+    public boolean reconnectToLastDevice() {
+        final String address = getLastDeviceAddress();
+        if (mAdapter == null || address == null) {
+            return false;
+        }
+
+        final BleConnection primaryConnection = mPrimaryConnection;
+        if (primaryConnection != null) {
+            if (address.equalsIgnoreCase(primaryConnection.getAddress())) {
+                if (primaryConnection.getState() != STATE_DISCONNECTED) {
+                    return true;
+                }
+
+                // Same as the pref_recycleconnection path: mGatt.connect() is faster than creating a new BluetoothGatt
+                if (primaryConnection.getGatt() != null) {
+                    Log.d(TAG, "reconnectToLastDevice: using the existing BluetoothGatt");
+                    if (primaryConnection.reconnect()) {
+                        if (mBleListener != null) {
+                            mBleListener.onConnecting();
+                        }
+                        return true;
+                    }
+                }
+            }
+            closePrimaryConnection();
+        }
+
+        // Direct connection (no autoconnect), so a device that is not around fails fast instead of waiting in the background
+        Log.d(TAG, "reconnectToLastDevice: direct connection to " + address);
+        final BleConnection connection = openConnection(address, false, true);
+        if (connection == null) {
+            return false;
+        }
+
+        if (mBleListener != null) {
+            mBleListener.onConnecting();
+        }
         return true;
     }
+    // endregion
+
+    // Package private for the tests, that create connections to mocked devices
+    BleConnection openConnection(String address, boolean gattAutoconnect, boolean isPrimary) {
+        final String key = address.toUpperCase();
+
+        // Close any previous connection to the same device
+        final BleConnection previousConnection = mConnections.remove(key);
+        if (previousConnection != null) {
+            previousConnection.close();
+        }
+
+        final BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return null;
+        }
+
+        Log.d(TAG, "Trying to create a new connection.");
+        final BleConnection connection = createConnection(device);
+        if (mMaxWritesInFlight > 0) {
+            connection.getExecutor().setMaxWritesInFlight(mMaxWritesInFlight);
+        }
+        connection.getExecutor().setCoalescingEnabled(mIsCoalescingEnabled);
+        connection.getExecutor().setActionTimeout(mActionTimeout);
+        connection.getExecutor().setMetrics(getOrCreateMetrics(address));
+        connection.getPriorityPolicy().setEnabled(mIsPriorityPolicyEnabled);
+        connection.getPriorityPolicy().setTimeouts(mPriorityIdleTimeout, mPriorityLowPowerTimeout);
+        connection.getPriorityPolicy().setStreaming(mIsStreamingActive);
+        mConnections.put(key, connection);
+        if (isPrimary) {
+            mPrimaryConnection = connection;        // set before connecting, so the first callbacks are already routed to the primary listener
+        }
+
+        connection.connect(mContext, gattAutoconnect);
+        return connection;
+    }
+
+    // Overridden by the tests
+    BleConnection createConnection(BluetoothDevice device) {
+        return new BleConnection(device, mDiscoveryCache, this);
+    }
 
     public void clearExecutor() {
-        if (mExecutor != null) {
-            mExecutor.clear();
+        final BleConnection connection = mPrimaryConnection;
+        if (connection != null) {
+            connection.getExecutor().clear();
         }
     }
 
@@ -145,39 +353,241 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
      * is reported asynchronously through the {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)} callback.
      */
     public void disconnect() {
-        mDevice = null;
-
-        if (mAdapter == null || mGatt == null) {
+        final BleConnection connection = mPrimaryConnection;
+        if (mAdapter == null || connection == null || connection.getGatt() == null) {
             Log.w(TAG, "disconnect: BluetoothAdapter not initialized");
             return;
         }
 
         // Disconnect
-        mGatt.disconnect();
+        mReconnectSupervisor.stop();
+        connection.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are  released properly.
      */
     public void close() {
-        if (mGatt != null) {
-            mGatt.close();
-            mGatt = null;
-            mDeviceAddress = null;
-            mDevice = null;
+        mReconnectSupervisor.stop();
+        closePrimaryConnection();
+    }
+
+    private void closePrimaryConnection() {
+        final BleConnection connection = mPrimaryConnection;
+        if (connection != null) {
+            mPrimaryConnection = null;
+            closeConnection(connection.getAddress());
+        }
+    }
+
+    // Closes the connection with the given device. If it is the primary connection, there is no primary connection after this call
+    public void closeConnection(String address) {
+        final BleConnection connection = mConnections.remove(address.toUpperCase());
+        if (connection != null) {
+            if (connection == mPrimaryConnection) {
+                mPrimaryConnection = null;
+                mReconnectSupervisor.stop();
+            }
+            connection.close();
+        }
+    }
+
+    public void closeAllConnections() {
+        mReconnectSupervisor.stop();
+        mPrimaryConnection = null;
+        for (BleConnection connection : mConnections.values()) {
+            closeConnection(connection.getAddress());
+        }
+    }
+
+    // region Pool
+    public BleConnection getConnection(String address) {
+        return mConnections.get(address.toUpperCase());
+    }
+
+    public BleConnection getPrimaryConnection() {
+        return mPrimaryConnection;
+    }
+
+    public List<BleConnection> getConnections() {
+        return new ArrayList<BleConnection>(mConnections.values());
+    }
+
+    public int getConnectedDevicesCount() {
+        int count = 0;
+        for (BleConnection connection : mConnections.values()) {
+            if (connection.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends the same value to all the connected devices that have the service. Each device has its own queue, so writes to different devices are sent in parallel.
+     * The value is split in chunks using the negotiated mtu of each connection
+     *
+     * @param coalescingKey see writeServiceCoalesced. Use BleGattExecutor.kNoCoalescing for fifo semantics
+     * @return number of devices that the value has been queued to
+     */
+    public int broadcastWriteWithoutResponse(String serviceUuid, String uuid, int coalescingKey, byte[] value, int offset, int length) {
+        int count = 0;
+        for (BleConnection connection : mConnections.values()) {
+            if (connection.isConnected()) {
+                final BluetoothGattService service = connection.getGattService(serviceUuid);
+                if (service != null) {
+                    writeSplit(connection, service, uuid, coalescingKey, value, offset, length);
+                    count++;
+                }
+            }
         }
+        return count;
     }
+    // endregion
 
     public void writeService(BluetoothGattService service, String uuid, byte[] value)
     {
         if (service != null) {
-            if (mAdapter == null || mGatt == null) {
+            final BleConnection connection = mPrimaryConnection;
+            if (mAdapter == null || connection == null) {
                 Log.w(TAG, "writeService: BluetoothAdapter not initialized");
                 return;
             }
 
-            mExecutor.write(service, uuid, value);
-            mExecutor.execute(mGatt);
+            connection.write(service, uuid, value);
+        }
+    }
+
+    // Pipelined write (write without response). Use it for streamed data like uart tx chunks. Control operations should use writeService
+    public void writeServiceWithoutResponse(BluetoothGattService service, String uuid, byte[] value)
+    {
+        writeServiceWithoutResponse(service, uuid, value, 0, value.length);
+    }
+
+    // The value is copied, so the caller can reuse the buffer after this call
+    public void writeServiceWithoutResponse(BluetoothGattService service, String uuid, byte[] value, int offset, int length)
+    {
+        writeServiceCoalesced(service, uuid, BleGattExecutor.kNoCoalescing, value, offset, length);
+    }
+
+    /**
+     * Pipelined write of an idempotent "set state" command. While the queue is backed up, a pending write with the same coalescingKey is replaced by this one.
+     * Writes queued with any other method keep fifo ordering, also with respect to the coalesced ones.
+     */
+    public void writeServiceCoalesced(BluetoothGattService service, String uuid, int coalescingKey, byte[] value, int offset, int length)
+    {
+        if (service != null) {
+            final BleConnection connection = mPrimaryConnection;
+            if (mAdapter == null || connection == null) {
+                Log.w(TAG, "writeServiceCoalesced: BluetoothAdapter not initialized");
+                return;
+            }
+
+            connection.writeWithoutResponse(service, uuid, value, offset, length, coalescingKey);
+        }
+    }
+
+    // Pipelined write of a value of any length: it is split in writes of the negotiated write payload (see getMaxWritePayload). The value is copied
+    public void writeServiceSplit(BluetoothGattService service, String uuid, byte[] value, int offset, int length)
+    {
+        if (service != null) {
+            final BleConnection connection = mPrimaryConnection;
+            if (mAdapter == null || connection == null) {
+                Log.w(TAG, "writeServiceSplit: BluetoothAdapter not initialized");
+                return;
+            }
+
+            writeSplit(connection, service, uuid, BleGattExecutor.kNoCoalescing, value, offset, length);
+        }
+    }
+
+    // A coalesced chunk could replace a chunk of another value, so only values that fit in a single write are coalesced
+    private static void writeSplit(BleConnection connection, BluetoothGattService service, String uuid, int coalescingKey, byte[] value, int offset, int length) {
+        final int maxChunkLength = connection.getMaxWritePayload();
+        final int chunkCoalescingKey = length <= maxChunkLength ? coalescingKey : BleGattExecutor.kNoCoalescing;
+        final int end = offset + length;
+        for (int i = offset; i < end; i += maxChunkLength) {
+            connection.writeWithoutResponse(service, uuid, value, i, Math.min(maxChunkLength, end - i), chunkCoalescingKey);
+        }
+    }
+
+    // Queues chunks built for the current write payload (see getMaxWritePayload) as a single action. Nothing is encoded or copied
+    public void writeServiceChunks(BluetoothGattService service, String uuid, ChunkList chunks)
+    {
+        if (service != null) {
+            final BleConnection connection = mPrimaryConnection;
+            if (mAdapter == null || connection == null) {
+                Log.w(TAG, "writeServiceChunks: BluetoothAdapter not initialized");
+                return;
+            }
+
+            connection.writeChunks(service, uuid, chunks);
+        }
+    }
+
+    // Changes are received with BleManagerListener.onDataAvailable
+    public void enableNotification(BluetoothGattService service, String uuid, boolean enable)
+    {
+        if (service != null) {
+            final BleConnection connection = mPrimaryConnection;
+            if (mAdapter == null || connection == null) {
+                Log.w(TAG, "enableNotification: BluetoothAdapter not initialized");
+                return;
+            }
+
+            connection.enableNotification(service, uuid, enable);
+        }
+    }
+
+    // region Connection priority
+    // Automatic connection priority (see ConnectionPriorityPolicy). When disabled, connections stay at balanced
+    public void setConnectionPriorityPolicyEnabled(boolean enabled) {
+        mIsPriorityPolicyEnabled = enabled;
+        for (BleConnection connection : mConnections.values()) {
+            connection.getPriorityPolicy().setEnabled(enabled);
+        }
+    }
+
+    /**
+     * @param idleTimeout     milliseconds without activity to go from high priority to balanced
+     * @param lowPowerTimeout milliseconds at balanced without activity to go to low power. ConnectionPriorityPolicy.kNever to stay at balanced
+     */
+    public void setConnectionPriorityTimeouts(long idleTimeout, long lowPowerTimeout) {
+        mPriorityIdleTimeout = idleTimeout;
+        mPriorityLowPowerTimeout = lowPowerTimeout;
+        for (BleConnection connection : mConnections.values()) {
+            connection.getPriorityPolicy().setTimeouts(idleTimeout, lowPowerTimeout);
+        }
+    }
+
+    // Call it when a stream (i.e. an animation) starts and stops, so the connections keep the high priority between its writes
+    public void setStreamingActive(boolean isStreaming) {
+        mIsStreamingActive = isStreaming;
+        for (BleConnection connection : mConnections.values()) {
+            connection.getPriorityPolicy().setStreaming(isStreaming);
+        }
+    }
+    // endregion
+
+    public void setCoalescingEnabled(boolean enabled) {
+        mIsCoalescingEnabled = enabled;
+        for (BleConnection connection : mConnections.values()) {
+            connection.getExecutor().setCoalescingEnabled(enabled);
+        }
+    }
+
+    public void setMaxWritesInFlight(int maxWritesInFlight) {
+        mMaxWritesInFlight = maxWritesInFlight;
+        for (BleConnection connection : mConnections.values()) {
+            connection.getExecutor().setMaxWritesInFlight(maxWritesInFlight);
+        }
+    }
+
+    // Milliseconds without a gatt callback before an operation is retried or failed. Repeated timeouts reconnect the gatt (see BleConnection.onExecutorStalled)
+    public void setActionTimeout(long timeout) {
+        mActionTimeout = timeout;
+        for (BleConnection connection : mConnections.values()) {
+            connection.getExecutor().setActionTimeout(timeout);
         }
     }
 
@@ -188,58 +598,75 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mGatt != null) {
-            return mGatt.getServices();
+        final BleConnection connection = mPrimaryConnection;
+        final BluetoothGatt gatt = connection != null ? connection.getGatt() : null;
+        if (gatt != null) {
+            return gatt.getServices();
         } else {
             return null;
         }
     }
 
     public BluetoothGattService getGattService(String uuid) {
-        if (mGatt != null) {
-            final UUID serviceUuid = UUID.fromString(uuid);
-            return mGatt.getService(serviceUuid);
+        final BleConnection connection = mPrimaryConnection;
+        if (connection != null) {
+            return connection.getGattService(uuid);
         } else {
             return null;
         }
     }
 
+    // region BleConnection.Listener
     @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+    public void onConnectionStateChange(BleConnection connection, int status, int newState) {
 
         // Log.d(TAG, "onConnectionStateChange status: "+status+ " newState: "+newState);
 
-        if (newState == BluetoothProfile.STATE_CONNECTED) {
-            mConnectionState = STATE_CONNECTED;
+        if (mConnectionListener != null) {
+            mConnectionListener.onConnectionStateChanged(connection, connection.getState());
+        }
+
+        if (connection != mPrimaryConnection) {
+            return;
+        }
 
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
             if (mBleListener != null) {
                 mBleListener.onConnected();
             }
-
-            // Attempts to discover services after successful connection.
-            gatt.discoverServices();
-
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-            mConnectionState = STATE_DISCONNECTED;
-
             if (mBleListener != null) {
                 mBleListener.onDisconnected();
             }
+            mReconnectSupervisor.onDisconnected(connection.isStallReconnectPending());
         } else if (newState == BluetoothProfile.STATE_CONNECTING) {
-            mConnectionState = STATE_CONNECTING;
-
             if (mBleListener != null) {
                 mBleListener.onConnecting();
             }
         }
     }
 
-    // region BleExecutorListener
     @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+    public void onMtuChanged(BleConnection connection, int mtu) {
+        if (connection == mPrimaryConnection && mBleListener != null) {
+            mBleListener.onMtuChanged(mtu);
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(BleConnection connection, int status) {
+        if (mConnectionListener != null) {
+            mConnectionListener.onServicesDiscovered(connection);
+        }
+
+        if (connection == mPrimaryConnection && status == BluetoothGatt.GATT_SUCCESS) {
+            saveLastDeviceAddress(connection.getAddress());
+            mReconnectSupervisor.onReady();
+        }
+
        // if (status == BluetoothGatt.GATT_SUCCESS) {
             // Call listener
-            if (mBleListener != null)
+            if (connection == mPrimaryConnection && mBleListener != null)
                 mBleListener.onServicesDiscovered();
        // }
 
@@ -249,9 +676,9 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
     }
 
     @Override
-    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+    public void onCharacteristicRead(BleConnection connection, BluetoothGattCharacteristic characteristic, int status) {
        // if (status == BluetoothGatt.GATT_SUCCESS) {
-            if (mBleListener != null) {
+            if (connection == mPrimaryConnection && mBleListener != null) {
                 mBleListener.onDataAvailable(characteristic);
             }
        // }
@@ -262,16 +689,16 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
     }
 
     @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-        if (mBleListener != null) {
+    public void onCharacteristicChanged(BleConnection connection, BluetoothGattCharacteristic characteristic) {
+        if (connection == mPrimaryConnection && mBleListener != null) {
             mBleListener.onDataAvailable(characteristic);
         }
     }
 
     @Override
-    public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+    public void onDescriptorRead(BleConnection connection, BluetoothGattDescriptor descriptor, int status) {
      //   if (status == BluetoothGatt.GATT_SUCCESS) {
-            if (mBleListener != null) {
+            if (connection == mPrimaryConnection && mBleListener != null) {
                 mBleListener.onDataAvailable(descriptor);
             }
      //   }
@@ -282,8 +709,8 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
     }
 
     @Override
-    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-        if (mBleListener != null) {
+    public void onReadRemoteRssi(BleConnection connection, int rssi, int status) {
+        if (connection == mPrimaryConnection && mBleListener != null) {
             mBleListener.onReadRemoteRssi(rssi);
         }
 
@@ -305,5 +732,13 @@ public class BleManager implements BleGattExecutor.BleExecutorListener {
         void onDataAvailable(BluetoothGattDescriptor descriptor);
 
         void onReadRemoteRssi(int rssi);
+
+        void onMtuChanged(int mtu);
+    }
+
+    public interface BleConnectionListener {
+
+        void onConnectionStateChanged(BleConnection connection, int state);
+        void onServicesDiscovered(BleConnection connection);
     }
 }
@@ -12,6 +12,7 @@ import android.util.Log;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.UUID;
 
 public class BleUtils {
@@ -22,6 +23,8 @@ public class BleUtils {
     public static final int STATUS_BLE_NOT_AVAILABLE = 2;
     public static final int STATUS_BLUETOOTH_DISABLED = 3;
 
+    public static final Charset kUtf8 = Charset.forName("UTF-8");
+
     private static ResetBluetoothAdapter sResetHelper;
 
     // Use this check to determine whether BLE is supported on the device.  Then you can  selectively disable BLE-related features.
@@ -171,46 +174,31 @@ public class BleUtils {
     //endregion
 
 
-    final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
+    // region Hex (see HexUtils)
     public static String bytesToHex(byte[] bytes) {
-        if (bytes != null) {
-            char[] hexChars = new char[bytes.length * 2];
-            for (int j = 0; j < bytes.length; j++) {
-                int v = bytes[j] & 0xFF;
-                hexChars[j * 2] = hexArray[v >>> 4];
-                hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-            }
-            return new String(hexChars);
-        }
-        else return null;
+        return HexUtils.bytesToHex(bytes);
     }
 
     public static String byteToHex(byte value) {
-        if (value>0x0f) {
-            char[] hexChars = new char[2];
-            hexChars[0] = hexArray[value >>> 4];
-            hexChars[1] = hexArray[value & 0x0F];
-            return new String(hexChars);
-        }
-        else {
-            return ""+hexArray[value & 0x0F];
-        }
+        return HexUtils.byteToHex(value);
     }
 
     public static String stringToHex(String string) {
-        return bytesToHex(string.getBytes());
+        return HexUtils.stringToHex(string);
     }
 
     public static String bytesToHexWithSpaces(byte[] bytes) {
-        StringBuilder newString = new StringBuilder();
-        for (byte aByte : bytes) {
-            String byteHex = String.format("%02X", (byte) aByte);
-            newString.append(byteHex).append(" ");
+        return HexUtils.bytesToHexWithSpaces(bytes);
+    }
 
-        }
-        return newString.toString().trim();
+    public static String bytesToHexWithSpaces(byte[] bytes, int offset, int length) {
+        return HexUtils.bytesToHexWithSpaces(bytes, offset, length);
+    }
 
+    public static byte[] hexToBytes(String hex) {
+        return HexUtils.hexToBytes(hex);
     }
+    // endregion
 
 
     public static String getUuidStringFromByteArray(byte[] bytes) {
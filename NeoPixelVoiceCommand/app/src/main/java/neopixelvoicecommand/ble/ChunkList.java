@@ -0,0 +1,63 @@
+package neopixelvoicecommand.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Writes ready to be sent: uart packets already split into chunks of the negotiated write payload.
+// Each chunk is an array of its exact length, so the executor hands them to the stack without copying. It is immutable and can be sent any number of times
+public class ChunkList {
+    private final byte[][] mChunks;
+    private final int mMaxChunkLength;
+    private final int mLength;
+
+    private ChunkList(byte[][] chunks, int maxChunkLength, int length) {
+        mChunks = chunks;
+        mMaxChunkLength = maxChunkLength;
+        mLength = length;
+    }
+
+    public int getChunksCount() {
+        return mChunks.length;
+    }
+
+    byte[] getChunk(int index) {
+        return mChunks[index];
+    }
+
+    // Write payload that the chunks were created for. They have to be rebuilt if the mtu changes
+    public int getMaxChunkLength() {
+        return mMaxChunkLength;
+    }
+
+    // Total bytes
+    public int getLength() {
+        return mLength;
+    }
+
+    public static class Builder {
+        private final int mMaxChunkLength;
+        private final List<byte[]> mChunks = new ArrayList<byte[]>();
+        private int mLength;
+
+        public Builder(int maxChunkLength) {
+            mMaxChunkLength = Math.max(1, maxChunkLength);
+        }
+
+        // Adds a packet. It is split the same way as BleManager.writeServiceSplit does: packets never share a chunk
+        public Builder addPacket(byte[] packet, int offset, int length) {
+            final int end = offset + length;
+            for (int i = offset; i < end; i += mMaxChunkLength) {
+                final int chunkLength = Math.min(mMaxChunkLength, end - i);
+                final byte[] chunk = new byte[chunkLength];
+                System.arraycopy(packet, i, chunk, 0, chunkLength);
+                mChunks.add(chunk);
+            }
+            mLength += length;
+            return this;
+        }
+
+        public ChunkList build() {
+            return new ChunkList(mChunks.toArray(new byte[mChunks.size()][]), mMaxChunkLength, mLength);
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package neopixelvoicecommand.ble;
+
+// Time source, in milliseconds, of the classes that schedule their work on a Handler. Tests replace it (and the Handler) with a simulated time
+interface Clock {
+    long millis();
+}
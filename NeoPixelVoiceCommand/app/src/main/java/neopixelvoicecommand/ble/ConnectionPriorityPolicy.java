@@ -0,0 +1,280 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Chooses the connection priority (connection interval) of a connection from its activity:
+// CONNECTION_PRIORITY_HIGH while writes are queued or a stream is active, balanced after idleTimeout without activity, and low power after lowPowerTimeout more.
+// The connection starts at high priority, so service discovery and mtu negotiation are fast.
+// Android has no callback for the new connection parameters, so the effect of each priority is measured: time, writes and bytes completed, and write round trip
+public class ConnectionPriorityPolicy {
+    // Log
+    private final static String TAG = ConnectionPriorityPolicy.class.getSimpleName();
+
+    // Constants
+    public static final long kDefaultIdleTimeout = 3000;               // milliseconds without activity to go from high to balanced
+    public static final long kDefaultLowPowerTimeout = 60000;          // milliseconds at balanced without activity to go to low power
+    public static final long kNever = -1;
+    private static final int kNoPriority = -1;                          // not connected
+    private static final int kPrioritiesCount = 3;                      // BluetoothGatt.CONNECTION_PRIORITY_* values are 0..2
+
+    // Effect of a priority (accumulated over all the periods spent at it)
+    public static class Stats {
+        public final int priority;
+        public final long time;                 // milliseconds
+        public final long writesCompleted;
+        public final long bytesCompleted;
+        public final long writeRoundTripNanos;  // sum for writesCompleted
+
+        Stats(int priority, long time, long writesCompleted, long bytesCompleted, long writeRoundTripNanos) {
+            this.priority = priority;
+            this.time = time;
+            this.writesCompleted = writesCompleted;
+            this.bytesCompleted = bytesCompleted;
+            this.writeRoundTripNanos = writeRoundTripNanos;
+        }
+
+        public float getWritesPerSecond() {
+            return time > 0 ? writesCompleted * 1000f / time : 0;
+        }
+
+        public float getBytesPerSecond() {
+            return time > 0 ? bytesCompleted * 1000f / time : 0;
+        }
+
+        // -1 if there are no writes
+        public long getAverageWriteRoundTripMicros() {
+            return writesCompleted > 0 ? writeRoundTripNanos / writesCompleted / 1000 : -1;
+        }
+
+        @Override
+        public String toString() {
+            return getPriorityName(priority) + ": " + time + "ms, " + writesCompleted + " writes (" + getWritesPerSecond() + "/s), " + getBytesPerSecond() + " bytes/s, round trip " + getAverageWriteRoundTripMicros() + "us";
+        }
+    }
+
+    // Data
+    private final BleConnection mConnection;
+    private final Handler mHandler;
+    private final Clock mClock;
+    private volatile boolean mIsEnabled = true;
+    private volatile long mIdleTimeout = kDefaultIdleTimeout;
+    private volatile long mLowPowerTimeout = kDefaultLowPowerTimeout;
+    private volatile boolean mIsConnected;
+    private volatile int mPriority = kNoPriority;
+    private volatile long mLastActivityTime;            // mClock time
+    private volatile boolean mIsStreaming;
+    private final Runnable mIdleCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkIdle();
+        }
+    };
+
+    // Stats. Guarded by this
+    private long mPeriodStartTime;
+    private long mPeriodStartWrites;
+    private long mPeriodStartBytes;
+    private long mPeriodStartRoundTripNanos;
+    private final long[] mTimes = new long[kPrioritiesCount];
+    private final long[] mWrites = new long[kPrioritiesCount];
+    private final long[] mBytes = new long[kPrioritiesCount];
+    private final long[] mRoundTripNanos = new long[kPrioritiesCount];
+    private int mTransitionsCount;
+
+    ConnectionPriorityPolicy(BleConnection connection) {
+        this(connection, new Handler(Looper.getMainLooper()), new Clock() {
+            @Override
+            public long millis() {
+                return SystemClock.uptimeMillis();
+            }
+        });
+    }
+
+    // handler: runs the idle checks. clock: measures the idle time and the time at each priority
+    ConnectionPriorityPolicy(BleConnection connection, Handler handler, Clock clock) {
+        mConnection = connection;
+        mHandler = handler;
+        mClock = clock;
+    }
+
+    // region Settings
+    // When disabled the connection goes back to balanced and the priority is not changed anymore
+    public void setEnabled(boolean enabled) {
+        mIsEnabled = enabled;
+        if (!enabled) {
+            mHandler.removeCallbacks(mIdleCheckRunnable);
+            if (mIsConnected) {
+                setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, "disabled");
+            }
+        } else {
+            onActivity();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    /**
+     * @param idleTimeout     milliseconds without activity to go from high to balanced
+     * @param lowPowerTimeout milliseconds at balanced without activity to go to low power. kNever to stay at balanced
+     */
+    public void setTimeouts(long idleTimeout, long lowPowerTimeout) {
+        mIdleTimeout = Math.max(0, idleTimeout);
+        mLowPowerTimeout = lowPowerTimeout;
+    }
+    // endregion
+
+    // region Activity
+    void onConnected() {
+        mLastActivityTime = mClock.millis();
+        synchronized (this) {
+            endPeriod(mLastActivityTime);
+            mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;        // Android default for new connections
+            mIsConnected = true;
+        }
+        if (mIsEnabled) {
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, "connected");
+        }
+    }
+
+    void onDisconnected() {
+        mHandler.removeCallbacks(mIdleCheckRunnable);
+        synchronized (this) {
+            mIsConnected = false;
+            endPeriod(mClock.millis());
+            mPriority = kNoPriority;
+        }
+    }
+
+    // Called for each write queued, from any thread. Only the first write after an idle period changes the priority
+    void onActivity() {
+        mLastActivityTime = mClock.millis();
+        if (mPriority != BluetoothGatt.CONNECTION_PRIORITY_HIGH && mIsConnected && mIsEnabled) {
+            setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, "activity");
+        }
+    }
+
+    // Keeps the high priority while a stream (i.e. an animation) is active, also between its writes
+    public void setStreaming(boolean isStreaming) {
+        mIsStreaming = isStreaming;
+        onActivity();           // the idle time starts at the end of the stream
+    }
+
+    public boolean isStreaming() {
+        return mIsStreaming;
+    }
+
+    private void checkIdle() {
+        final int priority = mPriority;
+        if (!mIsEnabled || !mIsConnected) {
+            return;
+        }
+
+        final long now = mClock.millis();
+        if (mIsStreaming || mConnection.getPendingWritesCount() > 0) {
+            mLastActivityTime = now;
+        }
+        final long idleTime = now - mLastActivityTime;
+        final long idleTimeout = mIdleTimeout;
+        final long lowPowerTimeout = mLowPowerTimeout;
+        if (priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+            if (idleTime >= idleTimeout) {
+                setPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, "idle");
+            } else {
+                scheduleIdleCheck(idleTimeout - idleTime);
+            }
+        } else if (priority == BluetoothGatt.CONNECTION_PRIORITY_BALANCED && lowPowerTimeout != kNever) {
+            if (idleTime >= idleTimeout + lowPowerTimeout) {
+                setPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, "idle");
+            } else {
+                scheduleIdleCheck(idleTimeout + lowPowerTimeout - idleTime);
+            }
+        }
+    }
+
+    private void scheduleIdleCheck(long delay) {
+        mHandler.removeCallbacks(mIdleCheckRunnable);
+        mHandler.postDelayed(mIdleCheckRunnable, delay);
+    }
+
+    private synchronized void setPriority(int priority, String reason) {
+        final BluetoothGatt gatt = mConnection.getGatt();
+        if (gatt == null || !mIsConnected || priority == mPriority) {
+            return;
+        }
+        if (!gatt.requestConnectionPriority(priority)) {
+            Log.w(TAG, "requestConnectionPriority " + getPriorityName(priority) + " failed");
+            return;
+        }
+
+        final long now = mClock.millis();
+        final int previousPriority = mPriority;
+        final long periodTime = now - mPeriodStartTime;
+        final long periodWrites = mConnection.getExecutor().getWritesCompletedCount() - mPeriodStartWrites;
+        endPeriod(now);
+        mPriority = priority;
+        mTransitionsCount++;
+        Log.d(TAG, getPriorityName(previousPriority) + " -> " + getPriorityName(priority) + " (" + reason + ") after " + periodTime + "ms and " + periodWrites + " writes");
+
+        if (mIsEnabled && priority != BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+            scheduleIdleCheck(priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH ? mIdleTimeout : mLowPowerTimeout);
+        } else {
+            mHandler.removeCallbacks(mIdleCheckRunnable);
+        }
+    }
+
+    // Adds the period since the last transition to the stats of the current priority
+    private void endPeriod(long now) {
+        final BleGattExecutor executor = mConnection.getExecutor();
+        final long writes = executor.getWritesCompletedCount();
+        final long bytes = executor.getBytesCompletedCount();
+        final long roundTripNanos = executor.getWriteRoundTripNanos();
+        final int priority = mPriority;
+        if (priority != kNoPriority) {
+            mTimes[priority] += now - mPeriodStartTime;
+            mWrites[priority] += writes - mPeriodStartWrites;
+            mBytes[priority] += bytes - mPeriodStartBytes;
+            mRoundTripNanos[priority] += roundTripNanos - mPeriodStartRoundTripNanos;
+        }
+        mPeriodStartTime = now;
+        mPeriodStartWrites = writes;
+        mPeriodStartBytes = bytes;
+        mPeriodStartRoundTripNanos = roundTripNanos;
+    }
+    // endregion
+
+    // region Stats
+    // BluetoothGatt.CONNECTION_PRIORITY_* or -1 if not connected
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public synchronized int getTransitionsCount() {
+        return mTransitionsCount;
+    }
+
+    // Stats of a priority, including the current period
+    public synchronized Stats getStats(int priority) {
+        endPeriod(mClock.millis());
+        return new Stats(priority, mTimes[priority], mWrites[priority], mBytes[priority], mRoundTripNanos[priority]);
+    }
+
+    public static String getPriorityName(int priority) {
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "high";
+            case BluetoothGatt.CONNECTION_PRIORITY_BALANCED:
+                return "balanced";
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "low power";
+            default:
+                return "none";
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,27 @@
+package neopixelvoicecommand.ble;
+
+// CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF, no reflection). Table driven. The peripheral can use the bitwise version to save memory
+public class Crc16 {
+    private static final int kInitialValue = 0xFFFF;
+    private static final int[] kTable = createTable();
+
+    private static int[] createTable() {
+        final int[] table = new int[256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            table[i] = crc & 0xFFFF;
+        }
+        return table;
+    }
+
+    public static int compute(byte[] data, int offset, int length) {
+        int crc = kInitialValue;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ kTable[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+}
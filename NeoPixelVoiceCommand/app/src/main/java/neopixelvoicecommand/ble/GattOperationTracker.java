@@ -0,0 +1,218 @@
+package neopixelvoicecommand.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Gatt operations waiting for their callback: the pipelined writes (several) or an acknowledged action (one), never both at the same time.
+// The stack calls back in the order the operations were started, so each callback completes the oldest operation not completed yet.
+// Each operation is tagged with the generation in which it was started. When the watchdog gives up on the operations in flight (see giveUp) the generation
+// moves forward: the late callbacks of those operations, if they ever arrive, are recognized and ignored instead of completing the operations started after them.
+// Operations are started by a single thread (the drain loop of BleGattExecutor) and completed from the gatt callbacks thread. Android free, so it can be tested on a plain jvm
+class GattOperationTracker {
+    // Results of onCallback
+    static final int RESULT_WRITE_COMPLETED = 0;
+    static final int RESULT_ACTION_COMPLETED = 1;
+    static final int RESULT_LATE = 2;                   // callback of an operation that had been given up
+    static final int RESULT_UNEXPECTED = 3;             // nothing was waiting for a callback
+
+    // Constants
+    static final int kMaxWritesInFlight = 64;
+    private static final int kRingSize = 2 * kMaxWritesInFlight;        // operations in flight plus the given up ones whose callbacks haven't arrived
+    private static final long kActionFlag = 1L << 31;
+    private static final long kWritesMask = kActionFlag - 1;
+
+    // generation (high 32 bits) | acknowledged action in flight (bit 31) | writes in flight. Updated with CAS, so giving up is atomic with the callbacks
+    private final AtomicLong mState = new AtomicLong();
+
+    // Operations started and not completed: [mCompleted, mStarted). Only the thread that starts the operations writes mStarted
+    private final AtomicLong mStarted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final int[] mGenerations = new int[kRingSize];
+    private final boolean[] mIsWrite = new boolean[kRingSize];
+    private final long[] mStartTimes = new long[kRingSize];             // System.nanoTime()
+    private final long[] mQueuedTimes = new long[kRingSize];            // for mMetrics. 0 if not measured
+    private final int[] mLengths = new int[kRingSize];
+
+    // Stats
+    private final AtomicLong mWritesCompleted = new AtomicLong();
+    private final AtomicLong mBytesCompleted = new AtomicLong();
+    private final AtomicLong mWriteRoundTripNanos = new AtomicLong();
+    private final AtomicLong mLateCallbacksCount = new AtomicLong();
+
+    private volatile PipelineMetrics mMetrics;
+
+    void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    // region Start
+    // Call it before writeCharacteristic: the callback can arrive before it returns. Returns the index to pass to cancel if the write is rejected
+    long onWriteStarted(long queuedTime, int length) {
+        return start(true, queuedTime, length);
+    }
+
+    // Call it before executing the action. Returns the index to pass to cancel if the action doesn't wait for a callback
+    long onActionStarted() {
+        return start(false, 0, 0);
+    }
+
+    private long start(boolean isWrite, long queuedTime, int length) {
+        long state, newState;
+        do {
+            state = mState.get();
+            newState = isWrite ? state + 1 : state | kActionFlag;
+        } while (!mState.compareAndSet(state, newState));
+
+        // Forget the oldest operation if the ring is full. Only given up operations can be that old: their callbacks are not coming
+        final long index = mStarted.get();
+        while (true) {
+            final long completed = mCompleted.get();
+            if (index - completed < kRingSize || mCompleted.compareAndSet(completed, completed + 1)) {
+                break;
+            }
+        }
+
+        final int slot = (int) (index % kRingSize);
+        mGenerations[slot] = getGeneration(newState);
+        mIsWrite[slot] = isWrite;
+        mStartTimes[slot] = System.nanoTime();
+        mQueuedTimes[slot] = queuedTime;
+        mLengths[slot] = length;
+        mStarted.set(index + 1);            // publishes the slot
+        return index;
+    }
+
+    // The last operation started will not have a callback (the stack rejected the write, or the action completed instantly)
+    void cancel(long index) {
+        final int slot = (int) (index % kRingSize);
+        final int generation = mGenerations[slot];
+        final boolean isWrite = mIsWrite[slot];
+        if (mCompleted.get() <= index) {
+            mStarted.set(index);
+        }
+
+        long state, newState;
+        do {
+            state = mState.get();
+            if (getGeneration(state) != generation) {
+                return;             // already given up
+            }
+            newState = isWrite ? state - 1 : state & ~kActionFlag;
+        } while (!mState.compareAndSet(state, newState));
+    }
+    // endregion
+
+    // region Complete
+    // Call it for each callback of a write or an acknowledged action. Returns one of the RESULT_ values
+    int onCallback() {
+        long index;
+        int generation;
+        boolean isWrite;
+        long startTime, queuedTime;
+        int length;
+        do {
+            index = mCompleted.get();
+            if (index >= mStarted.get()) {
+                return RESULT_UNEXPECTED;
+            }
+            final int slot = (int) (index % kRingSize);
+            generation = mGenerations[slot];
+            isWrite = mIsWrite[slot];
+            startTime = mStartTimes[slot];
+            queuedTime = mQueuedTimes[slot];
+            length = mLengths[slot];
+        } while (!mCompleted.compareAndSet(index, index + 1));
+
+        long state, newState;
+        do {
+            state = mState.get();
+            if (getGeneration(state) != generation) {
+                mLateCallbacksCount.incrementAndGet();
+                return RESULT_LATE;
+            }
+            newState = isWrite ? state - 1 : state & ~kActionFlag;
+        } while (!mState.compareAndSet(state, newState));
+
+        if (!isWrite) {
+            return RESULT_ACTION_COMPLETED;
+        }
+
+        final long roundTripNanos = System.nanoTime() - startTime;
+        mWritesCompleted.incrementAndGet();
+        mBytesCompleted.addAndGet(length);
+        mWriteRoundTripNanos.addAndGet(roundTripNanos);
+        final PipelineMetrics metrics = mMetrics;
+        if (metrics != null && queuedTime != 0) {
+            metrics.onWriteCompleted(queuedTime, roundTripNanos, length);
+        }
+        return RESULT_WRITE_COMPLETED;
+    }
+
+    // Gives up on the operations in flight and starts a new generation. Returns the state given up (see getWritesCount and isActionInFlight)
+    long giveUp() {
+        long state;
+        do {
+            state = mState.get();
+        } while (!mState.compareAndSet(state, (long) (getGeneration(state) + 1) << 32));
+        return state;
+    }
+
+    // The connection is gone: nothing in flight will call back
+    void reset() {
+        giveUp();
+        mCompleted.set(mStarted.get());
+    }
+    // endregion
+
+    // region State
+    static int getGeneration(long state) {
+        return (int) (state >>> 32);
+    }
+
+    static int getWritesCount(long state) {
+        return (int) (state & kWritesMask);
+    }
+
+    static boolean isActionInFlight(long state) {
+        return (state & kActionFlag) != 0;
+    }
+
+    long getState() {
+        return mState.get();
+    }
+
+    int getGeneration() {
+        return getGeneration(mState.get());
+    }
+
+    int getWritesInFlight() {
+        return getWritesCount(mState.get());
+    }
+
+    boolean isActionInFlight() {
+        return isActionInFlight(mState.get());
+    }
+
+    boolean isIdle() {
+        return (mState.get() & (kActionFlag | kWritesMask)) == 0;
+    }
+    // endregion
+
+    // region Stats
+    long getWritesCompletedCount() {
+        return mWritesCompleted.get();
+    }
+
+    long getBytesCompletedCount() {
+        return mBytesCompleted.get();
+    }
+
+    long getWriteRoundTripNanos() {
+        return mWriteRoundTripNanos.get();
+    }
+
+    // Callbacks of operations given up by the watchdog that arrived anyway
+    long getLateCallbacksCount() {
+        return mLateCallbacksCount.get();
+    }
+    // endregion
+}
@@ -0,0 +1,74 @@
+package neopixelvoicecommand.ble;
+
+// Hex formatting of packets for the logs and the scene store. Android free, so it can be used (and benchmarked) on a plain jvm
+public class HexUtils {
+    private static final char[] hexArray = "0123456789ABCDEF".toCharArray();
+
+    public static String bytesToHex(byte[] bytes) {
+        if (bytes != null) {
+            char[] hexChars = new char[bytes.length * 2];
+            for (int j = 0; j < bytes.length; j++) {
+                int v = bytes[j] & 0xFF;
+                hexChars[j * 2] = hexArray[v >>> 4];
+                hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+            }
+            return new String(hexChars);
+        }
+        else return null;
+    }
+
+    public static String byteToHex(byte value) {
+        if (value>0x0f) {
+            char[] hexChars = new char[2];
+            hexChars[0] = hexArray[value >>> 4];
+            hexChars[1] = hexArray[value & 0x0F];
+            return new String(hexChars);
+        }
+        else {
+            return ""+hexArray[value & 0x0F];
+        }
+    }
+
+    public static String stringToHex(String string) {
+        return bytesToHex(string.getBytes());
+    }
+
+    public static String bytesToHexWithSpaces(byte[] bytes) {
+        return bytesToHexWithSpaces(bytes, 0, bytes.length);
+    }
+
+    public static String bytesToHexWithSpaces(byte[] bytes, int offset, int length) {
+        if (length <= 0) {
+            return "";
+        }
+
+        char[] hexChars = new char[length * 3 - 1];
+        for (int j = 0; j < length; j++) {
+            int v = bytes[offset + j] & 0xFF;
+            hexChars[j * 3] = hexArray[v >>> 4];
+            hexChars[j * 3 + 1] = hexArray[v & 0x0F];
+            if (j < length - 1) {
+                hexChars[j * 3 + 2] = ' ';
+            }
+        }
+        return new String(hexChars);
+    }
+
+    // Inverse of bytesToHex. Returns null if the text is not valid hex
+    public static byte[] hexToBytes(String hex) {
+        if (hex == null || hex.length() % 2 != 0) {
+            return null;
+        }
+
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(hex.charAt(i * 2), 16);
+            final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
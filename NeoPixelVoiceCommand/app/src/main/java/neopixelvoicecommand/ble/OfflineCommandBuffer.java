@@ -0,0 +1,190 @@
+package neopixelvoicecommand.ble;
+
+// Commands issued while the device is not connected, replayed when it is ready again.
+// Only the latest state of each target is kept: a new command for a target replaces the pending one (and moves it to the end of the replay order).
+// Bounded in entries and in bytes per entry. When it is full, the oldest target is dropped. Entry buffers are reused, so a steady state doesn't allocate
+public class OfflineCommandBuffer {
+    // Constants
+    public static final int kDefaultCapacity = 8;               // targets
+    public static final int kDefaultMaxEntryLength = 1024;      // bytes. A full strip image (90 leds) in !P packets is ~420 bytes
+
+    public interface Sink {
+        // Returns false if the command could not be sent. It is kept, with the ones after it, for the next replay
+        boolean onCommand(int target, byte[] data, int offset, int length);
+    }
+
+    private static class Entry {
+        int target;
+        byte[] data = new byte[32];
+        int length;
+    }
+
+    // Data
+    private final int mMaxEntryLength;
+    private final Entry[] mEntries;            // replay order: [0, mCount)
+    private int mCount;
+    private Entry mCurrentEntry;               // entry being appended to. null if the last append overflowed
+
+    // Stats
+    private long mCommandsCount;
+    private long mReplacedCount;               // commands superseded by a newer one for the same target
+    private long mDroppedCount;                // commands discarded because the buffer was full or they were too long
+    private long mReplayedCount;
+
+    public OfflineCommandBuffer() {
+        this(kDefaultCapacity, kDefaultMaxEntryLength);
+    }
+
+    public OfflineCommandBuffer(int capacity, int maxEntryLength) {
+        if (capacity <= 0 || maxEntryLength <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity + " / " + maxEntryLength);
+        }
+        mEntries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry();
+        }
+        mMaxEntryLength = maxEntryLength;
+    }
+
+    // region Commands
+    // Replaces the pending command for the target
+    public synchronized void put(int target, byte[] data, int offset, int length) {
+        begin(target);
+        append(data, offset, length);
+    }
+
+    // Replaces the pending command for the target with the chunks (i.e. a scene). They are concatenated: the replay splits them for the new connection
+    public synchronized void put(int target, ChunkList chunks) {
+        begin(target);
+        for (int i = 0; i < chunks.getChunksCount(); i++) {
+            final byte[] chunk = chunks.getChunk(i);
+            append(chunk, 0, chunk.length);
+        }
+    }
+
+    // Starts a command made of several packets (see append). Replaces the pending command for the target
+    public synchronized void begin(int target) {
+        mCommandsCount++;
+        Entry entry = remove(target);
+        if (entry != null) {
+            mReplacedCount++;
+        } else if (mCount == mEntries.length) {
+            mDroppedCount++;
+            entry = removeAt(0);            // oldest target
+        } else {
+            entry = mEntries[mCount];
+        }
+
+        entry.target = target;
+        entry.length = 0;
+        mEntries[mCount++] = entry;
+        mCurrentEntry = entry;
+    }
+
+    // Adds data to the command started with begin. A command longer than the max entry length is dropped: replaying part of it would be wrong
+    public synchronized void append(byte[] data, int offset, int length) {
+        final Entry entry = mCurrentEntry;
+        if (entry == null) {
+            return;
+        }
+
+        final int newLength = entry.length + length;
+        if (newLength > mMaxEntryLength) {
+            mDroppedCount++;
+            removeAt(indexOf(entry.target));
+            mCurrentEntry = null;
+            return;
+        }
+        if (newLength > entry.data.length) {
+            final byte[] newData = new byte[Math.min(mMaxEntryLength, Math.max(newLength, entry.data.length * 2))];
+            System.arraycopy(entry.data, 0, newData, 0, entry.length);
+            entry.data = newData;
+        }
+        System.arraycopy(data, offset, entry.data, entry.length, length);
+        entry.length = newLength;
+    }
+
+    // Discards all the pending commands, i.e. when a command for the whole strip supersedes the ones for its zones
+    public synchronized void clear() {
+        mCount = 0;
+        mCurrentEntry = null;
+    }
+
+    // Sends the pending commands in the order they were issued and removes them from the buffer. Stops at the first command that the sink can't send.
+    // The data is only valid during each call. Returns the number of commands sent
+    public synchronized int replay(Sink sink) {
+        int sentCount = 0;
+        while (sentCount < mCount) {
+            final Entry entry = mEntries[sentCount];
+            if (!sink.onCommand(entry.target, entry.data, 0, entry.length)) {
+                break;
+            }
+            sentCount++;
+        }
+        mReplayedCount += sentCount;
+
+        if (sentCount == mCount) {
+            clear();
+        } else {
+            for (int i = 0; i < sentCount; i++) {
+                removeAt(0);
+            }
+            mCurrentEntry = null;
+        }
+        return sentCount;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+    // endregion
+
+    // region Entries
+    private int indexOf(int target) {
+        for (int i = 0; i < mCount; i++) {
+            if (mEntries[i].target == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Entry remove(int target) {
+        final int index = indexOf(target);
+        return index >= 0 ? removeAt(index) : null;
+    }
+
+    // Removes the entry keeping the order of the others. The removed entry is moved past the end, so it can be reused
+    private Entry removeAt(int index) {
+        final Entry entry = mEntries[index];
+        System.arraycopy(mEntries, index + 1, mEntries, index, mCount - index - 1);
+        mEntries[--mCount] = entry;
+        if (entry == mCurrentEntry) {
+            mCurrentEntry = null;
+        }
+        return entry;
+    }
+    // endregion
+
+    // region Stats
+    public synchronized long getCommandsCount() {
+        return mCommandsCount;
+    }
+
+    public synchronized long getReplacedCount() {
+        return mReplacedCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    public synchronized long getReplayedCount() {
+        return mReplayedCount;
+    }
+    // endregion
+}
@@ -0,0 +1,120 @@
+package neopixelvoicecommand.ble;
+
+// Encodes uart packets (!<command><payload><checksum>) into a reusable buffer, so sending a command doesn't allocate memory.
+// The encoded packet is only valid until the next call to the encoder. It should be used from a single thread
+public class PacketEncoder {
+    // Packet format
+    public static final byte kPacketStart = '!';
+    public static final byte kCommandColor = 'C';
+    public static final byte kCommandRainbow = 'R';
+    public static final byte kCommandFire = 'F';
+    public static final byte kCommandPixels = 'P';
+    public static final byte kCommandPixelRuns = 'L';
+    public static final byte kCommandReliable = 'S';      // reliable frame (see ReliableSender)
+    public static final byte kCommandAck = 'K';           // sent by the peripheral
+    public static final byte kCommandNack = 'N';          // sent by the peripheral
+    public static final byte kCommandSensor = 'V';        // sent by the peripheral (see UartEvent)
+    public static final byte kCommandState = 'I';         // sent by the peripheral (see UartEvent)
+
+    public static final int kMaxPacketLength = 20;          // READ_BUFSIZE used by the peripheral packet parser
+    private static final int kDefaultCapacity = kMaxPacketLength;
+
+    // Data
+    private byte[] mBuffer;
+    private int mLength;
+
+    public PacketEncoder() {
+        this(kDefaultCapacity);
+    }
+
+    public PacketEncoder(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    // Command of the current packet
+    public byte getCommand() {
+        return mLength > 1 ? mBuffer[1] : 0;
+    }
+
+    // State commands are idempotent: only the last one sent matters, so pending ones can be replaced by newer ones.
+    // Other commands (effects) are triggers and should keep their order
+    public static boolean isStateCommand(byte command) {
+        return command == kCommandColor;
+    }
+
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    // region Packets
+    public PacketEncoder color(int color) {
+        // !Crgb
+        return begin(kCommandColor)
+                .put((byte) ((color >> 16) & 0xFF))
+                .put((byte) ((color >> 8) & 0xFF))
+                .put((byte) (color & 0xFF))
+                .end();
+    }
+
+    public PacketEncoder rainbow() {
+        return begin(kCommandRainbow).end();
+    }
+
+    public PacketEncoder fire() {
+        return begin(kCommandFire).end();
+    }
+
+    // Encodes raw data followed by the checksum
+    public PacketEncoder data(byte[] data, int offset, int length) {
+        mLength = 0;
+        return put(data, offset, length).end();
+    }
+    // endregion
+
+    // region Builder
+    public PacketEncoder begin(byte command) {
+        mLength = 0;
+        return put(kPacketStart).put(command);
+    }
+
+    public PacketEncoder put(byte value) {
+        ensureCapacity(mLength + 1);
+        mBuffer[mLength++] = value;
+        return this;
+    }
+
+    public PacketEncoder put(byte[] data, int offset, int length) {
+        ensureCapacity(mLength + length);
+        System.arraycopy(data, offset, mBuffer, mLength, length);
+        mLength += length;
+        return this;
+    }
+
+    // Appends the checksum of the current content
+    public PacketEncoder end() {
+        return put(checksum(mBuffer, 0, mLength));
+    }
+    // endregion
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuffer.length) {
+            // Only grows for packets bigger than any previous one. Steady state doesn't allocate
+            final byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+
+    // Custom crc used by the peripheral: inverted sum of all the bytes
+    public static byte checksum(byte[] data, int offset, int length) {
+        byte checksum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            checksum += data[i];
+        }
+        return (byte) (~checksum);       // Invert
+    }
+}
@@ -0,0 +1,166 @@
+package neopixelvoicecommand.ble;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Where the time goes in the send pipeline, from a command (i.e. a voice result) to the writes completed by the stack:
+//   queue wait      write queued in the executor -> writeCharacteristic
+//   write round trip writeCharacteristic -> onCharacteristicWrite
+//   command latency beginCommand -> onCharacteristicWrite of the last write queued for the command (or of a later write that superseded it)
+//   throughput      bytes completed per second, sampled each second with writes
+// plus counters of drops, retries and timeouts.
+// Everything is recorded lock free from the threads that produce it (the caller of the writes, the gatt binder threads and the main thread), and snapshots don't pause them
+public class PipelineMetrics {
+    // Constants
+    private static final long kThroughputWindow = 1000000000L;         // nanoseconds
+
+    // Histograms
+    private final AtomicHistogram mQueueWait = new AtomicHistogram();               // nanoseconds
+    private final AtomicHistogram mWriteRoundTrip = new AtomicHistogram();          // nanoseconds
+    private final AtomicHistogram mCommandLatency = new AtomicHistogram();          // nanoseconds
+    private final AtomicHistogram mThroughput = new AtomicHistogram();              // bytes per second
+
+    // Counters
+    private final AtomicLong mDropsCount = new AtomicLong();
+    private final AtomicLong mRetriesCount = new AtomicLong();
+    private final AtomicLong mTimeoutsCount = new AtomicLong();
+
+    // Command being measured. Only the last one: a new command replaces it, the same way its writes replace the previous ones
+    private final AtomicLong mCommandStartTime = new AtomicLong();         // System.nanoTime(). 0 if none
+    private volatile long mCommandLastQueuedTime;                          // queue time of the last write of the command. 0 while it is being queued
+    private volatile long mLastQueuedTime;
+
+    // Throughput window
+    private final AtomicLong mWindowStartTime;
+    private final AtomicLong mWindowBytes = new AtomicLong();
+
+    public PipelineMetrics() {
+        this(System.nanoTime());
+    }
+
+    // The methods that take the time (System.nanoTime()) as a parameter are package private for the tests
+    PipelineMetrics(long startTime) {
+        mWindowStartTime = new AtomicLong(startTime);
+    }
+
+    // region Command latency
+    // Call it when a command starts (i.e. when the voice result is received), before queuing its writes. Returns the start time for endCommand
+    public long beginCommand() {
+        return beginCommand(System.nanoTime());
+    }
+
+    long beginCommand(long startTime) {
+        mCommandLastQueuedTime = 0;
+        mCommandStartTime.set(startTime);
+        return startTime;
+    }
+
+    // Call it after the writes of the command have been queued. A command that didn't queue anything (i.e. offline) is not measured
+    public void endCommand(long startTime) {
+        final long lastQueuedTime = mLastQueuedTime;
+        if (lastQueuedTime >= startTime) {
+            mCommandLastQueuedTime = lastQueuedTime;
+        } else {
+            mCommandStartTime.compareAndSet(startTime, 0);
+        }
+    }
+    // endregion
+
+    // region Record
+    // Called by the executor when a write is queued. Returns the queue time that has to be passed to onWriteStarted and onWriteCompleted
+    long onWriteQueued() {
+        return onWriteQueued(System.nanoTime());
+    }
+
+    long onWriteQueued(long now) {
+        mLastQueuedTime = now;
+        return now;
+    }
+
+    void onWriteStarted(long queuedTime, long startTime) {
+        mQueueWait.record(startTime - queuedTime);
+    }
+
+    void onWriteCompleted(long queuedTime, long roundTripNanos, int length) {
+        onWriteCompleted(queuedTime, roundTripNanos, length, System.nanoTime());
+    }
+
+    void onWriteCompleted(long queuedTime, long roundTripNanos, int length, long now) {
+        mWriteRoundTrip.record(roundTripNanos);
+
+        // Command latency
+        final long commandStartTime = mCommandStartTime.get();
+        final long commandLastQueuedTime = mCommandLastQueuedTime;
+        if (commandStartTime != 0 && commandLastQueuedTime != 0 && queuedTime >= commandLastQueuedTime && mCommandStartTime.compareAndSet(commandStartTime, 0)) {
+            mCommandLatency.record(now - commandStartTime);
+        }
+
+        // Throughput
+        final long bytes = mWindowBytes.addAndGet(length);
+        final long windowStartTime = mWindowStartTime.get();
+        final long windowTime = now - windowStartTime;
+        if (windowTime >= kThroughputWindow && mWindowStartTime.compareAndSet(windowStartTime, now)) {
+            mWindowBytes.addAndGet(-bytes);
+            // A window that spans an idle period is scaled to its duration, so idle time lowers the sample instead of being ignored
+            mThroughput.record(bytes * kThroughputWindow / windowTime);
+        }
+    }
+
+    public void onDrop() {
+        mDropsCount.incrementAndGet();
+    }
+
+    public void onDrop(long count) {
+        mDropsCount.addAndGet(count);
+    }
+
+    public void onRetry() {
+        mRetriesCount.incrementAndGet();
+    }
+
+    public void onTimeout() {
+        mTimeoutsCount.incrementAndGet();
+    }
+    // endregion
+
+    // region Snapshots
+    public Snapshot snapshot() {
+        return new Snapshot(mQueueWait.snapshot(), mWriteRoundTrip.snapshot(), mCommandLatency.snapshot(), mThroughput.snapshot(), mDropsCount.get(), mRetriesCount.get(), mTimeoutsCount.get());
+    }
+
+    // Values since the previous call (i.e. to export them periodically)
+    public Snapshot snapshotAndReset() {
+        return new Snapshot(mQueueWait.snapshotAndReset(), mWriteRoundTrip.snapshotAndReset(), mCommandLatency.snapshotAndReset(), mThroughput.snapshotAndReset(),
+                mDropsCount.getAndSet(0), mRetriesCount.getAndSet(0), mTimeoutsCount.getAndSet(0));
+    }
+
+    public static class Snapshot {
+        public final AtomicHistogram.Snapshot queueWait;            // nanoseconds
+        public final AtomicHistogram.Snapshot writeRoundTrip;       // nanoseconds
+        public final AtomicHistogram.Snapshot commandLatency;       // nanoseconds
+        public final AtomicHistogram.Snapshot throughput;           // bytes per second
+        public final long dropsCount;
+        public final long retriesCount;
+        public final long timeoutsCount;
+
+        Snapshot(AtomicHistogram.Snapshot queueWait, AtomicHistogram.Snapshot writeRoundTrip, AtomicHistogram.Snapshot commandLatency, AtomicHistogram.Snapshot throughput,
+                 long dropsCount, long retriesCount, long timeoutsCount) {
+            this.queueWait = queueWait;
+            this.writeRoundTrip = writeRoundTrip;
+            this.commandLatency = commandLatency;
+            this.throughput = throughput;
+            this.dropsCount = dropsCount;
+            this.retriesCount = retriesCount;
+            this.timeoutsCount = timeoutsCount;
+        }
+
+        @Override
+        public String toString() {
+            return "queue wait (us): " + queueWait.toString(1000) + "\n"
+                    + "write round trip (us): " + writeRoundTrip.toString(1000) + "\n"
+                    + "command latency (ms): " + commandLatency.toString(1000000) + "\n"
+                    + "throughput (bytes/s): " + throughput + "\n"
+                    + "drops " + dropsCount + " retries " + retriesCount + " timeouts " + timeoutsCount;
+        }
+    }
+    // endregion
+}
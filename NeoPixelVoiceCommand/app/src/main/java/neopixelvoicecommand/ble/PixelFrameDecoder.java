@@ -0,0 +1,111 @@
+package neopixelvoicecommand.ble;
+
+// Reference decoder for the pixel packets (!P and !L) created by PixelFrameEncoder. It documents the format for the firmware side
+public class PixelFrameDecoder {
+    // Results
+    public static final int RESULT_INVALID = 0;             // not a valid pixel packet (bad checksum, length or range). It is ignored
+    public static final int RESULT_PARTIAL = 1;             // packet applied, the frame is not finished yet
+    public static final int RESULT_FRAME_COMPLETE = 2;      // last packet of a frame, all of its packets have been received
+    public static final int RESULT_FRAME_INCOMPLETE = 3;    // last packet of a frame, some packets were lost
+
+    // Data
+    private final int[] mPixels;
+    private int mFrame = -1;
+    private int mExpectedChunk;
+    private boolean mIsFrameDamaged;
+    private int mLastCompleteFrame = -1;
+
+    public PixelFrameDecoder(int pixelsCount) {
+        mPixels = new int[pixelsCount];
+    }
+
+    // Current strip image (one 0xRRGGBB int per pixel)
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    // Sequence number of the last frame received without losses. -1 if none
+    public int getLastCompleteFrame() {
+        return mLastCompleteFrame;
+    }
+
+    public int decode(byte[] data, int offset, int length) {
+        final int headerLength = PixelFrameEncoder.kHeaderLength;
+        if (length < headerLength + 1 || data[offset] != PacketEncoder.kPacketStart) {
+            return RESULT_INVALID;
+        }
+        final byte command = data[offset + 1];
+        if (command != PacketEncoder.kCommandPixels && command != PacketEncoder.kCommandPixelRuns) {
+            return RESULT_INVALID;
+        }
+        if (PacketEncoder.checksum(data, offset, length - 1) != data[offset + length - 1]) {
+            return RESULT_INVALID;
+        }
+
+        final int frame = data[offset + 2] & 0xFF;
+        final int chunkByte = data[offset + 3] & 0xFF;
+        final int start = ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+        final int count = data[offset + 6] & 0xFF;
+        final int itemLength = command == PacketEncoder.kCommandPixels ? PixelFrameEncoder.kBytesPerPixel : PixelFrameEncoder.kBytesPerRun;
+        if (length != headerLength + count * itemLength + 1) {
+            return RESULT_INVALID;
+        }
+
+        // Validate the range before modifying any pixel
+        int pixelsCount = count;
+        if (command == PacketEncoder.kCommandPixelRuns) {
+            pixelsCount = 0;
+            for (int i = 0; i < count; i++) {
+                pixelsCount += data[offset + headerLength + i * PixelFrameEncoder.kBytesPerRun] & 0xFF;
+            }
+        }
+        if (start + pixelsCount > mPixels.length) {
+            return RESULT_INVALID;
+        }
+
+        // Sequence check
+        final int chunk = chunkByte & PixelFrameEncoder.kChunkMask;
+        if (frame != mFrame) {
+            mFrame = frame;
+            mIsFrameDamaged = chunk != 0;
+        } else if (chunk != mExpectedChunk) {
+            mIsFrameDamaged = true;
+        }
+        mExpectedChunk = (chunk + 1) & PixelFrameEncoder.kChunkMask;
+
+        int position = offset + headerLength;
+        if (command == PacketEncoder.kCommandPixels) {
+            for (int i = start; i < start + count; i++) {
+                mPixels[i] = readColor(data, position);
+                position += PixelFrameEncoder.kBytesPerPixel;
+            }
+        } else {
+            int pixelIndex = start;
+            for (int i = 0; i < count; i++) {
+                final int runLength = data[position] & 0xFF;
+                final int color = readColor(data, position + 1);
+                for (int j = pixelIndex; j < pixelIndex + runLength; j++) {
+                    mPixels[j] = color;
+                }
+                pixelIndex += runLength;
+                position += PixelFrameEncoder.kBytesPerRun;
+            }
+        }
+
+        if ((chunkByte & PixelFrameEncoder.kLastChunkFlag) == 0) {
+            return RESULT_PARTIAL;
+        }
+
+        mFrame = -1;            // the next packet starts a new frame, even if it reuses the sequence number after wrapping
+        if (mIsFrameDamaged) {
+            return RESULT_FRAME_INCOMPLETE;
+        } else {
+            mLastCompleteFrame = frame;
+            return RESULT_FRAME_COMPLETE;
+        }
+    }
+
+    private static int readColor(byte[] data, int position) {
+        return ((data[position] & 0xFF) << 16) | ((data[position + 1] & 0xFF) << 8) | (data[position + 2] & 0xFF);
+    }
+}
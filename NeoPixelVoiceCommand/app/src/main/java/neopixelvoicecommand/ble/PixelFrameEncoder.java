@@ -0,0 +1,191 @@
+package neopixelvoicecommand.ble;
+
+// Splits a strip image (one 0xRRGGBB int per pixel) into pixel packets that fit the peripheral read buffer. There are two packet types:
+// ! P <frame> <chunk> <start hi> <start lo> <count> <r g b * count> <checksum>          raw pixels
+// ! L <frame> <chunk> <start hi> <start lo> <count> <length r g b * count> <checksum>   runs of the same color (count is the number of runs)
+// frame: frame sequence number. chunk: packet sequence number inside the frame (7 bits, wraps), bit 7 is set on the last packet of the frame
+// Each packet carries its own start index, so the receiver can place the pixels even if it has lost a previous packet. Pixels not included in a frame keep their previous color
+public class PixelFrameEncoder {
+    // Packet format
+    public static final int kHeaderLength = 7;              // ! P frame chunk start(2) count
+    public static final int kBytesPerPixel = 3;
+    public static final int kBytesPerRun = 4;               // length r g b
+    public static final int kMaxRunLength = 0xFF;
+    public static final int kLastChunkFlag = 0x80;
+    public static final int kChunkMask = 0x7F;
+    public static final int kMaxStartIndex = 0xFFFF;
+
+    // Data
+    private final PacketEncoder mPacketEncoder;
+    private final int mPixelsPerPacket;
+    private final int mRunsPerPacket;
+    private int mFrameSequence;
+    private int mFrame;
+    private int mChunk;
+
+    public interface PacketSink {
+        // The packet is only valid during the call
+        void onPacket(byte[] buffer, int offset, int length);
+    }
+
+    public PixelFrameEncoder() {
+        this(PacketEncoder.kMaxPacketLength);
+    }
+
+    // maxPacketLength: read buffer size of the peripheral
+    public PixelFrameEncoder(int maxPacketLength) {
+        final int payloadLength = maxPacketLength - kHeaderLength - 1;
+        mPixelsPerPacket = Math.min(0xFF, payloadLength / kBytesPerPixel);
+        mRunsPerPacket = Math.min(0xFF, payloadLength / kBytesPerRun);
+        if (mPixelsPerPacket <= 0 || mRunsPerPacket <= 0) {
+            throw new IllegalArgumentException("maxPacketLength too small: " + maxPacketLength);
+        }
+        mPacketEncoder = new PacketEncoder(maxPacketLength);
+    }
+
+    public int getPixelsPerPacket() {
+        return mPixelsPerPacket;
+    }
+
+    public int getRunsPerPacket() {
+        return mRunsPerPacket;
+    }
+
+    // Sequence number that the next frame will use
+    public int getFrameSequence() {
+        return mFrameSequence;
+    }
+
+    public static int getPacketsCount(int pixelsCount, int pixelsPerPacket) {
+        return Math.max(1, (pixelsCount + pixelsPerPacket - 1) / pixelsPerPacket);
+    }
+
+    // Number of packets needed to send the span as raw pixels
+    public int getRawPacketsCount(int count) {
+        return getPacketsCount(count, mPixelsPerPacket);
+    }
+
+    // Number of packets needed to send the span as runs
+    public int getRunPacketsCount(int[] pixels, int start, int count) {
+        return getPacketsCount(countRuns(pixels, start, count), mRunsPerPacket);
+    }
+
+    public static int countRuns(int[] pixels, int start, int count) {
+        int runs = 0;
+        int runLength = 0;
+        for (int i = start; i < start + count; i++) {
+            if (runLength == 0 || pixels[i] != pixels[i - 1] || runLength == kMaxRunLength) {
+                runs++;
+                runLength = 0;
+            }
+            runLength++;
+        }
+        return runs;
+    }
+
+    /**
+     * Encodes the pixels [start, start + count) as a new frame
+     *
+     * @return number of packets sent to the sink
+     */
+    public int encode(int[] pixels, int start, int count, PacketSink sink) {
+        beginFrame();
+        return writeRawSpan(pixels, start, count, true, sink);
+    }
+
+    // region Frame builder
+    // Starts a new frame. The frame is sent as a sequence of spans, and the last one should be written with isLastSpan set
+    public int beginFrame() {
+        mFrame = mFrameSequence;
+        mFrameSequence = (mFrameSequence + 1) & 0xFF;
+        mChunk = 0;
+        return mFrame;
+    }
+
+    // Writes the pixels [start, start + count) as raw pixels. Returns the number of packets
+    public int writeRawSpan(int[] pixels, int start, int count, boolean isLastSpan, PacketSink sink) {
+        checkRange(pixels, start, count);
+
+        final int packetsCount = getPacketsCount(count, mPixelsPerPacket);
+        int pixelIndex = start;
+        final int end = start + count;
+        for (int i = 0; i < packetsCount; i++) {
+            final int packetPixels = Math.min(mPixelsPerPacket, end - pixelIndex);
+            beginPacket(PacketEncoder.kCommandPixels, pixelIndex, packetPixels, isLastSpan && i == packetsCount - 1);
+            for (int j = pixelIndex; j < pixelIndex + packetPixels; j++) {
+                putColor(pixels[j]);
+            }
+            endPacket(sink);
+            pixelIndex += packetPixels;
+        }
+
+        return packetsCount;
+    }
+
+    // Writes the pixels [start, start + count) as runs of the same color. Returns the number of packets
+    public int writeRunSpan(int[] pixels, int start, int count, boolean isLastSpan, PacketSink sink) {
+        checkRange(pixels, start, count);
+
+        final int end = start + count;
+        int pixelIndex = start;
+        int packetsCount = 0;
+        do {
+            // Find the runs that fit in this packet
+            int runs = 0;
+            int packetEnd = pixelIndex;
+            while (runs < mRunsPerPacket && packetEnd < end) {
+                packetEnd += getRunLength(pixels, packetEnd, end);
+                runs++;
+            }
+
+            beginPacket(PacketEncoder.kCommandPixelRuns, pixelIndex, runs, isLastSpan && packetEnd >= end);
+            while (pixelIndex < packetEnd) {
+                final int runLength = getRunLength(pixels, pixelIndex, end);
+                mPacketEncoder.put((byte) runLength);
+                putColor(pixels[pixelIndex]);
+                pixelIndex += runLength;
+            }
+            endPacket(sink);
+            packetsCount++;
+        } while (pixelIndex < end);
+
+        return packetsCount;
+    }
+
+    private static int getRunLength(int[] pixels, int start, int end) {
+        final int color = pixels[start];
+        int i = start + 1;
+        while (i < end && pixels[i] == color && i - start < kMaxRunLength) {
+            i++;
+        }
+        return i - start;
+    }
+
+    private void beginPacket(byte command, int start, int count, boolean isLast) {
+        mPacketEncoder.begin(command)
+                .put((byte) mFrame)
+                .put((byte) ((mChunk & kChunkMask) | (isLast ? kLastChunkFlag : 0)))
+                .put((byte) ((start >> 8) & 0xFF))
+                .put((byte) (start & 0xFF))
+                .put((byte) count);
+        mChunk++;
+    }
+
+    private void putColor(int color) {
+        mPacketEncoder.put((byte) ((color >> 16) & 0xFF))
+                .put((byte) ((color >> 8) & 0xFF))
+                .put((byte) (color & 0xFF));
+    }
+
+    private void endPacket(PacketSink sink) {
+        mPacketEncoder.end();
+        sink.onPacket(mPacketEncoder.getBuffer(), 0, mPacketEncoder.getLength());
+    }
+
+    private static void checkRange(int[] pixels, int start, int count) {
+        if (start < 0 || count < 0 || start + count > pixels.length || start + count - 1 > kMaxStartIndex) {
+            throw new IllegalArgumentException("Invalid range: " + start + " + " + count);
+        }
+    }
+    // endregion
+}
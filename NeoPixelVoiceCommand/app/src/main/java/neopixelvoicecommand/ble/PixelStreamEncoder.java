@@ -0,0 +1,177 @@
+package neopixelvoicecommand.ble;
+
+// Encoder stage for animations: keeps the last frame sent and only sends the spans that have changed since then.
+// Each span is sent as raw pixels or as runs, whichever needs less packets. If the delta is not smaller than the whole frame, a keyframe is sent instead.
+// There are no acknowledgements from the receiver yet, so the reference is the last frame sent. Call reset() when the receiver may have lost it (i.e. reconnection)
+public class PixelStreamEncoder {
+    // Constants
+    private static final int kDefaultKeyframeInterval = 60;        // frames
+    private static final int kMaxMergeGap = (PixelFrameEncoder.kHeaderLength + 1) / PixelFrameEncoder.kBytesPerPixel;     // unchanged pixels that are cheaper to resend than to start a new span
+
+    // Data
+    private final PixelFrameEncoder mFrameEncoder;
+    private int mKeyframeInterval = kDefaultKeyframeInterval;
+    private int[] mLastFrame = new int[0];
+    private boolean mHasLastFrame;
+    private int mFramesSinceKeyframe;
+
+    // Spans of the frame being encoded (reused between frames)
+    private int mSpansCount;
+    private int[] mSpanStarts = new int[16];
+    private int[] mSpanCounts = new int[16];
+    private boolean[] mSpanIsRuns = new boolean[16];
+
+    // Stats
+    private long mFramesCount;
+    private long mKeyframesCount;
+    private long mRawBytes;             // bytes needed to send every frame as raw pixels
+    private long mEncodedBytes;         // bytes sent
+
+    private PixelFrameEncoder.PacketSink mTargetSink;
+    private final PixelFrameEncoder.PacketSink mCountingSink = new PixelFrameEncoder.PacketSink() {
+        @Override
+        public void onPacket(byte[] buffer, int offset, int length) {
+            mEncodedBytes += length;
+            mTargetSink.onPacket(buffer, offset, length);
+        }
+    };
+
+    public PixelStreamEncoder(PixelFrameEncoder frameEncoder) {
+        mFrameEncoder = frameEncoder;
+    }
+
+    // A keyframe is forced every interval frames, so a receiver that has lost a delta recovers in a bounded time
+    public void setKeyframeInterval(int frames) {
+        mKeyframeInterval = frames;
+    }
+
+    // Forgets the last frame, so the next one is sent as a keyframe
+    public void reset() {
+        mHasLastFrame = false;
+    }
+
+    // region Stats
+    public long getFramesCount() {
+        return mFramesCount;
+    }
+
+    public long getKeyframesCount() {
+        return mKeyframesCount;
+    }
+
+    // Bytes sent relative to sending every frame as raw pixels. Lower is better
+    public float getCompressionRatio() {
+        return mRawBytes > 0 ? (float) mEncodedBytes / mRawBytes : 1;
+    }
+    // endregion
+
+    /**
+     * Encodes the strip image pixels [0, count) as the next frame of the stream. It should be used from a single thread
+     *
+     * @return number of packets sent to the sink. 0 if nothing has changed since the last frame
+     */
+    public int encode(int[] pixels, int count, PixelFrameEncoder.PacketSink sink) {
+        mFramesCount++;
+        mRawBytes += (long) PixelFrameEncoder.getPacketsCount(count, mFrameEncoder.getPixelsPerPacket()) * (PixelFrameEncoder.kHeaderLength + 1) + count * PixelFrameEncoder.kBytesPerPixel;
+
+        boolean isKeyframe = !mHasLastFrame || count != mLastFrame.length || mFramesSinceKeyframe >= mKeyframeInterval;
+        if (!isKeyframe) {
+            final int deltaPackets = planDelta(pixels, count);
+            if (mSpansCount == 0) {
+                return 0;               // nothing to send
+            }
+
+            // The keyframe cost is only calculated if it could be cheaper
+            isKeyframe = deltaPackets >= mFrameEncoder.getRawPacketsCount(count) || deltaPackets >= mFrameEncoder.getRunPacketsCount(pixels, 0, count);
+        }
+
+        if (isKeyframe) {
+            mSpansCount = 0;
+            addSpan(pixels, 0, count);
+            mFramesSinceKeyframe = 0;
+            mKeyframesCount++;
+        } else {
+            mFramesSinceKeyframe++;
+        }
+
+        // Send
+        mTargetSink = sink;
+        int packetsCount = 0;
+        mFrameEncoder.beginFrame();
+        for (int i = 0; i < mSpansCount; i++) {
+            final boolean isLastSpan = i == mSpansCount - 1;
+            if (mSpanIsRuns[i]) {
+                packetsCount += mFrameEncoder.writeRunSpan(pixels, mSpanStarts[i], mSpanCounts[i], isLastSpan, mCountingSink);
+            } else {
+                packetsCount += mFrameEncoder.writeRawSpan(pixels, mSpanStarts[i], mSpanCounts[i], isLastSpan, mCountingSink);
+            }
+        }
+        mTargetSink = null;
+
+        // Keep the frame as reference for the next one
+        if (mLastFrame.length != count) {
+            mLastFrame = new int[count];
+        }
+        System.arraycopy(pixels, 0, mLastFrame, 0, count);
+        mHasLastFrame = true;
+
+        return packetsCount;
+    }
+
+    // Finds the spans that have changed since the last frame. Returns the number of packets needed to send them
+    private int planDelta(int[] pixels, int count) {
+        mSpansCount = 0;
+        int packetsCount = 0;
+        final int[] lastFrame = mLastFrame;
+        int i = 0;
+        while (i < count) {
+            if (pixels[i] == lastFrame[i]) {
+                i++;
+                continue;
+            }
+
+            // Extend the span while the unchanged gaps are short
+            final int spanStart = i;
+            int spanEnd = i + 1;
+            int j = spanEnd;
+            while (j < count) {
+                if (pixels[j] != lastFrame[j]) {
+                    spanEnd = j + 1;
+                } else if (j - spanEnd >= kMaxMergeGap) {
+                    break;
+                }
+                j++;
+            }
+
+            packetsCount += addSpan(pixels, spanStart, spanEnd - spanStart);
+            i = j;
+        }
+        return packetsCount;
+    }
+
+    private int addSpan(int[] pixels, int start, int count) {
+        if (mSpansCount == mSpanStarts.length) {
+            final int capacity = mSpansCount * 2;
+            mSpanStarts = copyOf(mSpanStarts, capacity);
+            mSpanCounts = copyOf(mSpanCounts, capacity);
+            final boolean[] spanIsRuns = new boolean[capacity];
+            System.arraycopy(mSpanIsRuns, 0, spanIsRuns, 0, mSpansCount);
+            mSpanIsRuns = spanIsRuns;
+        }
+
+        final int rawPackets = mFrameEncoder.getRawPacketsCount(count);
+        final int runPackets = mFrameEncoder.getRunPacketsCount(pixels, start, count);
+        mSpanStarts[mSpansCount] = start;
+        mSpanCounts[mSpansCount] = count;
+        mSpanIsRuns[mSpansCount] = runPackets < rawPackets;
+        mSpansCount++;
+
+        return Math.min(rawPackets, runPackets);
+    }
+
+    private static int[] copyOf(int[] array, int capacity) {
+        final int[] copy = new int[capacity];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+}
@@ -0,0 +1,249 @@
+package neopixelvoicecommand.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Reconnects the primary connection of a BleManager when it drops. Attempts are spaced with a jittered exponential backoff, so a device that is out of range
+// is not hammered and several phones don't retry in lockstep. Supervision starts when the device is ready (services discovered) and stops when the app disconnects.
+// A reconnection started by BleConnection after a gatt stall is left alone, and only followed up if it fails.
+// The reconnect time (disconnection to ready) of the last reconnections is kept to report percentiles
+public class ReconnectSupervisor {
+    // Log
+    private final static String TAG = ReconnectSupervisor.class.getSimpleName();
+
+    // Constants
+    public static final long kDefaultInitialDelay = 250;        // milliseconds before the first attempt
+    public static final long kDefaultMaxDelay = 30000;          // milliseconds. Cap of the backoff
+    public static final int kDefaultMaxAttempts = 12;           // ~3 minutes with the default delays. Then the app has to connect again
+    public static final long kDefaultAttemptTimeout = 10000;    // milliseconds to wait for a connection attempt before cancelling it
+    private static final int kMaxReconnectTimeSamples = 64;
+
+    // Data
+    private final BleManager mManager;
+    private final Handler mHandler;
+    private final Clock mClock;
+    private final Random mRandom = new Random();
+    private volatile boolean mIsEnabled = true;
+    private volatile long mInitialDelay = kDefaultInitialDelay;
+    private volatile long mMaxDelay = kDefaultMaxDelay;
+    private volatile int mMaxAttempts = kDefaultMaxAttempts;
+    private volatile long mAttemptTimeout = kDefaultAttemptTimeout;
+
+    // State. Guarded by this
+    private boolean mIsSupervising;             // the device has been ready and the app has not disconnected it
+    private long mDisconnectionTime;            // mClock time of the drop. 0 if not reconnecting
+    private int mAttemptsCount;                 // attempts since the drop
+    private boolean mIsAttemptScheduled;
+
+    // Stats. Guarded by this
+    private final long[] mReconnectTimes = new long[kMaxReconnectTimeSamples];
+    private long mReconnectionsCount;
+    private long mAttemptsTotal;
+    private long mGiveUpsCount;
+
+    private final Runnable mAttemptRunnable = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+    private final Runnable mAttemptTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onAttemptTimeout();
+        }
+    };
+
+    ReconnectSupervisor(BleManager manager) {
+        this(manager, new Handler(Looper.getMainLooper()), new Clock() {
+            @Override
+            public long millis() {
+                return SystemClock.elapsedRealtime();
+            }
+        });
+    }
+
+    // handler: runs the attempts and their timeouts. clock: measures the reconnect times
+    ReconnectSupervisor(BleManager manager, Handler handler, Clock clock) {
+        mManager = manager;
+        mHandler = handler;
+        mClock = clock;
+    }
+
+    // region Settings
+    public void setEnabled(boolean enabled) {
+        mIsEnabled = enabled;
+        if (!enabled) {
+            stop();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    /**
+     * @param initialDelay   milliseconds before the first attempt. Each failed attempt doubles it
+     * @param maxDelay       maximum milliseconds between attempts
+     * @param maxAttempts    attempts before giving up
+     * @param attemptTimeout milliseconds to wait for each attempt
+     */
+    public void setBackoff(long initialDelay, long maxDelay, int maxAttempts, long attemptTimeout) {
+        mInitialDelay = Math.max(1, initialDelay);
+        mMaxDelay = Math.max(mInitialDelay, maxDelay);
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mAttemptTimeout = Math.max(1, attemptTimeout);
+    }
+    // endregion
+
+    // region Connection events
+    // Called when the primary device has discovered its services
+    synchronized void onReady() {
+        mHandler.removeCallbacks(mAttemptTimeoutRunnable);
+        mIsSupervising = mIsEnabled;
+        if (mDisconnectionTime > 0) {
+            final long reconnectTime = mClock.millis() - mDisconnectionTime;
+            mReconnectTimes[(int) (mReconnectionsCount % kMaxReconnectTimeSamples)] = reconnectTime;
+            mReconnectionsCount++;
+            Log.d(TAG, "Reconnected in " + reconnectTime + "ms after " + mAttemptsCount + " attempts");
+        }
+        mDisconnectionTime = 0;
+        mAttemptsCount = 0;
+    }
+
+    /**
+     * Called when the primary connection is lost
+     *
+     * @param isStallReconnectPending true if the BleConnection is already reconnecting by itself (see BleConnection.onExecutorStalled)
+     */
+    synchronized void onDisconnected(boolean isStallReconnectPending) {
+        if (!mIsSupervising || !mIsEnabled) {
+            return;
+        }
+        if (mDisconnectionTime == 0) {
+            mDisconnectionTime = mClock.millis();
+        }
+
+        if (isStallReconnectPending) {
+            // Give the stall reconnection the time of an attempt
+            mHandler.removeCallbacks(mAttemptTimeoutRunnable);
+            mHandler.postDelayed(mAttemptTimeoutRunnable, mAttemptTimeout);
+        } else if (!mIsAttemptScheduled) {
+            scheduleAttempt();
+        }
+    }
+
+    // Called when the app disconnects or closes the primary connection: it doesn't want it back
+    public synchronized void stop() {
+        mIsSupervising = false;
+        mIsAttemptScheduled = false;
+        mDisconnectionTime = 0;
+        mAttemptsCount = 0;
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mHandler.removeCallbacks(mAttemptTimeoutRunnable);
+    }
+
+    public synchronized boolean isReconnecting() {
+        return mDisconnectionTime > 0;
+    }
+    // endregion
+
+    // region Attempts
+    private void scheduleAttempt() {
+        if (mAttemptsCount >= mMaxAttempts) {
+            Log.w(TAG, "Giving up after " + mAttemptsCount + " attempts");
+            mGiveUpsCount++;
+            stop();
+            return;
+        }
+
+        final long delay = getBackoffDelay(mAttemptsCount);
+        mIsAttemptScheduled = true;
+        mHandler.removeCallbacks(mAttemptTimeoutRunnable);           // the previous attempt has already failed
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mHandler.postDelayed(mAttemptRunnable, delay);
+        Log.d(TAG, "Reconnection attempt " + (mAttemptsCount + 1) + " in " + delay + "ms");
+    }
+
+    private long getBackoffDelay(int attempt) {
+        return getBackoffDelay(mInitialDelay, mMaxDelay, attempt, mRandom.nextDouble());
+    }
+
+    // Equal jitter: half of the exponential delay is fixed and the other half random. random: 0..1
+    static long getBackoffDelay(long initialDelay, long maxDelay, int attempt, double random) {
+        final long delay = Math.min(maxDelay, initialDelay << Math.min(attempt, 30));
+        final long half = delay / 2;
+        return half + (long) (random * (delay - half));
+    }
+
+    private synchronized void attempt() {
+        mIsAttemptScheduled = false;
+        if (!mIsSupervising) {
+            return;
+        }
+
+        mAttemptsCount++;
+        mAttemptsTotal++;
+        if (mManager.reconnectToLastDevice()) {
+            mHandler.removeCallbacks(mAttemptTimeoutRunnable);
+            mHandler.postDelayed(mAttemptTimeoutRunnable, mAttemptTimeout);
+        } else {
+            scheduleAttempt();
+        }
+    }
+
+    // The attempt (or the stall reconnection) didn't get the device ready in time. Cancel it and try again
+    private synchronized void onAttemptTimeout() {
+        if (!mIsSupervising || mDisconnectionTime == 0) {
+            return;
+        }
+
+        Log.d(TAG, "Reconnection attempt timeout");
+        final BleConnection connection = mManager.getPrimaryConnection();
+        if (connection != null) {
+            connection.disconnect();
+        }
+        if (!mIsAttemptScheduled) {
+            scheduleAttempt();
+        }
+    }
+    // endregion
+
+    // region Stats
+    public synchronized long getReconnectionsCount() {
+        return mReconnectionsCount;
+    }
+
+    // Connection attempts, including the failed ones
+    public synchronized long getAttemptsCount() {
+        return mAttemptsTotal;
+    }
+
+    public synchronized long getGiveUpsCount() {
+        return mGiveUpsCount;
+    }
+
+    /**
+     * Reconnect time (milliseconds from the disconnection to the device ready) of the last reconnections
+     *
+     * @param percentile 0..100
+     * @return -1 if there hasn't been any reconnection
+     */
+    public synchronized long getReconnectTimePercentile(double percentile) {
+        final int count = (int) Math.min(mReconnectionsCount, kMaxReconnectTimeSamples);
+        if (count == 0) {
+            return -1;
+        }
+
+        final long[] times = Arrays.copyOf(mReconnectTimes, count);
+        Arrays.sort(times);
+        final int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return times[Math.max(0, Math.min(count - 1, index))];
+    }
+    // endregion
+}
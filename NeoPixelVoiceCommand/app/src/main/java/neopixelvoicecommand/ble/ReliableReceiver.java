@@ -0,0 +1,147 @@
+package neopixelvoicecommand.ble;
+
+// Reference implementation of the peripheral side of the reliable mode (see ReliableSender). It documents the protocol for the firmware side.
+// Frames received out of order are kept until the missing ones arrive, so packets are delivered in order and only once.
+// Every valid frame is acknowledged (also duplicates, in case the ack was lost), and the gaps before it are nacked once (the sender timeout covers lost retransmissions)
+public class ReliableReceiver {
+    // Results
+    public static final int RESULT_INVALID = 0;         // not a reliable frame, or corrupted (the expected frame has been nacked)
+    public static final int RESULT_DELIVERED = 1;       // the frame and the ones buffered after it have been delivered
+    public static final int RESULT_BUFFERED = 2;        // received out of order, waiting for the missing frames
+    public static final int RESULT_DUPLICATE = 3;       // already received
+    public static final int RESULT_OUT_OF_WINDOW = 4;
+
+    // Data
+    private final int mWindowSize;
+    private final byte[][] mPackets;
+    private final int[] mPacketLengths;
+    private final boolean[] mIsReceived;
+    private final boolean[] mIsNacked;
+    private int mExpected;              // next sequence to deliver
+    private boolean mIsSynchronized;
+    private final byte[] mControlFrame = new byte[ReliableSender.kControlFrameLength];
+    private final ReliableSender.Link mLink;
+    private final PixelFrameEncoder.PacketSink mSink;
+
+    /**
+     * @param link uart link to send the acks to the sender
+     * @param sink receives the packets (!<command><payload><checksum>) in order
+     */
+    public ReliableReceiver(int windowSize, ReliableSender.Link link, PixelFrameEncoder.PacketSink sink) {
+        mWindowSize = windowSize;
+        mPackets = new byte[windowSize][ReliableSender.kMaxPacketLength];
+        mPacketLengths = new int[windowSize];
+        mIsReceived = new boolean[windowSize];
+        mIsNacked = new boolean[windowSize];
+        mLink = link;
+        mSink = sink;
+    }
+
+    public int onFrame(byte[] data, int offset, int length) {
+        if (length < ReliableSender.kHeaderLength + ReliableSender.kCrcLength || data[offset] != PacketEncoder.kPacketStart || data[offset + 1] != PacketEncoder.kCommandReliable) {
+            return RESULT_INVALID;
+        }
+        final int sequence = data[offset + 2] & 0xFF;
+        final int lengthByte = data[offset + 3] & 0xFF;
+        final int payloadLength = lengthByte & ReliableSender.kLengthMask;
+        final int frameLength = ReliableSender.kHeaderLength + payloadLength + ReliableSender.kCrcLength;
+        final int crcOffset = offset + ReliableSender.kHeaderLength + payloadLength;
+        if (payloadLength == 0 || payloadLength >= ReliableSender.kMaxPacketLength || frameLength > length
+                || (((data[crcOffset] & 0xFF) << 8) | (data[crcOffset + 1] & 0xFF)) != Crc16.compute(data, offset, ReliableSender.kHeaderLength + payloadLength)) {
+            // The sequence number can't be trusted. Ask for the frame that we are waiting for
+            if (mIsSynchronized) {
+                nack(mExpected);
+            }
+            return RESULT_INVALID;
+        }
+
+        // Sync: the sender has started a new session or has given up on a frame. A retransmitted sync frame that has already been delivered is a duplicate
+        if ((lengthByte & ReliableSender.kSyncFlag) != 0 && !(mIsSynchronized && sequence == ((mExpected - 1) & ReliableSender.kSequenceMask))) {
+            if (mIsSynchronized) {
+                // Deliver what was received before the frames that the sender has given up on
+                final int distance = (sequence - mExpected) & ReliableSender.kSequenceMask;
+                for (int i = 0; i < Math.min(distance, mWindowSize); i++) {
+                    deliverIfReceived((mExpected + i) & ReliableSender.kSequenceMask);
+                }
+            }
+            mExpected = sequence;
+            mIsSynchronized = true;
+            for (int i = 0; i < mWindowSize; i++) {
+                mIsReceived[i] = false;
+                mIsNacked[i] = false;
+            }
+        }
+        if (!mIsSynchronized) {
+            return RESULT_OUT_OF_WINDOW;
+        }
+
+        final int distance = (sequence - mExpected) & ReliableSender.kSequenceMask;
+        if (distance >= mWindowSize) {
+            if (distance >= ReliableSender.kSequenceMask + 1 - mWindowSize) {
+                sendControlFrame(PacketEncoder.kCommandAck, sequence);          // the ack was lost
+                return RESULT_DUPLICATE;
+            }
+            return RESULT_OUT_OF_WINDOW;
+        }
+
+        final int index = sequence & (mWindowSize - 1);
+        if (mIsReceived[index]) {
+            sendControlFrame(PacketEncoder.kCommandAck, sequence);
+            return RESULT_DUPLICATE;
+        }
+        mPackets[index][0] = PacketEncoder.kPacketStart;
+        System.arraycopy(data, offset + ReliableSender.kHeaderLength, mPackets[index], 1, payloadLength);
+        mPacketLengths[index] = payloadLength + 1;
+        mIsReceived[index] = true;
+
+        if (distance > 0) {
+            sendControlFrame(PacketEncoder.kCommandAck, sequence);
+
+            // Ask for the missing frames
+            for (int i = 0; i < distance; i++) {
+                final int missing = (mExpected + i) & ReliableSender.kSequenceMask;
+                if (!mIsReceived[missing & (mWindowSize - 1)]) {
+                    nack(missing);
+                }
+            }
+            return RESULT_BUFFERED;
+        }
+
+        // Deliver in order
+        while (deliverIfReceived(mExpected)) {
+            mExpected = (mExpected + 1) & ReliableSender.kSequenceMask;
+        }
+        sendControlFrame(PacketEncoder.kCommandAck, sequence);
+        return RESULT_DELIVERED;
+    }
+
+    private boolean deliverIfReceived(int sequence) {
+        final int index = sequence & (mWindowSize - 1);
+        if (!mIsReceived[index]) {
+            return false;
+        }
+        mIsReceived[index] = false;
+        mIsNacked[index] = false;
+        mSink.onPacket(mPackets[index], 0, mPacketLengths[index]);
+        return true;
+    }
+
+    private void nack(int sequence) {
+        final int index = sequence & (mWindowSize - 1);
+        if (!mIsNacked[index]) {
+            mIsNacked[index] = true;
+            sendControlFrame(PacketEncoder.kCommandNack, sequence);
+        }
+    }
+
+    private void sendControlFrame(byte command, int sequence) {
+        mControlFrame[0] = PacketEncoder.kPacketStart;
+        mControlFrame[1] = command;
+        mControlFrame[2] = (byte) sequence;
+        mControlFrame[3] = (byte) mExpected;
+        final int crc = Crc16.compute(mControlFrame, 0, 4);
+        mControlFrame[4] = (byte) (crc >> 8);
+        mControlFrame[5] = (byte) crc;
+        mLink.send(mControlFrame, 0, mControlFrame.length);
+    }
+}
@@ -0,0 +1,410 @@
+package neopixelvoicecommand.ble;
+
+import android.util.Log;
+
+// Optional reliable mode for uart packets. Each packet is wrapped in a frame with a sequence number and a CRC-16:
+// ! S <seq> <length | sync flag> <packet without the initial '!'> <crc hi> <crc lo>          crc of all the previous bytes
+// The peripheral acknowledges each frame over the uart RX characteristic, and asks for the frames that it has missed:
+// ! K <seq> <next> <crc hi> <crc lo>       frame received
+// ! N <seq> <next> <crc hi> <crc lo>       frame lost or corrupted, retransmit it
+// <next> is the next sequence that the receiver will deliver: all the frames before it have been received, so a lost ack is covered by the next control frame.
+// The first frame after a reset (or after giving up on a frame) has the sync flag, and is sent alone until it is acknowledged. Then up to windowSize frames can be waiting for their ack. Only the frames that are not acknowledged are retransmitted: when they are nacked or after the
+// retransmission timeout (estimated from the round trip time like TCP does, RFC 6298). See ReliableReceiver for the peripheral side.
+// The sender has no timer: call onTimer at getNextTimeout(). Methods are synchronized, so acks can be processed on the thread that receives them
+public class ReliableSender {
+    // Log
+    private final static String TAG = ReliableSender.class.getSimpleName();
+
+    // Frame format
+    public static final int kHeaderLength = 4;                  // ! S seq length
+    public static final int kCrcLength = 2;
+    public static final int kMaxFrameLength = PacketEncoder.kMaxPacketLength;
+    public static final int kMaxPacketLength = kMaxFrameLength - kHeaderLength - kCrcLength + 1;     // packets (with their '!') that fit in a frame
+    public static final int kControlFrameLength = 6;            // ! K|N seq next crc(2)
+    public static final int kSyncFlag = 0x80;                   // in the length byte: the receiver should start its sequence at this frame
+    public static final int kLengthMask = 0x7F;
+    public static final int kSequenceMask = 0xFF;
+
+    // Window
+    public static final int kDefaultWindowSize = 8;
+    public static final int kMaxWindowSize = 64;                // less than half the sequence space, so old and new frames can't be confused
+    private static final int kBacklogCapacity = 32;
+
+    // Retransmission timeout (milliseconds)
+    private static final long kInitialRto = 250;
+    private static final long kMinRto = 40;
+    private static final long kMaxRto = 2000;
+    private static final int kMaxRetransmissions = 6;
+
+    public interface Link {
+        // Writes a frame. The frame is only valid during the call
+        void send(byte[] frame, int offset, int length);
+    }
+
+    // Frame waiting for its ack
+    private static class Slot {
+        final byte[] frame = new byte[kMaxFrameLength];
+        int length;
+        long sentTime;
+        int retransmissions;
+        boolean isAcked;
+    }
+
+    // Data
+    private final Link mLink;
+    private final int mWindowSize;
+    private final Slot[] mWindow;
+    private int mBase;                  // oldest frame not acknowledged
+    private int mNextSequence;
+    private boolean mIsSyncPending = true;
+
+    // Backlog: packets waiting for a free slot in the window
+    private final byte[][] mBacklog = new byte[kBacklogCapacity][kMaxPacketLength];
+    private final int[] mBacklogLengths = new int[kBacklogCapacity];
+    private int mBacklogStart;
+    private int mBacklogCount;
+
+    // Round trip time estimation (milliseconds)
+    private long mSmoothedRtt = -1;
+    private long mRttVariation;
+    private long mRto = kInitialRto;
+
+    // Stats
+    private long mFramesSent;
+    private long mRetransmissionsCount;
+    private long mAcksCount;
+    private long mNacksCount;
+    private long mFailedCount;
+    private volatile PipelineMetrics mMetrics;
+
+    public ReliableSender(Link link) {
+        this(link, kDefaultWindowSize);
+    }
+
+    // windowSize: power of two up to kMaxWindowSize
+    public ReliableSender(Link link, int windowSize) {
+        if (windowSize <= 0 || windowSize > kMaxWindowSize || (windowSize & (windowSize - 1)) != 0) {
+            throw new IllegalArgumentException("Invalid window size: " + windowSize);
+        }
+        mLink = link;
+        mWindowSize = windowSize;
+        mWindow = new Slot[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            mWindow[i] = new Slot();
+        }
+    }
+
+    // Counts the retransmissions as retries, and the frames given up and packets discarded as drops
+    public void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    // Forgets the pending frames (i.e. after a disconnection). The next frame resynchronizes the receiver
+    public synchronized void reset() {
+        mBase = mNextSequence;
+        mBacklogCount = 0;
+        mIsSyncPending = true;
+        mRto = kInitialRto;
+        mSmoothedRtt = -1;
+    }
+
+    // region Send
+    /**
+     * Sends a packet (!<command><payload><checksum>) as a reliable frame, or queues it if the window is full
+     *
+     * @return false if the backlog is full and the packet has been discarded
+     */
+    public synchronized boolean send(byte[] packet, int offset, int length, long now) {
+        // The initial '!' is part of the frame header
+        if (length > 0 && packet[offset] == PacketEncoder.kPacketStart) {
+            offset++;
+            length--;
+        }
+        if (length <= 0 || length > kMaxPacketLength - 1) {
+            throw new IllegalArgumentException("Invalid packet length: " + length);
+        }
+
+        if (mBacklogCount == 0 && getInFlightCount() < getWindowLimit()) {
+            sendNewFrame(packet, offset, length, now);
+            return true;
+        }
+
+        if (mBacklogCount == kBacklogCapacity) {
+            final PipelineMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onDrop();
+            }
+            return false;
+        }
+        final int index = (mBacklogStart + mBacklogCount) % kBacklogCapacity;
+        System.arraycopy(packet, offset, mBacklog[index], 0, length);
+        mBacklogLengths[index] = length;
+        mBacklogCount++;
+        return true;
+    }
+
+    private void sendNewFrame(byte[] payload, int offset, int length, long now) {
+        final int sequence = mNextSequence;
+        mNextSequence = (mNextSequence + 1) & kSequenceMask;
+
+        final Slot slot = mWindow[sequence & (mWindowSize - 1)];
+        final byte[] frame = slot.frame;
+        frame[0] = PacketEncoder.kPacketStart;
+        frame[1] = PacketEncoder.kCommandReliable;
+        frame[2] = (byte) sequence;
+        frame[3] = (byte) (length | (mIsSyncPending ? kSyncFlag : 0));
+        System.arraycopy(payload, offset, frame, kHeaderLength, length);
+        final int crc = Crc16.compute(frame, 0, kHeaderLength + length);
+        frame[kHeaderLength + length] = (byte) (crc >> 8);
+        frame[kHeaderLength + length + 1] = (byte) crc;
+        slot.length = kHeaderLength + length + kCrcLength;
+        slot.retransmissions = 0;
+        slot.isAcked = false;
+
+        transmit(slot, now);
+    }
+
+    private void transmit(Slot slot, long now) {
+        slot.sentTime = now;
+        mFramesSent++;
+        mLink.send(slot.frame, 0, slot.length);
+    }
+
+    // Until the receiver has acknowledged the sync frame, it may still expect the sequence of a previous session
+    private int getWindowLimit() {
+        return mIsSyncPending ? 1 : mWindowSize;
+    }
+
+    private void sendBacklog(long now) {
+        while (mBacklogCount > 0 && getInFlightCount() < getWindowLimit()) {
+            sendNewFrame(mBacklog[mBacklogStart], 0, mBacklogLengths[mBacklogStart], now);
+            mBacklogStart = (mBacklogStart + 1) % kBacklogCapacity;
+            mBacklogCount--;
+        }
+    }
+    // endregion
+
+    // region Receive
+    /**
+     * Processes the control frames (acks and nacks) found in data received from the peripheral
+     *
+     * @return number of valid control frames
+     */
+    public int onReceived(byte[] data, int offset, int length, long now) {
+        int count = 0;
+        final int end = offset + length;
+        for (int i = offset; i + kControlFrameLength <= end; i++) {
+            if (data[i] == PacketEncoder.kPacketStart && onControlFrame(data, i, kControlFrameLength, now)) {
+                count++;
+                i += kControlFrameLength - 1;
+            }
+        }
+        return count;
+    }
+
+    // Returns false if it is not a valid control frame
+    public synchronized boolean onControlFrame(byte[] data, int offset, int length, long now) {
+        if (length < kControlFrameLength || data[offset] != PacketEncoder.kPacketStart) {
+            return false;
+        }
+        final byte command = data[offset + 1];
+        if (command != PacketEncoder.kCommandAck && command != PacketEncoder.kCommandNack) {
+            return false;
+        }
+        final int crc = ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+        if (crc != Crc16.compute(data, offset, 4)) {
+            return false;
+        }
+
+        final int sequence = data[offset + 2] & 0xFF;
+        final int next = data[offset + 3] & 0xFF;
+        if (command == PacketEncoder.kCommandAck) {
+            mAcksCount++;
+            onAck(sequence, now);
+        } else {
+            mNacksCount++;
+        }
+        onCumulativeAck(next);
+        if (command == PacketEncoder.kCommandNack) {
+            onNack(sequence, now);
+        }
+
+        // Slide the window
+        while (getInFlightCount() > 0 && mWindow[mBase & (mWindowSize - 1)].isAcked) {
+            mBase = (mBase + 1) & kSequenceMask;
+        }
+        sendBacklog(now);
+        return true;
+    }
+
+    private boolean isInFlight(int sequence) {
+        return ((sequence - mBase) & kSequenceMask) < getInFlightCount();
+    }
+
+    private void onAck(int sequence, long now) {
+        if (!isInFlight(sequence)) {
+            return;         // duplicated ack
+        }
+
+        final Slot slot = mWindow[sequence & (mWindowSize - 1)];
+        if (!slot.isAcked) {
+            slot.isAcked = true;
+            if ((slot.frame[3] & kSyncFlag) != 0) {
+                mIsSyncPending = false;
+            }
+            if (slot.retransmissions == 0) {
+                updateRto(now - slot.sentTime);         // Karn: retransmitted frames don't give a valid sample
+            }
+        }
+    }
+
+    // The frames before next have been received. They don't give rtt samples: their acks may have been lost long ago
+    private void onCumulativeAck(int next) {
+        if (mIsSyncPending) {
+            return;         // the receiver may still be in a previous session
+        }
+        final int count = (next - mBase) & kSequenceMask;
+        if (count > getInFlightCount()) {
+            return;         // old control frame
+        }
+        for (int i = 0; i < count; i++) {
+            mWindow[(mBase + i) & (mWindowSize - 1)].isAcked = true;
+        }
+    }
+
+    private void onNack(int sequence, long now) {
+        if (!isInFlight(sequence)) {
+            return;
+        }
+
+        // The receiver nacks a gap every time a later frame arrives. Retransmit once per round trip
+        final Slot slot = mWindow[sequence & (mWindowSize - 1)];
+        final long minInterval = mSmoothedRtt >= 0 ? Math.max(kMinRto / 2, mSmoothedRtt) : kMinRto;
+        if (!slot.isAcked && now - slot.sentTime >= minInterval) {
+            retransmit(slot, now);
+        }
+    }
+
+    private void updateRto(long rtt) {
+        if (mSmoothedRtt < 0) {
+            mSmoothedRtt = rtt;
+            mRttVariation = rtt / 2;
+        } else {
+            mRttVariation = (3 * mRttVariation + Math.abs(mSmoothedRtt - rtt)) / 4;
+            mSmoothedRtt = (7 * mSmoothedRtt + rtt) / 8;
+        }
+        // The variation of a steady link tends to 0, but acks still arrive up to a connection interval late: keep a margin (RFC 6298 uses the clock granularity)
+        mRto = Math.min(kMaxRto, Math.max(kMinRto, mSmoothedRtt + Math.max(mSmoothedRtt / 2, 4 * mRttVariation)));
+    }
+    // endregion
+
+    // region Timer
+    /**
+     * Retransmits the frames whose ack has not arrived in time
+     *
+     * @return time of the next timeout (see getNextTimeout)
+     */
+    public synchronized long onTimer(long now) {
+        boolean isTimedOut = false;
+        final int inFlightCount = getInFlightCount();
+        for (int i = 0; i < inFlightCount; i++) {
+            final Slot slot = mWindow[(mBase + i) & (mWindowSize - 1)];
+            if (!slot.isAcked && now - slot.sentTime >= mRto) {
+                retransmit(slot, now);
+                isTimedOut = true;
+            }
+        }
+
+        // Back off: the link is slower than estimated or frames are being lost
+        if (isTimedOut) {
+            mRto = Math.min(kMaxRto, mRto * 2);
+        }
+
+        // Failed frames are given up, so they may have freed the window
+        while (getInFlightCount() > 0 && mWindow[mBase & (mWindowSize - 1)].isAcked) {
+            mBase = (mBase + 1) & kSequenceMask;
+        }
+        sendBacklog(now);
+
+        return getNextTimeout();
+    }
+
+    // Time when onTimer should be called. -1 if there are no frames waiting for an ack
+    public synchronized long getNextTimeout() {
+        long nextTimeout = -1;
+        final int inFlightCount = getInFlightCount();
+        for (int i = 0; i < inFlightCount; i++) {
+            final Slot slot = mWindow[(mBase + i) & (mWindowSize - 1)];
+            if (!slot.isAcked) {
+                final long timeout = slot.sentTime + mRto;
+                if (nextTimeout < 0 || timeout < nextTimeout) {
+                    nextTimeout = timeout;
+                }
+            }
+        }
+        return nextTimeout;
+    }
+
+    private void retransmit(Slot slot, long now) {
+        if (slot.retransmissions >= kMaxRetransmissions) {
+            // Give up. The peripheral is not answering or doesn't support the reliable mode
+            Log.w(TAG, "Frame " + (slot.frame[2] & 0xFF) + " not acknowledged after " + slot.retransmissions + " retransmissions");
+            slot.isAcked = true;
+            mFailedCount++;
+            mIsSyncPending = true;          // the next frame tells the receiver to skip it
+            final PipelineMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onDrop();
+            }
+            return;
+        }
+        slot.retransmissions++;
+        mRetransmissionsCount++;
+        final PipelineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onRetry();
+        }
+        transmit(slot, now);
+    }
+    // endregion
+
+    // region Stats
+    public synchronized int getInFlightCount() {
+        return (mNextSequence - mBase) & kSequenceMask;
+    }
+
+    public synchronized int getBacklogCount() {
+        return mBacklogCount;
+    }
+
+    public synchronized long getFramesSent() {
+        return mFramesSent;
+    }
+
+    public synchronized long getRetransmissionsCount() {
+        return mRetransmissionsCount;
+    }
+
+    public synchronized long getAcksCount() {
+        return mAcksCount;
+    }
+
+    public synchronized long getNacksCount() {
+        return mNacksCount;
+    }
+
+    // Frames given up after kMaxRetransmissions
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    // Smoothed round trip time in milliseconds. -1 if there are no samples yet
+    public synchronized long getSmoothedRtt() {
+        return mSmoothedRtt;
+    }
+
+    public synchronized long getRto() {
+        return mRto;
+    }
+    // endregion
+}
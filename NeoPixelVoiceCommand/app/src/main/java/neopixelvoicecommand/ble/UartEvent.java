@@ -0,0 +1,66 @@
+package neopixelvoicecommand.ble;
+
+// Frame received from the peripheral over the uart rx characteristic. Instances are reused by UartRxPipeline: they are only valid during Listener.onUartEvent
+// Formats (checksum: PacketEncoder.checksum of the previous bytes. crc: Crc16 of the previous bytes, big endian):
+// ! K <seq> <next> <crc hi> <crc lo>                   reliable mode ack (see ReliableSender)
+// ! N <seq> <next> <crc hi> <crc lo>                   reliable mode nack
+// ! V <sensor> <value hi> <value lo> <checksum>        sensor reading. Signed 16 bit value
+// ! I <mode> <r> <g> <b> <checksum>                    strip state. mode is the command that set it (C, R, F, P)
+public class UartEvent {
+    // Types
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_ACK = 1;
+    public static final int TYPE_NACK = 2;
+    public static final int TYPE_SENSOR = 3;
+    public static final int TYPE_STATE = 4;
+
+    // Frame
+    public int type;
+    public final byte[] data = new byte[PacketEncoder.kMaxPacketLength];       // the whole frame, starting with '!'
+    public int length;
+    public long time;                   // SystemClock.uptimeMillis() when it was parsed
+
+    // Ack and nack
+    public int sequence;
+    public int next;
+
+    // Sensor
+    public int sensor;
+    public int value;
+
+    // State
+    public byte mode;
+    public int color;                   // 0xRRGGBB
+
+    public UartEvent() {
+        clear();
+    }
+
+    public void clear() {
+        type = TYPE_NONE;
+        length = 0;
+        time = 0;
+        sequence = 0;
+        next = 0;
+        sensor = 0;
+        value = 0;
+        mode = 0;
+        color = 0;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case TYPE_ACK:
+                return "ack " + sequence + " next " + next;
+            case TYPE_NACK:
+                return "nack " + sequence + " next " + next;
+            case TYPE_SENSOR:
+                return "sensor " + sensor + ": " + value;
+            case TYPE_STATE:
+                return "state " + (char) mode + " " + String.format("%06X", color);
+            default:
+                return "none";
+        }
+    }
+}
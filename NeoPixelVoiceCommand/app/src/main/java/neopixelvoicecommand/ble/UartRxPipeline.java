@@ -0,0 +1,313 @@
+package neopixelvoicecommand.ble;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Inbound uart data. Notifications are copied into a preallocated ring buffer on the binder thread that receives them, and parsed on a pipeline thread:
+// frames ('!' + command + ..., see UartEvent) are reassembled across notifications, verified and dispatched to the listeners as reused UartEvents.
+// Bytes that are not part of a valid frame are skipped until the next '!'. Nothing is allocated per notification.
+// The ring buffer has a single producer (onNotification) and a single consumer (the pipeline thread), so it doesn't need locks
+public class UartRxPipeline {
+    // Log
+    private final static String TAG = UartRxPipeline.class.getSimpleName();
+
+    // Constants
+    public static final int kDefaultCapacity = 4096;            // ~1s of notifications at 100/s with a 20 byte payload, x2
+    private static final int[] kFrameLengths = createFrameLengths();
+
+    public interface Listener {
+        // Called on the pipeline thread. The event is only valid during the call
+        void onUartEvent(UartEvent event);
+    }
+
+    // Ring buffer
+    private final byte[] mBuffer;
+    private final int mMask;
+    private volatile long mWritePosition;           // only written by the producer
+    private volatile long mReadPosition;            // only written by the consumer
+
+    // Pipeline thread
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final AtomicBoolean mIsDrainScheduled = new AtomicBoolean();
+    private volatile boolean mIsResetPending;
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // Parser
+    private final UartEvent mEvent = new UartEvent();
+    private volatile Listener[] mListeners = new Listener[0];      // copied on write, so dispatching doesn't allocate an iterator
+
+    // Stats
+    private volatile long mNotificationsCount;
+    private volatile long mOverflowsCount;          // notifications discarded because the buffer was full
+    private volatile int mMaxFill;
+    private volatile long mFramesCount;
+    private volatile long mInvalidFramesCount;      // checksum errors
+    private volatile long mDiscardedBytesCount;     // bytes outside frames
+
+    private static int[] createFrameLengths() {
+        final int[] lengths = new int[128];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = -1;
+        }
+        lengths[PacketEncoder.kCommandAck] = ReliableSender.kControlFrameLength;
+        lengths[PacketEncoder.kCommandNack] = ReliableSender.kControlFrameLength;
+        lengths[PacketEncoder.kCommandSensor] = 6;
+        lengths[PacketEncoder.kCommandState] = 7;
+        return lengths;
+    }
+
+    public UartRxPipeline() {
+        this(kDefaultCapacity);
+    }
+
+    // capacity: power of two
+    public UartRxPipeline(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    // region Lifecycle
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_MORE_FAVORABLE);       // acks are on the latency path of the reliable mode
+        mThread.start();
+        start(new Handler(mThread.getLooper()));
+    }
+
+    // Parses on the thread of handler instead of the pipeline thread (used by the tests)
+    synchronized void start(Handler handler) {
+        mHandler = handler;
+    }
+
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.quitSafely();
+            mThread = null;
+        }
+        mHandler = null;
+        mIsDrainScheduled.set(false);
+    }
+
+    // Discards the data not parsed yet (i.e. a partial frame from a previous connection)
+    public void reset() {
+        mIsResetPending = true;
+        scheduleDrain();
+    }
+    // endregion
+
+    // region Listeners
+    public synchronized void addListener(Listener listener) {
+        final Listener[] listeners = new Listener[mListeners.length + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+        listeners[mListeners.length] = listener;
+        mListeners = listeners;
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        for (int i = 0; i < mListeners.length; i++) {
+            if (mListeners[i] == listener) {
+                final Listener[] listeners = new Listener[mListeners.length - 1];
+                System.arraycopy(mListeners, 0, listeners, 0, i);
+                System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+                mListeners = listeners;
+                return;
+            }
+        }
+    }
+    // endregion
+
+    // region Producer
+    /**
+     * Queues the value of a notification. Called from a single thread (the binder thread of the gatt callbacks). The data is copied
+     *
+     * @return false if the buffer is full and the data has been discarded
+     */
+    public boolean onNotification(byte[] data, int offset, int length) {
+        mNotificationsCount++;
+        final long writePosition = mWritePosition;
+        final int fill = (int) (writePosition - mReadPosition);
+        if (length > mBuffer.length - fill) {
+            mOverflowsCount++;
+            scheduleDrain();
+            return false;
+        }
+
+        final int index = (int) writePosition & mMask;
+        final int firstLength = Math.min(length, mBuffer.length - index);
+        System.arraycopy(data, offset, mBuffer, index, firstLength);
+        System.arraycopy(data, offset + firstLength, mBuffer, 0, length - firstLength);
+        mWritePosition = writePosition + length;            // publishes the data
+
+        if (fill + length > mMaxFill) {
+            mMaxFill = fill + length;
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    // Only one drain is queued at a time, so a burst of notifications doesn't fill the message queue
+    private void scheduleDrain() {
+        final Handler handler = mHandler;
+        if (handler != null && mIsDrainScheduled.compareAndSet(false, true)) {
+            handler.post(mDrainRunnable);
+        }
+    }
+    // endregion
+
+    // region Consumer
+    private void drain() {
+        long writePosition;
+        do {
+            mIsDrainScheduled.set(false);
+            writePosition = mWritePosition;
+            if (mIsResetPending) {
+                mIsResetPending = false;
+                mReadPosition = writePosition;
+            }
+            parse(writePosition);
+            // Data published after the flag was cleared may have found it still set and not scheduled another drain
+        } while (mWritePosition != writePosition && mIsDrainScheduled.compareAndSet(false, true));
+    }
+
+    // Parses the data up to writePosition. An incomplete frame at the end is kept for the next call
+    private void parse(long writePosition) {
+        long readPosition = mReadPosition;
+        while (readPosition < writePosition) {
+            final int available = (int) (writePosition - readPosition);
+            if (mBuffer[(int) readPosition & mMask] != PacketEncoder.kPacketStart) {
+                mDiscardedBytesCount++;
+                readPosition++;
+                continue;
+            }
+            if (available < 2) {
+                break;          // wait for the command
+            }
+
+            final int command = mBuffer[(int) (readPosition + 1) & mMask];
+            final int frameLength = command >= 0 && command < kFrameLengths.length ? kFrameLengths[command] : -1;
+            if (frameLength < 0) {
+                mDiscardedBytesCount++;
+                readPosition++;
+                continue;
+            }
+            if (available < frameLength) {
+                break;          // the rest of the frame is in the next notifications
+            }
+
+            // Frames can wrap around the end of the buffer. Copy them so listeners get contiguous data
+            final byte[] frame = mEvent.data;
+            for (int i = 0; i < frameLength; i++) {
+                frame[i] = mBuffer[(int) (readPosition + i) & mMask];
+            }
+            if (decode(frame, frameLength)) {
+                readPosition += frameLength;
+                mReadPosition = readPosition;           // frees the space before dispatching
+                mFramesCount++;
+                dispatch();
+            } else {
+                // Not a frame: the '!' may be data. Resynchronize at the next one
+                mInvalidFramesCount++;
+                mDiscardedBytesCount++;
+                readPosition++;
+            }
+        }
+        mReadPosition = readPosition;
+    }
+
+    // Fills mEvent from the frame. Returns false if the checksum is not valid
+    private boolean decode(byte[] frame, int length) {
+        final UartEvent event = mEvent;
+        final byte command = frame[1];
+        if (command == PacketEncoder.kCommandAck || command == PacketEncoder.kCommandNack) {
+            final int crc = ((frame[length - 2] & 0xFF) << 8) | (frame[length - 1] & 0xFF);
+            if (crc != Crc16.compute(frame, 0, length - 2)) {
+                return false;
+            }
+        } else if (PacketEncoder.checksum(frame, 0, length - 1) != frame[length - 1]) {
+            return false;
+        }
+
+        event.clear();
+        event.length = length;
+        event.time = SystemClock.uptimeMillis();
+        switch (command) {
+            case PacketEncoder.kCommandAck:
+            case PacketEncoder.kCommandNack:
+                event.type = command == PacketEncoder.kCommandAck ? UartEvent.TYPE_ACK : UartEvent.TYPE_NACK;
+                event.sequence = frame[2] & 0xFF;
+                event.next = frame[3] & 0xFF;
+                break;
+            case PacketEncoder.kCommandSensor:
+                event.type = UartEvent.TYPE_SENSOR;
+                event.sensor = frame[2] & 0xFF;
+                event.value = (short) (((frame[3] & 0xFF) << 8) | (frame[4] & 0xFF));
+                break;
+            case PacketEncoder.kCommandState:
+                event.type = UartEvent.TYPE_STATE;
+                event.mode = frame[2];
+                event.color = ((frame[3] & 0xFF) << 16) | ((frame[4] & 0xFF) << 8) | (frame[5] & 0xFF);
+                break;
+        }
+        return true;
+    }
+
+    private void dispatch() {
+        final Listener[] listeners = mListeners;
+        for (Listener listener : listeners) {
+            try {
+                listener.onUartEvent(mEvent);
+            } catch (RuntimeException e) {
+                // A failing listener should not stop the pipeline for the others
+                Log.w(TAG, "Listener failed: " + e);
+            }
+        }
+    }
+    // endregion
+
+    // region Stats
+    public long getNotificationsCount() {
+        return mNotificationsCount;
+    }
+
+    public long getOverflowsCount() {
+        return mOverflowsCount;
+    }
+
+    // Max bytes waiting to be parsed
+    public int getMaxFill() {
+        return mMaxFill;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    public long getFramesCount() {
+        return mFramesCount;
+    }
+
+    public long getInvalidFramesCount() {
+        return mInvalidFramesCount;
+    }
+
+    public long getDiscardedBytesCount() {
+        return mDiscardedBytesCount;
+    }
+    // endregion
+}
@@ -0,0 +1,22 @@
+package neopixelvoicecommand.effects;
+
+// Lights one of every spacing pixels and moves them one position per step. Same as theaterChase in the neopixel sketches
+public class ChaseEffect implements Effect {
+    private final int mColor;
+    private final int mSpacing;
+    private final long mStepDuration;
+
+    public ChaseEffect(int color, int spacing, long stepDuration) {
+        mColor = color;
+        mSpacing = Math.max(1, spacing);
+        mStepDuration = Math.max(1, stepDuration);
+    }
+
+    @Override
+    public void render(int[] pixels, int count, long time) {
+        final int step = (int) ((time / mStepDuration) % mSpacing);
+        for (int i = 0; i < count; i++) {
+            pixels[i] = (i + mSpacing - step) % mSpacing == 0 ? mColor : PixelColors.kBlack;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package neopixelvoicecommand.effects;
+
+// All the pixels with the same color
+public class ColorEffect implements Effect {
+    private final int mColor;
+
+    public ColorEffect(int color) {
+        mColor = color;
+    }
+
+    @Override
+    public void render(int[] pixels, int count, long time) {
+        for (int i = 0; i < count; i++) {
+            pixels[i] = mColor;
+        }
+    }
+}
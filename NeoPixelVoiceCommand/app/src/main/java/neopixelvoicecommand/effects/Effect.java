@@ -0,0 +1,12 @@
+package neopixelvoicecommand.effects;
+
+// Generator of strip images. Effects can be composed (i.e. FadeEffect blends the output of two effects)
+public interface Effect {
+    /**
+     * Renders the frame for the given time into pixels [0, count). Implementations should not allocate memory in this call (except when count changes)
+     *
+     * @param pixels one 0xRRGGBB int per pixel
+     * @param time   milliseconds since the effect started
+     */
+    void render(int[] pixels, int count, long time);
+}
@@ -0,0 +1,54 @@
+package neopixelvoicecommand.effects;
+
+// Crossfade between the output of two effects. Use a null effect to fade from or to black
+public class FadeEffect implements Effect {
+    private final Effect mFrom;
+    private final Effect mTo;
+    private final long mDuration;
+    private int[] mBuffer = new int[0];         // output of mTo. Only reallocated if the strip length changes
+
+    public FadeEffect(Effect from, Effect to, long duration) {
+        mFrom = from;
+        mTo = to;
+        mDuration = Math.max(1, duration);
+    }
+
+    @Override
+    public void render(int[] pixels, int count, long time) {
+        final int amount = (int) (Math.min(time, mDuration) * 255 / mDuration);
+
+        // Only render what is visible
+        if (amount == 255 || mFrom == null) {
+            renderOrClear(mTo, pixels, count, time);
+            if (amount < 255) {
+                for (int i = 0; i < count; i++) {
+                    pixels[i] = PixelColors.scale(pixels[i], amount);
+                }
+            }
+            return;
+        }
+
+        mFrom.render(pixels, count, time);
+        if (amount == 0) {
+            return;
+        }
+
+        if (mBuffer.length < count) {
+            mBuffer = new int[count];
+        }
+        renderOrClear(mTo, mBuffer, count, time);
+        for (int i = 0; i < count; i++) {
+            pixels[i] = PixelColors.blend(pixels[i], mBuffer[i], amount);
+        }
+    }
+
+    private static void renderOrClear(Effect effect, int[] pixels, int count, long time) {
+        if (effect != null) {
+            effect.render(pixels, count, time);
+        } else {
+            for (int i = 0; i < count; i++) {
+                pixels[i] = PixelColors.kBlack;
+            }
+        }
+    }
+}
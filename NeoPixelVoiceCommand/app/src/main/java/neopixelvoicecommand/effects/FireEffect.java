@@ -0,0 +1,83 @@
+package neopixelvoicecommand.effects;
+
+import java.util.Random;
+
+// Fire simulation (Fire2012 by Mark Kriegsman): each pixel has a heat that cools down and drifts up the strip, and random sparks ignite near the bottom
+public class FireEffect implements Effect {
+    private static final int kDefaultCooling = 55;
+    private static final int kDefaultSparking = 120;
+    private static final long kStepDuration = 16;           // the simulation advances at ~60 steps per second, independently of the frame rate
+
+    private final int mCooling;
+    private final int mSparking;
+    private final Random mRandom;
+    private int[] mHeat = new int[0];
+    private long mTime;
+
+    public FireEffect() {
+        this(kDefaultCooling, kDefaultSparking, new Random());
+    }
+
+    // cooling: 20-100 (higher is shorter flames). sparking: 50-200 (chance out of 255 of a new spark each step)
+    public FireEffect(int cooling, int sparking, Random random) {
+        mCooling = cooling;
+        mSparking = sparking;
+        mRandom = random;
+    }
+
+    @Override
+    public void render(int[] pixels, int count, long time) {
+        if (count == 0) {
+            return;
+        }
+        if (mHeat.length != count) {
+            mHeat = new int[count];
+            mTime = time;
+        }
+
+        // Catch up with the time, but don't simulate more than a strip length of steps after a pause
+        final long steps = Math.min(Math.max(0, (time - mTime) / kStepDuration), count + 1);
+        mTime = time;
+        for (long i = 0; i < steps; i++) {
+            step(count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            pixels[i] = heatColor(mHeat[i]);
+        }
+    }
+
+    private void step(int count) {
+        final int[] heat = mHeat;
+
+        // Cool down every cell a little
+        final int maxCooling = (mCooling * 10) / count + 2;
+        for (int i = 0; i < count; i++) {
+            heat[i] = Math.max(0, heat[i] - mRandom.nextInt(maxCooling + 1));
+        }
+
+        // Heat drifts up and diffuses
+        for (int i = count - 1; i >= 2; i--) {
+            heat[i] = (heat[i - 1] + 2 * heat[i - 2]) / 3;
+        }
+
+        // Ignite new sparks near the bottom
+        if (count > 0 && mRandom.nextInt(255) < mSparking) {
+            final int y = mRandom.nextInt(Math.min(7, count));
+            heat[y] = Math.min(255, heat[y] + 160 + mRandom.nextInt(96));
+        }
+    }
+
+    // Black - red - yellow - white
+    private static int heatColor(int heat) {
+        final int t = (heat * 191) / 255;
+        final int ramp = (t & 0x3F) << 2;
+        if (t > 0x80) {
+            return PixelColors.rgb(255, 255, ramp);
+        } else if (t > 0x40) {
+            return PixelColors.rgb(255, ramp, 0);
+        } else {
+            return PixelColors.rgb(ramp, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package neopixelvoicecommand.effects;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Renders an effect at a fixed frame rate into a reused frame buffer and delivers the frames to a sink.
+// If the sink is not ready (i.e. the ble link is behind) the frame is dropped instead of queued, so the strip shows the current frame as soon as the link recovers.
+// If the scheduler itself runs late, the frames that were missed are skipped instead of rendered in a burst.
+// All the methods should be called from the thread of the looper
+public class FrameScheduler {
+    // Log
+    private final static String TAG = FrameScheduler.class.getSimpleName();
+
+    public interface FrameSink {
+        // Return false to drop the frame
+        boolean isReady();
+
+        // The frame is only valid during the call
+        void onFrame(int[] pixels, int count);
+    }
+
+    // Data
+    private final Handler mHandler;
+    private final FrameSink mSink;
+    private final int[] mPixels;
+    private Effect mEffect;
+    private int mFps;
+    private long mStartTime;                // SystemClock.uptimeMillis()
+    private long mFrameIndex;
+    private boolean mIsRunning;
+
+    // Stats
+    private long mFramesRendered;
+    private long mFramesDropped;            // sink not ready
+    private long mFramesSkipped;            // scheduler late
+    private long mRenderTimeNanos;
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            onFrameTime();
+        }
+    };
+
+    public FrameScheduler(Looper looper, int pixelsCount, FrameSink sink) {
+        mHandler = new Handler(looper);
+        mPixels = new int[pixelsCount];
+        mSink = sink;
+    }
+
+    public void start(Effect effect, int fps) {
+        stop();
+
+        mEffect = effect;
+        mFps = Math.max(1, fps);
+        mStartTime = SystemClock.uptimeMillis();
+        mFrameIndex = 0;
+        mFramesRendered = 0;
+        mFramesDropped = 0;
+        mFramesSkipped = 0;
+        mRenderTimeNanos = 0;
+        mIsRunning = true;
+        mHandler.post(mFrameRunnable);
+    }
+
+    public void stop() {
+        if (mIsRunning) {
+            mIsRunning = false;
+            mHandler.removeCallbacks(mFrameRunnable);
+            Log.d(TAG, "stop: rendered " + mFramesRendered + " dropped " + mFramesDropped + " skipped " + mFramesSkipped + " average render time " + getAverageRenderTimeMicros() + "us");
+        }
+    }
+
+    public boolean isRunning() {
+        return mIsRunning;
+    }
+
+    // region Stats
+    public long getFramesRendered() {
+        return mFramesRendered;
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    public long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    public long getAverageRenderTimeMicros() {
+        return mFramesRendered > 0 ? mRenderTimeNanos / mFramesRendered / 1000 : 0;
+    }
+    // endregion
+
+    private void onFrameTime() {
+        if (!mIsRunning) {
+            return;
+        }
+
+        // Skip the frames that should have been rendered already
+        final long now = SystemClock.uptimeMillis();
+        final long elapsed = now - mStartTime;
+        final long expectedFrameIndex = elapsed * mFps / 1000;
+        if (expectedFrameIndex > mFrameIndex) {
+            mFramesSkipped += expectedFrameIndex - mFrameIndex;
+            mFrameIndex = expectedFrameIndex;
+        }
+
+        if (mSink.isReady()) {
+            final long renderStartTime = System.nanoTime();
+            mEffect.render(mPixels, mPixels.length, elapsed);
+            mRenderTimeNanos += System.nanoTime() - renderStartTime;
+            mFramesRendered++;
+            mSink.onFrame(mPixels, mPixels.length);
+        } else {
+            mFramesDropped++;
+        }
+
+        // Schedule the next frame from the start time, so the rate doesn't drift
+        mFrameIndex++;
+        mHandler.postAtTime(mFrameRunnable, mStartTime + mFrameIndex * 1000 / mFps);
+    }
+}
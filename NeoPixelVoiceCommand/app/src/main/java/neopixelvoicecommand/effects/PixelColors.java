@@ -0,0 +1,37 @@
+package neopixelvoicecommand.effects;
+
+// Color helpers for 0xRRGGBB ints
+public class PixelColors {
+    public static final int kBlack = 0;
+
+    public static int rgb(int red, int green, int blue) {
+        return ((red & 0xFF) << 16) | ((green & 0xFF) << 8) | (blue & 0xFF);
+    }
+
+    // Color wheel (0-255) used by the neopixel sketches: r - g - b - back to r
+    public static int wheel(int position) {
+        position = 255 - (position & 0xFF);
+        if (position < 85) {
+            return rgb(255 - position * 3, 0, position * 3);
+        } else if (position < 170) {
+            position -= 85;
+            return rgb(0, position * 3, 255 - position * 3);
+        } else {
+            position -= 170;
+            return rgb(position * 3, 255 - position * 3, 0);
+        }
+    }
+
+    // amount: 0 (black) - 255 (same color)
+    public static int scale(int color, int amount) {
+        return rgb((((color >> 16) & 0xFF) * amount) >> 8, (((color >> 8) & 0xFF) * amount) >> 8, ((color & 0xFF) * amount) >> 8);
+    }
+
+    // amount: 0 (from) - 255 (to)
+    public static int blend(int from, int to, int amount) {
+        final int inverse = 255 - amount;
+        return rgb((((from >> 16) & 0xFF) * inverse + ((to >> 16) & 0xFF) * amount) / 255,
+                (((from >> 8) & 0xFF) * inverse + ((to >> 8) & 0xFF) * amount) / 255,
+                ((from & 0xFF) * inverse + (to & 0xFF) * amount) / 255);
+    }
+}
@@ -0,0 +1,19 @@
+package neopixelvoicecommand.effects;
+
+// Color wheel spread along the strip, rotating once per cycle. Same as rainbowCycle in the neopixel sketches
+public class RainbowEffect implements Effect {
+    private final long mCycleDuration;
+
+    // cycleDuration: milliseconds for a complete rotation
+    public RainbowEffect(long cycleDuration) {
+        mCycleDuration = Math.max(1, cycleDuration);
+    }
+
+    @Override
+    public void render(int[] pixels, int count, long time) {
+        final int offset = (int) ((time % mCycleDuration) * 256 / mCycleDuration);
+        for (int i = 0; i < count; i++) {
+            pixels[i] = PixelColors.wheel(i * 256 / count + offset);
+        }
+    }
+}
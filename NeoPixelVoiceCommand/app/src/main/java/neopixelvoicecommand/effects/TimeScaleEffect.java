@@ -0,0 +1,17 @@
+package neopixelvoicecommand.effects;
+
+// Plays an effect faster or slower. i.e. a scale of 0.5 plays it at half speed
+public class TimeScaleEffect implements Effect {
+    private final Effect mEffect;
+    private final float mScale;
+
+    public TimeScaleEffect(Effect effect, float scale) {
+        mEffect = effect;
+        mScale = scale;
+    }
+
+    @Override
+    public void render(int[] pixels, int count, long time) {
+        mEffect.render(pixels, count, (long) (time * mScale));
+    }
+}
@@ -0,0 +1,26 @@
+package neopixelvoicecommand.effects;
+
+// Fills the strip with a color one pixel after another, over the background. Same as colorWipe in the neopixel sketches
+public class WipeEffect implements Effect {
+    private final int mColor;
+    private final int mBackgroundColor;
+    private final long mDuration;
+    private final boolean mIsRepeating;
+
+    // duration: milliseconds to fill the whole strip. If repeating, the wipe starts again from the background color
+    public WipeEffect(int color, int backgroundColor, long duration, boolean isRepeating) {
+        mColor = color;
+        mBackgroundColor = backgroundColor;
+        mDuration = Math.max(1, duration);
+        mIsRepeating = isRepeating;
+    }
+
+    @Override
+    public void render(int[] pixels, int count, long time) {
+        final long elapsed = mIsRepeating ? time % mDuration : Math.min(time, mDuration);
+        final int filled = time >= mDuration && !mIsRepeating ? count : (int) (elapsed * count / mDuration);
+        for (int i = 0; i < count; i++) {
+            pixels[i] = i < filled ? mColor : mBackgroundColor;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package neopixelvoicecommand.effects;
+
+// Renders an effect in the pixels [start, start + length) of the strip. The rest of the strip keeps the background image
+public class ZoneEffect implements Effect {
+    private final Effect mEffect;
+    private final int mStart;
+    private final int mLength;
+    private final int[] mBackground;
+    private final int[] mBuffer;
+
+    // background: strip image outside the zone. It is copied
+    public ZoneEffect(Effect effect, int start, int length, int[] background) {
+        mEffect = effect;
+        mStart = start;
+        mLength = length;
+        mBackground = background.clone();
+        mBuffer = new int[length];
+    }
+
+    @Override
+    public void render(int[] pixels, int count, long time) {
+        System.arraycopy(mBackground, 0, pixels, 0, Math.min(count, mBackground.length));
+
+        final int length = Math.max(0, Math.min(mLength, count - mStart));
+        mEffect.render(mBuffer, length, time);
+        System.arraycopy(mBuffer, 0, pixels, mStart, length);
+    }
+}
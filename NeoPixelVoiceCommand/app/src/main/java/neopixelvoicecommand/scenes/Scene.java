@@ -0,0 +1,131 @@
+package neopixelvoicecommand.scenes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import neopixelvoicecommand.ble.ChunkList;
+import neopixelvoicecommand.ble.HexUtils;
+import neopixelvoicecommand.ble.PacketEncoder;
+import neopixelvoicecommand.ble.PixelFrameEncoder;
+
+// Named preset of several commands (i.e. "movie": dim amber strip and a darker zone). The commands are encoded into uart packets, with their checksum, when the scene is built.
+// compile() splits them into the chunks for a write payload, so activating the scene doesn't need to encode anything
+public class Scene {
+    private static final char kPacketSeparator = ',';
+
+    // Data
+    private final String mName;
+    private final byte[][] mPackets;
+
+    private Scene(String name, byte[][] packets) {
+        mName = name;
+        mPackets = packets;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getPacketsCount() {
+        return mPackets.length;
+    }
+
+    // Chunks ready to be written for the given write payload
+    public ChunkList compile(int maxChunkLength) {
+        final ChunkList.Builder builder = new ChunkList.Builder(maxChunkLength);
+        for (byte[] packet : mPackets) {
+            builder.addPacket(packet, 0, packet.length);
+        }
+        return builder.build();
+    }
+
+    // region Serialization
+    // Packets in hex separated by commas
+    String serialize() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < mPackets.length; i++) {
+            if (i > 0) {
+                builder.append(kPacketSeparator);
+            }
+            builder.append(HexUtils.bytesToHex(mPackets[i]));
+        }
+        return builder.toString();
+    }
+
+    // Returns null if the text is not a valid serialized scene
+    static Scene deserialize(String name, String text) {
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+
+        final List<byte[]> packets = new ArrayList<byte[]>();
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf(kPacketSeparator, start);
+            if (end < 0) {
+                end = text.length();
+            }
+            final byte[] packet = HexUtils.hexToBytes(text.substring(start, end));
+            if (packet == null || packet.length == 0) {
+                return null;
+            }
+            packets.add(packet);
+            start = end + 1;
+        }
+        return new Scene(name, packets.toArray(new byte[packets.size()][]));
+    }
+    // endregion
+
+    public static class Builder {
+        private final String mName;
+        private final List<byte[]> mPackets = new ArrayList<byte[]>();
+        private final PacketEncoder mPacketEncoder = new PacketEncoder();
+        private PixelFrameEncoder mPixelFrameEncoder;
+        private final PixelFrameEncoder.PacketSink mPacketSink = new PixelFrameEncoder.PacketSink() {
+            @Override
+            public void onPacket(byte[] buffer, int offset, int length) {
+                addPacket(buffer, offset, length);
+            }
+        };
+
+        public Builder(String name) {
+            mName = name;
+        }
+
+        public Builder color(int color) {
+            return addPacket(mPacketEncoder.color(color));
+        }
+
+        public Builder rainbow() {
+            return addPacket(mPacketEncoder.rainbow());
+        }
+
+        public Builder fire() {
+            return addPacket(mPacketEncoder.fire());
+        }
+
+        // Strip image pixels [start, start + count) as pixel packets
+        public Builder pixels(int[] pixels, int start, int count) {
+            if (mPixelFrameEncoder == null) {
+                mPixelFrameEncoder = new PixelFrameEncoder();
+            }
+            mPixelFrameEncoder.encode(pixels, start, count, mPacketSink);
+            return this;
+        }
+
+        private Builder addPacket(PacketEncoder packet) {
+            addPacket(packet.getBuffer(), 0, packet.getLength());
+            return this;
+        }
+
+        private void addPacket(byte[] buffer, int offset, int length) {
+            final byte[] packet = new byte[length];
+            System.arraycopy(buffer, offset, packet, 0, length);
+            mPackets.add(packet);
+        }
+
+        public Scene build() {
+            return new Scene(mName, mPackets.toArray(new byte[mPackets.size()][]));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package neopixelvoicecommand.scenes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import neopixelvoicecommand.ble.ChunkList;
+
+// Scenes defined by the user, persisted across restarts, and an LRU cache of their chunks for the current write payload.
+// Activating a cached scene is a lookup: its packets were encoded when it was defined and its chunks when it was first used. It should be used from a single thread
+public class SceneStore {
+    private static final String kPreferencesName = "scenes";
+    private static final int kDefaultCapacity = 8;
+
+    // Data
+    private final SharedPreferences mPreferences;
+    private final HashMap<String, Scene> mScenes = new HashMap<String, Scene>();
+    private final LinkedHashMap<String, ChunkList> mCompiledScenes;
+    private final int mCapacity;
+
+    // Stats
+    private long mHitsCount;
+    private long mMissesCount;
+
+    public SceneStore(Context context) {
+        this(context, kDefaultCapacity);
+    }
+
+    // capacity: maximum number of scenes with their chunks in memory
+    public SceneStore(Context context, final int capacity) {
+        mPreferences = context.getSharedPreferences(kPreferencesName, Context.MODE_PRIVATE);
+        mCapacity = capacity;
+        mCompiledScenes = new LinkedHashMap<String, ChunkList>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ChunkList> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        // Load
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            final Object value = entry.getValue();
+            final Scene scene = value instanceof String ? Scene.deserialize(entry.getKey(), (String) value) : null;
+            if (scene != null) {
+                mScenes.put(entry.getKey(), scene);
+            }
+        }
+    }
+
+    // region Scenes
+    public boolean isEmpty() {
+        return mScenes.isEmpty();
+    }
+
+    public List<String> getNames() {
+        return new ArrayList<String>(mScenes.keySet());
+    }
+
+    public Scene get(String name) {
+        return mScenes.get(name);
+    }
+
+    // Defines or replaces a scene
+    public void put(Scene scene) {
+        mScenes.put(scene.getName(), scene);
+        mCompiledScenes.remove(scene.getName());
+        mPreferences.edit().putString(scene.getName(), scene.serialize()).apply();
+    }
+
+    public void remove(String name) {
+        mScenes.remove(name);
+        mCompiledScenes.remove(name);
+        mPreferences.edit().remove(name).apply();
+    }
+    // endregion
+
+    // region Chunks
+    /**
+     * @param maxChunkLength write payload of the connection
+     * @return chunks of the scene or null if there is no scene with that name
+     */
+    public ChunkList getChunks(String name, int maxChunkLength) {
+        final ChunkList cachedChunks = mCompiledScenes.get(name);
+        if (cachedChunks != null && cachedChunks.getMaxChunkLength() == maxChunkLength) {
+            mHitsCount++;
+            return cachedChunks;
+        }
+
+        mMissesCount++;
+        final Scene scene = mScenes.get(name);
+        if (scene == null) {
+            return null;
+        }
+        final ChunkList chunks = scene.compile(maxChunkLength);
+        mCompiledScenes.put(name, chunks);
+        return chunks;
+    }
+
+    // Compiles the scenes for a write payload (i.e. when the connection is ready), so the first activation is also a hit.
+    // At most capacity scenes are compiled, so they don't evict each other: the free space is filled with scenes not cached yet, and the cached ones are
+    // recompiled from the least to the most recently used, so they keep their order
+    public void precompile(int maxChunkLength) {
+        final List<String> cachedNames = new ArrayList<String>(mCompiledScenes.keySet());
+        for (String name : mScenes.keySet()) {
+            if (mCompiledScenes.size() >= mCapacity) {
+                break;
+            }
+            if (!mCompiledScenes.containsKey(name)) {
+                mCompiledScenes.put(name, mScenes.get(name).compile(maxChunkLength));
+            }
+        }
+
+        for (String name : cachedNames) {
+            final ChunkList chunks = mCompiledScenes.get(name);
+            if (chunks.getMaxChunkLength() != maxChunkLength) {
+                mCompiledScenes.put(name, mScenes.get(name).compile(maxChunkLength));
+            }
+        }
+    }
+
+    public long getHitsCount() {
+        return mHitsCount;
+    }
+
+    public long getMissesCount() {
+        return mMissesCount;
+    }
+    // endregion
+}
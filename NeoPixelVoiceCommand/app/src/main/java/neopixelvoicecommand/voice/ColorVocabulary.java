@@ -0,0 +1,318 @@
+package neopixelvoicecommand.voice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Color names that can be recognized in an utterance: the CSS/X11 color names plus names defined by the user.
+// Names are indexed by their normalized form (lowercase letters and digits only), so "light sea green", "Light-Sea-Green" and "lightseagreen" are the same name.
+// Lookups return kNoColor instead of throwing when the name is unknown
+public class ColorVocabulary {
+    public static final int kNoColor = -1;
+    private static final int kMaxWordsInName = 4;
+
+    // name, rrggbb
+    private static final String[] kCssColors = {
+            "aliceblue", "F0F8FF",
+            "antiquewhite", "FAEBD7",
+            "aqua", "00FFFF",
+            "aquamarine", "7FFFD4",
+            "azure", "F0FFFF",
+            "beige", "F5F5DC",
+            "bisque", "FFE4C4",
+            "black", "000000",
+            "blanchedalmond", "FFEBCD",
+            "blue", "0000FF",
+            "blueviolet", "8A2BE2",
+            "brown", "A52A2A",
+            "burlywood", "DEB887",
+            "cadetblue", "5F9EA0",
+            "chartreuse", "7FFF00",
+            "chocolate", "D2691E",
+            "coral", "FF7F50",
+            "cornflowerblue", "6495ED",
+            "cornsilk", "FFF8DC",
+            "crimson", "DC143C",
+            "cyan", "00FFFF",
+            "darkblue", "00008B",
+            "darkcyan", "008B8B",
+            "darkgoldenrod", "B8860B",
+            "darkgray", "A9A9A9",
+            "darkgreen", "006400",
+            "darkgrey", "A9A9A9",
+            "darkkhaki", "BDB76B",
+            "darkmagenta", "8B008B",
+            "darkolivegreen", "556B2F",
+            "darkorange", "FF8C00",
+            "darkorchid", "9932CC",
+            "darkred", "8B0000",
+            "darksalmon", "E9967A",
+            "darkseagreen", "8FBC8F",
+            "darkslateblue", "483D8B",
+            "darkslategray", "2F4F4F",
+            "darkslategrey", "2F4F4F",
+            "darkturquoise", "00CED1",
+            "darkviolet", "9400D3",
+            "deeppink", "FF1493",
+            "deepskyblue", "00BFFF",
+            "dimgray", "696969",
+            "dimgrey", "696969",
+            "dodgerblue", "1E90FF",
+            "firebrick", "B22222",
+            "floralwhite", "FFFAF0",
+            "forestgreen", "228B22",
+            "fuchsia", "FF00FF",
+            "gainsboro", "DCDCDC",
+            "ghostwhite", "F8F8FF",
+            "gold", "FFD700",
+            "goldenrod", "DAA520",
+            "gray", "808080",
+            "green", "008000",
+            "greenyellow", "ADFF2F",
+            "grey", "808080",
+            "honeydew", "F0FFF0",
+            "hotpink", "FF69B4",
+            "indianred", "CD5C5C",
+            "indigo", "4B0082",
+            "ivory", "FFFFF0",
+            "khaki", "F0E68C",
+            "lavender", "E6E6FA",
+            "lavenderblush", "FFF0F5",
+            "lawngreen", "7CFC00",
+            "lemonchiffon", "FFFACD",
+            "lightblue", "ADD8E6",
+            "lightcoral", "F08080",
+            "lightcyan", "E0FFFF",
+            "lightgoldenrodyellow", "FAFAD2",
+            "lightgray", "D3D3D3",
+            "lightgreen", "90EE90",
+            "lightgrey", "D3D3D3",
+            "lightpink", "FFB6C1",
+            "lightsalmon", "FFA07A",
+            "lightseagreen", "20B2AA",
+            "lightskyblue", "87CEFA",
+            "lightslategray", "778899",
+            "lightslategrey", "778899",
+            "lightsteelblue", "B0C4DE",
+            "lightyellow", "FFFFE0",
+            "lime", "00FF00",
+            "limegreen", "32CD32",
+            "linen", "FAF0E6",
+            "magenta", "FF00FF",
+            "maroon", "800000",
+            "mediumaquamarine", "66CDAA",
+            "mediumblue", "0000CD",
+            "mediumorchid", "BA55D3",
+            "mediumpurple", "9370DB",
+            "mediumseagreen", "3CB371",
+            "mediumslateblue", "7B68EE",
+            "mediumspringgreen", "00FA9A",
+            "mediumturquoise", "48D1CC",
+            "mediumvioletred", "C71585",
+            "midnightblue", "191970",
+            "mintcream", "F5FFFA",
+            "mistyrose", "FFE4E1",
+            "moccasin", "FFE4B5",
+            "navajowhite", "FFDEAD",
+            "navy", "000080",
+            "oldlace", "FDF5E6",
+            "olive", "808000",
+            "olivedrab", "6B8E23",
+            "orange", "FFA500",
+            "orangered", "FF4500",
+            "orchid", "DA70D6",
+            "palegoldenrod", "EEE8AA",
+            "palegreen", "98FB98",
+            "paleturquoise", "AFEEEE",
+            "palevioletred", "DB7093",
+            "papayawhip", "FFEFD5",
+            "peachpuff", "FFDAB9",
+            "peru", "CD853F",
+            "pink", "FFC0CB",
+            "plum", "DDA0DD",
+            "powderblue", "B0E0E6",
+            "purple", "800080",
+            "rebeccapurple", "663399",
+            "red", "FF0000",
+            "rosybrown", "BC8F8F",
+            "royalblue", "4169E1",
+            "saddlebrown", "8B4513",
+            "salmon", "FA8072",
+            "sandybrown", "F4A460",
+            "seagreen", "2E8B57",
+            "seashell", "FFF5EE",
+            "sienna", "A0522D",
+            "silver", "C0C0C0",
+            "skyblue", "87CEEB",
+            "slateblue", "6A5ACD",
+            "slategray", "708090",
+            "slategrey", "708090",
+            "snow", "FFFAFA",
+            "springgreen", "00FF7F",
+            "steelblue", "4682B4",
+            "tan", "D2B48C",
+            "teal", "008080",
+            "thistle", "D8BFD8",
+            "tomato", "FF6347",
+            "turquoise", "40E0D0",
+            "violet", "EE82EE",
+            "wheat", "F5DEB3",
+            "white", "FFFFFF",
+            "whitesmoke", "F5F5F5",
+            "yellow", "FFFF00",
+            "yellowgreen", "9ACD32"
+    };
+
+    // Data
+    private static final HashMap<String, Integer> kCssIndex = createCssIndex();
+    private final ConcurrentHashMap<String, Integer> mUserColors = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger mVersion = new AtomicInteger();            // changes every time the user colors change
+
+    private static HashMap<String, Integer> createCssIndex() {
+        final HashMap<String, Integer> index = new HashMap<String, Integer>(kCssColors.length * 2);
+        for (int i = 0; i < kCssColors.length; i += 2) {
+            index.put(kCssColors[i], Integer.parseInt(kCssColors[i + 1], 16));
+        }
+        return index;
+    }
+
+    // region User colors
+    // Defines a new color name (or overrides a css one). Returns false if the name is empty after normalization
+    public boolean addColor(String name, int color) {
+        final String key = normalize(name);
+        if (key.isEmpty()) {
+            return false;
+        }
+        mUserColors.put(key, color & 0xFFFFFF);
+        mVersion.incrementAndGet();
+        return true;
+    }
+
+    public void removeColor(String name) {
+        if (mUserColors.remove(normalize(name)) != null) {
+            mVersion.incrementAndGet();
+        }
+    }
+
+    // Use it to know if an index built from getNames() is outdated
+    public int getVersion() {
+        return mVersion.get();
+    }
+
+    // Normalized names of all the colors (css and user defined)
+    public List<String> getNames() {
+        final List<String> names = new ArrayList<String>(kCssIndex.size() + mUserColors.size());
+        names.addAll(kCssIndex.keySet());
+        for (String name : mUserColors.keySet()) {
+            if (!kCssIndex.containsKey(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+    // endregion
+
+    // region Lookup
+    /**
+     * Color of a name. The name can be written as several words, and as #rrggbb
+     *
+     * @return 0xRRGGBB or kNoColor if the name is unknown
+     */
+    public int lookup(String name) {
+        if (name == null) {
+            return kNoColor;
+        }
+
+        final String trimmed = name.trim();
+        if (trimmed.length() == 7 && trimmed.charAt(0) == '#') {
+            return parseHex(trimmed, 1);
+        }
+
+        return lookupNormalized(normalize(trimmed));
+    }
+
+    /**
+     * Finds a color name inside an utterance (i.e. "set the lights to light sea green"). Longer names are preferred ("light sea green" over "green")
+     *
+     * @return 0xRRGGBB or kNoColor if the utterance doesn't contain a known name
+     */
+    public int find(String utterance) {
+        if (utterance == null) {
+            return kNoColor;
+        }
+
+        final String[] words = splitWords(utterance);
+        for (int length = Math.min(kMaxWordsInName, words.length); length > 0; length--) {
+            for (int start = 0; start + length <= words.length; start++) {
+                final StringBuilder builder = new StringBuilder();
+                for (int i = start; i < start + length; i++) {
+                    builder.append(words[i]);
+                }
+                final int color = lookupNormalized(builder.toString());
+                if (color != kNoColor) {
+                    return color;
+                }
+            }
+        }
+        return kNoColor;
+    }
+
+    int lookupNormalized(String key) {
+        Integer color = mUserColors.get(key);
+        if (color == null) {
+            color = kCssIndex.get(key);
+        }
+        return color != null ? color : kNoColor;
+    }
+    // endregion
+
+    // region Normalization
+    // Lowercase letters and digits only
+    static String normalize(String name) {
+        // Most names are already normalized. Don't copy them
+        boolean isNormalized = true;
+        for (int i = 0; i < name.length() && isNormalized; i++) {
+            final char c = name.charAt(i);
+            isNormalized = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+        }
+        if (isNormalized) {
+            return name;
+        }
+
+        final StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                builder.append(Character.toLowerCase(c));
+            }
+        }
+        return builder.toString();
+    }
+
+    static String[] splitWords(String utterance) {
+        final List<String> words = new ArrayList<String>();
+        final String[] tokens = utterance.split("[\\s\\-_]+");
+        for (String token : tokens) {
+            final String word = normalize(token);
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static int parseHex(String text, int offset) {
+        int color = 0;
+        for (int i = offset; i < offset + 6; i++) {
+            final int digit = Character.digit(text.charAt(i), 16);
+            if (digit < 0) {
+                return kNoColor;
+            }
+            color = (color << 4) | digit;
+        }
+        return color;
+    }
+    // endregion
+}
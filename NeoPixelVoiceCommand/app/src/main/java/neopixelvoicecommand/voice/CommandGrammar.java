@@ -0,0 +1,571 @@
+package neopixelvoicecommand.voice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Parses utterances like "stairs blue at 40 percent", "fire slow", "fade to red over ten seconds" or "movie scene" into a VoiceCommand.
+// The words of the grammar (colors, effects, zones, scenes, numbers and keywords) are compiled into a trie, and the grammar into a transition table, so
+// parsing is a single pass over the characters of the utterance that doesn't allocate memory. The trie is recompiled when the vocabulary, the zones or the scenes change.
+// Words that are not in the grammar make the parse fail: use VoiceMatcher as fallback for mis-heard utterances. It should be used from a single thread
+public class CommandGrammar {
+    // Token types
+    private static final int TOKEN_NONE = 0;
+    private static final int TOKEN_FILLER = 1;          // words without meaning ("set", "the", "please")
+    private static final int TOKEN_COLOR = 2;
+    private static final int TOKEN_EFFECT = 3;
+    private static final int TOKEN_SPEED = 4;
+    private static final int TOKEN_NUMBER = 5;
+    private static final int TOKEN_PERCENT = 6;
+    private static final int TOKEN_UNIT = 7;            // value: milliseconds
+    private static final int TOKEN_ZONE = 8;
+    private static final int TOKEN_FADE = 9;
+    private static final int TOKEN_BRIGHTNESS = 10;
+    private static final int TOKEN_PREPOSITION = 11;    // "at", "to", "over"...
+    private static final int TOKEN_OFF = 12;
+    private static final int TOKEN_SCENE = 13;
+    private static final int kTokenTypesCount = 14;
+
+    // States
+    private static final int STATE_REJECT = -1;
+    private static final int STATE_START = 0;
+    private static final int STATE_COLOR = 1;
+    private static final int STATE_COLOR_PREPOSITION = 2;
+    private static final int STATE_COLOR_NUMBER = 3;
+    private static final int STATE_COLOR_PERCENT = 4;
+    private static final int STATE_EFFECT = 5;
+    private static final int STATE_SPEED = 6;
+    private static final int STATE_EFFECT_SPEED = 7;
+    private static final int STATE_FADE = 8;
+    private static final int STATE_FADE_COLOR = 9;
+    private static final int STATE_FADE_PREPOSITION = 10;
+    private static final int STATE_FADE_NUMBER = 11;
+    private static final int STATE_FADE_DURATION = 12;
+    private static final int STATE_BRIGHTNESS = 13;
+    private static final int STATE_BRIGHTNESS_PREPOSITION = 14;
+    private static final int STATE_BRIGHTNESS_NUMBER = 15;
+    private static final int STATE_BRIGHTNESS_PERCENT = 16;
+    private static final int STATE_OFF = 17;
+    private static final int STATE_NUMBER = 18;
+    private static final int STATE_SCENE = 19;
+    private static final int kStatesCount = 20;
+
+    // Grammar: next state for each state and token type, and the command accepted when the utterance ends in a state (TYPE_NONE if it is not final)
+    private static final int[][] kTransitions = new int[kStatesCount][kTokenTypesCount];
+    private static final int[] kAcceptedTypes = new int[kStatesCount];
+    private static final boolean[] kIsBrightnessState = new boolean[kStatesCount];      // the number read is a brightness
+    private static final boolean[] kIsFinalState = new boolean[kStatesCount];           // accepting state that no token can extend (a zone still can)
+
+    static {
+        for (int[] row : kTransitions) {
+            Arrays.fill(row, STATE_REJECT);
+        }
+
+        // [prep] color [[prep | brightness] number [percent]] | off
+        transition(STATE_START, TOKEN_PREPOSITION, STATE_START);
+        transition(STATE_START, TOKEN_COLOR, STATE_COLOR);
+        transition(STATE_START, TOKEN_OFF, STATE_OFF);
+        transition(STATE_COLOR, TOKEN_PREPOSITION, STATE_COLOR_PREPOSITION);
+        transition(STATE_COLOR, TOKEN_BRIGHTNESS, STATE_COLOR_PREPOSITION);     // "blue brightness 40"
+        transition(STATE_COLOR, TOKEN_NUMBER, STATE_COLOR_NUMBER);
+        transition(STATE_COLOR_PREPOSITION, TOKEN_NUMBER, STATE_COLOR_NUMBER);
+        transition(STATE_COLOR_NUMBER, TOKEN_PERCENT, STATE_COLOR_PERCENT);
+        accept(STATE_COLOR, VoiceCommand.TYPE_COLOR, false);
+        accept(STATE_COLOR_NUMBER, VoiceCommand.TYPE_COLOR, true);
+        accept(STATE_COLOR_PERCENT, VoiceCommand.TYPE_COLOR, true);
+        accept(STATE_OFF, VoiceCommand.TYPE_COLOR, false);
+
+        // effect [speed] | speed effect
+        transition(STATE_START, TOKEN_EFFECT, STATE_EFFECT);
+        transition(STATE_START, TOKEN_SPEED, STATE_SPEED);
+        transition(STATE_EFFECT, TOKEN_SPEED, STATE_EFFECT_SPEED);
+        transition(STATE_SPEED, TOKEN_EFFECT, STATE_EFFECT_SPEED);
+        accept(STATE_EFFECT, VoiceCommand.TYPE_EFFECT, false);
+        accept(STATE_EFFECT_SPEED, VoiceCommand.TYPE_EFFECT, false);
+
+        // fade [prep] (color | off) [[prep] [number] unit]
+        transition(STATE_START, TOKEN_FADE, STATE_FADE);
+        transition(STATE_FADE, TOKEN_PREPOSITION, STATE_FADE);
+        transition(STATE_FADE, TOKEN_COLOR, STATE_FADE_COLOR);
+        transition(STATE_FADE, TOKEN_OFF, STATE_FADE_COLOR);
+        transition(STATE_FADE_COLOR, TOKEN_PREPOSITION, STATE_FADE_PREPOSITION);
+        transition(STATE_FADE_COLOR, TOKEN_NUMBER, STATE_FADE_NUMBER);
+        transition(STATE_FADE_PREPOSITION, TOKEN_NUMBER, STATE_FADE_NUMBER);
+        transition(STATE_FADE_PREPOSITION, TOKEN_UNIT, STATE_FADE_DURATION);      // "over a minute"
+        transition(STATE_FADE_NUMBER, TOKEN_UNIT, STATE_FADE_DURATION);
+        accept(STATE_FADE_COLOR, VoiceCommand.TYPE_FADE, false);
+        accept(STATE_FADE_DURATION, VoiceCommand.TYPE_FADE, false);
+
+        // brightness [prep] number [percent] | number percent
+        transition(STATE_START, TOKEN_BRIGHTNESS, STATE_BRIGHTNESS);
+        transition(STATE_START, TOKEN_NUMBER, STATE_NUMBER);
+        transition(STATE_BRIGHTNESS, TOKEN_PREPOSITION, STATE_BRIGHTNESS_PREPOSITION);
+        transition(STATE_BRIGHTNESS, TOKEN_NUMBER, STATE_BRIGHTNESS_NUMBER);
+        transition(STATE_BRIGHTNESS_PREPOSITION, TOKEN_NUMBER, STATE_BRIGHTNESS_NUMBER);
+        transition(STATE_BRIGHTNESS_NUMBER, TOKEN_PERCENT, STATE_BRIGHTNESS_PERCENT);
+        transition(STATE_NUMBER, TOKEN_PERCENT, STATE_BRIGHTNESS_PERCENT);
+        accept(STATE_BRIGHTNESS_NUMBER, VoiceCommand.TYPE_BRIGHTNESS, true);
+        accept(STATE_BRIGHTNESS_PERCENT, VoiceCommand.TYPE_BRIGHTNESS, true);
+
+        // scene
+        transition(STATE_START, TOKEN_SCENE, STATE_SCENE);
+        accept(STATE_SCENE, VoiceCommand.TYPE_SCENE, false);
+
+        for (int state = 0; state < kStatesCount; state++) {
+            boolean isFinal = kAcceptedTypes[state] != VoiceCommand.TYPE_NONE;
+            for (int tokenType = 0; tokenType < kTokenTypesCount && isFinal; tokenType++) {
+                isFinal = kTransitions[state][tokenType] == STATE_REJECT;
+            }
+            kIsFinalState[state] = isFinal;
+        }
+    }
+
+    private static void transition(int state, int tokenType, int nextState) {
+        kTransitions[state][tokenType] = nextState;
+    }
+
+    private static void accept(int state, int commandType, boolean isBrightness) {
+        kAcceptedTypes[state] = commandType;
+        kIsBrightnessState[state] = isBrightness;
+    }
+
+    // Words
+    private static final String[] kFillerWords = {"a", "an", "the", "set", "make", "turn", "change", "switch", "please", "and", "of", "on", "it",
+            "color", "colour", "light", "lights", "led", "leds", "strip", "all", "everything", "effect", "mode", "level", "scene", "activate", "start"};
+    private static final String[] kPrepositions = {"at", "to", "over", "in", "for", "during"};
+    private static final String[] kFadeWords = {"fade", "dissolve"};
+    private static final String[] kBrightnessWords = {"bright", "brightness", "dim", "intensity"};
+    private static final String[] kOffWords = {"off", "out", "black", "dark"};
+    private static final String[] kPercentWords = {"percent", "percentage"};
+    private static final String[] kSlowWords = {"slow", "slowly", "slower"};
+    private static final String[] kFastWords = {"fast", "faster", "quick", "quickly", "quicker"};
+    private static final String[] kNormalSpeedWords = {"normal", "normally"};
+    private static final String[] kUnitWords = {"millisecond", "milliseconds", "second", "seconds", "sec", "secs", "minute", "minutes", "min", "mins"};
+    private static final long[] kUnitValues = {1, 1, 1000, 1000, 1000, 1000, 60000, 60000, 60000, 60000};
+    private static final String[] kNumberWords = {"zero", "one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten",
+            "eleven", "twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen", "eighteen", "nineteen"};
+    private static final String[] kTensWords = {"twenty", "thirty", "forty", "fifty", "sixty", "seventy", "eighty", "ninety"};
+    private static final int kMaxWordsInToken = 4;
+    private static final int kMaxNumber = 100000;
+
+    // Trie. Node 0 is the root. Children are indexed by letter (a-z) and digit (0-9). 0 is no child (the root is never a child)
+    private static final int kAlphabetSize = 36;
+    private int[] mChildren;
+    private int[] mNodeTokenTypes;
+    private long[] mNodeTokenValues;
+    private int mNodesCount;
+    private final List<String> mZones = new ArrayList<String>();
+    private final List<String> mScenes = new ArrayList<String>();
+    private final List<String> mNames = new ArrayList<String>();      // effect, zone and scene names, indexed by token value
+
+    // Compile state
+    private final ColorVocabulary mVocabulary;
+    private int mCompiledVocabularyVersion = -1;
+    private boolean mIsNamesChanged = true;           // zones or scenes
+
+    // Token read by nextToken
+    private int mTokenType;
+    private long mTokenValue;
+    private int mTokenEnd;
+
+    public CommandGrammar(ColorVocabulary vocabulary) {
+        mVocabulary = vocabulary;
+    }
+
+    // region Zones
+    // Zones are parts of the installation that can be addressed by name ("stairs"). VoiceCommand.zone is the name as it was added here
+    public void addZone(String name) {
+        addName(mZones, name);
+    }
+
+    public void removeZone(String name) {
+        removeName(mZones, name);
+    }
+    // endregion
+
+    // region Scenes
+    // Scenes are presets activated by name ("movie"). VoiceCommand.scene is the name as it was added here
+    public void addScene(String name) {
+        addName(mScenes, name);
+    }
+
+    public void removeScene(String name) {
+        removeName(mScenes, name);
+    }
+
+    private void addName(List<String> names, String name) {
+        if (!ColorVocabulary.normalize(name).isEmpty() && indexOfName(names, name) < 0) {
+            names.add(name);
+            mIsNamesChanged = true;
+        }
+    }
+
+    private void removeName(List<String> names, String name) {
+        final int index = indexOfName(names, name);
+        if (index >= 0) {
+            names.remove(index);
+            mIsNamesChanged = true;
+        }
+    }
+
+    private static int indexOfName(List<String> names, String name) {
+        final String key = ColorVocabulary.normalize(name);
+        for (int i = 0; i < names.size(); i++) {
+            if (ColorVocabulary.normalize(names.get(i)).equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    // endregion
+
+    // region Parse
+    /**
+     * Parses the first result (most likely first) that matches the grammar
+     *
+     * @return index of the result parsed, or -1 if none matches the grammar
+     */
+    public int parse(List<String> results, VoiceCommand command) {
+        if (results == null) {
+            return -1;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            if (parse(results.get(i), command)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param command receives the result. It is cleared if the utterance doesn't match the grammar
+     * @return true if the whole utterance matches the grammar
+     */
+    public boolean parse(CharSequence utterance, VoiceCommand command) {
+        return parse(utterance, command, false);
+    }
+
+    /**
+     * Same as parse(List, VoiceCommand) for partial results (the user may still be speaking): only accepts commands that the next words can't change
+     *
+     * @return index of the result parsed, or -1 if none can be acted on yet
+     */
+    public int parsePartial(List<String> results, VoiceCommand command) {
+        if (results == null) {
+            return -1;
+        }
+        for (int i = 0; i < results.size(); i++) {
+            if (parse(results.get(i), command, true)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param isPartial only accept a single token ("blue", corrected by the final result if it continues) or a command that can't be extended:
+     *                  "stairs blue" could become "stairs blue at 40 percent", and "fade to red" could become "fade to red over ten seconds".
+     *                  If there are zones, the zone has to be in the command already: "blue" could become "blue on the stairs"
+     */
+    private boolean parse(CharSequence utterance, VoiceCommand command, boolean isPartial) {
+        command.clear();
+        if (utterance == null) {
+            return false;
+        }
+        compileIfNeeded();
+
+        int state = STATE_START;
+        long number = VoiceCommand.kNotSet;
+        boolean isPreviousNumber = false;
+        int tokensCount = 0;            // fillers and the words of a number after the first one are not counted
+        final int length = utterance.length();
+        int position = 0;
+        while (nextToken(utterance, position, length)) {
+            position = mTokenEnd;
+            final int tokenType = mTokenType;
+
+            // Number words are composed of several tokens: "forty five", "one hundred"
+            if (tokenType == TOKEN_NUMBER && isPreviousNumber) {
+                final long composed = composeNumber(number, mTokenValue);
+                if (composed < 0) {
+                    return reject(command);
+                }
+                number = composed;
+                continue;
+            }
+            isPreviousNumber = tokenType == TOKEN_NUMBER;
+
+            if (tokenType != TOKEN_FILLER) {
+                tokensCount++;
+            }
+            switch (tokenType) {
+                case TOKEN_FILLER:
+                    continue;
+
+                case TOKEN_NONE:
+                    return reject(command);
+
+                case TOKEN_ZONE:
+                    // The zone can be anywhere in the utterance, but only once
+                    if (command.zone != null) {
+                        return reject(command);
+                    }
+                    command.zone = mNames.get((int) mTokenValue);
+                    continue;
+
+                case TOKEN_COLOR:
+                    command.color = (int) mTokenValue;
+                    break;
+
+                case TOKEN_OFF:
+                    command.color = 0;
+                    break;
+
+                case TOKEN_EFFECT:
+                    command.effect = mNames.get((int) mTokenValue);
+                    break;
+
+                case TOKEN_SCENE:
+                    command.scene = mNames.get((int) mTokenValue);
+                    break;
+
+                case TOKEN_SPEED:
+                    command.speed = (int) mTokenValue;
+                    break;
+
+                case TOKEN_NUMBER:
+                    number = mTokenValue;
+                    break;
+
+                case TOKEN_UNIT:
+                    command.duration = (number == VoiceCommand.kNotSet ? 1 : number) * mTokenValue;
+                    break;
+            }
+
+            state = kTransitions[state][tokenType];
+            if (state == STATE_REJECT) {
+                return reject(command);
+            }
+        }
+
+        command.type = kAcceptedTypes[state];
+        if (command.type == VoiceCommand.TYPE_NONE) {
+            return reject(command);
+        }
+        if (isPartial && ((command.zone == null && !mZones.isEmpty()) || (tokensCount > 1 && !kIsFinalState[state]))) {
+            return reject(command);
+        }
+        if (kIsBrightnessState[state]) {
+            command.brightness = (int) Math.min(number, 100);
+        }
+        return true;
+    }
+
+    private static boolean reject(VoiceCommand command) {
+        command.clear();
+        return false;
+    }
+
+    // "forty" + "five" = 45, "two" + "hundred" = 200. Returns -1 if the numbers can't be composed
+    private static long composeNumber(long number, long next) {
+        if (next == 100 || next == 1000) {
+            return number > 0 && number < 100 ? number * next : -1;
+        } else if (number >= 20 && number % 10 == 0 && number % 100 != 0 && next < 10) {
+            return number + next;
+        } else if (number >= 100 && number % 100 == 0 && next < 100) {
+            return number + next;
+        }
+        return -1;
+    }
+    // endregion
+
+    // region Lexer
+    private static boolean isSeparator(char c) {
+        return Character.isWhitespace(c) || c == '-' || c == '_';
+    }
+
+    private static int alphabetIndex(char c) {
+        if (c >= 'a' && c <= 'z') {
+            return c - 'a';
+        } else if (c >= 'A' && c <= 'Z') {
+            return c - 'A';
+        } else if (c >= '0' && c <= '9') {
+            return 26 + c - '0';
+        }
+        return -1;
+    }
+
+    // Reads the longest token that starts at position. Returns false at the end of the utterance
+    private boolean nextToken(CharSequence utterance, int position, int length) {
+        // Skip separators and punctuation
+        while (position < length && alphabetIndex(utterance.charAt(position)) < 0 && utterance.charAt(position) != '%') {
+            position++;
+        }
+        if (position >= length) {
+            return false;
+        }
+
+        final char first = utterance.charAt(position);
+        if (first == '%') {
+            mTokenType = TOKEN_PERCENT;
+            mTokenEnd = position + 1;
+            return true;
+        }
+
+        // Digits
+        if (first >= '0' && first <= '9') {
+            long value = 0;
+            while (position < length && utterance.charAt(position) >= '0' && utterance.charAt(position) <= '9') {
+                value = Math.min(value * 10 + utterance.charAt(position) - '0', kMaxNumber);
+                position++;
+            }
+            mTokenType = TOKEN_NUMBER;
+            mTokenValue = value;
+            mTokenEnd = position;
+            return true;
+        }
+
+        // Walk the trie word by word. The longest sequence of words that ends in a token wins ("light sea green" over "light")
+        mTokenType = TOKEN_NONE;
+        mTokenEnd = position;
+        int node = 0;
+        int wordsCount = 0;
+        while (position < length && wordsCount < kMaxWordsInToken) {
+            // Word
+            while (position < length && !isSeparator(utterance.charAt(position)) && utterance.charAt(position) != '%') {
+                final int index = alphabetIndex(utterance.charAt(position));
+                if (index >= 0) {           // punctuation inside words is ignored ("what's")
+                    node = mChildren[node * kAlphabetSize + index];
+                    if (node == 0) {
+                        break;
+                    }
+                }
+                position++;
+            }
+            if (node == 0) {
+                break;
+            }
+            wordsCount++;
+
+            if (mNodeTokenTypes[node] != TOKEN_NONE) {
+                mTokenType = mNodeTokenTypes[node];
+                mTokenValue = mNodeTokenValues[node];
+                mTokenEnd = position;
+            }
+
+            // Next word
+            while (position < length && isSeparator(utterance.charAt(position))) {
+                position++;
+            }
+        }
+
+        if (mTokenType == TOKEN_NONE) {
+            // Unknown word: skip it, the parse will fail
+            position = mTokenEnd;
+            while (position < length && !isSeparator(utterance.charAt(position))) {
+                position++;
+            }
+            mTokenEnd = Math.max(position, mTokenEnd + 1);
+        }
+        return true;
+    }
+    // endregion
+
+    // region Compile
+    private void compileIfNeeded() {
+        final int version = mVocabulary.getVersion();
+        if (version == mCompiledVocabularyVersion && !mIsNamesChanged) {
+            return;
+        }
+        mCompiledVocabularyVersion = version;
+        mIsNamesChanged = false;
+
+        mChildren = new int[kAlphabetSize * 1024];
+        mNodeTokenTypes = new int[1024];
+        mNodeTokenValues = new long[1024];
+        mNodesCount = 1;
+        mNames.clear();
+
+        // Later words override earlier ones: keywords, zones and scenes override color names ("black" is off)
+        final List<String> colorNames = mVocabulary.getNames();
+        for (String name : colorNames) {
+            addWord(name, TOKEN_COLOR, mVocabulary.lookupNormalized(name));
+        }
+        for (String name : VoiceMatcher.kEffectNames) {
+            addWord(name, TOKEN_EFFECT, addTokenName(name));
+        }
+        addWords(kFillerWords, TOKEN_FILLER, 0);
+        addWords(kPrepositions, TOKEN_PREPOSITION, 0);
+        addWords(kFadeWords, TOKEN_FADE, 0);
+        addWords(kBrightnessWords, TOKEN_BRIGHTNESS, 0);
+        addWords(kOffWords, TOKEN_OFF, 0);
+        addWords(kPercentWords, TOKEN_PERCENT, 0);
+        addWords(kSlowWords, TOKEN_SPEED, VoiceCommand.SPEED_SLOW);
+        addWords(kFastWords, TOKEN_SPEED, VoiceCommand.SPEED_FAST);
+        addWords(kNormalSpeedWords, TOKEN_SPEED, VoiceCommand.SPEED_NORMAL);
+        for (int i = 0; i < kUnitWords.length; i++) {
+            addWord(kUnitWords[i], TOKEN_UNIT, kUnitValues[i]);
+        }
+        for (int i = 0; i < kNumberWords.length; i++) {
+            addWord(kNumberWords[i], TOKEN_NUMBER, i);
+        }
+        for (int i = 0; i < kTensWords.length; i++) {
+            addWord(kTensWords[i], TOKEN_NUMBER, (i + 2) * 10);
+        }
+        addWord("hundred", TOKEN_NUMBER, 100);
+        addWord("thousand", TOKEN_NUMBER, 1000);
+        for (String zone : mZones) {
+            addWord(zone, TOKEN_ZONE, addTokenName(zone));
+        }
+        for (String scene : mScenes) {
+            addWord(scene, TOKEN_SCENE, addTokenName(scene));
+        }
+    }
+
+    private void addWords(String[] words, int tokenType, long value) {
+        for (String word : words) {
+            addWord(word, tokenType, value);
+        }
+    }
+
+    private int addTokenName(String name) {
+        mNames.add(name);
+        return mNames.size() - 1;
+    }
+
+    private void addWord(String word, int tokenType, long value) {
+        int node = 0;
+        for (int i = 0; i < word.length(); i++) {
+            final int index = alphabetIndex(word.charAt(i));
+            if (index < 0) {
+                continue;           // spaces in multi-word keywords
+            }
+            final int slot = node * kAlphabetSize + index;
+            int child = mChildren[slot];
+            if (child == 0) {
+                child = newNode();
+                mChildren[node * kAlphabetSize + index] = child;
+            }
+            node = child;
+        }
+        mNodeTokenTypes[node] = tokenType;
+        mNodeTokenValues[node] = value;
+    }
+
+    private int newNode() {
+        if (mNodesCount == mNodeTokenTypes.length) {
+            final int capacity = mNodesCount * 2;
+            final int[] children = new int[capacity * kAlphabetSize];
+            System.arraycopy(mChildren, 0, children, 0, mChildren.length);
+            mChildren = children;
+            final int[] tokenTypes = new int[capacity];
+            System.arraycopy(mNodeTokenTypes, 0, tokenTypes, 0, mNodesCount);
+            mNodeTokenTypes = tokenTypes;
+            final long[] tokenValues = new long[capacity];
+            System.arraycopy(mNodeTokenValues, 0, tokenValues, 0, mNodesCount);
+            mNodeTokenValues = tokenValues;
+        }
+        return mNodesCount++;
+    }
+    // endregion
+}
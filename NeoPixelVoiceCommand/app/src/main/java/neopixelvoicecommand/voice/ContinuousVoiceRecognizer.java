@@ -0,0 +1,266 @@
+package neopixelvoicecommand.voice;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.util.Log;
+
+import java.util.List;
+
+// Keeps a SpeechRecognizer listening while it is started, and dispatches commands as soon as a partial result can't change anymore (see CommandGrammar.parsePartial),
+// so the command can be sent while the user is still speaking. The final result only dispatches again if it is a different command (i.e. "blue" followed by "blue at 40 percent").
+// The vocabulary matcher is only used for the final results: on a prefix of a longer command it would find a color ("stairs blue at" is "blue") and act on it
+// It should be used from the main thread (SpeechRecognizer requirement)
+public class ContinuousVoiceRecognizer implements RecognitionListener {
+    // Log
+    private final static String TAG = ContinuousVoiceRecognizer.class.getSimpleName();
+
+    // Constants
+    private static final int kMaxResults = 5;
+    static final long kInitialRestartDelay = 500;           // milliseconds before listening again after the first error (network, server, audio...)
+    static final long kMaxRestartDelay = 16000;
+    static final int kMaxConsecutiveErrors = 8;             // then it stops: the recognizer is not usable (i.e. no network and no offline speech)
+
+    public interface Listener {
+        /**
+         * @param command   command recognized. Only valid during the call
+         * @param isPartial true if it was recognized from a partial result (the user may still be speaking)
+         */
+        void onVoiceCommand(VoiceCommand command, boolean isPartial);
+
+        void onVoiceNoMatch(List<String> results);
+
+        // Listening has stopped because of an error (SpeechRecognizer.ERROR_*)
+        void onVoiceStopped(int error);
+    }
+
+    // Data
+    private final Context mContext;
+    private final CommandGrammar mGrammar;
+    private final VoiceMatcher mMatcher;
+    private final Listener mListener;
+    private SpeechRecognizer mSpeechRecognizer;
+    private boolean mIsListening;
+    private final VoiceCommand mCommand = new VoiceCommand();
+    private final VoiceCommand mDispatchedCommand = new VoiceCommand();     // command already dispatched for the current utterance. TYPE_NONE if there is none
+
+    // Restart after errors
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mConsecutiveErrorsCount;
+    private final Runnable mRestartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsListening) {
+                listen();
+            }
+        }
+    };
+
+    // Timing
+    private long mSpeechOnsetTime;                          // SystemClock.elapsedRealtime() of the beginning of the current utterance
+    private long mLastOnsetToDispatchTime = -1;
+
+    public ContinuousVoiceRecognizer(Context context, CommandGrammar grammar, VoiceMatcher matcher, Listener listener) {
+        mContext = context.getApplicationContext();
+        mGrammar = grammar;
+        mMatcher = matcher;
+        mListener = listener;
+    }
+
+    public static boolean isAvailable(Context context) {
+        return SpeechRecognizer.isRecognitionAvailable(context);
+    }
+
+    public boolean isListening() {
+        return mIsListening;
+    }
+
+    // Time in milliseconds from the beginning of speech to the dispatch of the last command. -1 if there is none
+    public long getLastOnsetToDispatchTime() {
+        return mLastOnsetToDispatchTime;
+    }
+
+    // SystemClock.elapsedRealtime() of the beginning of the current (or last) utterance
+    public long getSpeechOnsetTime() {
+        return mSpeechOnsetTime;
+    }
+
+    public void start() {
+        if (mIsListening) {
+            return;
+        }
+
+        if (mSpeechRecognizer == null) {
+            mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(mContext);
+            mSpeechRecognizer.setRecognitionListener(this);
+        }
+        mIsListening = true;
+        mConsecutiveErrorsCount = 0;
+        listen();
+    }
+
+    public void stop() {
+        mIsListening = false;
+        mHandler.removeCallbacks(mRestartRunnable);
+        if (mSpeechRecognizer != null) {
+            mSpeechRecognizer.cancel();
+            mSpeechRecognizer.destroy();
+            mSpeechRecognizer = null;
+        }
+    }
+
+    private void listen() {
+        mDispatchedCommand.clear();
+        mSpeechOnsetTime = 0;
+
+        final Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+        intent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE, mContext.getPackageName());
+        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+        intent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, kMaxResults);
+        intent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, true);
+        mSpeechRecognizer.startListening(intent);
+    }
+
+    /**
+     * Delay before listening again after an error: exponential from kInitialRestartDelay up to kMaxRestartDelay.
+     * No match and speech timeout are the normal end of a silent session and restart immediately
+     *
+     * @param consecutiveErrorsCount errors without a session that ended normally, including this one
+     */
+    static long getRestartDelay(int error, int consecutiveErrorsCount) {
+        if (error == SpeechRecognizer.ERROR_NO_MATCH || error == SpeechRecognizer.ERROR_SPEECH_TIMEOUT) {
+            return 0;
+        }
+        final int exponent = Math.min(Math.max(0, consecutiveErrorsCount - 1), 30);
+        return Math.min(kMaxRestartDelay, kInitialRestartDelay << exponent);
+    }
+
+    /**
+     * Parses the final results into mCommand: with the grammar first, and with the matcher if no result matches the grammar
+     *
+     * @return true if a command has been recognized
+     */
+    private boolean recognize(List<String> results, float[] confidences) {
+        if (mGrammar.parse(results, mCommand) >= 0) {
+            return true;
+        }
+
+        final VoiceMatcher.Match match = mMatcher.match(results, confidences);
+        if (match != null) {
+            mCommand.set(match);
+            return true;
+        }
+        return false;
+    }
+
+    private void dispatchIfNew(boolean isPartial) {
+        if (mCommand.isSameAs(mDispatchedCommand)) {
+            return;
+        }
+
+        mDispatchedCommand.set(mCommand);
+        if (mSpeechOnsetTime > 0) {
+            mLastOnsetToDispatchTime = SystemClock.elapsedRealtime() - mSpeechOnsetTime;
+            Log.d(TAG, "Command " + mCommand + " dispatched " + mLastOnsetToDispatchTime + "ms after speech onset" + (isPartial ? " (partial)" : ""));
+        }
+        mListener.onVoiceCommand(mCommand, isPartial);
+    }
+
+    // region RecognitionListener
+    @Override
+    public void onReadyForSpeech(Bundle params) {
+    }
+
+    @Override
+    public void onBeginningOfSpeech() {
+        mSpeechOnsetTime = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void onRmsChanged(float rmsdB) {
+    }
+
+    @Override
+    public void onBufferReceived(byte[] buffer) {
+    }
+
+    @Override
+    public void onEndOfSpeech() {
+    }
+
+    @Override
+    public void onPartialResults(Bundle partialResults) {
+        final List<String> results = partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+        if (mGrammar.parsePartial(results, mCommand) >= 0) {
+            dispatchIfNew(true);
+        }
+    }
+
+    @Override
+    public void onResults(Bundle results) {
+        final List<String> texts = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+        final float[] confidences = results.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES);
+        if (recognize(texts, confidences)) {
+            dispatchIfNew(false);               // no partial match or the final result corrects it
+        } else if (mDispatchedCommand.type == VoiceCommand.TYPE_NONE) {
+            mListener.onVoiceNoMatch(texts);
+        }
+
+        // Keep listening for the next command
+        mConsecutiveErrorsCount = 0;
+        if (mIsListening) {
+            listen();
+        }
+    }
+
+    @Override
+    public void onError(int error) {
+        if (error == SpeechRecognizer.ERROR_INSUFFICIENT_PERMISSIONS) {
+            Log.w(TAG, "onError: " + error);
+            stop();
+            mListener.onVoiceStopped(error);
+            return;
+        }
+        if (!mIsListening) {
+            return;
+        }
+
+        // No match and speech timeout are the normal end of a silent session: listen again now
+        final boolean isSessionEnd = error == SpeechRecognizer.ERROR_NO_MATCH || error == SpeechRecognizer.ERROR_SPEECH_TIMEOUT;
+        if (isSessionEnd) {
+            mConsecutiveErrorsCount = 0;
+        } else if (++mConsecutiveErrorsCount >= kMaxConsecutiveErrors) {
+            Log.w(TAG, "onError: " + error + ". Stopping after " + mConsecutiveErrorsCount + " consecutive errors");
+            stop();
+            mListener.onVoiceStopped(error);
+            return;
+        }
+
+        // Recreate the recognizer if it is stuck
+        if (error == SpeechRecognizer.ERROR_RECOGNIZER_BUSY || error == SpeechRecognizer.ERROR_CLIENT) {
+            mSpeechRecognizer.destroy();
+            mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(mContext);
+            mSpeechRecognizer.setRecognitionListener(this);
+        }
+
+        // Other errors (network, server, audio...) would fail again right away: back off
+        final long delay = getRestartDelay(error, mConsecutiveErrorsCount);
+        if (delay > 0) {
+            Log.w(TAG, "onError: " + error + ". Listening again in " + delay + "ms");
+            mHandler.postDelayed(mRestartRunnable, delay);
+        } else {
+            listen();
+        }
+    }
+
+    @Override
+    public void onEvent(int eventType, Bundle params) {
+    }
+    // endregion
+}
@@ -0,0 +1,112 @@
+package neopixelvoicecommand.voice;
+
+// Command parsed by CommandGrammar. Instances are reused between parses
+public class VoiceCommand {
+    // Types
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_COLOR = 1;             // color [zone] [brightness]
+    public static final int TYPE_EFFECT = 2;            // effect [zone] [speed]
+    public static final int TYPE_FADE = 3;              // fade to color [zone] [duration]
+    public static final int TYPE_BRIGHTNESS = 4;        // brightness [zone] of the current color
+    public static final int TYPE_SCENE = 5;             // scene
+
+    // Speeds
+    public static final int SPEED_NORMAL = 0;
+    public static final int SPEED_SLOW = 1;
+    public static final int SPEED_FAST = 2;
+
+    public static final int kNotSet = -1;
+
+    // Data
+    public int type;
+    public String zone;             // null for the whole strip
+    public int color;               // 0xRRGGBB or ColorVocabulary.kNoColor
+    public String effect;           // VoiceMatcher effect name
+    public String scene;            // CommandGrammar scene name
+    public int speed;
+    public int brightness;          // percent or kNotSet
+    public long duration;           // milliseconds or kNotSet
+
+    public VoiceCommand() {
+        clear();
+    }
+
+    public void clear() {
+        type = TYPE_NONE;
+        zone = null;
+        color = ColorVocabulary.kNoColor;
+        effect = null;
+        scene = null;
+        speed = SPEED_NORMAL;
+        brightness = kNotSet;
+        duration = kNotSet;
+    }
+
+    public void set(VoiceCommand command) {
+        type = command.type;
+        zone = command.zone;
+        color = command.color;
+        effect = command.effect;
+        scene = command.scene;
+        speed = command.speed;
+        brightness = command.brightness;
+        duration = command.duration;
+    }
+
+    // Command with the color or effect of a VoiceMatcher match
+    public void set(VoiceMatcher.Match match) {
+        clear();
+        if (match.type == VoiceMatcher.TYPE_EFFECT) {
+            type = TYPE_EFFECT;
+            effect = match.name;
+        } else {
+            type = TYPE_COLOR;
+            color = match.color;
+        }
+    }
+
+    public boolean isSameAs(VoiceCommand command) {
+        return command != null && type == command.type && color == command.color && speed == command.speed && brightness == command.brightness && duration == command.duration
+                && (zone == null ? command.zone == null : zone.equals(command.zone))
+                && (effect == null ? command.effect == null : effect.equals(command.effect))
+                && (scene == null ? command.scene == null : scene.equals(command.scene));
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        switch (type) {
+            case TYPE_COLOR:
+                builder.append("color ").append(String.format("%06X", color));
+                break;
+            case TYPE_EFFECT:
+                builder.append("effect ").append(effect);
+                break;
+            case TYPE_FADE:
+                builder.append("fade ").append(String.format("%06X", color));
+                break;
+            case TYPE_BRIGHTNESS:
+                builder.append("brightness");
+                break;
+            case TYPE_SCENE:
+                builder.append("scene ").append(scene);
+                break;
+            default:
+                builder.append("none");
+                break;
+        }
+        if (zone != null) {
+            builder.append(" zone ").append(zone);
+        }
+        if (speed != SPEED_NORMAL) {
+            builder.append(speed == SPEED_SLOW ? " slow" : " fast");
+        }
+        if (brightness != kNotSet) {
+            builder.append(" ").append(brightness).append("%");
+        }
+        if (duration != kNotSet) {
+            builder.append(" ").append(duration).append("ms");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,337 @@
+package neopixelvoicecommand.voice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+// Finds the color or effect that the user has most likely said, using all the results of the recognizer (n-best list) and their confidence.
+// Each result (and each group of up to kMaxWordsInName words in it) is matched against the vocabulary by exact name, then by phonetic key, then by bounded edit distance,
+// so mis-hearings like "read" (red) or "tell" (teal) still match. It should be used from a single thread
+public class VoiceMatcher {
+    // Match types
+    public static final int TYPE_COLOR = 0;
+    public static final int TYPE_EFFECT = 1;
+
+    // Effects
+    public static final String kEffectRainbow = "rainbow";
+    public static final String kEffectFire = "fire";
+    static final String[] kEffectNames = {kEffectRainbow, kEffectFire};
+
+    // Scoring
+    private static final int kMaxWordsInName = 4;
+    private static final float kExactQuality = 1f;
+    private static final float kPhoneticQuality = 0.85f;
+    private static final float kPhoneticQualityPerEdit = 0.05f;
+    private static final float kEditDistanceQuality = 0.7f;
+    private static final float kQualityPerEdit = 0.15f;
+    private static final float kWordBonus = 0.2f;              // per extra word, so "light see green" (phonetic) wins over "green" (exact)
+    private static final float kMinScore = 0.3f;
+    private static final float kRankConfidenceDecay = 0.15f;    // confidence given to each result when the recognizer doesn't provide it: 1, 0.85, 0.70...
+
+    // Words that are common in commands and should not be matched by sound or spelling ("what" sounds like "wheat")
+    private static final HashSet<String> kStopWords = new HashSet<String>(Arrays.asList(
+            "a", "an", "the", "to", "it", "is", "in", "on", "of", "at", "and", "what", "set", "make", "turn", "change", "please",
+            "color", "colour", "light", "lights", "led", "leds", "strip"));
+
+    public static class Match {
+        public final int type;
+        public final String name;       // normalized name of the color or effect
+        public final int color;         // 0xRRGGBB for TYPE_COLOR
+        public final float score;       // higher is better
+
+        Match(int type, String name, int color, float score) {
+            this.type = type;
+            this.name = name;
+            this.color = color;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + score + ")";
+        }
+    }
+
+    // Vocabulary entry
+    private static class Entry {
+        final int type;
+        final String name;
+        final int color;
+
+        Entry(int type, String name, int color) {
+            this.type = type;
+            this.name = name;
+            this.color = color;
+        }
+    }
+
+    // Data
+    private final ColorVocabulary mVocabulary;
+    private int mIndexVersion = -1;
+    private final HashMap<String, Entry> mNameIndex = new HashMap<String, Entry>();
+    private final HashMap<String, List<Entry>> mPhoneticIndex = new HashMap<String, List<Entry>>();
+    private final List<List<Entry>> mLengthIndex = new ArrayList<List<Entry>>();        // entries by name length, to only compute the edit distance of similar names
+
+    // Edit distance rows (reused)
+    private int[] mPreviousRow = new int[32];
+    private int[] mCurrentRow = new int[32];
+
+    // Best match of the current search
+    private Entry mBestEntry;
+    private float mBestScore;
+
+    public VoiceMatcher(ColorVocabulary vocabulary) {
+        mVocabulary = vocabulary;
+    }
+
+    /**
+     * @param results     recognizer results, most likely first
+     * @param confidences confidence (0-1) of each result. null if the recognizer doesn't provide them
+     * @return the best match or null if no result is close enough to the vocabulary
+     */
+    public Match match(List<String> results, float[] confidences) {
+        if (results == null || results.isEmpty()) {
+            return null;
+        }
+        updateIndexIfNeeded();
+
+        mBestEntry = null;
+        mBestScore = 0;
+        for (int i = 0; i < results.size(); i++) {
+            final float confidence = confidences != null && i < confidences.length && confidences[i] > 0 ? confidences[i] : Math.max(0.1f, 1f - i * kRankConfidenceDecay);
+            matchResult(results.get(i), confidence);
+        }
+
+        if (mBestEntry == null || mBestScore < kMinScore) {
+            return null;
+        }
+        final Match match = new Match(mBestEntry.type, mBestEntry.name, mBestEntry.color, mBestScore);
+        mBestEntry = null;
+        return match;
+    }
+
+    public Match match(String result) {
+        final List<String> results = new ArrayList<String>(1);
+        results.add(result);
+        return match(results, null);
+    }
+
+    // region Matching
+    private void matchResult(String result, float confidence) {
+        if (result == null) {
+            return;
+        }
+
+        // Longer names first, so "light sea green" wins over "green" on equal scores
+        final String[] words = ColorVocabulary.splitWords(result);
+        for (int length = Math.min(kMaxWordsInName, words.length); length > 0; length--) {
+            for (int start = 0; start + length <= words.length; start++) {
+                final String phrase = length == 1 ? words[start] : join(words, start, length);
+                matchPhrase(phrase, confidence * (1f + (length - 1) * kWordBonus));
+            }
+        }
+    }
+
+    private void matchPhrase(String phrase, float confidence) {
+        // Nothing in this phrase can beat the current best
+        if (confidence * kExactQuality <= mBestScore) {
+            return;
+        }
+
+        // Exact
+        final Entry exactEntry = mNameIndex.get(phrase);
+        if (exactEntry != null) {
+            offer(exactEntry, confidence * kExactQuality);
+            return;
+        }
+
+        if (kStopWords.contains(phrase)) {
+            return;
+        }
+
+        // Same pronunciation. If several names sound the same, the closest spelling wins
+        final int maxDistance = phrase.length() <= 4 ? 1 : 2;
+        final List<Entry> phoneticEntries = mPhoneticIndex.get(phoneticKey(phrase));
+        if (phoneticEntries != null) {
+            // Sounding alike is not enough if the spelling is too different ("fier" is fire, not peru)
+            final int maxPhoneticDistance = Math.max(1, phrase.length() / 2);
+            boolean isMatched = false;
+            for (Entry entry : phoneticEntries) {
+                final int distance = editDistance(phrase, entry.name, maxPhoneticDistance);
+                if (distance <= maxPhoneticDistance) {
+                    offer(entry, confidence * (kPhoneticQuality - distance * kPhoneticQualityPerEdit));
+                    isMatched = true;
+                }
+            }
+            if (isMatched) {
+                return;
+            }
+        }
+
+        // Similar spelling
+        if (confidence * kEditDistanceQuality <= mBestScore) {
+            return;
+        }
+        final int minLength = Math.max(1, phrase.length() - maxDistance);
+        final int maxLength = Math.min(mLengthIndex.size() - 1, phrase.length() + maxDistance);
+        final boolean isShort = phrase.length() <= 4;
+        for (int length = minLength; length <= maxLength; length++) {
+            for (Entry entry : mLengthIndex.get(length)) {
+                // Short words that only differ in one letter are common ("time" and "lime"). Trust them only if they start the same
+                if (isShort && entry.name.charAt(0) != phrase.charAt(0)) {
+                    continue;
+                }
+                final int distance = editDistance(phrase, entry.name, maxDistance);
+                if (distance <= maxDistance) {
+                    offer(entry, confidence * (kEditDistanceQuality - (distance - 1) * kQualityPerEdit));
+                }
+            }
+        }
+    }
+
+    private void offer(Entry entry, float score) {
+        if (score > mBestScore) {
+            mBestScore = score;
+            mBestEntry = entry;
+        }
+    }
+
+    private static String join(String[] words, int start, int length) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = start; i < start + length; i++) {
+            builder.append(words[i]);
+        }
+        return builder.toString();
+    }
+    // endregion
+
+    // region Index
+    private void updateIndexIfNeeded() {
+        final int version = mVocabulary.getVersion();
+        if (version == mIndexVersion) {
+            return;
+        }
+        mIndexVersion = version;
+
+        mNameIndex.clear();
+        mPhoneticIndex.clear();
+        mLengthIndex.clear();
+        for (String name : mVocabulary.getNames()) {
+            addEntry(new Entry(TYPE_COLOR, name, mVocabulary.lookupNormalized(name)));
+        }
+        for (String name : kEffectNames) {
+            addEntry(new Entry(TYPE_EFFECT, name, ColorVocabulary.kNoColor));
+        }
+    }
+
+    private void addEntry(Entry entry) {
+        mNameIndex.put(entry.name, entry);
+
+        final String key = phoneticKey(entry.name);
+        List<Entry> entries = mPhoneticIndex.get(key);
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            mPhoneticIndex.put(key, entries);
+        }
+        entries.add(entry);
+
+        final int length = entry.name.length();
+        while (mLengthIndex.size() <= length) {
+            mLengthIndex.add(new ArrayList<Entry>());
+        }
+        mLengthIndex.get(length).add(entry);
+    }
+    // endregion
+
+    // region Phonetic key
+    /**
+     * Soundex without the length limit: a digit for each group of consonants that sound alike ("cyan" and "sigh an" are 25).
+     * A vowel at the start is kept as a letter. Other vowels are dropped but separate repeated codes. i.e. "red" and "read" are 63, "teal" and "tell" are 34
+     */
+    static String phoneticKey(String word) {
+        final StringBuilder builder = new StringBuilder(word.length());
+        char lastCode = 0;
+        for (int i = 0; i < word.length(); i++) {
+            final char c = word.charAt(i);
+            final char code = soundexCode(c);
+            if (i == 0) {
+                builder.append(code == '0' ? c : code);
+                lastCode = code;
+            } else if (code == '0') {
+                if (c != 'h' && c != 'w') {
+                    lastCode = 0;           // vowels separate consonants with the same code
+                }
+            } else if (code != lastCode) {
+                builder.append(code);
+                lastCode = code;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static char soundexCode(char c) {
+        switch (c) {
+            case 'b': case 'f': case 'p': case 'v':
+                return '1';
+            case 'c': case 'g': case 'j': case 'k': case 'q': case 's': case 'x': case 'z':
+                return '2';
+            case 'd': case 't':
+                return '3';
+            case 'l':
+                return '4';
+            case 'm': case 'n':
+                return '5';
+            case 'r':
+                return '6';
+            default:
+                return (c >= '0' && c <= '9') ? c : '0';
+        }
+    }
+    // endregion
+
+    // region Edit distance
+    // Levenshtein distance. Stops early and returns maxDistance + 1 if it is bigger than maxDistance
+    int editDistance(String a, String b, int maxDistance) {
+        final int lengthA = a.length();
+        final int lengthB = b.length();
+        if (Math.abs(lengthA - lengthB) > maxDistance) {
+            return maxDistance + 1;
+        }
+
+        if (mPreviousRow.length <= lengthB) {
+            mPreviousRow = new int[lengthB + 1];
+            mCurrentRow = new int[lengthB + 1];
+        }
+        int[] previous = mPreviousRow;
+        int[] current = mCurrentRow;
+        for (int j = 0; j <= lengthB; j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= lengthA; i++) {
+            current[0] = i;
+            int rowMin = i;
+            final char ca = a.charAt(i - 1);
+            for (int j = 1; j <= lengthB; j++) {
+                final int cost = ca == b.charAt(j - 1) ? 0 : 1;
+                final int value = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                current[j] = value;
+                if (value < rowMin) {
+                    rowMin = value;
+                }
+            }
+            if (rowMin > maxDistance) {
+                return maxDistance + 1;
+            }
+
+            final int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return Math.min(previous[lengthB], maxDistance + 1);
+    }
+    // endregion
+}
@@ -0,0 +1,146 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AtomicHistogramTest {
+    private static final double kMaxRelativeError = 1.0 / 32;
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (int value = 0; value < 64; value++) {
+            final int index = AtomicHistogram.getBucketIndex(value);
+            assertEquals(value, index);
+            assertEquals(value, AtomicHistogram.getBucketLowValue(index));
+            assertEquals(value, AtomicHistogram.getBucketHighValue(index));
+        }
+    }
+
+    // The buckets cover the whole long range without gaps or overlaps
+    @Test
+    public void bucketsAreContiguous() {
+        final int lastIndex = AtomicHistogram.getBucketIndex(Long.MAX_VALUE);
+        assertEquals(0, AtomicHistogram.getBucketLowValue(0));
+        assertEquals(Long.MAX_VALUE, AtomicHistogram.getBucketHighValue(lastIndex));
+        for (int index = 0; index < lastIndex; index++) {
+            assertEquals("bucket " + index, AtomicHistogram.getBucketHighValue(index) + 1, AtomicHistogram.getBucketLowValue(index + 1));
+        }
+    }
+
+    // Each value falls in the bucket that contains it, at the power of two boundaries too, and the bucket width is within the relative error
+    @Test
+    public void valuesFallInTheirBucket() {
+        final Random random = new Random(24);
+        for (int bit = 6; bit < 63; bit++) {
+            final long power = 1L << bit;
+            assertBucketContains(power - 1);
+            assertBucketContains(power);
+            assertBucketContains(power + 1);
+            assertBucketContains(power + (random.nextLong() & (power - 1)));
+        }
+        assertBucketContains(Long.MAX_VALUE);
+        for (int i = 0; i < 100000; i++) {
+            assertBucketContains(random.nextLong() & Long.MAX_VALUE);
+            assertBucketContains(random.nextInt(1000000));
+        }
+    }
+
+    private static void assertBucketContains(long value) {
+        final int index = AtomicHistogram.getBucketIndex(value);
+        final long low = AtomicHistogram.getBucketLowValue(index);
+        final long high = AtomicHistogram.getBucketHighValue(index);
+        assertTrue(value + " in [" + low + ", " + high + "]", low <= value && value <= high);
+        assertTrue("bucket of " + value + " too wide", (double) (high - low) / low <= kMaxRelativeError);
+    }
+
+    @Test
+    public void percentiles() {
+        final AtomicHistogram histogram = new AtomicHistogram();
+        for (int value = 1; value <= 10000; value++) {
+            histogram.record(value);
+        }
+
+        final AtomicHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000, snapshot.getMax());
+        assertEquals(5000.5, snapshot.getMean(), 0.001);
+        assertPercentile(snapshot, 50, 5000);
+        assertPercentile(snapshot, 90, 9000);
+        assertPercentile(snapshot, 99, 9900);
+        assertEquals(1, snapshot.getValueAtPercentile(0));
+        assertEquals(10000, snapshot.getValueAtPercentile(100));            // capped to the max
+    }
+
+    private static void assertPercentile(AtomicHistogram.Snapshot snapshot, double percentile, long expected) {
+        final long value = snapshot.getValueAtPercentile(percentile);
+        assertTrue("p" + percentile + " " + value, value >= expected && value <= expected * (1 + kMaxRelativeError));
+    }
+
+    @Test
+    public void negativeValuesAreZero() {
+        final AtomicHistogram histogram = new AtomicHistogram();
+        histogram.record(-5);
+        final AtomicHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void snapshotAndReset() {
+        final AtomicHistogram histogram = new AtomicHistogram();
+        histogram.record(100);
+        histogram.record(200);
+
+        final AtomicHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(200, snapshot.getMax());
+
+        final AtomicHistogram.Snapshot empty = histogram.snapshot();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMax());
+        assertEquals(0, empty.getValueAtPercentile(99));
+        assertEquals(2, snapshot.getCount());           // snapshots are copies
+    }
+
+    // Values recorded from several threads while snapshots are taken and reset are never lost
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        final int threadsCount = 8;
+        final int valuesPerThread = 100000;
+        final AtomicHistogram histogram = new AtomicHistogram();
+        final Thread[] threads = new Thread[threadsCount];
+        for (int i = 0; i < threadsCount; i++) {
+            final long seed = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    for (int j = 0; j < valuesPerThread; j++) {
+                        histogram.record(random.nextInt(1000000));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        long count = 0;
+        boolean isRunning = true;
+        while (isRunning) {
+            isRunning = false;
+            for (Thread thread : threads) {
+                isRunning |= thread.isAlive();
+            }
+            count += histogram.snapshotAndReset().getCount();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        count += histogram.snapshotAndReset().getCount();
+        assertEquals((long) threadsCount * valuesPerThread, count);
+    }
+}
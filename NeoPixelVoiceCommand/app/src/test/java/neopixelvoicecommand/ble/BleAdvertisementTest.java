@@ -0,0 +1,58 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BleAdvertisementTest {
+    private static final UUID kUartServiceUuid = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID kHeartRateServiceUuid = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID kBatteryServiceUuid = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+
+    // Flags, complete 128 bit uuids (uart service, little endian), complete local name "Bluefruit", padding
+    private static final byte[] kUartRecord = {
+            0x02, 0x01, 0x06,
+            0x11, 0x07, (byte) 0x9e, (byte) 0xca, (byte) 0xdc, 0x24, 0x0e, (byte) 0xe5, (byte) 0xa9, (byte) 0xe0, (byte) 0x93, (byte) 0xf3, (byte) 0xa3, (byte) 0xb5, 0x01, 0x00, 0x40, 0x6e,
+            0x0a, 0x09, 'B', 'l', 'u', 'e', 'f', 'r', 'u', 'i', 't',
+            0x00, 0x00, 0x00
+    };
+
+    // Flags, incomplete 16 bit uuids (heart rate), manufacturer data
+    private static final byte[] kHeartRateRecord = {
+            0x02, 0x01, 0x06,
+            0x03, 0x02, 0x0d, 0x18,
+            0x05, (byte) 0xff, 0x4c, 0x00, 0x01, 0x02
+    };
+
+    @Test
+    public void parse() {
+        final BleAdvertisement advertisement = BleAdvertisement.parse(kUartRecord);
+        assertEquals("Bluefruit", advertisement.getLocalName());
+        assertEquals(1, advertisement.getServiceUuids().size());
+        assertTrue(advertisement.hasServiceUuid(kUartServiceUuid));
+
+        final BleAdvertisement heartRate = BleAdvertisement.parse(kHeartRateRecord);
+        assertTrue(heartRate.hasServiceUuid(kHeartRateServiceUuid));
+        assertEquals(0x004c, heartRate.getManufacturerId());
+    }
+
+    // The allocation free check used by the scanner gives the same result as the parsed advertisement
+    @Test
+    public void hasAnyServiceUuidWithoutParsing() {
+        final UUID[][] filters = {{kUartServiceUuid}, {kHeartRateServiceUuid}, {kBatteryServiceUuid, kHeartRateServiceUuid}, {kBatteryServiceUuid}};
+        final byte[][] records = {kUartRecord, kHeartRateRecord, {}, {0x05, 0x07, 0x01}};
+        for (byte[] record : records) {
+            for (UUID[] filter : filters) {
+                assertEquals(BleAdvertisement.parse(record).hasAnyServiceUuid(filter), BleAdvertisement.hasAnyServiceUuid(record, filter));
+            }
+        }
+
+        assertTrue(BleAdvertisement.hasAnyServiceUuid(kUartRecord, new UUID[]{kBatteryServiceUuid, kUartServiceUuid}));
+        assertFalse(BleAdvertisement.hasAnyServiceUuid(kUartRecord, new UUID[]{kHeartRateServiceUuid}));
+        assertFalse(BleAdvertisement.hasAnyServiceUuid(null, new UUID[]{kUartServiceUuid}));
+    }
+}
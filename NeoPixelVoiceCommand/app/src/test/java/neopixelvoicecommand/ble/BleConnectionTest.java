@@ -0,0 +1,98 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Mtu negotiation of a connection to a mocked device. The test plays the stack by calling the gatt callbacks
+public class BleConnectionTest {
+    private static final int kNegotiatedMtu = 247;
+
+    private final BluetoothDevice mDevice = mock(BluetoothDevice.class);
+    private final BluetoothGatt mGatt = mock(BluetoothGatt.class);
+    private final BleConnection.Listener mListener = mock(BleConnection.Listener.class);
+    private BleConnection mConnection;
+
+    @Before
+    public void setUp() {
+        when(mDevice.getAddress()).thenReturn("00:11:22:33:44:55");
+        when(mDevice.connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class))).thenReturn(mGatt);
+        when(mGatt.requestMtu(anyInt())).thenReturn(true);
+        mConnection = new BleConnection(mDevice, null, mListener);
+        mConnection.connect(mock(Context.class), false);
+    }
+
+    @Test
+    public void defaultPayloadBeforeNegotiation() {
+        assertEquals(BleConnection.kDefaultMtu, mConnection.getMtu());
+        assertEquals(20, mConnection.getMaxWritePayload());
+        assertEquals(BleConnection.kDefaultMaxWritePayload, mConnection.getMaxWritePayload());
+    }
+
+    // The mtu is negotiated before discovering the services, so the first writes already use the large payload
+    @Test
+    public void payloadFollowsTheNegotiatedMtu() {
+        mConnection.onConnectionStateChange(mGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        verify(mGatt).requestMtu(kNegotiatedMtu);
+        verify(mGatt, never()).discoverServices();
+        assertEquals(20, mConnection.getMaxWritePayload());
+
+        mConnection.onMtuChanged(mGatt, kNegotiatedMtu, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(kNegotiatedMtu, mConnection.getMtu());
+        assertEquals(244, mConnection.getMaxWritePayload());
+        verify(mListener).onMtuChanged(mConnection, kNegotiatedMtu);
+        verify(mGatt).discoverServices();
+    }
+
+    // The peripheral can answer with a smaller mtu than the one requested
+    @Test
+    public void peripheralChoosesTheMtu() {
+        mConnection.onConnectionStateChange(mGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        mConnection.onMtuChanged(mGatt, 185, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(182, mConnection.getMaxWritePayload());
+    }
+
+    @Test
+    public void failedNegotiationKeepsTheDefaultPayload() {
+        mConnection.onConnectionStateChange(mGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        mConnection.onMtuChanged(mGatt, kNegotiatedMtu, BluetoothGatt.GATT_FAILURE);
+        assertEquals(20, mConnection.getMaxWritePayload());
+        verify(mListener).onMtuChanged(mConnection, BleConnection.kDefaultMtu);
+        verify(mGatt).discoverServices();
+    }
+
+    // Without a negotiation the services are discovered right away
+    @Test
+    public void requestNotStartedKeepsTheDefaultPayload() {
+        when(mGatt.requestMtu(anyInt())).thenReturn(false);
+        mConnection.onConnectionStateChange(mGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        verify(mGatt).discoverServices();
+        assertEquals(20, mConnection.getMaxWritePayload());
+    }
+
+    // Each connection negotiates again: the payload of the previous one is not valid anymore
+    @Test
+    public void payloadIsResetOnDisconnection() {
+        mConnection.onConnectionStateChange(mGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        mConnection.onMtuChanged(mGatt, kNegotiatedMtu, BluetoothGatt.GATT_SUCCESS);
+        mConnection.onConnectionStateChange(mGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+        assertEquals(20, mConnection.getMaxWritePayload());
+
+        mConnection.onConnectionStateChange(mGatt, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        assertEquals(20, mConnection.getMaxWritePayload());
+    }
+}
@@ -0,0 +1,90 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Legacy backend on a mocked adapter: the test delivers the advertisements through the callback passed to startLeScan
+public class BleDevicesScannerTest {
+    private static final byte[] kScanRecord = {2, 0x01, 0x06};          // flags
+
+    private final BluetoothAdapter mAdapter = mock(BluetoothAdapter.class);
+    private final BluetoothAdapter.LeScanCallback mListener = mock(BluetoothAdapter.LeScanCallback.class);
+    private BleDevicesScanner mScanner;
+
+    @Before
+    public void setUp() {
+        mScanner = new BleDevicesScanner(mAdapter, null, BleDevicesScanner.SCAN_MODE_LOW_LATENCY, mListener);
+    }
+
+    private static BluetoothDevice createDevice(String address) {
+        final BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        return device;
+    }
+
+    // Callback of the last startLeScan
+    private BluetoothAdapter.LeScanCallback getScanCallback(int startsCount) {
+        final ArgumentCaptor<BluetoothAdapter.LeScanCallback> captor = ArgumentCaptor.forClass(BluetoothAdapter.LeScanCallback.class);
+        verify(mAdapter, times(startsCount)).startLeScan(captor.capture());
+        return captor.getValue();
+    }
+
+    @Test
+    public void fallsBackToLegacyWithoutLeScanner() {
+        assertEquals(BleDevicesScanner.SCAN_MODE_LEGACY, mScanner.getScanMode());
+    }
+
+    @Test
+    public void statsArePerScan() {
+        final BluetoothDevice device = createDevice("00:11:22:33:44:55");
+
+        mScanner.start();
+        assertEquals(-1, mScanner.getTimeToFirstResult());
+        BluetoothAdapter.LeScanCallback callback = getScanCallback(1);
+        callback.onLeScan(device, -60, kScanRecord);
+        callback.onLeScan(device, -61, kScanRecord);
+        callback.onLeScan(createDevice("00:11:22:33:44:66"), -70, kScanRecord);
+        assertEquals(3, mScanner.getScanCallbacksCount());
+        assertEquals(3, mScanner.getAdvertisementsReceivedCount());
+        assertTrue(mScanner.getTimeToFirstResult() >= 0);
+        assertEquals(2, mScanner.getDevices().size());
+
+        // Same as the automatic restart after the scan period
+        mScanner.stop();
+        mScanner.start();
+        assertEquals(0, mScanner.getScanCallbacksCount());
+        assertEquals(0, mScanner.getAdvertisementsReceivedCount());
+        assertEquals(0, mScanner.getAdvertisementsNotifiedCount());
+        assertEquals(-1, mScanner.getTimeToFirstResult());
+        assertEquals(0, mScanner.getDevices().size());
+
+        callback = getScanCallback(2);
+        callback.onLeScan(device, -60, kScanRecord);
+        assertEquals(1, mScanner.getScanCallbacksCount());
+        assertEquals(1, mScanner.getAdvertisementsReceivedCount());
+        assertTrue(mScanner.getTimeToFirstResult() >= 0);
+        assertEquals(1, mScanner.getDevices().size());
+    }
+
+    // Stopping keeps the stats of the scan that ended
+    @Test
+    public void statsAreKeptAfterStop() {
+        mScanner.start();
+        getScanCallback(1).onLeScan(createDevice("00:11:22:33:44:55"), -60, kScanRecord);
+        mScanner.stop();
+        assertEquals(1, mScanner.getScanCallbacksCount());
+        assertEquals(1, mScanner.getAdvertisementsReceivedCount());
+        assertTrue(mScanner.getTimeToFirstResult() >= 0);
+    }
+}
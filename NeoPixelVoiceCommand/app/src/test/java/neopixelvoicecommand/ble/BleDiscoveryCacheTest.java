@@ -0,0 +1,139 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BleDiscoveryCacheTest {
+    private static final String kAddress = "00:11:22:33:44:55";
+    private static final UUID kCccdUuid = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final UUID kGenericAttributeUuid = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    private static final UUID kUartUuid = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID kBatteryUuid = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+
+    // region Services
+    // Characteristic at handle. cccd: its client characteristic configuration descriptor, or null if it doesn't have one
+    private static BluetoothGattCharacteristic createCharacteristic(int handle, BluetoothGattDescriptor cccd) {
+        final BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+        when(characteristic.getInstanceId()).thenReturn(handle);
+        when(characteristic.getUuid()).thenReturn(new UUID(0, handle));
+        when(characteristic.getDescriptor(any(UUID.class))).thenReturn(null);
+        when(characteristic.getDescriptor(kCccdUuid)).thenReturn(cccd);
+        return characteristic;
+    }
+
+    private static BluetoothGattService createService(UUID uuid, int handle, BluetoothGattCharacteristic... characteristics) {
+        final BluetoothGattService service = mock(BluetoothGattService.class);
+        when(service.getUuid()).thenReturn(uuid);
+        when(service.getInstanceId()).thenReturn(handle);
+        when(service.getCharacteristics()).thenReturn(Arrays.asList(characteristics));
+        return service;
+    }
+
+    private static BluetoothGattDescriptor createDescriptor(byte[] value) {
+        final BluetoothGattDescriptor descriptor = mock(BluetoothGattDescriptor.class);
+        when(descriptor.getUuid()).thenReturn(kCccdUuid);
+        when(descriptor.getValue()).thenReturn(value);
+        return descriptor;
+    }
+    // endregion
+
+    // The probe is the cccd of the characteristic with the highest handle, wherever its service is in the list
+    @Test
+    public void probeIsTheLastCccd() {
+        final BluetoothGattDescriptor serviceChangedCccd = createDescriptor(null);
+        final BluetoothGattDescriptor rxCccd = createDescriptor(null);
+        final BluetoothGattDescriptor batteryCccd = createDescriptor(null);
+        final List<BluetoothGattService> services = Arrays.asList(
+                createService(kBatteryUuid, 0x30, createCharacteristic(0x31, batteryCccd)),
+                createService(kUartUuid, 0x10, createCharacteristic(0x11, null), createCharacteristic(0x13, rxCccd)),
+                createService(kGenericAttributeUuid, 0x40, createCharacteristic(0x41, serviceChangedCccd)));      // skipped
+
+        assertSame(batteryCccd, BleDiscoveryCache.findProbeDescriptor(services));
+    }
+
+    @Test
+    public void characteristicsWithoutCccdAreNotProbes() {
+        final BluetoothGattDescriptor rxCccd = createDescriptor(null);
+        final List<BluetoothGattService> services = Arrays.asList(
+                createService(kUartUuid, 0x10, createCharacteristic(0x11, rxCccd), createCharacteristic(0x14, null)),
+                createService(kBatteryUuid, 0x20, createCharacteristic(0x21, null)));
+        assertSame(rxCccd, BleDiscoveryCache.findProbeDescriptor(services));
+    }
+
+    // Without a probe the cached services can't be validated
+    @Test
+    public void noProbe() {
+        final BluetoothGattService emptyService = mock(BluetoothGattService.class);
+        when(emptyService.getUuid()).thenReturn(kBatteryUuid);
+        when(emptyService.getCharacteristics()).thenReturn(null);
+        assertNull(BleDiscoveryCache.findProbeDescriptor(Arrays.asList(emptyService,
+                createService(kUartUuid, 0x10, createCharacteristic(0x11, null)),
+                createService(kGenericAttributeUuid, 0x40, createCharacteristic(0x41, createDescriptor(null))))));
+        assertNull(BleDiscoveryCache.findProbeDescriptor(Collections.<BluetoothGattService>emptyList()));
+    }
+
+    @Test
+    public void probeValues() {
+        // Notifications and indications disabled or enabled
+        assertTrue(BleDiscoveryCache.isProbeValueValid(new byte[]{0, 0}));
+        assertTrue(BleDiscoveryCache.isProbeValueValid(new byte[]{1, 0}));
+        assertTrue(BleDiscoveryCache.isProbeValueValid(new byte[]{2, 0}));
+        assertTrue(BleDiscoveryCache.isProbeValueValid(new byte[]{3, 0}));
+
+        // The handle now belongs to another attribute
+        assertFalse(BleDiscoveryCache.isProbeValueValid(null));
+        assertFalse(BleDiscoveryCache.isProbeValueValid(new byte[0]));
+        assertFalse(BleDiscoveryCache.isProbeValueValid(new byte[]{0}));
+        assertFalse(BleDiscoveryCache.isProbeValueValid(new byte[]{4, 0}));
+        assertFalse(BleDiscoveryCache.isProbeValueValid(new byte[]{0, 1}));
+        assertFalse(BleDiscoveryCache.isProbeValueValid(new byte[]{0, 0, 0}));
+        assertFalse(BleDiscoveryCache.isProbeValueValid("Bluefruit".getBytes()));
+    }
+
+    // The value read from the probe decides whether the cached layout is still valid
+    @Test
+    public void probeReadValidatesTheLayout() {
+        final BluetoothGattDescriptor rxCccd = createDescriptor(new byte[]{1, 0});
+        final List<BluetoothGattService> services = Collections.singletonList(
+                createService(kUartUuid, 0x10, createCharacteristic(0x11, null), createCharacteristic(0x13, rxCccd)));
+        final BleDiscoveryCache cache = new BleDiscoveryCache();
+        assertFalse(cache.isValid(kAddress, services));
+        cache.put(kAddress, services);
+        assertTrue(cache.isValid(kAddress.toLowerCase(), services));
+
+        final BluetoothGattDescriptor probe = BleDiscoveryCache.findProbeDescriptor(services);
+        assertTrue(BleDiscoveryCache.isProbeValueValid(probe.getValue()));
+
+        // The peripheral has moved its attributes: the handle of the probe is now a characteristic value
+        when(rxCccd.getValue()).thenReturn(new byte[]{0x21, 0x43});
+        assertFalse(BleDiscoveryCache.isProbeValueValid(probe.getValue()));
+        cache.invalidate(kAddress);
+        assertFalse(cache.isValid(kAddress, services));
+    }
+
+    // A different layout is not valid, even if the peripheral is known
+    @Test
+    public void layoutChanges() {
+        final BleDiscoveryCache cache = new BleDiscoveryCache();
+        cache.put(kAddress, Collections.singletonList(createService(kUartUuid, 0x10, createCharacteristic(0x11, null))));
+        assertTrue(cache.contains(kAddress));
+        assertFalse(cache.isValid(kAddress, Collections.singletonList(createService(kUartUuid, 0x10, createCharacteristic(0x12, null)))));
+        assertFalse(cache.isValid(kAddress, Collections.<BluetoothGattService>emptyList()));
+    }
+}
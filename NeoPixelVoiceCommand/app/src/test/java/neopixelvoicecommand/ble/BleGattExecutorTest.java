@@ -0,0 +1,299 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BleGattExecutorTest {
+    private static final int kProducersCount = 8;
+    private static final long kDrainTimeout = 30000;        // milliseconds
+
+    // region Producers
+    private interface Producer {
+        void run(int producer) throws Exception;
+    }
+
+    // Runs the producers at the same time, and returns when all of them have finished
+    private static void runProducers(final Producer producer) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[kProducersCount];
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < kProducersCount; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        producer.run(index);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    // Waits until the executor has sent everything and the stack has delivered it
+    private static void waitUntilDrained(BleGattExecutor executor, FakeGattStack stack) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + kDrainTimeout;
+        int deliveredCount = -1;
+        while (System.currentTimeMillis() < deadline) {
+            if (executor.getPendingActionsCount() == 0 && stack.getDeliveredCount() == deliveredCount) {
+                break;
+            }
+            deliveredCount = stack.getDeliveredCount();
+            Thread.sleep(20);
+        }
+        stack.stop();
+    }
+    // endregion
+
+    // Effective throughput of the uart tx chunks, in simulated connection intervals: writes without response are pipelined, acknowledged writes cost a round trip each
+    @Test
+    public void pipelinedWritesThroughput() {
+        final int chunksCount = 2000;
+        final int chunkSize = 20;
+        final int packetsPerInterval = 4;           // typical for phones with a 30ms interval
+
+        // Acknowledged
+        final BleGattExecutor acknowledgedExecutor = new BleGattExecutor();
+        final FakeGattStack acknowledgedStack = new FakeGattStack(acknowledgedExecutor, BluetoothGattCharacteristic.PROPERTY_WRITE, 8, packetsPerInterval);
+        for (int i = 0; i < chunksCount; i++) {
+            acknowledgedExecutor.write(acknowledgedStack.service, FakeGattStack.kTxUuid, createChunk(i, chunkSize));
+        }
+        acknowledgedExecutor.execute(acknowledgedStack.gatt);
+        assertTrue(acknowledgedStack.runUntilDelivered(chunksCount));
+        assertChunksInOrder(acknowledgedStack.getDelivered(), chunksCount);
+
+        // Pipelined
+        final BleGattExecutor pipelinedExecutor = new BleGattExecutor();
+        final FakeGattStack pipelinedStack = new FakeGattStack(pipelinedExecutor, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 8, packetsPerInterval);
+        for (int i = 0; i < chunksCount; i++) {
+            final byte[] chunk = createChunk(i, chunkSize);
+            pipelinedExecutor.writeWithoutResponse(pipelinedStack.service, FakeGattStack.kTxUuid, chunk, 0, chunk.length);
+        }
+        pipelinedExecutor.execute(pipelinedStack.gatt);
+        assertTrue(pipelinedStack.runUntilDelivered(chunksCount));
+        assertChunksInOrder(pipelinedStack.getDelivered(), chunksCount);
+
+        final double acknowledgedBytesPerInterval = (double) chunksCount * chunkSize / acknowledgedStack.getIntervalsCount();
+        final double pipelinedBytesPerInterval = (double) chunksCount * chunkSize / pipelinedStack.getIntervalsCount();
+        final double speedup = pipelinedBytesPerInterval / acknowledgedBytesPerInterval;
+        assertTrue("speedup " + speedup, speedup >= 3);
+    }
+
+    private static byte[] createChunk(int index, int size) {
+        final byte[] chunk = new byte[size];
+        ByteBuffer.wrap(chunk).putInt(0, index);
+        return chunk;
+    }
+
+    private static void assertChunksInOrder(List<byte[]> delivered, int chunksCount) {
+        assertEquals(chunksCount, delivered.size());
+        for (int i = 0; i < chunksCount; i++) {
+            assertEquals(i, ByteBuffer.wrap(delivered.get(i)).getInt(0));
+        }
+    }
+
+    // Many threads write at the same time: every write is sent once, and the writes of each thread in the order they were queued
+    @Test
+    public void concurrentWritesAreSentInOrder() throws InterruptedException {
+        final int writesPerProducer = 5000;
+        final BleGattExecutor executor = new BleGattExecutor();
+        final FakeGattStack stack = new FakeGattStack(executor, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 8, 6);
+        stack.start();
+
+        runProducers(new Producer() {
+            @Override
+            public void run(int producer) {
+                final byte[] value = new byte[8];
+                final ByteBuffer buffer = ByteBuffer.wrap(value);
+                for (int i = 0; i < writesPerProducer; i++) {
+                    buffer.putInt(0, producer).putInt(4, i);
+                    executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, value, 0, value.length);
+                    executor.execute(stack.gatt);
+                }
+            }
+        });
+        waitUntilDrained(executor, stack);
+
+        final List<byte[]> delivered = stack.getDelivered();
+        assertEquals(kProducersCount * writesPerProducer, delivered.size());
+        final int[] next = new int[kProducersCount];
+        for (byte[] value : delivered) {
+            final ByteBuffer buffer = ByteBuffer.wrap(value);
+            final int producer = buffer.getInt(0);
+            assertEquals("producer " + producer, next[producer], buffer.getInt(4));
+            next[producer]++;
+        }
+    }
+
+    // State writes (coalesced) mixed with ordered writes. A state write queued after an ordered write has been queued is never sent before it,
+    // even if it finds an entry for its coalescing key that was queued before the ordered write
+    @Test
+    public void coalescedWritesDontOvertakeOrderedWrites() throws InterruptedException {
+        final int writesPerProducer = 5000;
+        final int orderedWriteInterval = 4;
+        final BleGattExecutor executor = new BleGattExecutor();
+        final FakeGattStack stack = new FakeGattStack(executor, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 8, 6);
+        stack.start();
+
+        // Logical clock: a write starts at its start time, and an ordered write has been queued at its done time
+        final AtomicInteger clock = new AtomicInteger();
+        final AtomicIntegerArray doneTimes = new AtomicIntegerArray(kProducersCount * writesPerProducer);
+        runProducers(new Producer() {
+            @Override
+            public void run(int producer) {
+                final byte[] value = new byte[9];
+                final ByteBuffer buffer = ByteBuffer.wrap(value);
+                for (int i = 0; i < writesPerProducer; i++) {
+                    final int id = producer * writesPerProducer + i;
+                    final boolean isOrdered = i % orderedWriteInterval == 0;
+                    buffer.putInt(0, id).putInt(4, clock.incrementAndGet()).put(8, (byte) (isOrdered ? 1 : 0));
+                    if (isOrdered) {
+                        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, value, 0, value.length);
+                        doneTimes.set(id, clock.incrementAndGet());
+                    } else {
+                        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, value, 0, value.length, producer % 2);
+                    }
+                    executor.execute(stack.gatt);
+                }
+            }
+        });
+        waitUntilDrained(executor, stack);
+
+        final List<byte[]> delivered = stack.getDelivered();
+        int orderedCount = 0;
+        int minDoneTimeAfter = Integer.MAX_VALUE;           // of the ordered writes sent after the current one
+        final int[] lastOrderedIds = new int[kProducersCount];
+        Arrays.fill(lastOrderedIds, -1);
+        for (int i = delivered.size() - 1; i >= 0; i--) {
+            final ByteBuffer buffer = ByteBuffer.wrap(delivered.get(i));
+            final int id = buffer.getInt(0);
+            final int producer = id / writesPerProducer;
+            if (buffer.get(8) != 0) {
+                orderedCount++;
+                minDoneTimeAfter = Math.min(minDoneTimeAfter, doneTimes.get(id));
+
+                // The ordered writes of each producer are sent in order. State writes are not: a newer state replaces a pending one in place
+                if (lastOrderedIds[producer] >= 0) {
+                    assertTrue(id < lastOrderedIds[producer]);
+                }
+                lastOrderedIds[producer] = id;
+            } else {
+                assertTrue("state write " + id + " sent before an ordered write queued before it", buffer.getInt(4) < minDoneTimeAfter);
+            }
+        }
+        assertEquals(kProducersCount * writesPerProducer / orderedWriteInterval, orderedCount);
+    }
+
+    // State writes queued while the stack is busy are coalesced: only the last state is sent, and it is still sent after the ordered writes queued before it
+    @Test
+    public void stateWritesAreCoalesced() {
+        final BleGattExecutor executor = new BleGattExecutor();
+        final FakeGattStack stack = new FakeGattStack(executor, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 8, 6);
+
+        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, new byte[]{1}, 0, 1, 7);
+        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, new byte[]{2}, 0, 1, 7);
+        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, new byte[]{3}, 0, 1);
+        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, new byte[]{4}, 0, 1, 7);
+        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, new byte[]{5}, 0, 1, 7);
+        executor.execute(stack.gatt);
+        assertTrue(stack.runUntilDelivered(3));
+
+        final List<byte[]> delivered = stack.getDelivered();
+        assertEquals(3, delivered.size());
+        assertEquals(2, delivered.get(0)[0]);
+        assertEquals(3, delivered.get(1)[0]);
+        assertEquals(5, delivered.get(2)[0]);
+    }
+
+    // The stack rejects writes when its buffers are full: they are retried when the writes in flight complete, without losing or reordering any
+    @Test
+    public void backpressure() {
+        final int writesCount = 1000;
+        final BleGattExecutor executor = new BleGattExecutor();
+        executor.setMaxWritesInFlight(8);
+        final FakeGattStack stack = new FakeGattStack(executor, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 3, 2);
+
+        final byte[] value = new byte[4];
+        for (int i = 0; i < writesCount; i++) {
+            ByteBuffer.wrap(value).putInt(0, i);
+            executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, value, 0, value.length);
+        }
+        executor.execute(stack.gatt);
+        assertTrue(stack.runUntilDelivered(writesCount));
+
+        final List<byte[]> delivered = stack.getDelivered();
+        for (int i = 0; i < writesCount; i++) {
+            assertEquals(i, ByteBuffer.wrap(delivered.get(i)).getInt(0));
+        }
+        assertTrue(stack.getRejectedCount() > 0);
+        assertEquals(0, executor.getPendingActionsCount());
+    }
+
+    // The discovery probe is an acknowledged action: the writes queued after it wait for its callback
+    @Test
+    public void descriptorReadIsQueued() {
+        final BleGattExecutor executor = new BleGattExecutor();
+        final FakeGattStack stack = new FakeGattStack(executor, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 8, 6);
+        final BluetoothGattDescriptor descriptor = mock(BluetoothGattDescriptor.class);
+        when(stack.gatt.readDescriptor(descriptor)).thenReturn(true);
+
+        executor.readDescriptor(descriptor);
+        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, new byte[]{1}, 0, 1);
+        executor.execute(stack.gatt);
+        verify(stack.gatt).readDescriptor(descriptor);
+        assertEquals(0, stack.runInterval());
+        assertEquals(1, executor.getPendingActionsCount());
+
+        executor.onDescriptorRead(stack.gatt, descriptor, BluetoothGatt.GATT_SUCCESS);
+        assertTrue(stack.runUntilDelivered(1));
+        assertEquals(0, executor.getPendingActionsCount());
+    }
+
+    // A read that the stack doesn't start is reported, so the discovery doesn't wait for a callback that won't arrive
+    @Test
+    public void descriptorReadNotStartedIsReported() {
+        final AtomicInteger failedReads = new AtomicInteger();
+        final BleGattExecutor executor = new BleGattExecutor() {
+            @Override
+            protected void onDescriptorReadFailed(BluetoothGatt gatt, BluetoothGattDescriptor descriptor) {
+                failedReads.incrementAndGet();
+            }
+        };
+        final FakeGattStack stack = new FakeGattStack(executor, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 8, 6);
+        final BluetoothGattDescriptor descriptor = mock(BluetoothGattDescriptor.class);
+        when(stack.gatt.readDescriptor(descriptor)).thenReturn(false);
+
+        executor.readDescriptor(descriptor);
+        executor.writeWithoutResponse(stack.service, FakeGattStack.kTxUuid, new byte[]{1}, 0, 1);
+        executor.execute(stack.gatt);
+        assertEquals(1, failedReads.get());
+
+        // The queue keeps moving
+        assertTrue(stack.runUntilDelivered(1));
+    }
+}
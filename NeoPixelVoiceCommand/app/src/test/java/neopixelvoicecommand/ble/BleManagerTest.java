@@ -0,0 +1,395 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Pool of mocked connections: the manager creates them for mocked devices, and the test sets their state
+public class BleManagerTest {
+    private static final String kAddress1 = "00:11:22:33:44:01";
+    private static final String kAddress2 = "00:11:22:33:44:02";
+    private static final String kServiceUuid = "6e400001-b5a3-f393-e0a9-e50e24dcca9e";
+    private static final String kTxUuid = "6e400002-b5a3-f393-e0a9-e50e24dcca9e";
+    private static final int kStateKey = 1;
+
+    private final BluetoothAdapter mAdapter = mock(BluetoothAdapter.class);
+    private final Map<String, BleConnection> mConnections = new HashMap<String, BleConnection>();
+    private final Map<String, String> mValues = new HashMap<String, String>();          // preferences
+    private final BleManager.BleManagerListener mListener = mock(BleManager.BleManagerListener.class);
+    private BleConnection mLastConnection;
+    private BleManager mManager;
+
+    @Before
+    public void setUp() {
+        when(mAdapter.isEnabled()).thenReturn(true);
+        mManager = createManager(mAdapter);
+        mManager.setBleListener(mListener);
+    }
+
+    // Preferences backed by mValues
+    private SharedPreferences createPreferences() {
+        final SharedPreferences preferences = mock(SharedPreferences.class);
+        final SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+        when(preferences.edit()).thenReturn(editor);
+        doAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                final String value = mValues.get(invocation.getArguments()[0]);
+                return value != null ? value : (String) invocation.getArguments()[1];
+            }
+        }).when(preferences).getString(anyString(), anyString());
+        doAnswer(new Answer<SharedPreferences.Editor>() {
+            @Override
+            public SharedPreferences.Editor answer(InvocationOnMock invocation) {
+                mValues.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]);
+                return editor;
+            }
+        }).when(editor).putString(anyString(), anyString());
+        doAnswer(new Answer<SharedPreferences.Editor>() {
+            @Override
+            public SharedPreferences.Editor answer(InvocationOnMock invocation) {
+                mValues.remove(invocation.getArguments()[0]);
+                return editor;
+            }
+        }).when(editor).remove(anyString());
+        return preferences;
+    }
+
+    private BleManager createManager(BluetoothAdapter adapter) {
+        return new BleManager(mock(Context.class), adapter, createPreferences()) {
+            @Override
+            BleConnection createConnection(BluetoothDevice device) {
+                final String address = device.getAddress();
+                final BleGattExecutor executor = mock(BleGattExecutor.class);
+                final ConnectionPriorityPolicy priorityPolicy = mock(ConnectionPriorityPolicy.class);
+                final BleConnection connection = mock(BleConnection.class);
+                when(connection.getAddress()).thenReturn(address);
+                when(connection.getDevice()).thenReturn(device);
+                when(connection.getExecutor()).thenReturn(executor);
+                when(connection.getPriorityPolicy()).thenReturn(priorityPolicy);
+                mConnections.put(address, connection);
+                mLastConnection = connection;
+                return connection;
+            }
+        };
+    }
+
+    private void addDevice(String address) {
+        final BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        when(mAdapter.getRemoteDevice(address)).thenReturn(device);
+    }
+
+    private BleConnection open(String address, boolean isPrimary) {
+        addDevice(address);
+        return mManager.openConnection(address, false, isPrimary);
+    }
+
+    // Connected, with the uart service and the write payload of its mtu
+    private BluetoothGattService setConnected(BleConnection connection, int maxWritePayload) {
+        final BluetoothGattService service = mock(BluetoothGattService.class);
+        when(connection.isConnected()).thenReturn(true);
+        when(connection.getGattService(kServiceUuid)).thenReturn(service);
+        when(connection.getMaxWritePayload()).thenReturn(maxWritePayload);
+        return service;
+    }
+
+    private static PipelineMetrics getExecutorMetrics(BleConnection connection) {
+        final ArgumentCaptor<PipelineMetrics> captor = ArgumentCaptor.forClass(PipelineMetrics.class);
+        verify(connection.getExecutor()).setMetrics(captor.capture());
+        return captor.getValue();
+    }
+
+    // region Metrics
+    @Test
+    public void metricsArePerDevice() {
+        final BleConnection primary = open(kAddress1, true);
+        final BleConnection additional = open(kAddress2, false);
+
+        final PipelineMetrics primaryMetrics = getExecutorMetrics(primary);
+        final PipelineMetrics additionalMetrics = getExecutorMetrics(additional);
+        assertNotSame(primaryMetrics, additionalMetrics);
+        assertSame(primaryMetrics, mManager.getMetrics(kAddress1));
+        assertSame(additionalMetrics, mManager.getMetrics(kAddress2.toLowerCase()));
+
+        // Commands are measured on the primary device
+        assertSame(primaryMetrics, mManager.getMetrics());
+    }
+
+    // A new connection to the same device keeps adding to its metrics
+    @Test
+    public void metricsOutliveTheConnection() {
+        final PipelineMetrics metrics = getExecutorMetrics(open(kAddress1, true));
+        final BleConnection connection = open(kAddress1, true);
+        assertSame(metrics, getExecutorMetrics(connection));
+    }
+
+    @Test
+    public void metricsWithoutPrimaryDevice() {
+        assertNull(mManager.getMetrics(kAddress1));
+        assertNotNull(mManager.getMetrics());
+
+        open(kAddress1, false);
+        assertNotSame(mManager.getMetrics(kAddress1), mManager.getMetrics());
+    }
+    // endregion
+
+    // region Broadcast
+    // Each connection splits the value with its own write payload
+    @Test
+    public void broadcastChunksPerConnection() {
+        final BleConnection smallMtu = open(kAddress1, true);
+        final BleConnection largeMtu = open(kAddress2, false);
+        final BluetoothGattService smallMtuService = setConnected(smallMtu, 20);
+        final BluetoothGattService largeMtuService = setConnected(largeMtu, 244);
+        final byte[] value = new byte[110];
+
+        assertEquals(2, mManager.broadcastWriteWithoutResponse(kServiceUuid, kTxUuid, BleGattExecutor.kNoCoalescing, value, 5, 100));
+        for (int offset = 5; offset < 105; offset += 20) {
+            verify(smallMtu).writeWithoutResponse(smallMtuService, kTxUuid, value, offset, 20, BleGattExecutor.kNoCoalescing);
+        }
+        verify(smallMtu, times(5)).writeWithoutResponse(any(BluetoothGattService.class), anyString(), any(byte[].class), anyInt(), anyInt(), anyInt());
+        verify(largeMtu, times(1)).writeWithoutResponse(largeMtuService, kTxUuid, value, 5, 100, BleGattExecutor.kNoCoalescing);
+    }
+
+    @Test
+    public void broadcastLastChunkIsShorter() {
+        final BleConnection connection = open(kAddress1, true);
+        final BluetoothGattService service = setConnected(connection, 20);
+        final byte[] value = new byte[45];
+
+        mManager.broadcastWriteWithoutResponse(kServiceUuid, kTxUuid, BleGattExecutor.kNoCoalescing, value, 0, value.length);
+        verify(connection).writeWithoutResponse(service, kTxUuid, value, 0, 20, BleGattExecutor.kNoCoalescing);
+        verify(connection).writeWithoutResponse(service, kTxUuid, value, 20, 20, BleGattExecutor.kNoCoalescing);
+        verify(connection).writeWithoutResponse(service, kTxUuid, value, 40, 5, BleGattExecutor.kNoCoalescing);
+    }
+
+    // A coalesced chunk could replace a chunk of another value: values that don't fit in a write are sent in order
+    @Test
+    public void broadcastCoalescesSingleChunkValuesOnly() {
+        final BleConnection smallMtu = open(kAddress1, true);
+        final BleConnection largeMtu = open(kAddress2, false);
+        final BluetoothGattService smallMtuService = setConnected(smallMtu, 20);
+        final BluetoothGattService largeMtuService = setConnected(largeMtu, 244);
+        final byte[] value = new byte[40];
+
+        assertEquals(2, mManager.broadcastWriteWithoutResponse(kServiceUuid, kTxUuid, kStateKey, value, 0, value.length));
+        verify(smallMtu).writeWithoutResponse(smallMtuService, kTxUuid, value, 0, 20, BleGattExecutor.kNoCoalescing);
+        verify(smallMtu).writeWithoutResponse(smallMtuService, kTxUuid, value, 20, 20, BleGattExecutor.kNoCoalescing);
+        verify(largeMtu).writeWithoutResponse(largeMtuService, kTxUuid, value, 0, 40, kStateKey);
+
+        // A value that fits exactly is still a single chunk
+        final byte[] smallValue = new byte[20];
+        mManager.broadcastWriteWithoutResponse(kServiceUuid, kTxUuid, kStateKey, smallValue, 0, smallValue.length);
+        verify(smallMtu).writeWithoutResponse(smallMtuService, kTxUuid, smallValue, 0, 20, kStateKey);
+    }
+
+    @Test
+    public void broadcastSkipsDevicesThatCantReceive() {
+        final BleConnection connected = open(kAddress1, true);
+        final BleConnection disconnected = open(kAddress2, false);
+        final BleConnection withoutService = open("00:11:22:33:44:03", false);
+        setConnected(connected, 20);
+        when(withoutService.isConnected()).thenReturn(true);
+        when(withoutService.getMaxWritePayload()).thenReturn(20);
+
+        assertEquals(1, mManager.broadcastWriteWithoutResponse(kServiceUuid, kTxUuid, BleGattExecutor.kNoCoalescing, new byte[10], 0, 10));
+        verify(disconnected, never()).writeWithoutResponse(any(BluetoothGattService.class), anyString(), any(byte[].class), anyInt(), anyInt(), anyInt());
+        verify(withoutService, never()).writeWithoutResponse(any(BluetoothGattService.class), anyString(), any(byte[].class), anyInt(), anyInt(), eq(BleGattExecutor.kNoCoalescing));
+    }
+    // endregion
+
+    // region Split writes
+    @Test
+    public void payloadOfThePrimaryConnection() {
+        assertEquals(BleConnection.kDefaultMaxWritePayload, mManager.getMaxWritePayload());
+        final BleConnection connection = open(kAddress1, true);
+        setConnected(connection, 244);
+        assertEquals(244, mManager.getMaxWritePayload());
+    }
+
+    // Values are split with the payload negotiated by the primary connection, and never coalesced
+    @Test
+    public void splitWritesFollowTheMtu() {
+        final BleConnection connection = open(kAddress1, true);
+        final BluetoothGattService service = setConnected(connection, 20);
+        final byte[] value = new byte[60];
+
+        mManager.writeServiceSplit(service, kTxUuid, value, 10, 50);
+        verify(connection).writeWithoutResponse(service, kTxUuid, value, 10, 20, BleGattExecutor.kNoCoalescing);
+        verify(connection).writeWithoutResponse(service, kTxUuid, value, 30, 20, BleGattExecutor.kNoCoalescing);
+        verify(connection).writeWithoutResponse(service, kTxUuid, value, 50, 10, BleGattExecutor.kNoCoalescing);
+
+        // After a larger mtu has been negotiated the value fits in a single write
+        when(connection.getMaxWritePayload()).thenReturn(244);
+        mManager.writeServiceSplit(service, kTxUuid, value, 0, value.length);
+        verify(connection).writeWithoutResponse(service, kTxUuid, value, 0, 60, BleGattExecutor.kNoCoalescing);
+        verify(connection, times(4)).writeWithoutResponse(any(BluetoothGattService.class), anyString(), any(byte[].class), anyInt(), anyInt(), anyInt());
+    }
+    // endregion
+
+    // region Reconnect to the last device
+    // The last device is the last primary device that completed service discovery
+    private void setLastDevice(String address) {
+        final BleConnection connection = open(address, true);
+        mManager.onServicesDiscovered(connection, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(address, mManager.getLastDeviceAddress());
+    }
+
+    @Test
+    public void withoutLastDeviceScans() {
+        assertFalse(mManager.reconnectToLastDevice());
+        assertNull(mLastConnection);
+
+        // A discovery that failed doesn't make it the last device
+        mManager.onServicesDiscovered(open(kAddress1, true), BluetoothGatt.GATT_FAILURE);
+        assertNull(mManager.getLastDeviceAddress());
+
+        // Nor does an additional device
+        mManager.onServicesDiscovered(open(kAddress2, false), BluetoothGatt.GATT_SUCCESS);
+        assertNull(mManager.getLastDeviceAddress());
+    }
+
+    @Test
+    public void withoutAdapterScans() {
+        mValues.put("pref_lastdeviceaddress", kAddress1);
+        final BleManager manager = createManager(null);
+        assertEquals(kAddress1, manager.getLastDeviceAddress());
+        assertFalse(manager.reconnectToLastDevice());
+        assertNull(mLastConnection);
+    }
+
+    @Test
+    public void forgottenDeviceScans() {
+        setLastDevice(kAddress1);
+        mManager.close();
+        mManager.forgetLastDevice();
+        assertNull(mManager.getLastDeviceAddress());
+        assertFalse(mManager.reconnectToLastDevice());
+    }
+
+    // After the app has closed the connection (i.e. on a new launch): direct connection to the last device
+    @Test
+    public void directConnectionToTheLastDevice() {
+        setLastDevice(kAddress1);
+        mManager.close();
+        mLastConnection = null;
+
+        assertTrue(mManager.reconnectToLastDevice());
+        assertNotNull(mLastConnection);
+        assertSame(mLastConnection, mManager.getPrimaryConnection());
+        verify(mLastConnection).connect(any(Context.class), eq(false));        // no autoconnect: fails fast if the device is not around
+        verify(mListener).onConnecting();
+    }
+
+    @Test
+    public void deviceNotFoundScans() {
+        setLastDevice(kAddress1);
+        mManager.close();
+        mLastConnection = null;
+        when(mAdapter.getRemoteDevice(kAddress1)).thenReturn(null);
+        assertFalse(mManager.reconnectToLastDevice());
+        assertNull(mLastConnection);
+    }
+
+    // Still connected or connecting: nothing to do
+    @Test
+    public void alreadyConnected() {
+        setLastDevice(kAddress1);
+        final BleConnection connection = mManager.getPrimaryConnection();
+        when(connection.getState()).thenReturn(BleManager.STATE_CONNECTED);
+        assertTrue(mManager.reconnectToLastDevice());
+        when(connection.getState()).thenReturn(BleManager.STATE_CONNECTING);
+        assertTrue(mManager.reconnectToLastDevice());
+
+        assertSame(connection, mLastConnection);
+        assertSame(connection, mManager.getPrimaryConnection());
+        verify(connection, never()).reconnect();
+        verify(connection, never()).close();
+    }
+
+    // Disconnected, with a BluetoothGatt: it is reused
+    @Test
+    public void existingGattIsReused() {
+        setLastDevice(kAddress1);
+        final BleConnection connection = mManager.getPrimaryConnection();
+        when(connection.getGatt()).thenReturn(mock(BluetoothGatt.class));
+        when(connection.reconnect()).thenReturn(true);
+
+        assertTrue(mManager.reconnectToLastDevice());
+        verify(connection).reconnect();
+        verify(connection, never()).close();
+        assertSame(connection, mLastConnection);
+        verify(mListener).onConnecting();
+    }
+
+    @Test
+    public void failedGattReconnectOpensANewConnection() {
+        setLastDevice(kAddress1);
+        final BleConnection connection = mManager.getPrimaryConnection();
+        when(connection.getGatt()).thenReturn(mock(BluetoothGatt.class));
+        when(connection.reconnect()).thenReturn(false);
+
+        assertTrue(mManager.reconnectToLastDevice());
+        verify(connection).close();
+        assertNotSame(connection, mLastConnection);
+        assertSame(mLastConnection, mManager.getPrimaryConnection());
+    }
+
+    @Test
+    public void closedGattOpensANewConnection() {
+        setLastDevice(kAddress1);
+        final BleConnection connection = mManager.getPrimaryConnection();
+
+        assertTrue(mManager.reconnectToLastDevice());
+        verify(connection, never()).reconnect();
+        verify(connection).close();
+        assertNotSame(connection, mLastConnection);
+        assertSame(mLastConnection, mManager.getPrimaryConnection());
+    }
+
+    // The primary connection is to another device: it is replaced by the last device
+    @Test
+    public void otherPrimaryDeviceIsReplaced() {
+        setLastDevice(kAddress1);
+        final BleConnection otherConnection = open(kAddress2, true);
+        when(otherConnection.getState()).thenReturn(BleManager.STATE_CONNECTED);
+
+        addDevice(kAddress1);
+        assertTrue(mManager.reconnectToLastDevice());
+        verify(otherConnection).close();
+        assertEquals(kAddress1, mManager.getPrimaryConnection().getAddress());
+        assertNull(mManager.getConnection(kAddress2));
+    }
+    // endregion
+}
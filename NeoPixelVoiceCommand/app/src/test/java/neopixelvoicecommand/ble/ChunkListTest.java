@@ -0,0 +1,79 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChunkListTest {
+    // Write payloads: default mtu, and the preferred mtu of BleConnection
+    private static final int kDefaultPayload = BleConnection.kDefaultMaxWritePayload;
+    private static final int kLargePayload = 244;
+
+    private static byte[] createPacket(int length) {
+        final byte[] packet = new byte[length];
+        for (int i = 0; i < length; i++) {
+            packet[i] = (byte) i;
+        }
+        return packet;
+    }
+
+    private static byte[] join(ChunkList chunks) {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.getChunksCount(); i++) {
+            stream.write(chunks.getChunk(i), 0, chunks.getChunk(i).length);
+        }
+        return stream.toByteArray();
+    }
+
+    private static void assertChunkLengths(ChunkList chunks, int... lengths) {
+        assertEquals(lengths.length, chunks.getChunksCount());
+        for (int i = 0; i < lengths.length; i++) {
+            assertEquals(lengths[i], chunks.getChunk(i).length);
+        }
+    }
+
+    @Test
+    public void packetsAreSplitAtThePayload() {
+        assertEquals(20, kDefaultPayload);
+        for (int payload : new int[]{kDefaultPayload, kLargePayload}) {
+            assertChunkLengths(new ChunkList.Builder(payload).addPacket(createPacket(payload - 1), 0, payload - 1).build(), payload - 1);
+            assertChunkLengths(new ChunkList.Builder(payload).addPacket(createPacket(payload), 0, payload).build(), payload);
+            assertChunkLengths(new ChunkList.Builder(payload).addPacket(createPacket(payload + 1), 0, payload + 1).build(), payload, 1);
+            assertChunkLengths(new ChunkList.Builder(payload).addPacket(createPacket(2 * payload), 0, 2 * payload).build(), payload, payload);
+
+            final byte[] packet = createPacket(3 * payload + 7);
+            final ChunkList chunks = new ChunkList.Builder(payload).addPacket(packet, 0, packet.length).build();
+            assertChunkLengths(chunks, payload, payload, payload, 7);
+            assertArrayEquals(packet, join(chunks));
+            assertEquals(packet.length, chunks.getLength());
+            assertEquals(payload, chunks.getMaxChunkLength());
+        }
+    }
+
+    // Packets never share a chunk, even if they would fit together
+    @Test
+    public void packetsDontShareChunks() {
+        final byte[] packet = createPacket(7);
+        final ChunkList chunks = new ChunkList.Builder(kLargePayload)
+                .addPacket(packet, 0, 7)
+                .addPacket(packet, 2, 5)
+                .addPacket(createPacket(kLargePayload + 3), 0, kLargePayload + 3)
+                .build();
+        assertChunkLengths(chunks, 7, 5, kLargePayload, 3);
+        assertArrayEquals(new byte[]{2, 3, 4, 5, 6}, chunks.getChunk(1));
+        assertEquals(7 + 5 + kLargePayload + 3, chunks.getLength());
+    }
+
+    @Test
+    public void emptyList() {
+        final ChunkList chunks = new ChunkList.Builder(kDefaultPayload).build();
+        assertEquals(0, chunks.getChunksCount());
+        assertEquals(0, chunks.getLength());
+
+        // An invalid payload still makes progress
+        assertChunkLengths(new ChunkList.Builder(0).addPacket(createPacket(2), 0, 2).build(), 1, 1);
+    }
+}
@@ -0,0 +1,176 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Policy on simulated time, for a connection whose writes the test completes by setting the executor counters
+public class ConnectionPriorityPolicyTest {
+    private static final long kIdleTimeout = 3000;
+    private static final long kLowPowerTimeout = 60000;
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final BleConnection mConnection = mock(BleConnection.class);
+    private final BleGattExecutor mExecutor = mock(BleGattExecutor.class);
+    private final BluetoothGatt mGatt = mock(BluetoothGatt.class);
+    private ConnectionPriorityPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        when(mConnection.getGatt()).thenReturn(mGatt);
+        when(mConnection.getExecutor()).thenReturn(mExecutor);
+        when(mGatt.requestConnectionPriority(anyInt())).thenReturn(true);
+        mPolicy = new ConnectionPriorityPolicy(mConnection, mScheduler.handler, mScheduler);
+        mPolicy.setTimeouts(kIdleTimeout, kLowPowerTimeout);
+    }
+
+    // region Transitions
+    @Test
+    public void connectionStartsAtHigh() {
+        assertEquals(-1, mPolicy.getPriority());
+        mPolicy.onConnected();
+        verify(mGatt).requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, mPolicy.getPriority());
+        assertEquals(kIdleTimeout, mScheduler.getNextDelay());
+    }
+
+    @Test
+    public void idleGoesToBalancedThenLowPower() {
+        mPolicy.onConnected();
+        mScheduler.advance(kIdleTimeout - 1);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, mPolicy.getPriority());
+        mScheduler.advance(1);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+
+        mScheduler.advance(kLowPowerTimeout - 1);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+        mScheduler.advance(1);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, mPolicy.getPriority());
+        assertEquals(3, mPolicy.getTransitionsCount());
+
+        // Nothing else to check until there is activity
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    // The idle time starts again with each write
+    @Test
+    public void activityDelaysTheIdleTransition() {
+        mPolicy.onConnected();
+        mScheduler.advance(kIdleTimeout - 1000);
+        mPolicy.onActivity();
+        mScheduler.advance(1000);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, mPolicy.getPriority());
+        mScheduler.advance(kIdleTimeout - 1000);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+    }
+
+    @Test
+    public void activityGoesBackToHigh() {
+        mPolicy.onConnected();
+        mScheduler.advance(kIdleTimeout + kLowPowerTimeout);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, mPolicy.getPriority());
+
+        mPolicy.onActivity();
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, mPolicy.getPriority());
+        verify(mGatt, times(2)).requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        mScheduler.advance(kIdleTimeout);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+    }
+
+    // A stream keeps the high priority between its writes, and the idle time starts when it ends
+    @Test
+    public void streamKeepsHigh() {
+        mPolicy.onConnected();
+        mPolicy.setStreaming(true);
+        mScheduler.advance(10 * kIdleTimeout);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, mPolicy.getPriority());
+
+        mPolicy.setStreaming(false);
+        mScheduler.advance(kIdleTimeout - 1);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, mPolicy.getPriority());
+        mScheduler.advance(1);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+    }
+
+    @Test
+    public void pendingWritesKeepHigh() {
+        when(mConnection.getPendingWritesCount()).thenReturn(5);
+        mPolicy.onConnected();
+        mScheduler.advance(10 * kIdleTimeout);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, mPolicy.getPriority());
+
+        when(mConnection.getPendingWritesCount()).thenReturn(0);
+        mScheduler.advance(2 * kIdleTimeout);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+    }
+
+    @Test
+    public void neverLowPower() {
+        mPolicy.setTimeouts(kIdleTimeout, ConnectionPriorityPolicy.kNever);
+        mPolicy.onConnected();
+        mScheduler.advance(10 * kLowPowerTimeout);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+        verify(mGatt, never()).requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+    }
+
+    @Test
+    public void disabledStaysAtBalanced() {
+        mPolicy.onConnected();
+        mPolicy.setEnabled(false);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+        assertEquals(0, mScheduler.getPendingCount());
+        mPolicy.onActivity();
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, mPolicy.getPriority());
+    }
+
+    @Test
+    public void disconnectionStopsTheChecks() {
+        mPolicy.onConnected();
+        mPolicy.onDisconnected();
+        assertEquals(-1, mPolicy.getPriority());
+        assertEquals(0, mScheduler.getPendingCount());
+        mPolicy.onActivity();
+        assertEquals(-1, mPolicy.getPriority());
+    }
+    // endregion
+
+    // region Stats
+    // The throughput of a priority counts the bytes the stack has completed, not the bytes queued
+    @Test
+    public void statsOfEachPriority() {
+        when(mConnection.getBytesQueued()).thenReturn(1000000L);
+        mPolicy.onConnected();
+
+        // 100 writes of 200 bytes while at high, with a 10ms round trip each
+        when(mExecutor.getWritesCompletedCount()).thenReturn(100L);
+        when(mExecutor.getBytesCompletedCount()).thenReturn(20000L);
+        when(mExecutor.getWriteRoundTripNanos()).thenReturn(100 * 10000000L);
+        mScheduler.advance(kIdleTimeout + 1000);
+
+        final ConnectionPriorityPolicy.Stats high = mPolicy.getStats(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        assertEquals(kIdleTimeout, high.time);
+        assertEquals(100, high.writesCompleted);
+        assertEquals(20000, high.bytesCompleted);
+        assertEquals(20000 * 1000f / kIdleTimeout, high.getBytesPerSecond(), 0.01);
+        assertEquals(100 * 1000f / kIdleTimeout, high.getWritesPerSecond(), 0.01);
+        assertEquals(10000, high.getAverageWriteRoundTripMicros());
+
+        // The current period is included
+        final ConnectionPriorityPolicy.Stats balanced = mPolicy.getStats(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        assertEquals(1000, balanced.time);
+        assertEquals(0, balanced.writesCompleted);
+        assertEquals(0, balanced.getBytesPerSecond(), 0);
+        assertEquals(-1, balanced.getAverageWriteRoundTripMicros());
+        assertEquals(0, mPolicy.getStats(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER).time);
+    }
+    // endregion
+}
@@ -0,0 +1,205 @@
+package neopixelvoicecommand.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Bluetooth stack behind a mocked BluetoothGatt, with a single uart tx characteristic. It sends the writes and calls the executor back in order, like the binder thread.
+// Link model, per connection interval: up to packetsPerInterval writes without response, or the request of an acknowledged write (its response arrives in the next interval).
+// The stack accepts a limited number of outstanding writes: then writeCharacteristic returns false, as the real stack does when its buffers are full.
+// Run the intervals from the test thread (simulated time, see runInterval) or from a stack thread (see start)
+class FakeGattStack {
+    static final String kTxUuid = "6e400002-b5a3-f393-e0a9-e50e24dcca9e";
+
+    private static class Write {
+        final byte[] value;
+        final boolean isAcknowledged;
+
+        Write(byte[] value, boolean isAcknowledged) {
+            this.value = value;
+            this.isAcknowledged = isAcknowledged;
+        }
+    }
+
+    // Mocks
+    final BluetoothGatt gatt = mock(BluetoothGatt.class);
+    final BluetoothGattService service = mock(BluetoothGattService.class);
+    final BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+
+    // Stack
+    private final BleGattExecutor mExecutor;
+    private final int mCapacity;
+    private final int mPacketsPerInterval;
+    private final ConcurrentLinkedQueue<Write> mOutgoing = new ConcurrentLinkedQueue<Write>();
+    private final AtomicInteger mOutstandingCount = new AtomicInteger();
+    private boolean mIsResponsePending;             // acknowledged write sent in the previous interval
+
+    // Characteristic state. Only set by the drain loop, which is single threaded
+    private volatile byte[] mValue;
+    private volatile int mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+
+    // Results. Guarded by this
+    private final List<byte[]> mDelivered = new ArrayList<byte[]>();
+    private long mIntervalsCount;
+    private long mRejectedCount;
+
+    // Stack thread
+    private final AtomicBoolean mIsRunning = new AtomicBoolean();
+    private Thread mThread;
+
+    FakeGattStack(BleGattExecutor executor, int properties, int capacity, int packetsPerInterval) {
+        mExecutor = executor;
+        mCapacity = capacity;
+        mPacketsPerInterval = packetsPerInterval;
+
+        when(service.getCharacteristic(UUID.fromString(kTxUuid))).thenReturn(characteristic);
+        when(characteristic.getProperties()).thenReturn(properties);
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                mValue = (byte[]) invocation.getArguments()[0];
+                return true;
+            }
+        }).when(characteristic).setValue(any(byte[].class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                mWriteType = (Integer) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(characteristic).setWriteType(anyInt());
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return onWriteCharacteristic();
+            }
+        }).when(gatt).writeCharacteristic(characteristic);
+    }
+
+    private boolean onWriteCharacteristic() {
+        if (mOutstandingCount.get() >= mCapacity) {
+            synchronized (this) {
+                mRejectedCount++;
+            }
+            return false;
+        }
+        mOutstandingCount.incrementAndGet();
+        // The executor may reuse its buffer after the call returns
+        mOutgoing.add(new Write(mValue.clone(), mWriteType == BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
+        return true;
+    }
+
+    // region Link
+    // Simulates a connection interval. Returns the number of writes delivered to the peripheral
+    int runInterval() {
+        synchronized (this) {
+            mIntervalsCount++;
+        }
+
+        if (mIsResponsePending) {
+            mIsResponsePending = false;
+            onWriteCompleted();
+        }
+
+        int sentCount = 0;
+        Write write;
+        while (sentCount < mPacketsPerInterval && (write = mOutgoing.peek()) != null) {
+            if (write.isAcknowledged) {
+                if (sentCount == 0) {
+                    mOutgoing.poll();
+                    deliver(write);
+                    mIsResponsePending = true;
+                    sentCount++;
+                }
+                break;
+            }
+
+            // The callbacks of the writes without response arrive when the stack has sent them. The executor queues the next writes from the callback
+            mOutgoing.poll();
+            deliver(write);
+            sentCount++;
+            onWriteCompleted();
+        }
+        return sentCount;
+    }
+
+    // Runs intervals until the delivered writes reach count. Returns false if the executor stops writing before that
+    boolean runUntilDelivered(int count) {
+        int idleIntervals = 0;
+        while (getDeliveredCount() < count) {
+            if (runInterval() == 0 && !mIsResponsePending && ++idleIntervals > 2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deliver(Write write) {
+        synchronized (this) {
+            mDelivered.add(write.value);
+        }
+    }
+
+    private void onWriteCompleted() {
+        mOutstandingCount.decrementAndGet();
+        mExecutor.onCharacteristicWrite(gatt, characteristic, BluetoothGatt.GATT_SUCCESS);
+    }
+    // endregion
+
+    // region Stack thread
+    // Runs the intervals back to back on a stack thread, as fast as possible
+    void start() {
+        mIsRunning.set(true);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mIsRunning.get()) {
+                    if (runInterval() == 0 && !mIsResponsePending) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        mThread.start();
+    }
+
+    void stop() throws InterruptedException {
+        mIsRunning.set(false);
+        mThread.join();
+    }
+    // endregion
+
+    // region Results
+    synchronized int getDeliveredCount() {
+        return mDelivered.size();
+    }
+
+    synchronized List<byte[]> getDelivered() {
+        return new ArrayList<byte[]>(mDelivered);
+    }
+
+    synchronized long getIntervalsCount() {
+        return mIntervalsCount;
+    }
+
+    synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+    // endregion
+}
@@ -0,0 +1,99 @@
+package neopixelvoicecommand.ble;
+
+import android.os.Handler;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+// Simulated time: a Clock, and a mocked Handler whose runnables run when the test advances the time past their delay (in the order they are due)
+class FakeScheduler implements Clock {
+    private static class Task {
+        final Runnable runnable;
+        final long time;
+
+        Task(Runnable runnable, long time) {
+            this.runnable = runnable;
+            this.time = time;
+        }
+    }
+
+    final Handler handler = mock(Handler.class);
+    private final List<Task> mTasks = new ArrayList<Task>();
+    private long mNow = 1000;           // 0 is "no time" for the classes under test
+
+    FakeScheduler() {
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                mTasks.add(new Task((Runnable) invocation.getArguments()[0], mNow));
+                return true;
+            }
+        }).when(handler).post(any(Runnable.class));
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                mTasks.add(new Task((Runnable) invocation.getArguments()[0], mNow + (Long) invocation.getArguments()[1]));
+                return true;
+            }
+        }).when(handler).postDelayed(any(Runnable.class), anyLong());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                final Object runnable = invocation.getArguments()[0];
+                final Iterator<Task> iterator = mTasks.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().runnable == runnable) {
+                        iterator.remove();
+                    }
+                }
+                return null;
+            }
+        }).when(handler).removeCallbacks(any(Runnable.class));
+    }
+
+    @Override
+    public long millis() {
+        return mNow;
+    }
+
+    // Runs the tasks that are due until now + time, moving the clock to the time of each one
+    void advance(long time) {
+        final long end = mNow + time;
+        Task task;
+        while ((task = nextTask(end)) != null) {
+            mTasks.remove(task);
+            mNow = task.time;
+            task.runnable.run();
+        }
+        mNow = end;
+    }
+
+    // Milliseconds until the next task. -1 if there isn't any
+    long getNextDelay() {
+        final Task task = nextTask(Long.MAX_VALUE);
+        return task != null ? task.time - mNow : -1;
+    }
+
+    int getPendingCount() {
+        return mTasks.size();
+    }
+
+    private Task nextTask(long end) {
+        Task next = null;
+        for (Task task : mTasks) {
+            if (task.time <= end && (next == null || task.time < next.time)) {
+                next = task;
+            }
+        }
+        return next;
+    }
+}
@@ -0,0 +1,199 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationTrackerTest {
+
+    @Test
+    public void writesCompleteInOrder() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        tracker.onWriteStarted(0, 20);
+        tracker.onWriteStarted(0, 20);
+        assertEquals(2, tracker.getWritesInFlight());
+
+        assertEquals(GattOperationTracker.RESULT_WRITE_COMPLETED, tracker.onCallback());
+        assertEquals(GattOperationTracker.RESULT_WRITE_COMPLETED, tracker.onCallback());
+        assertTrue(tracker.isIdle());
+        assertEquals(2, tracker.getWritesCompletedCount());
+        assertEquals(GattOperationTracker.RESULT_UNEXPECTED, tracker.onCallback());
+    }
+
+    @Test
+    public void rejectedWriteIsNotInFlight() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        tracker.onWriteStarted(0, 20);
+        final long index = tracker.onWriteStarted(0, 20);
+        tracker.cancel(index);
+        assertEquals(1, tracker.getWritesInFlight());
+
+        assertEquals(GattOperationTracker.RESULT_WRITE_COMPLETED, tracker.onCallback());
+        assertTrue(tracker.isIdle());
+        assertEquals(GattOperationTracker.RESULT_UNEXPECTED, tracker.onCallback());
+    }
+
+    @Test
+    public void instantActionIsNotInFlight() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        tracker.cancel(tracker.onActionStarted());
+        assertTrue(tracker.isIdle());
+        assertEquals(GattOperationTracker.RESULT_UNEXPECTED, tracker.onCallback());
+    }
+
+    // Writes given up by the watchdog, then an acknowledged action: the late write callbacks must not complete the action
+    @Test
+    public void lateWriteCallbacksDontCompleteNextAction() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        tracker.onWriteStarted(0, 20);
+        tracker.onWriteStarted(0, 20);
+        tracker.onWriteStarted(0, 20);
+
+        final long state = tracker.giveUp();
+        assertEquals(3, GattOperationTracker.getWritesCount(state));
+        assertFalse(GattOperationTracker.isActionInFlight(state));
+        assertTrue(tracker.isIdle());
+
+        tracker.onActionStarted();
+        assertEquals(GattOperationTracker.RESULT_LATE, tracker.onCallback());
+        assertEquals(GattOperationTracker.RESULT_LATE, tracker.onCallback());
+        assertEquals(GattOperationTracker.RESULT_LATE, tracker.onCallback());
+        assertTrue(tracker.isActionInFlight());
+        assertEquals(0, tracker.getWritesCompletedCount());
+
+        assertEquals(GattOperationTracker.RESULT_ACTION_COMPLETED, tracker.onCallback());
+        assertTrue(tracker.isIdle());
+        assertEquals(3, tracker.getLateCallbacksCount());
+    }
+
+    // An action given up and executed again: the late callback of the first attempt is ignored, the callback of the retry completes it
+    @Test
+    public void lateActionCallbackDoesntCompleteRetry() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        tracker.onActionStarted();
+        assertTrue(GattOperationTracker.isActionInFlight(tracker.giveUp()));
+
+        tracker.onActionStarted();
+        assertEquals(GattOperationTracker.RESULT_LATE, tracker.onCallback());
+        assertTrue(tracker.isActionInFlight());
+        assertEquals(GattOperationTracker.RESULT_ACTION_COMPLETED, tracker.onCallback());
+        assertTrue(tracker.isIdle());
+    }
+
+    // Writes started after a give up use the free slots, and complete normally once the late callbacks have been consumed
+    @Test
+    public void writesAfterGiveUp() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        tracker.onWriteStarted(0, 20);
+        tracker.giveUp();
+        tracker.onWriteStarted(0, 20);
+        tracker.onWriteStarted(0, 20);
+        assertEquals(2, tracker.getWritesInFlight());
+
+        assertEquals(GattOperationTracker.RESULT_LATE, tracker.onCallback());
+        assertEquals(2, tracker.getWritesInFlight());
+        assertEquals(GattOperationTracker.RESULT_WRITE_COMPLETED, tracker.onCallback());
+        assertEquals(GattOperationTracker.RESULT_WRITE_COMPLETED, tracker.onCallback());
+        assertTrue(tracker.isIdle());
+    }
+
+    // A write rejected after a give up doesn't touch the new generation
+    @Test
+    public void cancelAfterGiveUp() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        final long index = tracker.onWriteStarted(0, 20);
+        tracker.giveUp();
+        tracker.cancel(index);
+        assertTrue(tracker.isIdle());
+        assertEquals(GattOperationTracker.RESULT_UNEXPECTED, tracker.onCallback());
+    }
+
+    // Given up operations whose callbacks never arrive are forgotten when the ring is full, so the tracker doesn't get stuck
+    @Test
+    public void lostCallbacksAreForgotten() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < GattOperationTracker.kMaxWritesInFlight; i++) {
+                tracker.onWriteStarted(0, 20);
+            }
+            tracker.giveUp();
+        }
+
+        tracker.onWriteStarted(0, 20);
+        int lateCount = 0;
+        int result;
+        while ((result = tracker.onCallback()) == GattOperationTracker.RESULT_LATE) {
+            lateCount++;
+        }
+        assertEquals(GattOperationTracker.RESULT_WRITE_COMPLETED, result);
+        assertTrue(lateCount < 2 * GattOperationTracker.kMaxWritesInFlight);
+        assertTrue(tracker.isIdle());
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        final GattOperationTracker tracker = new GattOperationTracker();
+        tracker.onWriteStarted(0, 20);
+        tracker.onWriteStarted(0, 20);
+        tracker.reset();
+        assertTrue(tracker.isIdle());
+        assertEquals(GattOperationTracker.RESULT_UNEXPECTED, tracker.onCallback());
+    }
+
+    // A drain thread starts writes and gives up from time to time, while a "stack" thread calls back in order.
+    // The writes in flight never go negative or over the limit, and every callback is either a completion or a late one
+    @Test
+    public void concurrentCallbacksAndGiveUps() throws InterruptedException {
+        final int maxWritesInFlight = 8;
+        final int writesCount = 20000;
+        final GattOperationTracker tracker = new GattOperationTracker();
+        final ConcurrentLinkedQueue<Integer> stack = new ConcurrentLinkedQueue<Integer>();
+        final AtomicBoolean isDone = new AtomicBoolean();
+        final AtomicBoolean isInvalid = new AtomicBoolean();
+        final long[] callbacks = new long[4];
+
+        final Thread stackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!isDone.get() || !stack.isEmpty()) {
+                    if (stack.poll() != null) {
+                        final int result = tracker.onCallback();
+                        callbacks[result]++;
+                        final int writesInFlight = tracker.getWritesInFlight();
+                        if (writesInFlight < 0 || writesInFlight > maxWritesInFlight) {
+                            isInvalid.set(true);
+                        }
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        stackThread.start();
+
+        long givenUp = 0;
+        for (int i = 0; i < writesCount; i++) {
+            while (tracker.getWritesInFlight() >= maxWritesInFlight) {
+                if (i % 100 == 0) {
+                    givenUp += GattOperationTracker.getWritesCount(tracker.giveUp());
+                }
+                Thread.yield();
+            }
+            tracker.onWriteStarted(0, 20);
+            stack.add(i);
+        }
+        isDone.set(true);
+        stackThread.join();
+
+        assertFalse(isInvalid.get());
+        assertTrue(tracker.isIdle());
+        assertEquals(0, callbacks[GattOperationTracker.RESULT_UNEXPECTED]);
+        assertEquals(writesCount, callbacks[GattOperationTracker.RESULT_WRITE_COMPLETED] + callbacks[GattOperationTracker.RESULT_LATE]);
+        assertEquals(givenUp, callbacks[GattOperationTracker.RESULT_LATE]);
+    }
+}
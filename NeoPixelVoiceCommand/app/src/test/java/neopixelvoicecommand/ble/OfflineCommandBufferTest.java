@@ -0,0 +1,129 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineCommandBufferTest {
+
+    // Records the replayed commands. Refuses them after maxCommands (i.e. the connection is lost again during the replay)
+    private static class RecordingSink implements OfflineCommandBuffer.Sink {
+        final List<Integer> targets = new ArrayList<Integer>();
+        final List<String> commands = new ArrayList<String>();
+        int maxCommands = Integer.MAX_VALUE;
+
+        @Override
+        public boolean onCommand(int target, byte[] data, int offset, int length) {
+            if (commands.size() >= maxCommands) {
+                return false;
+            }
+            targets.add(target);
+            commands.add(new String(data, offset, length));
+            return true;
+        }
+    }
+
+    private static void put(OfflineCommandBuffer buffer, int target, String command) {
+        final byte[] data = command.getBytes();
+        buffer.put(target, data, 0, data.length);
+    }
+
+    @Test
+    public void latestCommandForEachTarget() {
+        final OfflineCommandBuffer buffer = new OfflineCommandBuffer();
+        put(buffer, 1, "!Cred");
+        put(buffer, 2, "!Cblue");
+        put(buffer, 1, "!Cgreen");          // replaces the first one, and is replayed after target 2
+
+        final RecordingSink sink = new RecordingSink();
+        assertEquals(2, buffer.replay(sink));
+        assertEquals(2, (int) sink.targets.get(0));
+        assertEquals("!Cblue", sink.commands.get(0));
+        assertEquals("!Cgreen", sink.commands.get(1));
+        assertEquals(1, buffer.getReplacedCount());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void oldestTargetIsDroppedWhenFull() {
+        final OfflineCommandBuffer buffer = new OfflineCommandBuffer(2, 64);
+        put(buffer, 1, "a");
+        put(buffer, 2, "b");
+        put(buffer, 3, "c");
+
+        final RecordingSink sink = new RecordingSink();
+        buffer.replay(sink);
+        assertEquals(2, (int) sink.targets.get(0));
+        assertEquals(3, (int) sink.targets.get(1));
+        assertEquals(1, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void commandsMadeOfSeveralPackets() {
+        final OfflineCommandBuffer buffer = new OfflineCommandBuffer(4, 8);
+        buffer.begin(1);
+        buffer.append("!P1".getBytes(), 0, 3);
+        buffer.append("!P2".getBytes(), 0, 3);
+
+        // Too long: partially replaying it would be wrong
+        buffer.begin(2);
+        buffer.append("!P1".getBytes(), 0, 3);
+        buffer.append("!P2".getBytes(), 0, 3);
+        buffer.append("!P3".getBytes(), 0, 3);
+
+        final RecordingSink sink = new RecordingSink();
+        assertEquals(1, buffer.replay(sink));
+        assertEquals("!P1!P2", sink.commands.get(0));
+        assertEquals(1, buffer.getDroppedCount());
+    }
+
+    // The commands that could not be sent are kept, in order, for the next replay
+    @Test
+    public void replayKeepsTheCommandsNotSent() {
+        final OfflineCommandBuffer buffer = new OfflineCommandBuffer();
+        put(buffer, 1, "one");
+        put(buffer, 2, "two");
+        put(buffer, 3, "three");
+
+        final RecordingSink offline = new RecordingSink();
+        offline.maxCommands = 0;
+        assertEquals(0, buffer.replay(offline));
+        assertEquals(3, buffer.size());
+
+        final RecordingSink interrupted = new RecordingSink();
+        interrupted.maxCommands = 1;
+        assertEquals(1, buffer.replay(interrupted));
+        assertEquals("one", interrupted.commands.get(0));
+        assertEquals(2, buffer.size());
+
+        // A new command for a pending target still replaces it
+        put(buffer, 3, "THREE");
+        put(buffer, 4, "four");
+
+        final RecordingSink sink = new RecordingSink();
+        assertEquals(3, buffer.replay(sink));
+        assertEquals("two", sink.commands.get(0));
+        assertEquals("THREE", sink.commands.get(1));
+        assertEquals("four", sink.commands.get(2));
+        assertTrue(buffer.isEmpty());
+        assertEquals(4, buffer.getReplayedCount());
+    }
+
+    // Entries are reused: a replayed command doesn't leak into the next ones
+    @Test
+    public void entriesAreReused() {
+        final OfflineCommandBuffer buffer = new OfflineCommandBuffer(2, 64);
+        for (int i = 0; i < 10; i++) {
+            put(buffer, i % 3, "command" + i);
+            put(buffer, 10, "x");
+            final RecordingSink sink = new RecordingSink();
+            buffer.replay(sink);
+            assertArrayEquals(new Object[]{"command" + i, "x"}, sink.commands.toArray());
+        }
+    }
+}
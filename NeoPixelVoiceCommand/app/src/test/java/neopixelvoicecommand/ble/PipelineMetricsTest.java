@@ -0,0 +1,151 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Times are passed explicitly, in nanoseconds, like the executor does with System.nanoTime()
+public class PipelineMetricsTest {
+    private static final double kMaxRelativeError = 1.0 / 32;          // of the histogram buckets
+    private static final long kMillis = 1000000L;
+    private static final long kStartTime = 1000 * kMillis;              // 0 is "no command" for the metrics
+
+    private static void assertRecorded(AtomicHistogram.Snapshot snapshot, long expected) {
+        assertEquals(1, snapshot.getCount());
+        final long value = snapshot.getValueAtPercentile(50);
+        assertTrue(value + " for " + expected, value >= expected && value <= expected * (1 + kMaxRelativeError));
+    }
+
+    // region Queue wait and round trip
+    @Test
+    public void queueWaitAndRoundTrip() {
+        final PipelineMetrics metrics = new PipelineMetrics(kStartTime);
+        final long queuedTime = metrics.onWriteQueued(kStartTime + 10 * kMillis);
+        metrics.onWriteStarted(queuedTime, queuedTime + 3 * kMillis);
+        metrics.onWriteCompleted(queuedTime, 7 * kMillis, 20, queuedTime + 10 * kMillis);
+
+        final PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+        assertRecorded(snapshot.queueWait, 3 * kMillis);
+        assertRecorded(snapshot.writeRoundTrip, 7 * kMillis);
+    }
+    // endregion
+
+    // region Command latency
+    // From beginCommand to the completion of the last write queued for the command
+    @Test
+    public void commandLatency() {
+        final PipelineMetrics metrics = new PipelineMetrics(kStartTime);
+        final long commandStartTime = metrics.beginCommand(kStartTime + 100 * kMillis);
+        final long firstQueuedTime = metrics.onWriteQueued(kStartTime + 101 * kMillis);
+        final long lastQueuedTime = metrics.onWriteQueued(kStartTime + 102 * kMillis);
+        metrics.endCommand(commandStartTime);
+
+        // The first write doesn't end the command
+        metrics.onWriteCompleted(firstQueuedTime, kMillis, 20, kStartTime + 120 * kMillis);
+        assertEquals(0, metrics.snapshot().commandLatency.getCount());
+
+        metrics.onWriteCompleted(lastQueuedTime, kMillis, 20, kStartTime + 140 * kMillis);
+        assertRecorded(metrics.snapshot().commandLatency, 40 * kMillis);
+
+        // Measured once
+        metrics.onWriteCompleted(metrics.onWriteQueued(kStartTime + 150 * kMillis), kMillis, 20, kStartTime + 160 * kMillis);
+        assertEquals(1, metrics.snapshot().commandLatency.getCount());
+    }
+
+    // The last write of the command was coalesced into a later one: the command ends when that one completes
+    @Test
+    public void commandEndsWithTheWriteThatSupersedesIt() {
+        final PipelineMetrics metrics = new PipelineMetrics(kStartTime);
+        final long commandStartTime = metrics.beginCommand(kStartTime + 100 * kMillis);
+        metrics.onWriteQueued(kStartTime + 101 * kMillis);
+        metrics.endCommand(commandStartTime);
+
+        final long supersedingQueuedTime = metrics.onWriteQueued(kStartTime + 130 * kMillis);
+        metrics.onWriteCompleted(supersedingQueuedTime, kMillis, 20, kStartTime + 150 * kMillis);
+        assertRecorded(metrics.snapshot().commandLatency, 50 * kMillis);
+    }
+
+    // A command that didn't queue anything (i.e. offline) is not measured, even if other writes complete later
+    @Test
+    public void commandWithoutWritesIsNotMeasured() {
+        final PipelineMetrics metrics = new PipelineMetrics(kStartTime);
+        metrics.endCommand(metrics.beginCommand(kStartTime + 100 * kMillis));
+        metrics.onWriteCompleted(metrics.onWriteQueued(kStartTime + 110 * kMillis), kMillis, 20, kStartTime + 120 * kMillis);
+        assertEquals(0, metrics.snapshot().commandLatency.getCount());
+    }
+
+    // Only the last command is measured: the writes of the previous one don't end it
+    @Test
+    public void newCommandReplacesThePreviousOne() {
+        final PipelineMetrics metrics = new PipelineMetrics(kStartTime);
+        final long firstStartTime = metrics.beginCommand(kStartTime + 100 * kMillis);
+        final long firstQueuedTime = metrics.onWriteQueued(kStartTime + 101 * kMillis);
+        metrics.endCommand(firstStartTime);
+
+        final long secondStartTime = metrics.beginCommand(kStartTime + 200 * kMillis);
+        final long secondQueuedTime = metrics.onWriteQueued(kStartTime + 201 * kMillis);
+        metrics.endCommand(secondStartTime);
+
+        metrics.onWriteCompleted(firstQueuedTime, kMillis, 20, kStartTime + 210 * kMillis);
+        assertEquals(0, metrics.snapshot().commandLatency.getCount());
+        metrics.onWriteCompleted(secondQueuedTime, kMillis, 20, kStartTime + 230 * kMillis);
+        assertRecorded(metrics.snapshot().commandLatency, 30 * kMillis);
+    }
+    // endregion
+
+    // region Throughput
+    @Test
+    public void throughputIsSampledEachSecond() {
+        final PipelineMetrics metrics = new PipelineMetrics(kStartTime);
+
+        // 1000 bytes every 100ms
+        for (int i = 1; i < 10; i++) {
+            metrics.onWriteCompleted(kStartTime, kMillis, 1000, kStartTime + i * 100 * kMillis);
+        }
+        assertEquals(0, metrics.snapshot().throughput.getCount());
+        metrics.onWriteCompleted(kStartTime, kMillis, 1000, kStartTime + 1000 * kMillis);
+        assertRecorded(metrics.snapshot().throughput, 10000);
+
+        // The next window starts empty
+        metrics.onWriteCompleted(kStartTime, kMillis, 3000, kStartTime + 2000 * kMillis);
+        final AtomicHistogram.Snapshot throughput = metrics.snapshot().throughput;
+        assertEquals(2, throughput.getCount());
+        assertEquals(10000, throughput.getMax());
+        final long low = throughput.getValueAtPercentile(50);
+        assertTrue(low >= 3000 && low <= 3000 * (1 + kMaxRelativeError));
+    }
+
+    // A window that spans an idle period is scaled to its duration
+    @Test
+    public void idleTimeLowersTheThroughput() {
+        final PipelineMetrics metrics = new PipelineMetrics(kStartTime);
+        metrics.onWriteCompleted(kStartTime, kMillis, 2000, kStartTime + 100 * kMillis);
+        metrics.onWriteCompleted(kStartTime, kMillis, 2000, kStartTime + 4000 * kMillis);
+        assertRecorded(metrics.snapshot().throughput, 1000);
+    }
+    // endregion
+
+    @Test
+    public void countersAndReset() {
+        final PipelineMetrics metrics = new PipelineMetrics(kStartTime);
+        metrics.onDrop();
+        metrics.onDrop(3);
+        metrics.onRetry();
+        metrics.onTimeout();
+        metrics.onTimeout();
+        metrics.onWriteCompleted(metrics.onWriteQueued(kStartTime), kMillis, 20, kStartTime + kMillis);
+
+        final PipelineMetrics.Snapshot snapshot = metrics.snapshotAndReset();
+        assertEquals(4, snapshot.dropsCount);
+        assertEquals(1, snapshot.retriesCount);
+        assertEquals(2, snapshot.timeoutsCount);
+        assertEquals(1, snapshot.writeRoundTrip.getCount());
+
+        final PipelineMetrics.Snapshot empty = metrics.snapshot();
+        assertEquals(0, empty.dropsCount);
+        assertEquals(0, empty.retriesCount);
+        assertEquals(0, empty.timeoutsCount);
+        assertEquals(0, empty.writeRoundTrip.getCount());
+    }
+}
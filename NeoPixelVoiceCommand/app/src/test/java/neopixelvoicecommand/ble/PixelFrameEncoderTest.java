@@ -0,0 +1,182 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PixelFrameEncoderTest {
+    // Strip lengths: small strip, LED_STRIP_LEN of rpi-lightpicker, and a long strip that needs 16 bit start indices
+    private static final int[] kStripLengths = {60, 160, 1000};
+
+    // Collects the results of decoding each packet as soon as it is encoded
+    private static class DecoderSink implements PixelFrameEncoder.PacketSink {
+        final PixelFrameDecoder decoder;
+        final List<Integer> results = new ArrayList<Integer>();
+        final List<byte[]> packets = new ArrayList<byte[]>();
+
+        DecoderSink(PixelFrameDecoder decoder) {
+            this.decoder = decoder;
+        }
+
+        @Override
+        public void onPacket(byte[] buffer, int offset, int length) {
+            packets.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            results.add(decoder.decode(buffer, offset, length));
+        }
+
+        int getLastResult() {
+            return results.get(results.size() - 1);
+        }
+    }
+
+    private static int[] createRandomImage(int length, long seed) {
+        final Random random = new Random(seed);
+        final int[] pixels = new int[length];
+        for (int i = 0; i < length; i++) {
+            pixels[i] = random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+
+    // Rainbow-like image with long runs of the same color
+    private static int[] createBandsImage(int length, int bandLength) {
+        final int[] pixels = new int[length];
+        for (int i = 0; i < length; i++) {
+            pixels[i] = ((i / bandLength) * 0x3C1F07) & 0xFFFFFF;
+        }
+        return pixels;
+    }
+
+    @Test
+    public void rawFrameRoundTrip() {
+        for (int length : kStripLengths) {
+            final int[] pixels = createRandomImage(length, length);
+            final PixelFrameEncoder encoder = new PixelFrameEncoder();
+            final DecoderSink sink = new DecoderSink(new PixelFrameDecoder(length));
+
+            final int packetsCount = encoder.encode(pixels, 0, length, sink);
+            assertEquals(encoder.getRawPacketsCount(length), packetsCount);
+            assertEquals(packetsCount, sink.packets.size());
+            for (int i = 0; i < packetsCount - 1; i++) {
+                assertEquals("length " + length, PixelFrameDecoder.RESULT_PARTIAL, (int) sink.results.get(i));
+            }
+            assertEquals(PixelFrameDecoder.RESULT_FRAME_COMPLETE, sink.getLastResult());
+            assertArrayEquals("length " + length, pixels, sink.decoder.getPixels());
+            assertEquals(0, sink.decoder.getLastCompleteFrame());
+        }
+    }
+
+    @Test
+    public void runFrameRoundTrip() {
+        for (int length : kStripLengths) {
+            final int[] pixels = createBandsImage(length, 7);
+            final PixelFrameEncoder encoder = new PixelFrameEncoder();
+            final DecoderSink sink = new DecoderSink(new PixelFrameDecoder(length));
+
+            encoder.beginFrame();
+            final int packetsCount = encoder.writeRunSpan(pixels, 0, length, true, sink);
+            assertEquals(encoder.getRunPacketsCount(pixels, 0, length), packetsCount);
+            assertEquals(PixelFrameDecoder.RESULT_FRAME_COMPLETE, sink.getLastResult());
+            assertArrayEquals("length " + length, pixels, sink.decoder.getPixels());
+        }
+    }
+
+    // Runs longer than kMaxRunLength are split
+    @Test
+    public void longRunsRoundTrip() {
+        for (int length : kStripLengths) {
+            final int[] pixels = new int[length];
+            Arrays.fill(pixels, 0xFF8000);
+            final PixelFrameEncoder encoder = new PixelFrameEncoder();
+            final DecoderSink sink = new DecoderSink(new PixelFrameDecoder(length));
+
+            encoder.beginFrame();
+            encoder.writeRunSpan(pixels, 0, length, true, sink);
+            assertEquals(PixelFrameDecoder.RESULT_FRAME_COMPLETE, sink.getLastResult());
+            assertArrayEquals("length " + length, pixels, sink.decoder.getPixels());
+        }
+    }
+
+    // A frame built from raw and run spans, and a second frame that only updates part of the strip
+    @Test
+    public void mixedSpansAndPartialUpdate() {
+        for (int length : kStripLengths) {
+            final int[] pixels = createBandsImage(length, 12);
+            final int[] noise = createRandomImage(length, 7);
+            System.arraycopy(noise, 0, pixels, length / 3, length / 3);
+            final PixelFrameEncoder encoder = new PixelFrameEncoder();
+            final DecoderSink sink = new DecoderSink(new PixelFrameDecoder(length));
+
+            encoder.beginFrame();
+            encoder.writeRunSpan(pixels, 0, length / 3, false, sink);
+            encoder.writeRawSpan(pixels, length / 3, length / 3, false, sink);
+            encoder.writeRunSpan(pixels, 2 * (length / 3), length - 2 * (length / 3), true, sink);
+            assertEquals(PixelFrameDecoder.RESULT_FRAME_COMPLETE, sink.getLastResult());
+            assertArrayEquals("length " + length, pixels, sink.decoder.getPixels());
+
+            // Only the second half changes
+            final int[] updated = pixels.clone();
+            Arrays.fill(updated, length / 2, length, 0x00FF00);
+            encoder.beginFrame();
+            encoder.writeRunSpan(updated, length / 2, length - length / 2, true, sink);
+            assertEquals(PixelFrameDecoder.RESULT_FRAME_COMPLETE, sink.getLastResult());
+            assertArrayEquals("length " + length, updated, sink.decoder.getPixels());
+            assertEquals(1, sink.decoder.getLastCompleteFrame());
+        }
+    }
+
+    // A lost packet is reported, and the pixels of the other packets are still applied
+    @Test
+    public void lostPacket() {
+        final int length = 160;
+        final int[] pixels = createRandomImage(length, 1);
+        final PixelFrameEncoder encoder = new PixelFrameEncoder();
+        final DecoderSink encoded = new DecoderSink(new PixelFrameDecoder(length));
+        encoder.encode(pixels, 0, length, encoded);
+
+        final PixelFrameDecoder decoder = new PixelFrameDecoder(length);
+        final int lostPacket = 1;
+        int result = PixelFrameDecoder.RESULT_INVALID;
+        for (int i = 0; i < encoded.packets.size(); i++) {
+            if (i != lostPacket) {
+                final byte[] packet = encoded.packets.get(i);
+                result = decoder.decode(packet, 0, packet.length);
+            }
+        }
+        assertEquals(PixelFrameDecoder.RESULT_FRAME_INCOMPLETE, result);
+        assertEquals(-1, decoder.getLastCompleteFrame());
+
+        final int pixelsPerPacket = encoder.getPixelsPerPacket();
+        for (int i = 0; i < length; i++) {
+            final boolean isLost = i >= lostPacket * pixelsPerPacket && i < (lostPacket + 1) * pixelsPerPacket;
+            assertEquals(isLost ? 0 : pixels[i], decoder.getPixels()[i]);
+        }
+    }
+
+    // Corrupted packets and packets that don't fit the strip are ignored
+    @Test
+    public void invalidPackets() {
+        final int[] pixels = createRandomImage(60, 2);
+        final PixelFrameEncoder encoder = new PixelFrameEncoder();
+        final DecoderSink encoded = new DecoderSink(new PixelFrameDecoder(60));
+        encoder.encode(pixels, 0, 60, encoded);
+        final byte[] packet = encoded.packets.get(0);
+
+        final byte[] corrupted = packet.clone();
+        corrupted[PixelFrameEncoder.kHeaderLength] ^= 0x01;
+        final PixelFrameDecoder decoder = new PixelFrameDecoder(60);
+        assertEquals(PixelFrameDecoder.RESULT_INVALID, decoder.decode(corrupted, 0, corrupted.length));
+        assertEquals(PixelFrameDecoder.RESULT_INVALID, decoder.decode(packet, 0, packet.length - 1));
+
+        final byte[] lastPacket = encoded.packets.get(encoded.packets.size() - 1);
+        final PixelFrameDecoder shortStrip = new PixelFrameDecoder(10);
+        assertEquals(PixelFrameDecoder.RESULT_INVALID, shortStrip.decode(lastPacket, 0, lastPacket.length));
+        assertArrayEquals(new int[10], shortStrip.getPixels());
+    }
+}
@@ -0,0 +1,252 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReconnectSupervisorTest {
+    private static final long kInitialDelay = ReconnectSupervisor.kDefaultInitialDelay;
+    private static final long kMaxDelay = ReconnectSupervisor.kDefaultMaxDelay;
+
+    // Supervisor on simulated time: attempts of at most 100, 200, 400 ... 1000ms, and 500ms to get the device ready
+    private static final long kTestInitialDelay = 100;
+    private static final long kTestMaxDelay = 1000;
+    private static final int kTestMaxAttempts = 4;
+    private static final long kTestAttemptTimeout = 500;
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final BleManager mManager = mock(BleManager.class);
+    private final BleConnection mConnection = mock(BleConnection.class);
+    private ReconnectSupervisor mSupervisor;
+
+    @Before
+    public void setUp() {
+        when(mManager.getPrimaryConnection()).thenReturn(mConnection);
+        mSupervisor = new ReconnectSupervisor(mManager, mScheduler.handler, mScheduler);
+        mSupervisor.setBackoff(kTestInitialDelay, kTestMaxDelay, kTestMaxAttempts, kTestAttemptTimeout);
+    }
+
+    @Test
+    public void backoffDoubles() {
+        for (int attempt = 0; attempt < 6; attempt++) {
+            final long delay = kInitialDelay << attempt;
+            assertEquals(delay / 2, ReconnectSupervisor.getBackoffDelay(kInitialDelay, kMaxDelay, attempt, 0));
+            assertEquals(delay, ReconnectSupervisor.getBackoffDelay(kInitialDelay, kMaxDelay, attempt, 1));
+        }
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        assertEquals(kMaxDelay, ReconnectSupervisor.getBackoffDelay(kInitialDelay, kMaxDelay, 10, 1));
+        assertEquals(kMaxDelay / 2, ReconnectSupervisor.getBackoffDelay(kInitialDelay, kMaxDelay, 10, 0));
+
+        // Doesn't overflow after many attempts
+        assertEquals(kMaxDelay, ReconnectSupervisor.getBackoffDelay(kInitialDelay, kMaxDelay, 1000, 1));
+    }
+
+    // Equal jitter: the delay is always between half and all of the exponential delay
+    @Test
+    public void backoffJitter() {
+        for (int i = 0; i <= 100; i++) {
+            final double random = i / 100.0;
+            final long delay = ReconnectSupervisor.getBackoffDelay(kInitialDelay, kMaxDelay, 3, random);
+            assertTrue(delay >= 1000 && delay <= 2000);
+        }
+    }
+
+    // With the default settings the attempts take ~3 minutes before giving up
+    @Test
+    public void defaultAttemptsDuration() {
+        long minTotal = 0;
+        long maxTotal = 0;
+        for (int attempt = 0; attempt < ReconnectSupervisor.kDefaultMaxAttempts; attempt++) {
+            minTotal += ReconnectSupervisor.getBackoffDelay(kInitialDelay, kMaxDelay, attempt, 0);
+            maxTotal += ReconnectSupervisor.getBackoffDelay(kInitialDelay, kMaxDelay, attempt, 1);
+        }
+        assertTrue(minTotal >= 90 * 1000);
+        assertTrue(maxTotal <= 200 * 1000);
+    }
+
+    // region Supervision
+    // Only a device that has been ready is reconnected
+    @Test
+    public void dropBeforeReadyIsIgnored() {
+        mSupervisor.onDisconnected(false);
+        assertFalse(mSupervisor.isReconnecting());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        when(mManager.reconnectToLastDevice()).thenReturn(false);
+        mSupervisor.onReady();
+        mSupervisor.onDisconnected(false);
+        assertTrue(mSupervisor.isReconnecting());
+
+        mScheduler.advance(10 * kTestMaxDelay);
+        verify(mManager, times(kTestMaxAttempts)).reconnectToLastDevice();
+        assertEquals(kTestMaxAttempts, mSupervisor.getAttemptsCount());
+        assertEquals(1, mSupervisor.getGiveUpsCount());
+        assertEquals(0, mSupervisor.getReconnectionsCount());
+        assertFalse(mSupervisor.isReconnecting());
+        assertEquals(0, mScheduler.getPendingCount());
+
+        // No longer supervising: the next drop is ignored until the device is ready again
+        mSupervisor.onDisconnected(false);
+        assertFalse(mSupervisor.isReconnecting());
+    }
+
+    // An attempt that doesn't get the device ready in time is cancelled, and counts towards the maximum
+    @Test
+    public void attemptTimeout() {
+        when(mManager.reconnectToLastDevice()).thenReturn(true);
+        mSupervisor.onReady();
+        mSupervisor.onDisconnected(false);
+
+        final long firstDelay = mScheduler.getNextDelay();
+        assertTrue(firstDelay >= kTestInitialDelay / 2 && firstDelay <= kTestInitialDelay);
+        mScheduler.advance(firstDelay);
+        verify(mManager, times(1)).reconnectToLastDevice();
+        assertEquals(kTestAttemptTimeout, mScheduler.getNextDelay());
+        mScheduler.advance(kTestAttemptTimeout - 1);
+        verify(mConnection, never()).disconnect();
+
+        mScheduler.advance(1);
+        verify(mConnection, times(1)).disconnect();
+        assertTrue(mSupervisor.isReconnecting());
+
+        // Second attempt, after its backoff. Then the device gets ready
+        final long delay = mScheduler.getNextDelay();
+        assertTrue(delay >= kTestInitialDelay && delay <= 2 * kTestInitialDelay);
+        mScheduler.advance(delay);
+        verify(mManager, times(2)).reconnectToLastDevice();
+        mScheduler.advance(kTestAttemptTimeout / 2);
+        mSupervisor.onReady();
+        assertFalse(mSupervisor.isReconnecting());
+        assertEquals(0, mScheduler.getPendingCount());
+        assertEquals(1, mSupervisor.getReconnectionsCount());
+        verify(mConnection, times(1)).disconnect();
+    }
+
+    @Test
+    public void timedOutAttemptsGiveUp() {
+        when(mManager.reconnectToLastDevice()).thenReturn(true);
+        mSupervisor.onReady();
+        mSupervisor.onDisconnected(false);
+        mScheduler.advance(kTestMaxAttempts * (kTestMaxDelay + kTestAttemptTimeout));
+        verify(mManager, times(kTestMaxAttempts)).reconnectToLastDevice();
+        verify(mConnection, times(kTestMaxAttempts)).disconnect();
+        assertEquals(1, mSupervisor.getGiveUpsCount());
+        assertFalse(mSupervisor.isReconnecting());
+    }
+
+    // A reconnection started by the connection after a stall is given the time of an attempt before the supervisor steps in
+    @Test
+    public void stallReconnectIsLeftAlone() {
+        mSupervisor.onReady();
+        mSupervisor.onDisconnected(true);
+        assertTrue(mSupervisor.isReconnecting());
+        mScheduler.advance(kTestAttemptTimeout - 1);
+        mSupervisor.onReady();
+
+        mScheduler.advance(10 * kTestMaxDelay);
+        verify(mManager, never()).reconnectToLastDevice();
+        verify(mConnection, never()).disconnect();
+        assertEquals(1, mSupervisor.getReconnectionsCount());
+        assertEquals(0, mSupervisor.getAttemptsCount());
+        assertEquals(kTestAttemptTimeout - 1, mSupervisor.getReconnectTimePercentile(50));
+    }
+
+    @Test
+    public void failedStallReconnectIsFollowedUp() {
+        when(mManager.reconnectToLastDevice()).thenReturn(true);
+        mSupervisor.onReady();
+        mSupervisor.onDisconnected(true);
+        mScheduler.advance(kTestAttemptTimeout);
+        verify(mConnection, times(1)).disconnect();
+        verify(mManager, never()).reconnectToLastDevice();
+
+        // The disconnection of the cancelled stall reconnection doesn't schedule a second attempt
+        mSupervisor.onDisconnected(false);
+        mScheduler.advance(kTestInitialDelay);
+        verify(mManager, times(1)).reconnectToLastDevice();
+        mSupervisor.onReady();
+        assertEquals(1, mSupervisor.getReconnectionsCount());
+        assertEquals(1, mSupervisor.getAttemptsCount());
+    }
+
+    // The app disconnected: no attempts
+    @Test
+    public void stopCancelsTheAttempts() {
+        mSupervisor.onReady();
+        mSupervisor.onDisconnected(false);
+        mSupervisor.stop();
+        assertFalse(mSupervisor.isReconnecting());
+        mScheduler.advance(10 * kTestMaxDelay);
+        verify(mManager, never()).reconnectToLastDevice();
+    }
+
+    @Test
+    public void disabledDoesNotReconnect() {
+        mSupervisor.onReady();
+        mSupervisor.setEnabled(false);
+        mSupervisor.onDisconnected(false);
+        assertFalse(mSupervisor.isReconnecting());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+    // endregion
+
+    // region Stats
+    // Time from the drop to the device ready
+    private void reconnect(long reconnectTime) {
+        mSupervisor.onDisconnected(true);
+        mScheduler.advance(reconnectTime);
+        mSupervisor.onReady();
+    }
+
+    @Test
+    public void reconnectTimePercentiles() {
+        assertEquals(-1, mSupervisor.getReconnectTimePercentile(50));
+        mSupervisor.onReady();
+        assertEquals(-1, mSupervisor.getReconnectTimePercentile(50));
+
+        for (int i = 10; i >= 1; i--) {
+            reconnect(i * 10);
+        }
+        assertEquals(10, mSupervisor.getReconnectionsCount());
+        assertEquals(10, mSupervisor.getReconnectTimePercentile(0));
+        assertEquals(10, mSupervisor.getReconnectTimePercentile(10));
+        assertEquals(50, mSupervisor.getReconnectTimePercentile(50));
+        assertEquals(90, mSupervisor.getReconnectTimePercentile(90));
+        assertEquals(100, mSupervisor.getReconnectTimePercentile(99));
+        assertEquals(100, mSupervisor.getReconnectTimePercentile(100));
+    }
+
+    // Only the last 64 reconnections are kept
+    @Test
+    public void reconnectTimesAreWindowed() {
+        mSupervisor.onReady();
+        for (int i = 0; i < 64; i++) {
+            reconnect(400);
+        }
+        for (int i = 0; i < 32; i++) {
+            reconnect(100);
+        }
+        assertEquals(96, mSupervisor.getReconnectionsCount());
+        assertEquals(100, mSupervisor.getReconnectTimePercentile(50));
+        assertEquals(400, mSupervisor.getReconnectTimePercentile(51));
+        for (int i = 0; i < 32; i++) {
+            reconnect(100);
+        }
+        assertEquals(100, mSupervisor.getReconnectTimePercentile(100));
+    }
+    // endregion
+}
@@ -0,0 +1,262 @@
+package neopixelvoicecommand.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// ReliableSender against the reference peripheral (ReliableReceiver) over a simulated uart link with configurable loss, corruption and latency.
+// Time is simulated (1ms steps), so the tests are deterministic and don't wait for the retransmission timeouts
+public class ReliableLoopbackTest {
+    private static final int kPacketsCount = 1000;
+    private static final long kPacketInterval = 5;          // milliseconds between packets offered to the sender
+    private static final long kMaxSimulatedTime = 10 * 60 * 1000;
+
+    // region Simulator
+    private static class Transfer {
+        final long time;
+        final long order;
+        final boolean isToPeripheral;
+        final byte[] data;
+
+        Transfer(long time, long order, boolean isToPeripheral, byte[] data) {
+            this.time = time;
+            this.order = order;
+            this.isToPeripheral = isToPeripheral;
+            this.data = data;
+        }
+    }
+
+    private static class LoopbackSimulator {
+        // Link
+        private final double mLossRate;
+        private final double mCorruptionRate;
+        private final long mLatency;                // milliseconds, each direction
+        private final Random mRandom = new Random(42);
+        private final PriorityQueue<Transfer> mInFlight = new PriorityQueue<Transfer>(64, new Comparator<Transfer>() {
+            @Override
+            public int compare(Transfer a, Transfer b) {
+                return a.time != b.time ? (a.time < b.time ? -1 : 1) : (a.order < b.order ? -1 : (a.order == b.order ? 0 : 1));
+            }
+        });
+        private long mTransfersCount;
+        private long mNow;
+        private boolean mIsPeripheralOnline = true;
+
+        // Endpoints
+        final ReliableSender mSender;
+        ReliableReceiver mReceiver;
+        final List<byte[]> mDelivered = new ArrayList<byte[]>();
+
+        LoopbackSimulator(double lossRate, double corruptionRate, long latency) {
+            mLossRate = lossRate;
+            mCorruptionRate = corruptionRate;
+            mLatency = latency;
+            mSender = new ReliableSender(new ReliableSender.Link() {
+                @Override
+                public void send(byte[] frame, int offset, int length) {
+                    transfer(true, frame, offset, length);
+                }
+            });
+            restartPeripheral();
+        }
+
+        // The peripheral loses its state (i.e. it has been reset)
+        void restartPeripheral() {
+            mReceiver = new ReliableReceiver(ReliableSender.kDefaultWindowSize, new ReliableSender.Link() {
+                @Override
+                public void send(byte[] frame, int offset, int length) {
+                    transfer(false, frame, offset, length);
+                }
+            }, new PixelFrameEncoder.PacketSink() {
+                @Override
+                public void onPacket(byte[] buffer, int offset, int length) {
+                    mDelivered.add(Arrays.copyOfRange(buffer, offset, offset + length));
+                }
+            });
+        }
+
+        void setPeripheralOnline(boolean online) {
+            mIsPeripheralOnline = online;
+        }
+
+        private void transfer(boolean isToPeripheral, byte[] data, int offset, int length) {
+            if (mRandom.nextDouble() < mLossRate) {
+                return;
+            }
+            final byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+            if (mRandom.nextDouble() < mCorruptionRate) {
+                copy[mRandom.nextInt(length)] ^= 1 << mRandom.nextInt(8);
+            }
+            mInFlight.add(new Transfer(mNow + mLatency, mTransfersCount++, isToPeripheral, copy));
+        }
+
+        // Advances the simulated time one millisecond
+        void step() {
+            mNow++;
+            while (!mInFlight.isEmpty() && mInFlight.peek().time <= mNow) {
+                final Transfer transfer = mInFlight.poll();
+                if (transfer.isToPeripheral) {
+                    if (mIsPeripheralOnline) {
+                        mReceiver.onFrame(transfer.data, 0, transfer.data.length);
+                    }
+                } else {
+                    mSender.onReceived(transfer.data, 0, transfer.data.length, mNow);
+                }
+            }
+
+            final long timeout = mSender.getNextTimeout();
+            if (timeout >= 0 && timeout <= mNow) {
+                mSender.onTimer(mNow);
+            }
+        }
+
+        // Offers the packets at a fixed rate (waiting while the sender backlog is half full), and runs until they have been delivered or given up
+        void run(int firstPacket, int packetsCount) {
+            int next = firstPacket;
+            long nextPacketTime = mNow;
+            while (mNow < kMaxSimulatedTime) {
+                if (next < firstPacket + packetsCount && mNow >= nextPacketTime && mSender.getBacklogCount() < 16) {
+                    final byte[] packet = createPacket(next++);
+                    assertTrue(mSender.send(packet, 0, packet.length, mNow));
+                    nextPacketTime = mNow + kPacketInterval;
+                }
+                if (next == firstPacket + packetsCount && mSender.getInFlightCount() == 0 && mSender.getBacklogCount() == 0) {
+                    break;
+                }
+                step();
+            }
+        }
+
+        long getNow() {
+            return mNow;
+        }
+    }
+
+    // !C <index hi> <index lo> <check>
+    private static byte[] createPacket(int index) {
+        return new byte[]{PacketEncoder.kPacketStart, 'C', (byte) (index >> 8), (byte) index, (byte) (index * 7)};
+    }
+
+    private static int getPacketIndex(byte[] packet) {
+        assertEquals(5, packet.length);
+        assertEquals(PacketEncoder.kPacketStart, packet[0]);
+        final int index = ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+        assertEquals((byte) (index * 7), packet[4]);
+        return index;
+    }
+
+    // Packets are delivered in order and only once. Returns the number of packets skipped (given up by the sender)
+    private static int assertInOrder(List<byte[]> delivered) {
+        int skipped = 0;
+        int last = -1;
+        for (byte[] packet : delivered) {
+            final int index = getPacketIndex(packet);
+            assertTrue("packet " + index + " after " + last, index > last);
+            skipped += index - last - 1;
+            last = index;
+        }
+        return skipped;
+    }
+    // endregion
+
+    @Test
+    public void perfectLink() {
+        final LoopbackSimulator simulator = new LoopbackSimulator(0, 0, 15);
+        simulator.run(0, kPacketsCount);
+
+        assertEquals(kPacketsCount, simulator.mDelivered.size());
+        assertEquals(0, assertInOrder(simulator.mDelivered));
+        assertEquals(0, simulator.mSender.getRetransmissionsCount());
+        assertEquals(kPacketsCount, simulator.mSender.getAcksCount());
+    }
+
+    @Test
+    public void lossyLink() {
+        final LoopbackSimulator simulator = new LoopbackSimulator(0.1, 0, 15);
+        simulator.run(0, kPacketsCount);
+
+        assertEquals(kPacketsCount, simulator.mDelivered.size());
+        assertEquals(0, assertInOrder(simulator.mDelivered));
+        assertEquals(0, simulator.mSender.getFailedCount());
+        assertTrue(simulator.mSender.getRetransmissionsCount() > 0);
+        assertTrue(simulator.mSender.getNacksCount() > 0);
+        // Selective retransmission: about one retransmission per lost frame or ack, not the whole window
+        assertTrue(simulator.mSender.getRetransmissionsCount() < kPacketsCount / 2);
+    }
+
+    @Test
+    public void corruptedFramesAreRetransmitted() {
+        final LoopbackSimulator simulator = new LoopbackSimulator(0, 0.1, 15);
+        simulator.run(0, kPacketsCount);
+
+        assertEquals(kPacketsCount, simulator.mDelivered.size());
+        assertEquals(0, assertInOrder(simulator.mDelivered));
+        assertTrue(simulator.mSender.getRetransmissionsCount() > 0);
+    }
+
+    @Test
+    public void slowLink() {
+        final LoopbackSimulator simulator = new LoopbackSimulator(0.05, 0, 200);
+        simulator.run(0, kPacketsCount);
+
+        assertEquals(kPacketsCount, simulator.mDelivered.size());
+        assertEquals(0, assertInOrder(simulator.mDelivered));
+        // The retransmission timeout adapts to the round trip
+        assertTrue(simulator.mSender.getSmoothedRtt() >= 400);
+        assertTrue(simulator.mSender.getRto() > simulator.mSender.getSmoothedRtt());
+    }
+
+    // Very lossy link: frames may be given up, but the rest is still delivered in order and the session recovers
+    @Test
+    public void veryLossyLink() {
+        final LoopbackSimulator simulator = new LoopbackSimulator(0.35, 0.05, 15);
+        simulator.run(0, kPacketsCount);
+
+        final int skipped = assertInOrder(simulator.mDelivered);
+        assertTrue(skipped <= simulator.mSender.getFailedCount());
+        assertTrue(simulator.mDelivered.size() >= kPacketsCount - simulator.mSender.getFailedCount());
+    }
+
+    // The peripheral stops answering: the sender gives up on the frames instead of retrying forever, and resynchronizes when it is back
+    @Test
+    public void peripheralOffline() {
+        final LoopbackSimulator simulator = new LoopbackSimulator(0, 0, 15);
+        simulator.run(0, 100);
+        assertEquals(100, simulator.mDelivered.size());
+
+        simulator.setPeripheralOnline(false);
+        simulator.run(100, 20);
+        assertTrue(simulator.mSender.getFailedCount() > 0);
+        assertEquals(100, simulator.mDelivered.size());
+
+        simulator.setPeripheralOnline(true);
+        simulator.run(120, 100);
+        assertInOrder(simulator.mDelivered);
+        final int lastIndex = getPacketIndex(simulator.mDelivered.get(simulator.mDelivered.size() - 1));
+        assertEquals(219, lastIndex);
+        assertTrue(simulator.getNow() < kMaxSimulatedTime);
+    }
+
+    // The peripheral is reset and the sender starts a new session (as after a reconnection)
+    @Test
+    public void newSession() {
+        final LoopbackSimulator simulator = new LoopbackSimulator(0.1, 0, 15);
+        simulator.run(0, 100);
+        assertEquals(100, simulator.mDelivered.size());
+
+        simulator.restartPeripheral();
+        simulator.mSender.reset();
+        simulator.run(100, 100);
+
+        assertEquals(200, simulator.mDelivered.size());
+        assertEquals(0, assertInOrder(simulator.mDelivered));
+    }
+}
@@ -0,0 +1,287 @@
+package neopixelvoicecommand.ble;
+
+import android.os.Handler;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class UartRxPipelineTest {
+    private static final int kNotificationLength = 20;          // payload of a notification with the default mtu
+
+    // Events copied out of the pipeline (they are reused after the call)
+    private static class RecordingListener implements UartRxPipeline.Listener {
+        final List<int[]> events = new ArrayList<int[]>();
+
+        @Override
+        public synchronized void onUartEvent(UartEvent event) {
+            events.add(new int[]{event.type, event.sensor, event.value, event.sequence, event.next, event.color});
+        }
+
+        synchronized int getCount() {
+            return events.size();
+        }
+    }
+
+    // region Frames
+    private static byte[] sensorFrame(int sensor, int value) {
+        final byte[] frame = {PacketEncoder.kPacketStart, PacketEncoder.kCommandSensor, (byte) sensor, (byte) (value >> 8), (byte) value, 0};
+        frame[5] = PacketEncoder.checksum(frame, 0, 5);
+        return frame;
+    }
+
+    private static byte[] stateFrame(byte mode, int color) {
+        final byte[] frame = {PacketEncoder.kPacketStart, PacketEncoder.kCommandState, mode, (byte) (color >> 16), (byte) (color >> 8), (byte) color, 0};
+        frame[6] = PacketEncoder.checksum(frame, 0, 6);
+        return frame;
+    }
+
+    private static byte[] ackFrame(int sequence, int next) {
+        final byte[] frame = {PacketEncoder.kPacketStart, PacketEncoder.kCommandAck, (byte) sequence, (byte) next, 0, 0};
+        final int crc = Crc16.compute(frame, 0, 4);
+        frame[4] = (byte) (crc >> 8);
+        frame[5] = (byte) crc;
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            stream.write(part, 0, part.length);
+        }
+        return stream.toByteArray();
+    }
+
+    // Sends data as notifications of chunkLength bytes
+    private static void notify(UartRxPipeline pipeline, byte[] data, int chunkLength) {
+        for (int offset = 0; offset < data.length; offset += chunkLength) {
+            assertTrue(pipeline.onNotification(data, offset, Math.min(chunkLength, data.length - offset)));
+        }
+    }
+    // endregion
+
+    // region Handlers
+    // Drains on the thread that queues the notification
+    private static Handler createImmediateHandler() {
+        final Handler handler = mock(Handler.class);
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return true;
+            }
+        }).when(handler).post(any(Runnable.class));
+        return handler;
+    }
+
+    // Keeps the drain queued until the test runs it
+    private static Handler createRecordingHandler(final List<Runnable> posted) {
+        final Handler handler = mock(Handler.class);
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                posted.add((Runnable) invocation.getArguments()[0]);
+                return true;
+            }
+        }).when(handler).post(any(Runnable.class));
+        return handler;
+    }
+
+    // Drains on a consumer thread, like the pipeline thread
+    private static Handler createExecutorHandler(final ExecutorService executor) {
+        final Handler handler = mock(Handler.class);
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                executor.execute((Runnable) invocation.getArguments()[0]);
+                return true;
+            }
+        }).when(handler).post(any(Runnable.class));
+        return handler;
+    }
+    // endregion
+
+    @Test
+    public void framesAreReassembledAcrossNotifications() {
+        final UartRxPipeline pipeline = new UartRxPipeline(64);
+        final RecordingListener listener = new RecordingListener();
+        pipeline.addListener(listener);
+        pipeline.start(createImmediateHandler());
+
+        // 1 byte notifications, and notifications that end in the middle of a frame
+        final byte[] data = concat(sensorFrame(1, -300), stateFrame(PacketEncoder.kCommandColor, 0x102030), ackFrame(7, 8));
+        notify(pipeline, data, 1);
+        notify(pipeline, data, 4);
+        notify(pipeline, data, kNotificationLength);
+
+        assertEquals(9, listener.getCount());
+        for (int i = 0; i < 9; i += 3) {
+            assertEquals(UartEvent.TYPE_SENSOR, listener.events.get(i)[0]);
+            assertEquals(1, listener.events.get(i)[1]);
+            assertEquals(-300, listener.events.get(i)[2]);
+            assertEquals(UartEvent.TYPE_STATE, listener.events.get(i + 1)[0]);
+            assertEquals(0x102030, listener.events.get(i + 1)[5]);
+            assertEquals(UartEvent.TYPE_ACK, listener.events.get(i + 2)[0]);
+            assertEquals(7, listener.events.get(i + 2)[3]);
+            assertEquals(8, listener.events.get(i + 2)[4]);
+        }
+        assertEquals(9, pipeline.getFramesCount());
+        assertEquals(0, pipeline.getDiscardedBytesCount());
+    }
+
+    // Frames wrap around the end of the ring buffer
+    @Test
+    public void framesWrapAroundTheBuffer() {
+        final UartRxPipeline pipeline = new UartRxPipeline(16);
+        final RecordingListener listener = new RecordingListener();
+        pipeline.addListener(listener);
+        pipeline.start(createImmediateHandler());
+
+        for (int i = 0; i < 50; i++) {
+            notify(pipeline, stateFrame(PacketEncoder.kCommandColor, i), 7);
+        }
+        assertEquals(50, listener.getCount());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, listener.events.get(i)[5]);
+        }
+    }
+
+    @Test
+    public void garbageIsSkippedUntilTheNextFrame() {
+        final UartRxPipeline pipeline = new UartRxPipeline(64);
+        final RecordingListener listener = new RecordingListener();
+        pipeline.addListener(listener);
+        pipeline.start(createImmediateHandler());
+
+        // Text, a '!' with an unknown command, and a '!' inside the garbage before a frame
+        final byte[] garbage = {'h', 'i', PacketEncoder.kPacketStart, 'z', 'x', PacketEncoder.kPacketStart};
+        notify(pipeline, concat(garbage, sensorFrame(2, 5), garbage, sensorFrame(3, 6)), 5);
+
+        assertEquals(2, listener.getCount());
+        assertEquals(2, listener.events.get(0)[1]);
+        assertEquals(3, listener.events.get(1)[1]);
+        assertEquals(2 * garbage.length, pipeline.getDiscardedBytesCount());
+    }
+
+    @Test
+    public void framesWithBadChecksumAreRejected() {
+        final UartRxPipeline pipeline = new UartRxPipeline(64);
+        final RecordingListener listener = new RecordingListener();
+        pipeline.addListener(listener);
+        pipeline.start(createImmediateHandler());
+
+        final byte[] badSensor = sensorFrame(1, 100);
+        badSensor[5]++;
+        final byte[] badAck = ackFrame(3, 4);
+        badAck[5]++;
+        final byte[] badAckCrcHigh = ackFrame(3, 4);
+        badAckCrcHigh[4]++;
+        notify(pipeline, concat(badSensor, badAck, badAckCrcHigh, sensorFrame(9, 1)), kNotificationLength);
+
+        // The valid frame after them is found again
+        assertEquals(1, listener.getCount());
+        assertEquals(9, listener.events.get(0)[1]);
+        assertEquals(3, pipeline.getInvalidFramesCount());
+        assertEquals(1, pipeline.getFramesCount());
+        assertEquals(badSensor.length + badAck.length + badAckCrcHigh.length, pipeline.getDiscardedBytesCount());
+    }
+
+    @Test
+    public void overflowIsCountedAndDataIsDiscarded() {
+        final List<Runnable> posted = new ArrayList<Runnable>();
+        final UartRxPipeline pipeline = new UartRxPipeline(16);
+        final RecordingListener listener = new RecordingListener();
+        pipeline.addListener(listener);
+        pipeline.start(createRecordingHandler(posted));
+
+        // The consumer is not running: the third frame doesn't fit
+        final byte[] frame = stateFrame(PacketEncoder.kCommandRainbow, 0);
+        assertTrue(pipeline.onNotification(frame, 0, frame.length));
+        assertTrue(pipeline.onNotification(frame, 0, frame.length));
+        assertFalse(pipeline.onNotification(frame, 0, frame.length));
+        assertEquals(3, pipeline.getNotificationsCount());
+        assertEquals(1, pipeline.getOverflowsCount());
+        assertEquals(14, pipeline.getMaxFill());
+
+        // Only one drain is queued for the burst
+        assertEquals(1, posted.size());
+        posted.remove(0).run();
+        assertEquals(2, listener.getCount());
+
+        // The space is free again
+        assertTrue(pipeline.onNotification(frame, 0, frame.length));
+        posted.remove(0).run();
+        assertEquals(3, listener.getCount());
+        assertEquals(1, pipeline.getOverflowsCount());
+    }
+
+    // Notifications at more than 100/s from a producer thread, parsed on a consumer thread. A quarter of the default buffer (~250ms of notifications) keeps up
+    // without overflowing, also when the consumer thread is not scheduled for a while
+    @Test
+    public void sustainedNotifications() throws InterruptedException {
+        final int framesCount = 600;
+        final int notificationsPerSecond = 200;
+        final ExecutorService consumer = Executors.newSingleThreadExecutor();
+        final UartRxPipeline pipeline = new UartRxPipeline(UartRxPipeline.kDefaultCapacity / 4);
+        final RecordingListener listener = new RecordingListener();
+        pipeline.addListener(listener);
+        pipeline.start(createExecutorHandler(consumer));
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < framesCount; i++) {
+            final byte[] frame = i % 2 == 0 ? sensorFrame(i & 0xFF, i) : stateFrame(PacketEncoder.kCommandColor, i);
+            stream.write(frame, 0, frame.length);
+        }
+        final byte[] data = stream.toByteArray();
+
+        final long startTime = System.nanoTime();
+        int notificationsCount = 0;
+        for (int offset = 0; offset < data.length; offset += kNotificationLength) {
+            assertTrue(pipeline.onNotification(data, offset, Math.min(kNotificationLength, data.length - offset)));
+            notificationsCount++;
+            final long nextTime = startTime + notificationsCount * TimeUnit.SECONDS.toNanos(1) / notificationsPerSecond;
+            final long waitTime = nextTime - System.nanoTime();
+            if (waitTime > 0) {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(waitTime), (int) (waitTime % 1000000));
+            }
+        }
+        final double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (listener.getCount() < framesCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pipeline.stop();
+        consumer.shutdown();
+
+        assertTrue(notificationsCount / seconds >= 100);
+        assertEquals(framesCount, listener.getCount());
+        for (int i = 0; i < framesCount; i++) {
+            final int[] event = listener.events.get(i);
+            if (i % 2 == 0) {
+                assertEquals(UartEvent.TYPE_SENSOR, event[0]);
+                assertEquals(i, event[2]);
+            } else {
+                assertEquals(UartEvent.TYPE_STATE, event[0]);
+                assertEquals(i, event[5]);
+            }
+        }
+        assertEquals(0, pipeline.getOverflowsCount());
+        assertEquals(0, pipeline.getInvalidFramesCount());
+        assertEquals(notificationsCount, pipeline.getNotificationsCount());
+    }
+}
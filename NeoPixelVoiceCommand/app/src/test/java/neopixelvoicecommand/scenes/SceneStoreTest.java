@@ -0,0 +1,176 @@
+package neopixelvoicecommand.scenes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import neopixelvoicecommand.ble.ChunkList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SceneStoreTest {
+    private static final int kCapacity = 3;
+    private static final int kPayload = 20;
+
+    // Preferences backed by a map
+    private final Map<String, Object> mValues = new HashMap<String, Object>();
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        final SharedPreferences preferences = mock(SharedPreferences.class);
+        final SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+        mContext = mock(Context.class);
+        when(mContext.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+        doAnswer(new Answer<Map<String, ?>>() {
+            @Override
+            public Map<String, ?> answer(InvocationOnMock invocation) {
+                return new HashMap<String, Object>(mValues);
+            }
+        }).when(preferences).getAll();
+        when(preferences.edit()).thenReturn(editor);
+        doAnswer(new Answer<SharedPreferences.Editor>() {
+            @Override
+            public SharedPreferences.Editor answer(InvocationOnMock invocation) {
+                mValues.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+                return editor;
+            }
+        }).when(editor).putString(anyString(), anyString());
+        doAnswer(new Answer<SharedPreferences.Editor>() {
+            @Override
+            public SharedPreferences.Editor answer(InvocationOnMock invocation) {
+                mValues.remove(invocation.getArguments()[0]);
+                return editor;
+            }
+        }).when(editor).remove(anyString());
+    }
+
+    private static Scene createScene(String name, int color) {
+        return new Scene.Builder(name).color(color).rainbow().build();
+    }
+
+    private SceneStore createStore(int scenesCount) {
+        final SceneStore store = new SceneStore(mContext, kCapacity);
+        for (int i = 0; i < scenesCount; i++) {
+            store.put(createScene("scene" + i, i));
+        }
+        return store;
+    }
+
+    @Test
+    public void scenesArePersisted() {
+        createStore(2);
+        mValues.put("broken", "2G");
+
+        // Invalid scenes are skipped when loading
+        final SceneStore store = new SceneStore(mContext, kCapacity);
+        assertEquals(2, store.getNames().size());
+        assertNotNull(store.get("scene1"));
+        assertNull(store.get("broken"));
+
+        store.remove("scene0");
+        assertEquals(1, new SceneStore(mContext, kCapacity).getNames().size());
+    }
+
+    @Test
+    public void chunksAreCached() {
+        final SceneStore store = createStore(1);
+        final ChunkList chunks = store.getChunks("scene0", kPayload);
+        assertNotNull(chunks);
+        assertSame(chunks, store.getChunks("scene0", kPayload));
+        assertEquals(1, store.getHitsCount());
+        assertEquals(1, store.getMissesCount());
+
+        // A different payload compiles the chunks again
+        final ChunkList largeChunks = store.getChunks("scene0", 244);
+        assertNotSame(chunks, largeChunks);
+        assertEquals(244, largeChunks.getMaxChunkLength());
+        assertEquals(2, store.getMissesCount());
+
+        // Unknown scenes
+        assertNull(store.getChunks("unknown", kPayload));
+        assertEquals(3, store.getMissesCount());
+    }
+
+    @Test
+    public void redefiningASceneDropsItsChunks() {
+        final SceneStore store = createStore(1);
+        final ChunkList chunks = store.getChunks("scene0", kPayload);
+        store.put(new Scene.Builder("scene0").fire().build());
+        final ChunkList newChunks = store.getChunks("scene0", kPayload);
+        assertNotSame(chunks, newChunks);
+        assertEquals(2, store.getMissesCount());
+        assertEquals(0, store.getHitsCount());
+    }
+
+    // The least recently used scene is evicted when the cache is full
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        final SceneStore store = createStore(kCapacity + 1);
+        store.getChunks("scene0", kPayload);
+        store.getChunks("scene1", kPayload);
+        store.getChunks("scene2", kPayload);
+        store.getChunks("scene0", kPayload);            // scene1 is now the least recently used
+        store.getChunks("scene3", kPayload);
+        assertEquals(1, store.getHitsCount());
+        assertEquals(4, store.getMissesCount());
+
+        store.getChunks("scene0", kPayload);
+        store.getChunks("scene2", kPayload);
+        store.getChunks("scene3", kPayload);
+        assertEquals(4, store.getHitsCount());
+        store.getChunks("scene1", kPayload);
+        assertEquals(5, store.getMissesCount());
+    }
+
+    @Test
+    public void precompiledScenesAreHits() {
+        final SceneStore store = createStore(kCapacity);
+        store.precompile(kPayload);
+        for (int i = 0; i < kCapacity; i++) {
+            store.getChunks("scene" + i, kPayload);
+        }
+        assertEquals(kCapacity, store.getHitsCount());
+        assertEquals(0, store.getMissesCount());
+    }
+
+    // With more scenes than the capacity, precompile keeps the scenes in use instead of evicting them with the rest
+    @Test
+    public void precompileIsBoundedByCapacity() {
+        final SceneStore store = createStore(2 * kCapacity);
+        store.getChunks("scene4", kPayload);
+        store.getChunks("scene5", kPayload);
+        assertEquals(2, store.getMissesCount());
+
+        // A new connection with another payload
+        store.precompile(244);
+        store.getChunks("scene4", 244);
+        store.getChunks("scene5", 244);
+        assertEquals(2, store.getHitsCount());
+        assertEquals(2, store.getMissesCount());
+
+        // Preloading on every connection doesn't evict them either
+        store.precompile(kPayload);
+        store.precompile(kPayload);
+        store.getChunks("scene5", kPayload);
+        store.getChunks("scene4", kPayload);
+        assertEquals(4, store.getHitsCount());
+        assertEquals(2, store.getMissesCount());
+    }
+}
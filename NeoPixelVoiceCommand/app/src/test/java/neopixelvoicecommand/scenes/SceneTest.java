@@ -0,0 +1,81 @@
+package neopixelvoicecommand.scenes;
+
+import org.junit.Test;
+
+import neopixelvoicecommand.ble.ChunkList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SceneTest {
+    private static Scene createScene() {
+        final int[] pixels = new int[30];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i * 0x010203;
+        }
+        return new Scene.Builder("movie").color(0x402000).rainbow().fire().pixels(pixels, 5, 20).build();
+    }
+
+    @Test
+    public void serializationRoundTrip() {
+        final Scene scene = createScene();
+        final String text = scene.serialize();
+        final Scene copy = Scene.deserialize("copy", text);
+        assertNotNull(copy);
+        assertEquals("copy", copy.getName());
+        assertEquals(scene.getPacketsCount(), copy.getPacketsCount());
+        assertEquals(text, copy.serialize());
+
+        // Same chunks
+        for (int payload : new int[]{20, 244}) {
+            final ChunkList chunks = scene.compile(payload);
+            final ChunkList copyChunks = copy.compile(payload);
+            assertEquals(chunks.getChunksCount(), copyChunks.getChunksCount());
+            assertEquals(chunks.getLength(), copyChunks.getLength());
+        }
+    }
+
+    @Test
+    public void singlePacket() {
+        final Scene scene = Scene.deserialize("red", "2143FF000061");
+        assertNotNull(scene);
+        assertEquals(1, scene.getPacketsCount());
+        assertEquals("2143FF000061", scene.serialize());
+
+        // Lowercase hex is accepted
+        assertNotNull(Scene.deserialize("red", "2143ff000061"));
+    }
+
+    @Test
+    public void malformedTextIsRejected() {
+        final String[] texts = {
+                null,
+                "",
+                ",",
+                "2",                // odd length
+                "2G",               // not hex
+                "21,",              // empty packet at the end
+                ",21",              // empty packet at the start
+                "21,,52",           // empty packet in the middle
+                "21 52",            // separator
+                "2152,5",
+        };
+        for (String text : texts) {
+            assertNull(text, Scene.deserialize("scene", text));
+        }
+    }
+
+    // Packets fit in the default payload (PacketEncoder.kMaxPacketLength), and don't share chunks with a larger payload: a chunk per packet with both
+    @Test
+    public void compileForPayload() {
+        final Scene scene = createScene();
+        final ChunkList smallChunks = scene.compile(20);
+        final ChunkList largeChunks = scene.compile(244);
+        assertEquals(20, smallChunks.getMaxChunkLength());
+        assertEquals(244, largeChunks.getMaxChunkLength());
+        assertEquals(scene.getPacketsCount(), smallChunks.getChunksCount());
+        assertEquals(scene.getPacketsCount(), largeChunks.getChunksCount());
+        assertEquals(smallChunks.getLength(), largeChunks.getLength());
+    }
+}
@@ -0,0 +1,268 @@
+package neopixelvoicecommand.voice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CommandGrammarTest {
+    private CommandGrammar mGrammar;
+    private final VoiceCommand mCommand = new VoiceCommand();
+
+    @Before
+    public void setUp() {
+        mGrammar = new CommandGrammar(new ColorVocabulary());
+    }
+
+    private boolean parse(String utterance) {
+        return mGrammar.parse(utterance, mCommand);
+    }
+
+    private boolean parsePartial(String utterance) {
+        return mGrammar.parsePartial(Collections.singletonList(utterance), mCommand) >= 0;
+    }
+
+    // region Parse
+    @Test
+    public void color() {
+        assertTrue(parse("blue"));
+        assertEquals(VoiceCommand.TYPE_COLOR, mCommand.type);
+        assertEquals(0x0000FF, mCommand.color);
+        assertNull(mCommand.zone);
+        assertEquals(VoiceCommand.kNotSet, mCommand.brightness);
+
+        assertTrue(parse("set the lights to light sea green please"));
+        assertEquals(0x20B2AA, mCommand.color);
+
+        assertTrue(parse("Dark-Orange!"));
+        assertEquals(0xFF8C00, mCommand.color);
+    }
+
+    @Test
+    public void colorWithBrightness() {
+        assertTrue(parse("blue at 40 percent"));
+        assertEquals(VoiceCommand.TYPE_COLOR, mCommand.type);
+        assertEquals(0x0000FF, mCommand.color);
+        assertEquals(40, mCommand.brightness);
+
+        assertTrue(parse("red at forty five percent"));
+        assertEquals(45, mCommand.brightness);
+
+        assertTrue(parse("green brightness 70"));
+        assertEquals(70, mCommand.brightness);
+
+        assertTrue(parse("yellow 150%"));
+        assertEquals(100, mCommand.brightness);          // capped
+    }
+
+    @Test
+    public void off() {
+        assertTrue(parse("turn the lights off"));
+        assertEquals(VoiceCommand.TYPE_COLOR, mCommand.type);
+        assertEquals(0, mCommand.color);
+
+        // Keywords override color names
+        assertTrue(parse("black"));
+        assertEquals(0, mCommand.color);
+    }
+
+    @Test
+    public void effects() {
+        assertTrue(parse("rainbow"));
+        assertEquals(VoiceCommand.TYPE_EFFECT, mCommand.type);
+        assertEquals(VoiceMatcher.kEffectRainbow, mCommand.effect);
+        assertEquals(VoiceCommand.SPEED_NORMAL, mCommand.speed);
+
+        assertTrue(parse("fire slow"));
+        assertEquals(VoiceMatcher.kEffectFire, mCommand.effect);
+        assertEquals(VoiceCommand.SPEED_SLOW, mCommand.speed);
+
+        assertTrue(parse("quick rainbow effect"));
+        assertEquals(VoiceMatcher.kEffectRainbow, mCommand.effect);
+        assertEquals(VoiceCommand.SPEED_FAST, mCommand.speed);
+    }
+
+    @Test
+    public void fade() {
+        assertTrue(parse("fade to red over ten seconds"));
+        assertEquals(VoiceCommand.TYPE_FADE, mCommand.type);
+        assertEquals(0xFF0000, mCommand.color);
+        assertEquals(10000, mCommand.duration);
+
+        assertTrue(parse("fade to blue in 500 milliseconds"));
+        assertEquals(500, mCommand.duration);
+
+        assertTrue(parse("fade out over a minute"));
+        assertEquals(0, mCommand.color);
+        assertEquals(60000, mCommand.duration);
+
+        assertTrue(parse("fade to green over two hundred seconds"));
+        assertEquals(200000, mCommand.duration);
+
+        assertTrue(parse("fade to purple"));
+        assertEquals(0x800080, mCommand.color);
+        assertEquals(VoiceCommand.kNotSet, mCommand.duration);
+    }
+
+    @Test
+    public void brightness() {
+        assertTrue(parse("brightness 50"));
+        assertEquals(VoiceCommand.TYPE_BRIGHTNESS, mCommand.type);
+        assertEquals(50, mCommand.brightness);
+
+        assertTrue(parse("dim to 20 percent"));
+        assertEquals(20, mCommand.brightness);
+
+        assertTrue(parse("75%"));
+        assertEquals(75, mCommand.brightness);
+
+        assertTrue(parse("one hundred percent"));
+        assertEquals(100, mCommand.brightness);
+    }
+
+    // The zone can be anywhere in the utterance
+    @Test
+    public void zones() {
+        mGrammar.addZone("stairs");
+        mGrammar.addZone("living room");
+
+        assertTrue(parse("stairs blue at 40 percent"));
+        assertEquals("stairs", mCommand.zone);
+        assertEquals(0x0000FF, mCommand.color);
+        assertEquals(40, mCommand.brightness);
+
+        assertTrue(parse("living room fire slow"));
+        assertEquals("living room", mCommand.zone);
+        assertEquals(VoiceMatcher.kEffectFire, mCommand.effect);
+
+        assertTrue(parse("blue"));
+        assertNull(mCommand.zone);
+
+        // Only one zone
+        assertFalse(parse("stairs blue living room"));
+
+        mGrammar.removeZone("Stairs");
+        assertFalse(parse("stairs blue"));
+    }
+
+    @Test
+    public void scenes() {
+        mGrammar.addScene("movie");
+        assertTrue(parse("activate the movie scene"));
+        assertEquals(VoiceCommand.TYPE_SCENE, mCommand.type);
+        assertEquals("movie", mCommand.scene);
+
+        mGrammar.removeScene("movie");
+        assertFalse(parse("movie"));
+    }
+
+    // The grammar is recompiled when the vocabulary changes
+    @Test
+    public void userColors() {
+        final ColorVocabulary vocabulary = new ColorVocabulary();
+        final CommandGrammar grammar = new CommandGrammar(vocabulary);
+        assertFalse(grammar.parse("sunset at 30 percent", mCommand));
+
+        vocabulary.addColor("sunset", 0xFF4500);
+        assertTrue(grammar.parse("sunset at 30 percent", mCommand));
+        assertEquals(0xFF4500, mCommand.color);
+        assertEquals(30, mCommand.brightness);
+    }
+
+    // The command is cleared when the utterance doesn't match
+    @Test
+    public void rejected() {
+        assertTrue(parse("blue"));
+        assertFalse(parse("bluish"));
+        assertEquals(VoiceCommand.TYPE_NONE, mCommand.type);
+
+        assertFalse(parse("blue red"));
+        assertFalse(parse("what time is it"));
+        assertFalse(parse("fade"));
+        assertFalse(parse("blue at"));
+        assertFalse(parse("forty five"));
+        assertFalse(parse("fire 40 percent"));
+        assertFalse(parse("fade to red over ten"));
+        assertFalse(parse(""));
+        assertFalse(mGrammar.parse((CharSequence) null, mCommand));
+    }
+
+    // The first result of the n-best list that matches the grammar is used
+    @Test
+    public void nBestList() {
+        assertEquals(1, mGrammar.parse(Arrays.asList("blew at 40 percent", "blue at 40 percent", "red"), mCommand));
+        assertEquals(0x0000FF, mCommand.color);
+        assertEquals(-1, mGrammar.parse(Arrays.asList("blew", "bloo"), mCommand));
+        assertEquals(-1, mGrammar.parse((List<String>) null, mCommand));
+    }
+    // endregion
+
+    // region Partial results
+    // Every word prefix of the utterance, except the whole utterance, is not acted on
+    private void assertNoPrefixDispatched(String utterance) {
+        final String[] words = utterance.split(" ");
+        String prefix = "";
+        for (int i = 0; i < words.length - 1; i++) {
+            prefix = prefix.isEmpty() ? words[i] : prefix + " " + words[i];
+            assertFalse(prefix, parsePartial(prefix));
+        }
+    }
+
+    @Test
+    public void partialSingleToken() {
+        assertTrue(parsePartial("blue"));
+        assertEquals(VoiceCommand.TYPE_COLOR, mCommand.type);
+        assertEquals(0x0000FF, mCommand.color);
+
+        assertTrue(parsePartial("rainbow"));
+        assertEquals(VoiceCommand.TYPE_EFFECT, mCommand.type);
+    }
+
+    @Test
+    public void partialPrefixOfLongerCommand() {
+        assertFalse(parsePartial("blue at"));
+        assertFalse(parsePartial("blue at 40"));
+        assertFalse(parsePartial("fade to red"));
+        assertFalse(parsePartial("fade to red over"));
+    }
+
+    @Test
+    public void partialCompleteCommand() {
+        assertTrue(parsePartial("blue at 40 percent"));
+        assertEquals(40, mCommand.brightness);
+
+        assertTrue(parsePartial("fade to red over ten seconds"));
+        assertEquals(VoiceCommand.TYPE_FADE, mCommand.type);
+        assertEquals(10000, mCommand.duration);
+    }
+
+    // "stairs blue at" used to turn the whole strip blue through the matcher, and "blue" can still become "blue on the stairs"
+    @Test
+    public void partialWithZones() {
+        mGrammar.addZone("stairs");
+        assertNoPrefixDispatched("stairs blue at 40 percent");
+        assertNoPrefixDispatched("blue on the stairs");
+        assertNoPrefixDispatched("fade to red over ten seconds");
+        assertFalse(parsePartial("fade to red over ten seconds"));          // "... on the stairs" could follow
+
+        assertTrue(parsePartial("stairs blue at 40 percent"));
+        assertEquals("stairs", mCommand.zone);
+        assertEquals(40, mCommand.brightness);
+    }
+
+    @Test
+    public void partialResultsThatDontMatch() {
+        assertFalse(parsePartial("stairs"));
+        assertFalse(parsePartial("fade"));
+        assertFalse(parsePartial("bluish"));
+        assertEquals(VoiceCommand.TYPE_NONE, mCommand.type);
+    }
+    // endregion
+}
@@ -0,0 +1,45 @@
+package neopixelvoicecommand.voice;
+
+import android.speech.SpeechRecognizer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ContinuousVoiceRecognizerTest {
+    // Silence ends the session normally: listening starts again right away, however many sessions ended before
+    @Test
+    public void sessionEndRestartsImmediately() {
+        for (int count = 0; count < 20; count++) {
+            assertEquals(0, ContinuousVoiceRecognizer.getRestartDelay(SpeechRecognizer.ERROR_NO_MATCH, count));
+            assertEquals(0, ContinuousVoiceRecognizer.getRestartDelay(SpeechRecognizer.ERROR_SPEECH_TIMEOUT, count));
+        }
+    }
+
+    @Test
+    public void errorsBackOff() {
+        final int[] errors = {SpeechRecognizer.ERROR_NETWORK, SpeechRecognizer.ERROR_NETWORK_TIMEOUT, SpeechRecognizer.ERROR_SERVER,
+                SpeechRecognizer.ERROR_AUDIO, SpeechRecognizer.ERROR_CLIENT, SpeechRecognizer.ERROR_RECOGNIZER_BUSY};
+        for (int error : errors) {
+            assertEquals(ContinuousVoiceRecognizer.kInitialRestartDelay, ContinuousVoiceRecognizer.getRestartDelay(error, 1));
+            assertEquals(2 * ContinuousVoiceRecognizer.kInitialRestartDelay, ContinuousVoiceRecognizer.getRestartDelay(error, 2));
+            assertEquals(4 * ContinuousVoiceRecognizer.kInitialRestartDelay, ContinuousVoiceRecognizer.getRestartDelay(error, 3));
+        }
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        assertEquals(ContinuousVoiceRecognizer.kMaxRestartDelay, ContinuousVoiceRecognizer.getRestartDelay(SpeechRecognizer.ERROR_NETWORK, ContinuousVoiceRecognizer.kMaxConsecutiveErrors));
+        assertEquals(ContinuousVoiceRecognizer.kMaxRestartDelay, ContinuousVoiceRecognizer.getRestartDelay(SpeechRecognizer.ERROR_NETWORK, 1000));
+    }
+
+    // Total wait before giving up on a recognizer that keeps failing
+    @Test
+    public void giveUpTime() {
+        long total = 0;
+        for (int count = 1; count < ContinuousVoiceRecognizer.kMaxConsecutiveErrors; count++) {
+            total += ContinuousVoiceRecognizer.getRestartDelay(SpeechRecognizer.ERROR_SERVER, count);
+        }
+        assertEquals(500 + 1000 + 2000 + 4000 + 8000 + 16000 + 16000, total);
+    }
+}
@@ -0,0 +1,199 @@
+package neopixelvoicecommand.voice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceMatcherTest {
+    // Mis-recognized phrases: utterance, name the user said
+    private static final String[] kMisrecognitionCorpus = {
+            // Sounds alike
+            "read", "red",
+            "tell", "teal",
+            "blew", "blue",
+            "grin", "green",
+            "sian", "cyan",
+            "wight", "white",
+            "lyme", "lime",
+            "navvy", "navy",
+            "corral", "coral",
+            "baige", "beige",
+            "fyre", "fire",
+            "rain bow", "rainbow",
+            "light see green", "lightseagreen",
+            "sky blew", "skyblue",
+            // Misspelled
+            "blu", "blue",
+            "yello", "yellow",
+            "purpel", "purple",
+            "perple", "purple",
+            "orang", "orange",
+            "pinc", "pink",
+            "majenta", "magenta",
+            "vilet", "violet",
+            "turkoise", "turquoise",
+            "lavendar", "lavender",
+            "indego", "indigo",
+            "chrimson", "crimson",
+            "marune", "maroon",
+            "silvur", "silver",
+            "aqwa", "aqua",
+            "oliv", "olive",
+            "samon", "salmon",
+            "rainbo", "rainbow",
+            "fier", "fire",
+            "dark orang", "darkorange",
+            // Inside a sentence
+            "make the lights read please", "red",
+            "change the color to grin", "green",
+            "turn it purpel", "purple",
+            "set the strip to light see green", "lightseagreen",
+            "show me a rain bow", "rainbow",
+    };
+
+    // Utterances without a color or effect
+    private static final String[] kNoMatchCorpus = {
+            "what time is it",
+            "set the lights",
+            "turn on the strip please",
+            "",
+    };
+
+    private static final double kMinHitRate = 0.9;
+    private static final long kMaxAverageMatchTime = 1000000;           // nanoseconds
+
+    private VoiceMatcher mMatcher;
+
+    @Before
+    public void setUp() {
+        mMatcher = new VoiceMatcher(new ColorVocabulary());
+    }
+
+    @Test
+    public void exactNames() {
+        assertMatch("red", VoiceMatcher.TYPE_COLOR, mMatcher.match("red"));
+        assertEquals(0xFF0000, mMatcher.match("red").color);
+        assertMatch("lightseagreen", VoiceMatcher.TYPE_COLOR, mMatcher.match("light sea green"));
+        assertMatch(VoiceMatcher.kEffectRainbow, VoiceMatcher.TYPE_EFFECT, mMatcher.match("rainbow"));
+        assertMatch(VoiceMatcher.kEffectFire, VoiceMatcher.TYPE_EFFECT, mMatcher.match("Fire!"));
+    }
+
+    // Longer names win over the names they contain
+    @Test
+    public void longerNamesFirst() {
+        assertMatch("lightseagreen", VoiceMatcher.TYPE_COLOR, mMatcher.match("set it to light sea green"));
+        assertMatch("darkblue", VoiceMatcher.TYPE_COLOR, mMatcher.match("dark blue"));
+    }
+
+    @Test
+    public void misrecognitionHitRate() {
+        int hits = 0;
+        final StringBuilder misses = new StringBuilder();
+        for (int i = 0; i < kMisrecognitionCorpus.length; i += 2) {
+            final VoiceMatcher.Match match = mMatcher.match(kMisrecognitionCorpus[i]);
+            if (match != null && match.name.equals(kMisrecognitionCorpus[i + 1])) {
+                hits++;
+            } else {
+                misses.append(" \"").append(kMisrecognitionCorpus[i]).append("\" -> ").append(match);
+            }
+        }
+
+        final int count = kMisrecognitionCorpus.length / 2;
+        final double hitRate = (double) hits / count;
+        assertTrue("hit rate " + hits + "/" + count + ", misses:" + misses, hitRate >= kMinHitRate);
+    }
+
+    @Test
+    public void noMatch() {
+        for (String utterance : kNoMatchCorpus) {
+            assertNull(utterance, mMatcher.match(utterance));
+        }
+        assertNull(mMatcher.match(Collections.<String>emptyList(), null));
+        assertNull(mMatcher.match((String) null));
+    }
+
+    // The whole n-best list is used: the best result may not be the first one
+    @Test
+    public void nBestList() {
+        assertMatch("red", VoiceMatcher.TYPE_COLOR, mMatcher.match(Arrays.asList("set it to bed", "set it to red"), null));
+        assertMatch("teal", VoiceMatcher.TYPE_COLOR, mMatcher.match(Arrays.asList("make it tell", "make it teal"), null));
+
+        // An exact match in the first result wins over an exact match in the next ones, unless the recognizer is more confident about them
+        assertMatch("blue", VoiceMatcher.TYPE_COLOR, mMatcher.match(Arrays.asList("blue", "green"), null));
+        assertMatch("green", VoiceMatcher.TYPE_COLOR, mMatcher.match(Arrays.asList("blue", "green"), new float[]{0.2f, 0.9f}));
+    }
+
+    // Names defined by the user are matched too
+    @Test
+    public void userColors() {
+        final ColorVocabulary vocabulary = new ColorVocabulary();
+        final VoiceMatcher matcher = new VoiceMatcher(vocabulary);
+        assertNull(matcher.match("sunset"));
+
+        vocabulary.addColor("sunset", 0xFF4500);
+        final VoiceMatcher.Match match = matcher.match("sun set");
+        assertMatch("sunset", VoiceMatcher.TYPE_COLOR, match);
+        assertEquals(0xFF4500, match.color);
+        assertMatch("sunset", VoiceMatcher.TYPE_COLOR, matcher.match("sunsett"));
+    }
+
+    @Test
+    public void phoneticKey() {
+        assertEquals(VoiceMatcher.phoneticKey("red"), VoiceMatcher.phoneticKey("read"));
+        assertEquals(VoiceMatcher.phoneticKey("teal"), VoiceMatcher.phoneticKey("tell"));
+        assertEquals(VoiceMatcher.phoneticKey("cyan"), VoiceMatcher.phoneticKey("sian"));
+        assertTrue(!VoiceMatcher.phoneticKey("red").equals(VoiceMatcher.phoneticKey("green")));
+    }
+
+    @Test
+    public void editDistance() {
+        assertEquals(0, mMatcher.editDistance("blue", "blue", 2));
+        assertEquals(1, mMatcher.editDistance("blue", "blu", 2));
+        assertEquals(2, mMatcher.editDistance("purpel", "purple", 2));
+        assertEquals(3, mMatcher.editDistance("red", "turquoise", 2));          // stops at maxDistance + 1
+    }
+
+    // Latency of the matcher over the corpus, after the warm up. It runs on the main thread after every recognition
+    @Test
+    public void matchTime() {
+        final int iterations = 200;
+        final List<String> corpus = Arrays.asList(kMisrecognitionCorpus);
+        for (int i = 0; i < iterations; i++) {
+            matchCorpus(corpus);
+        }
+
+        long maxTime = 0;
+        long totalTime = 0;
+        for (int i = 0; i < iterations; i++) {
+            final long time = matchCorpus(corpus);
+            totalTime += time;
+            maxTime = Math.max(maxTime, time);
+        }
+        final int matchesCount = corpus.size() / 2;
+        final long averageTime = totalTime / (iterations * matchesCount);
+        assertTrue("average " + averageTime + "ns, slowest corpus pass " + maxTime / matchesCount + "ns per utterance", averageTime < kMaxAverageMatchTime);
+    }
+
+    // Returns the nanoseconds taken to match every utterance of the corpus
+    private long matchCorpus(List<String> corpus) {
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < corpus.size(); i += 2) {
+            mMatcher.match(corpus.get(i));
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static void assertMatch(String name, int type, VoiceMatcher.Match match) {
+        assertNotNull(name, match);
+        assertEquals(name, match.name);
+        assertEquals(type, match.type);
+    }
+}
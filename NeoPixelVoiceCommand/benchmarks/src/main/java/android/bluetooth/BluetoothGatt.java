@@ -0,0 +1,28 @@
+package android.bluetooth;
+
+// Stand in for the Android BluetoothGatt, so BleGattExecutor can be benchmarked on a plain jvm.
+// Unlike the Android class it can be subclassed: the benchmarks play the stack by overriding the operations (see GattQueueBenchmark)
+public class BluetoothGatt {
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_FAILURE = 257;
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return false;
+    }
+
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return false;
+    }
+
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+        return false;
+    }
+
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return false;
+    }
+
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return false;
+    }
+}
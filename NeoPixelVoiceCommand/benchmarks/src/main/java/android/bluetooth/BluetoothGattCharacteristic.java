@@ -0,0 +1,53 @@
+package android.bluetooth;
+
+import java.util.UUID;
+
+// Stand in for the Android BluetoothGattCharacteristic (see BluetoothGatt). It keeps the value and write type like the Android class
+public class BluetoothGattCharacteristic {
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+    public static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+    public static final int WRITE_TYPE_DEFAULT = 0x02;
+
+    private final UUID mUuid;
+    private final int mProperties;
+    private byte[] mValue;
+    private int mWriteType = WRITE_TYPE_DEFAULT;
+
+    public BluetoothGattCharacteristic(UUID uuid, int properties, int permissions) {
+        mUuid = uuid;
+        mProperties = properties;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getProperties() {
+        return mProperties;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public boolean setValue(byte[] value) {
+        mValue = value;
+        return true;
+    }
+
+    public int getWriteType() {
+        return mWriteType;
+    }
+
+    public void setWriteType(int writeType) {
+        mWriteType = writeType;
+    }
+
+    public BluetoothGattDescriptor getDescriptor(UUID uuid) {
+        return null;
+    }
+}
@@ -0,0 +1,19 @@
+package android.bluetooth;
+
+// Stand in for the Android BluetoothGattDescriptor (see BluetoothGatt)
+public class BluetoothGattDescriptor {
+    public static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    public static final byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+    public static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    private byte[] mValue;
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public boolean setValue(byte[] value) {
+        mValue = value;
+        return true;
+    }
+}
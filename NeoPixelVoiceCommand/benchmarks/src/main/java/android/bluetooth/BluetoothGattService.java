@@ -0,0 +1,33 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// Stand in for the Android BluetoothGattService (see BluetoothGatt)
+public class BluetoothGattService {
+    private final UUID mUuid;
+    private final List<BluetoothGattCharacteristic> mCharacteristics = new ArrayList<BluetoothGattCharacteristic>();
+
+    public BluetoothGattService(UUID uuid, int serviceType) {
+        mUuid = uuid;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+        mCharacteristics.add(characteristic);
+        return true;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        for (BluetoothGattCharacteristic characteristic : mCharacteristics) {
+            if (characteristic.getUuid().equals(uuid)) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,9 @@
+package android.bluetooth;
+
+// Stand in for the Android BluetoothProfile (see BluetoothGatt)
+public interface BluetoothProfile {
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+    int STATE_DISCONNECTING = 3;
+}
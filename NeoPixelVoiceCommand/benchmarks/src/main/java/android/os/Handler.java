@@ -0,0 +1,18 @@
+package android.os;
+
+// Stand in for the Android Handler. Nothing posted runs: the benchmarks drive the executor from the benchmark thread, so its watchdog and busy retries never fire
+public class Handler {
+    public Handler(Looper looper) {
+    }
+
+    public final boolean post(Runnable runnable) {
+        return true;
+    }
+
+    public final boolean postDelayed(Runnable runnable, long delayMillis) {
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable runnable) {
+    }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+// Stand in for the Android Looper (see Handler)
+public final class Looper {
+    private static final Looper sMainLooper = new Looper();
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+}
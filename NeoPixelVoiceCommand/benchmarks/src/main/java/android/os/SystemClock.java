@@ -0,0 +1,15 @@
+package android.os;
+
+// Stand in for the Android SystemClock, with the monotonic clock of the jvm. The executor reads it for the watchdog deadline on every action
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,27 @@
+package android.util;
+
+// No-op stand in for the Android Log, so the app classes that only log (i.e. ReliableSender) can be benchmarked on a plain jvm
+public final class Log {
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+}
@@ -0,0 +1,81 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.ble.ChunkList;
+import neopixelvoicecommand.ble.PixelFrameEncoder;
+import neopixelvoicecommand.scenes.Scene;
+
+// Splitting packets into writes of the negotiated payload: 20 bytes (default mtu) and 244 (mtu 247)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkingBenchmark {
+    // Constants
+    private static final int kPixelsCount = 90;
+
+    @Param({"20", "244"})
+    public int maxChunkLength;
+
+    // Data
+    private final List<byte[]> mPackets = new ArrayList<byte[]>();          // a full strip image, as !P packets
+    private final int[] mPixels = new int[kPixelsCount];
+    private Scene mScene;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        for (int i = 0; i < kPixelsCount; i++) {
+            mPixels[i] = random.nextInt() & 0xFFFFFF;
+        }
+
+        new PixelFrameEncoder().encode(mPixels, 0, kPixelsCount, new PixelFrameEncoder.PacketSink() {
+            @Override
+            public void onPacket(byte[] buffer, int offset, int length) {
+                final byte[] packet = new byte[length];
+                System.arraycopy(buffer, offset, packet, 0, length);
+                mPackets.add(packet);
+            }
+        });
+        mScene = new Scene.Builder("benchmark").color(0x000000).pixels(mPixels, 0, kPixelsCount).build();
+    }
+
+    @Benchmark
+    public ChunkList chunkListBuild() {
+        final ChunkList.Builder builder = new ChunkList.Builder(maxChunkLength);
+        for (int i = 0; i < mPackets.size(); i++) {
+            final byte[] packet = mPackets.get(i);
+            builder.addPacket(packet, 0, packet.length);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public ChunkList sceneCompile() {
+        return mScene.compile(maxChunkLength);
+    }
+
+    // Building the scene encodes its packets (done once, when it is saved)
+    @Benchmark
+    public Scene sceneBuild() {
+        return new Scene.Builder("benchmark").color(0x000000).pixels(mPixels, 0, kPixelsCount).build();
+    }
+}
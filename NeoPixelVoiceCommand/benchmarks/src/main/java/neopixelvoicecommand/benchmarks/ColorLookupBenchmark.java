@@ -0,0 +1,130 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.voice.ColorVocabulary;
+
+// Color name lookup of a recognized utterance: ColorVocabulary against the previous path, Color.parseColor with a catch of IllegalArgumentException for unknown names.
+// Color.parseColor is Android only, so ParseColor below is a copy of its implementation (API 25), with its 23 names
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorLookupBenchmark {
+    // Utterances
+    private static final String kHit = "blue";
+    private static final String kMultiWordHit = "light sea green";         // unknown for parseColor
+    private static final String kMiss = "set it to bluish";
+
+    // Data
+    private final ColorVocabulary mVocabulary = new ColorVocabulary();
+
+    // region Color.parseColor
+    private static class ParseColor {
+        private static final HashMap<String, Integer> sColorNameMap = new HashMap<String, Integer>();
+
+        static {
+            sColorNameMap.put("black", 0xFF000000);
+            sColorNameMap.put("darkgray", 0xFF444444);
+            sColorNameMap.put("gray", 0xFF888888);
+            sColorNameMap.put("lightgray", 0xFFCCCCCC);
+            sColorNameMap.put("white", 0xFFFFFFFF);
+            sColorNameMap.put("red", 0xFFFF0000);
+            sColorNameMap.put("green", 0xFF00FF00);
+            sColorNameMap.put("blue", 0xFF0000FF);
+            sColorNameMap.put("yellow", 0xFFFFFF00);
+            sColorNameMap.put("cyan", 0xFF00FFFF);
+            sColorNameMap.put("magenta", 0xFFFF00FF);
+            sColorNameMap.put("aqua", 0xFF00FFFF);
+            sColorNameMap.put("fuchsia", 0xFFFF00FF);
+            sColorNameMap.put("darkgrey", 0xFF444444);
+            sColorNameMap.put("grey", 0xFF888888);
+            sColorNameMap.put("lightgrey", 0xFFCCCCCC);
+            sColorNameMap.put("lime", 0xFF00FF00);
+            sColorNameMap.put("maroon", 0xFF800000);
+            sColorNameMap.put("navy", 0xFF000080);
+            sColorNameMap.put("olive", 0xFF808000);
+            sColorNameMap.put("purple", 0xFF800080);
+            sColorNameMap.put("silver", 0xFFC0C0C0);
+            sColorNameMap.put("teal", 0xFF008080);
+        }
+
+        static int parseColor(String colorString) {
+            if (colorString.charAt(0) == '#') {
+                long color = Long.parseLong(colorString.substring(1), 16);
+                if (colorString.length() == 7) {
+                    color |= 0x00000000ff000000;
+                } else if (colorString.length() != 9) {
+                    throw new IllegalArgumentException("Unknown color");
+                }
+                return (int) color;
+            } else {
+                final Integer color = sColorNameMap.get(colorString.toLowerCase(Locale.ROOT));
+                if (color != null) {
+                    return color;
+                }
+            }
+            throw new IllegalArgumentException("Unknown color");
+        }
+    }
+
+    // Same as the previous MainActivity.changeColor: the message of the exception is shown to the user
+    private static int legacyChangeColor(String utterance) {
+        try {
+            return ParseColor.parseColor(utterance) & 0xFFFFFF;
+        } catch (IllegalArgumentException e) {
+            return e.getLocalizedMessage().length() > 0 ? ColorVocabulary.kNoColor : 0;
+        }
+    }
+    // endregion
+
+    @Benchmark
+    public int parseColorHit() {
+        return legacyChangeColor(kHit);
+    }
+
+    @Benchmark
+    public int parseColorMiss() {
+        return legacyChangeColor(kMiss);
+    }
+
+    @Benchmark
+    public int lookupHit() {
+        return mVocabulary.lookup(kHit);
+    }
+
+    @Benchmark
+    public int lookupMultiWordHit() {
+        return mVocabulary.lookup(kMultiWordHit);
+    }
+
+    @Benchmark
+    public int lookupMiss() {
+        return mVocabulary.lookup(kMiss);
+    }
+
+    // Color name inside the utterance
+    @Benchmark
+    public int findHit() {
+        return mVocabulary.find("set it to " + kMultiWordHit);
+    }
+
+    @Benchmark
+    public int findMiss() {
+        return mVocabulary.find(kMiss);
+    }
+}
@@ -0,0 +1,77 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.effects.ChaseEffect;
+import neopixelvoicecommand.effects.ColorEffect;
+import neopixelvoicecommand.effects.Effect;
+import neopixelvoicecommand.effects.FadeEffect;
+import neopixelvoicecommand.effects.FireEffect;
+import neopixelvoicecommand.effects.RainbowEffect;
+import neopixelvoicecommand.effects.WipeEffect;
+import neopixelvoicecommand.effects.ZoneEffect;
+
+// Rendering of one frame of each effect into a 1000 led strip, 30 fps apart (the timeline loops over 10 seconds). Run with -prof gc: rendering must not allocate (gc.alloc.rate.norm 0)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EffectBenchmark {
+    // Constants
+    private static final int kPixelsCount = 1000;
+    private static final long kFrameDuration = 1000 / 30;
+    private static final long kLoopDuration = 10000;        // the time starts again every 10 seconds of frames
+
+    @Param({"color", "rainbow", "fire", "wipe", "chase", "fade", "zone"})
+    public String effect;
+
+    // Data
+    private final int[] mPixels = new int[kPixelsCount];
+    private Effect mEffect;
+    private long mTime;
+
+    @Setup
+    public void setup() {
+        mEffect = createEffect(effect);
+    }
+
+    private static Effect createEffect(String name) {
+        if ("fire".equals(name)) {
+            return new FireEffect(55, 120, new Random(42));
+        } else if ("wipe".equals(name)) {
+            return new WipeEffect(0xFF0000, 0x000000, 3000, true);
+        } else if ("chase".equals(name)) {
+            return new ChaseEffect(0x00FF00, 3, 50);
+        } else if ("fade".equals(name)) {
+            // Cross-fade between two animated effects, for the whole loop
+            return new FadeEffect(new RainbowEffect(2560), new FireEffect(55, 120, new Random(42)), kLoopDuration);
+        } else if ("zone".equals(name)) {
+            return new ZoneEffect(new RainbowEffect(2560), kPixelsCount / 4, kPixelsCount / 2, new int[kPixelsCount]);
+        } else if ("rainbow".equals(name)) {
+            return new RainbowEffect(2560);
+        }
+        return new ColorEffect(0xFF8000);
+    }
+
+    @Benchmark
+    public int render() {
+        mTime = (mTime + kFrameDuration) % kLoopDuration;
+        mEffect.render(mPixels, kPixelsCount, mTime);
+        return mPixels[kPixelsCount - 1];
+    }
+}
@@ -0,0 +1,105 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.ble.Crc16;
+import neopixelvoicecommand.ble.PacketEncoder;
+import neopixelvoicecommand.ble.PixelFrameEncoder;
+import neopixelvoicecommand.ble.PixelStreamEncoder;
+
+// Packet encoding: single command packets, checksums and the pixel frames of a full strip (90 leds)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+    // Constants
+    private static final int kPixelsCount = 90;
+    private static final int kChangedPixelsCount = 4;           // pixels changed between animation frames
+
+    // Data
+    private final PacketEncoder mPacketEncoder = new PacketEncoder();
+    private final PixelFrameEncoder mFrameEncoder = new PixelFrameEncoder();
+    private final PixelStreamEncoder mStreamEncoder = new PixelStreamEncoder(new PixelFrameEncoder());
+    private final byte[] mPacket = new byte[PacketEncoder.kMaxPacketLength];
+    private final int[] mRandomPixels = new int[kPixelsCount];
+    private final int[] mSolidPixels = new int[kPixelsCount];
+    private final int[] mAnimationPixels = new int[kPixelsCount];
+    private int mColor;
+    private int mAnimationFrame;
+
+    private Blackhole mBlackhole;
+    private final PixelFrameEncoder.PacketSink mSink = new PixelFrameEncoder.PacketSink() {
+        @Override
+        public void onPacket(byte[] buffer, int offset, int length) {
+            mBlackhole.consume(buffer[offset + length - 1]);
+        }
+    };
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+
+        final Random random = new Random(42);
+        random.nextBytes(mPacket);
+        for (int i = 0; i < kPixelsCount; i++) {
+            mRandomPixels[i] = random.nextInt() & 0xFFFFFF;
+            mSolidPixels[i] = 0xFF8000;
+            mAnimationPixels[i] = mRandomPixels[i];
+        }
+    }
+
+    @Benchmark
+    public int colorPacket() {
+        mColor = (mColor + 0x010203) & 0xFFFFFF;
+        return mPacketEncoder.color(mColor).getLength();
+    }
+
+    @Benchmark
+    public byte checksum() {
+        return PacketEncoder.checksum(mPacket, 0, mPacket.length - 1);
+    }
+
+    @Benchmark
+    public int crc16() {
+        return Crc16.compute(mPacket, 0, mPacket.length - 2);
+    }
+
+    // Keyframe of random colors: raw pixels
+    @Benchmark
+    public int pixelFrameRaw() {
+        return mFrameEncoder.encode(mRandomPixels, 0, kPixelsCount, mSink);
+    }
+
+    // Keyframe of a single color: runs
+    @Benchmark
+    public int pixelFrameRuns() {
+        return mFrameEncoder.encode(mSolidPixels, 0, kPixelsCount, mSink);
+    }
+
+    // Animation where a few pixels change each frame: deltas, with a keyframe from time to time
+    @Benchmark
+    public int pixelStreamDelta() {
+        final int frame = mAnimationFrame++;
+        for (int i = 0; i < kChangedPixelsCount; i++) {
+            final int index = (frame * 7 + i * 23) % kPixelsCount;
+            mAnimationPixels[index] = (mAnimationPixels[index] + 0x030201) & 0xFFFFFF;
+        }
+        return mStreamEncoder.encode(mAnimationPixels, kPixelsCount, mSink);
+    }
+}
@@ -0,0 +1,147 @@
+package neopixelvoicecommand.benchmarks;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.ble.BleGattExecutor;
+import neopixelvoicecommand.ble.ChunkList;
+import neopixelvoicecommand.ble.PipelineMetrics;
+
+// BleGattExecutor queue and drain loop, with the metrics recording of the app, against a stack played by the benchmark (see the android/bluetooth stand ins).
+// The stack takes every write and calls the executor back once per connection interval, for the writes sent in the previous interval (like FakeGattStack of the
+// unit tests). Everything runs on the benchmark thread: it measures the cost per write of queueing, draining, the tracker and the action pool, not contention.
+// Handler is a stand in that never runs what is posted, so the watchdog only costs its bookkeeping
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GattQueueBenchmark {
+    // Constants
+    private static final String kTxUuid = "6e400002-b5a3-f393-e0a9-e50e24dcca9e";
+    private static final int kStateKey = 1;
+    private static final int kStateWritesPerInterval = 8;       // state writes offered while the writes in flight wait for their callbacks
+    private static final int kChunksCount = 6;
+
+    @Param({"20", "244"})
+    public int payload;
+
+    // Stack: the writes handed over since the last interval
+    private static class StackGatt extends BluetoothGatt {
+        int mSentCount;
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            mSentCount++;
+            return true;
+        }
+    }
+
+    // The queueing methods are protected: they are called by the connection (in the app) and by this subclass (here)
+    private static class Executor extends BleGattExecutor {
+        void queueWriteWithoutResponse(BluetoothGatt gatt, BluetoothGattService service, byte[] value, int coalescingKey) {
+            writeWithoutResponse(service, kTxUuid, value, 0, value.length, coalescingKey);
+            execute(gatt);
+        }
+
+        void queueWrite(BluetoothGatt gatt, BluetoothGattService service, byte[] value) {
+            write(service, kTxUuid, value);
+            execute(gatt);
+        }
+
+        void queueChunks(BluetoothGatt gatt, BluetoothGattService service, ChunkList chunks) {
+            writeChunks(service, kTxUuid, chunks);
+            execute(gatt);
+        }
+    }
+
+    // Data
+    private final Executor mExecutor = new Executor();
+    private final StackGatt mGatt = new StackGatt();
+    private final BluetoothGattService mService = new BluetoothGattService(UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e"), 0);
+    private final BluetoothGattCharacteristic mCharacteristic = new BluetoothGattCharacteristic(UUID.fromString(kTxUuid),
+            BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0);
+    private byte[] mValue;
+    private ChunkList mChunks;
+    private int mStateWritesCount;
+
+    @Setup
+    public void setup() {
+        mService.addCharacteristic(mCharacteristic);
+        mExecutor.setMetrics(new PipelineMetrics());
+        mValue = new byte[payload];
+
+        final ChunkList.Builder builder = new ChunkList.Builder(payload);
+        final byte[] packet = new byte[payload];
+        for (int i = 0; i < kChunksCount; i++) {
+            builder.addPacket(packet, 0, packet.length);
+        }
+        mChunks = builder.build();
+    }
+
+    // Callbacks of the writes sent in the previous interval. The executor sends the next writes from them
+    private void runInterval() {
+        final int count = mGatt.mSentCount;
+        mGatt.mSentCount = 0;
+        for (int i = 0; i < count; i++) {
+            mExecutor.onCharacteristicWrite(mGatt, mCharacteristic, BluetoothGatt.GATT_SUCCESS);
+        }
+    }
+
+    // Write without response of a stream (fifo). The interval runs when the write slots are full
+    @Benchmark
+    public int writeWithoutResponse() {
+        mValue[0]++;
+        mExecutor.queueWriteWithoutResponse(mGatt, mService, mValue, BleGattExecutor.kNoCoalescing);
+        if (mGatt.mSentCount >= mExecutor.getMaxWritesInFlight()) {
+            runInterval();
+        }
+        return mExecutor.getPendingActionsCount();
+    }
+
+    // State writes (i.e. the color of a slider) offered faster than the link sends them: once the write slots are full, each one replaces the pending one
+    @Benchmark
+    public int stateWriteCoalesced() {
+        mValue[0]++;
+        mExecutor.queueWriteWithoutResponse(mGatt, mService, mValue, kStateKey);
+        if (++mStateWritesCount % kStateWritesPerInterval == 0) {
+            runInterval();
+        }
+        return mExecutor.getPendingActionsCount();
+    }
+
+    // Acknowledged write: queued, sent, and its response processed
+    @Benchmark
+    public int acknowledgedWrite() {
+        mExecutor.queueWrite(mGatt, mService, mValue);
+        runInterval();
+        return mExecutor.getPendingActionsCount();
+    }
+
+    // Precompiled chunks (i.e. a scene), until the last one has been sent and called back
+    @Benchmark
+    public int writeChunks() {
+        mExecutor.queueChunks(mGatt, mService, mChunks);
+        while (mGatt.mSentCount > 0) {
+            runInterval();
+        }
+        return mExecutor.getPendingActionsCount();
+    }
+}
@@ -0,0 +1,65 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.ble.HexUtils;
+
+// Hex formatting of packets (logs and scene store). formatPerByte is the String.format approach (still used by BleUtils.getUuidStringFromByteArray), kept as a reference
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexBenchmark {
+    @Param({"20", "244"})
+    public int length;
+
+    // Data
+    private byte[] mBytes;
+    private String mHex;
+
+    @Setup
+    public void setup() {
+        mBytes = new byte[length];
+        new Random(42).nextBytes(mBytes);
+        mHex = HexUtils.bytesToHex(mBytes);
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return HexUtils.bytesToHex(mBytes);
+    }
+
+    @Benchmark
+    public String bytesToHexWithSpaces() {
+        return HexUtils.bytesToHexWithSpaces(mBytes, 0, mBytes.length);
+    }
+
+    @Benchmark
+    public byte[] hexToBytes() {
+        return HexUtils.hexToBytes(mHex);
+    }
+
+    @Benchmark
+    public String formatPerByte() {
+        final StringBuilder builder = new StringBuilder();
+        for (byte value : mBytes) {
+            builder.append(String.format("%02X ", value));
+        }
+        return builder.toString();
+    }
+}
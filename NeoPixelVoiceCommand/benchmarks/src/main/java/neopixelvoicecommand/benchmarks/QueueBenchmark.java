@@ -0,0 +1,133 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.ble.AtomicHistogram;
+import neopixelvoicecommand.ble.OfflineCommandBuffer;
+import neopixelvoicecommand.ble.PacketEncoder;
+import neopixelvoicecommand.ble.PixelFrameEncoder;
+import neopixelvoicecommand.ble.ReliableReceiver;
+import neopixelvoicecommand.ble.ReliableSender;
+
+// Queueing around the writes: the offline command buffer, the reliable sender window (with a loopback receiver that acks each frame) and the metrics recording.
+// The BleGattExecutor queue itself is in GattQueueBenchmark
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+    // Constants
+    private static final int kTargetsCount = 12;                // more than the buffer capacity, so the oldest targets are dropped
+
+    // Data
+    private final OfflineCommandBuffer mOfflineBuffer = new OfflineCommandBuffer();
+    private final AtomicHistogram mHistogram = new AtomicHistogram();
+    private byte[] mPacket;
+    private int mTarget;
+    private long mValue;
+
+    private Blackhole mBlackhole;
+    private final OfflineCommandBuffer.Sink mReplaySink = new OfflineCommandBuffer.Sink() {
+        @Override
+        public boolean onCommand(int target, byte[] data, int offset, int length) {
+            mBlackhole.consume(data[offset + length - 1]);
+            return true;
+        }
+    };
+
+    // Reliable loopback. Acks are delivered after send returns, like the notifications of the peripheral
+    private ReliableSender mSender;
+    private ReliableReceiver mReceiver;
+    private final byte[] mAck = new byte[ReliableSender.kControlFrameLength];
+    private boolean mHasAck;
+    private long mTime;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+
+        final PacketEncoder encoder = new PacketEncoder().color(0xFF8000);
+        mPacket = new byte[encoder.getLength()];
+        System.arraycopy(encoder.getBuffer(), 0, mPacket, 0, mPacket.length);
+
+        mSender = new ReliableSender(new ReliableSender.Link() {
+            @Override
+            public void send(byte[] frame, int offset, int length) {
+                mReceiver.onFrame(frame, offset, length);
+            }
+        });
+        mReceiver = new ReliableReceiver(ReliableSender.kDefaultWindowSize, new ReliableSender.Link() {
+            @Override
+            public void send(byte[] frame, int offset, int length) {
+                System.arraycopy(frame, offset, mAck, 0, ReliableSender.kControlFrameLength);
+                mHasAck = true;
+            }
+        }, new PixelFrameEncoder.PacketSink() {
+            @Override
+            public void onPacket(byte[] buffer, int offset, int length) {
+                mBlackhole.consume(buffer[offset]);
+            }
+        });
+    }
+
+    @Benchmark
+    public void offlineBufferPut() {
+        mTarget = (mTarget + 1) % kTargetsCount;
+        mOfflineBuffer.put(mTarget, mPacket, 0, mPacket.length);
+    }
+
+    // Fills the buffer and replays it, as when the device is ready again
+    @Benchmark
+    public int offlineBufferReplay() {
+        for (int i = 0; i < OfflineCommandBuffer.kDefaultCapacity; i++) {
+            mOfflineBuffer.put(i, mPacket, 0, mPacket.length);
+        }
+        return mOfflineBuffer.replay(mReplaySink);
+    }
+
+    // A packet sent as a reliable frame, received, acked and the ack processed
+    @Benchmark
+    public int reliableRoundTrip() {
+        mTime += 1000000;
+        mSender.send(mPacket, 0, mPacket.length, mTime);
+        if (mHasAck) {
+            mHasAck = false;
+            mSender.onReceived(mAck, 0, mAck.length, mTime);
+        }
+        return mSender.getInFlightCount();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        mValue = (mValue * 6364136223846793005L + 1442695040888963407L);
+        mHistogram.record(mValue >>> 40);
+    }
+
+    // Recording into a histogram shared by several threads, like the executor and the gatt callbacks do
+    @State(Scope.Benchmark)
+    public static class SharedHistogram {
+        final AtomicHistogram mHistogram = new AtomicHistogram();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramRecordShared(SharedHistogram shared) {
+        mValue = (mValue * 6364136223846793005L + 1442695040888963407L);
+        shared.mHistogram.record(mValue >>> 40);
+    }
+}
@@ -0,0 +1,83 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.ble.BleAdvertisement;
+
+// Scan record parsing, done for every advertisement received while scanning
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanRecordBenchmark {
+    // Constants
+    private static final UUID kUartServiceUuid = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    // Data
+    private byte[] mUartRecord;             // Bluefruit: flags, uart service uuid, tx power, name
+    private byte[] mBeaconRecord;           // iBeacon: flags, manufacturer data
+    private final byte[] mEmptyRecord = new byte[62];       // padding only
+
+    @Setup
+    public void setup() {
+        mUartRecord = new byte[62];
+        int offset = 0;
+        offset = put(mUartRecord, offset, 0x01, new byte[]{0x06});
+        final byte[] uuid = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            uuid[i] = (byte) (kUartServiceUuid.getLeastSignificantBits() >>> (i * 8));
+            uuid[8 + i] = (byte) (kUartServiceUuid.getMostSignificantBits() >>> (i * 8));
+        }
+        offset = put(mUartRecord, offset, 0x07, uuid);
+        offset = put(mUartRecord, offset, 0x0A, new byte[]{0x00});
+        put(mUartRecord, offset, 0x09, "Adafruit Bluefruit LE".getBytes());
+
+        mBeaconRecord = new byte[62];
+        offset = put(mBeaconRecord, 0, 0x01, new byte[]{0x06});
+        final byte[] beacon = new byte[25];
+        beacon[0] = 0x4C;
+        beacon[2] = 0x02;
+        beacon[3] = 0x15;
+        put(mBeaconRecord, offset, 0xFF, beacon);
+
+        if (!BleAdvertisement.parse(mUartRecord).hasServiceUuid(kUartServiceUuid)) {
+            throw new IllegalStateException("Invalid benchmark scan record");
+        }
+    }
+
+    private static int put(byte[] record, int offset, int type, byte[] data) {
+        record[offset] = (byte) (data.length + 1);
+        record[offset + 1] = (byte) type;
+        System.arraycopy(data, 0, record, offset + 2, data.length);
+        return offset + 2 + data.length;
+    }
+
+    @Benchmark
+    public BleAdvertisement parseUart() {
+        return BleAdvertisement.parse(mUartRecord);
+    }
+
+    @Benchmark
+    public BleAdvertisement parseBeacon() {
+        return BleAdvertisement.parse(mBeaconRecord);
+    }
+
+    @Benchmark
+    public BleAdvertisement parseEmpty() {
+        return BleAdvertisement.parse(mEmptyRecord);
+    }
+}
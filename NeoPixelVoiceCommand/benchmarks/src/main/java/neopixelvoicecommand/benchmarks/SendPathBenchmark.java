@@ -0,0 +1,112 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.ble.HexUtils;
+import neopixelvoicecommand.ble.PacketEncoder;
+
+// The work of MainActivity.sendColorToDevice, sendRainbowColorToDevice and sendFireEffectToDevice before the packet reaches the gatt queue: encoding, logging and chunking.
+// The legacy* benchmarks reproduce the previous send path (ByteBuffer, String.getBytes, a copy for the checksum, the hex log string and a copy per chunk) as reference.
+// Run with -prof gc: gc.alloc.rate.norm is the bytes allocated per command, 0 for the PacketEncoder path in steady state
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendPathBenchmark {
+    // Constants
+    private static final int kTxMaxCharacters = 20;
+    private static final boolean kIsDebugLoggable = false;     // Log.isLoggable(TAG, Log.DEBUG) of a release build
+
+    // Data
+    private final PacketEncoder mPacketEncoder = new PacketEncoder();
+    private int mColor;
+
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+    }
+
+    // region PacketEncoder
+    @Benchmark
+    public void color() {
+        mColor = (mColor + 0x010203) & 0xFFFFFF;
+        sendPacket(mPacketEncoder.color(mColor));
+    }
+
+    @Benchmark
+    public void rainbow() {
+        sendPacket(mPacketEncoder.rainbow());
+    }
+
+    @Benchmark
+    public void fire() {
+        sendPacket(mPacketEncoder.fire());
+    }
+
+    // Same as MainActivity.sendPacket: lazy log, and the packet buffer is handed to the gatt queue without copying it
+    private void sendPacket(PacketEncoder packet) {
+        if (kIsDebugLoggable) {
+            mBlackhole.consume("Send to UART: " + HexUtils.bytesToHexWithSpaces(packet.getBuffer(), 0, packet.getLength()));
+        }
+        mBlackhole.consume(packet.getBuffer());
+        mBlackhole.consume(packet.getLength());
+    }
+    // endregion
+
+    // region Legacy
+    @Benchmark
+    public void legacyColor() {
+        mColor = (mColor + 0x010203) & 0xFFFFFF;
+        final ByteBuffer buffer = ByteBuffer.allocate(2 + 3).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("!C".getBytes());
+        buffer.put((byte) ((mColor >> 16) & 0xFF));
+        buffer.put((byte) ((mColor >> 8) & 0xFF));
+        buffer.put((byte) (mColor & 0xFF));
+        legacySendDataWithCRC(buffer.array());
+    }
+
+    @Benchmark
+    public void legacyRainbow() {
+        final ByteBuffer buffer = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("!R".getBytes());
+        legacySendDataWithCRC(buffer.array());
+    }
+
+    private void legacySendDataWithCRC(byte[] data) {
+        byte checksum = 0;
+        for (byte value : data) {
+            checksum += value;
+        }
+        checksum = (byte) (~checksum);
+
+        final byte[] dataCrc = new byte[data.length + 1];
+        System.arraycopy(data, 0, dataCrc, 0, data.length);
+        dataCrc[data.length] = checksum;
+
+        // Log.d always built the string, even when debug logging was off
+        mBlackhole.consume("Send to UART: " + HexUtils.bytesToHexWithSpaces(dataCrc));
+        for (int i = 0; i < dataCrc.length; i += kTxMaxCharacters) {
+            mBlackhole.consume(Arrays.copyOfRange(dataCrc, i, Math.min(i + kTxMaxCharacters, dataCrc.length)));
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,110 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.ble.PixelFrameEncoder;
+import neopixelvoicecommand.ble.PixelStreamEncoder;
+import neopixelvoicecommand.effects.Effect;
+import neopixelvoicecommand.effects.FireEffect;
+import neopixelvoicecommand.effects.RainbowEffect;
+import neopixelvoicecommand.effects.WipeEffect;
+
+// Animation streaming: PixelStreamEncoder over recorded effect sequences (10 seconds at 30 fps of a 90 led strip, like MainActivity), against raw keyframes.
+// The compression ratio of each sequence (bytes sent / bytes of raw frames) is printed by setup, and only depends on the sequence, not on the machine
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamBenchmark {
+    // Constants
+    private static final int kPixelsCount = 90;
+    private static final int kFps = 30;
+    private static final int kFramesCount = 10 * kFps;
+
+    @Param({"rainbow", "fire", "wipe"})
+    public String sequence;
+
+    // Data
+    private final int[][] mFrames = new int[kFramesCount][kPixelsCount];
+    private final PixelFrameEncoder mFrameEncoder = new PixelFrameEncoder();
+    private final PixelStreamEncoder mStreamEncoder = new PixelStreamEncoder(new PixelFrameEncoder());
+    private int mFrameIndex;
+
+    private Blackhole mBlackhole;
+    private final PixelFrameEncoder.PacketSink mSink = new PixelFrameEncoder.PacketSink() {
+        @Override
+        public void onPacket(byte[] buffer, int offset, int length) {
+            mBlackhole.consume(buffer[offset + length - 1]);
+        }
+    };
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+
+        final Effect effect = createEffect(sequence);
+        for (int i = 0; i < kFramesCount; i++) {
+            effect.render(mFrames[i], kPixelsCount, i * 1000L / kFps);
+        }
+
+        // Compression of the whole sequence
+        final PixelStreamEncoder encoder = new PixelStreamEncoder(new PixelFrameEncoder());
+        final PixelFrameEncoder.PacketSink sink = new PixelFrameEncoder.PacketSink() {
+            @Override
+            public void onPacket(byte[] buffer, int offset, int length) {
+            }
+        };
+        for (int[] frame : mFrames) {
+            encoder.encode(frame, kPixelsCount, sink);
+        }
+        System.out.println(String.format(Locale.US, "%s: compression ratio %.3f, %d keyframes in %d frames", sequence, encoder.getCompressionRatio(), encoder.getKeyframesCount(), encoder.getFramesCount()));
+    }
+
+    private static Effect createEffect(String sequence) {
+        if ("fire".equals(sequence)) {
+            return new FireEffect(55, 120, new Random(42));
+        } else if ("wipe".equals(sequence)) {
+            return new WipeEffect(0xFF0000, 0x000000, 3000, true);
+        } else {
+            return new RainbowEffect(2560);
+        }
+    }
+
+    private int[] nextFrame() {
+        final int[] frame = mFrames[mFrameIndex];
+        mFrameIndex = (mFrameIndex + 1) % kFramesCount;
+        return frame;
+    }
+
+    // Next frame of the sequence as a delta of the previous one. The sequence starts again with a keyframe
+    @Benchmark
+    public int streamFrame() {
+        if (mFrameIndex == 0) {
+            mStreamEncoder.reset();
+        }
+        return mStreamEncoder.encode(nextFrame(), kPixelsCount, mSink);
+    }
+
+    // Next frame of the sequence as a raw keyframe
+    @Benchmark
+    public int rawFrame() {
+        return mFrameEncoder.encode(nextFrame(), 0, kPixelsCount, mSink);
+    }
+}
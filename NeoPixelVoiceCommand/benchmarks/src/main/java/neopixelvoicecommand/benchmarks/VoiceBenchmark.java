@@ -0,0 +1,62 @@
+package neopixelvoicecommand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import neopixelvoicecommand.voice.ColorVocabulary;
+import neopixelvoicecommand.voice.CommandGrammar;
+import neopixelvoicecommand.voice.VoiceCommand;
+import neopixelvoicecommand.voice.VoiceMatcher;
+
+// Handling of a recognized utterance: CommandGrammar.parse, and VoiceMatcher.match (the fallback when the grammar doesn't match).
+// Run with -prof gc: parsing must not allocate (gc.alloc.rate.norm 0), including the utterances that are rejected
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoiceBenchmark {
+    @Param({"blue", "stairs blue at 40 percent", "fade to red over ten seconds", "fire slow", "make it tell"})
+    public String utterance;
+
+    // Data
+    private final ColorVocabulary mVocabulary = new ColorVocabulary();
+    private final CommandGrammar mGrammar = new CommandGrammar(mVocabulary);
+    private final VoiceMatcher mMatcher = new VoiceMatcher(mVocabulary);
+    private final VoiceCommand mCommand = new VoiceCommand();
+    private List<String> mResults;
+
+    @Setup
+    public void setup() {
+        mGrammar.addZone("stairs");
+        mResults = Collections.singletonList(utterance);
+
+        // Compile the grammar and index the vocabulary before measuring
+        mGrammar.parse(utterance, mCommand);
+        mMatcher.match(mResults, null);
+    }
+
+    @Benchmark
+    public boolean parse() {
+        return mGrammar.parse(utterance, mCommand);
+    }
+
+    @Benchmark
+    public VoiceMatcher.Match match() {
+        return mMatcher.match(mResults, null);
+    }
+}